@@ -0,0 +1,38 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeduplicatorBenchmark {
+
+  private static final int CAPACITY = 10_000;
+
+  private Deduplicator<Long> deduplicator;
+
+  @Setup
+  public void setUp() {
+    deduplicator = new Deduplicator<>(CAPACITY);
+  }
+
+  /** Roughly half of the values are duplicates once the deduplicator is full */
+  @Benchmark
+  @Threads(4)
+  public boolean addAndGetIsDuplicate() {
+    return deduplicator.addAndGetIsDuplicate(ThreadLocalRandom.current().nextLong(CAPACITY * 2));
+  }
+}
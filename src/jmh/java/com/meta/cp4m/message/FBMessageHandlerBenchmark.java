@@ -0,0 +1,45 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FBMessageHandlerBenchmark {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final String MESSAGE_ID = "m_kT_mWOSYh_eK3kF8chtyCWfcD9";
+
+  private FBMessageHandler handler;
+  private long messageCount = 0;
+
+  @Setup
+  public void setUp() {
+    handler = FBMessengerConfig.of("verify", "app secret", "access token").toMessageHandler();
+  }
+
+  /** Every message needs a new id, otherwise it's dropped by the deduplicator */
+  @Benchmark
+  public List<ThreadState<FBMessage>> parseWebhook() throws JsonProcessingException {
+    String body =
+        FBMessageHandlerTest.SAMPLE_MESSAGE.replace(MESSAGE_ID, MESSAGE_ID + messageCount++);
+    JsonNode tree = MAPPER.readTree(body);
+    return handler.postHandler(tree);
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetaHandlerUtilsBenchmark {
+
+  private static final String APP_SECRET = "app secret";
+  private String signature;
+
+  @Setup
+  public void setUp() {
+    signature =
+        "sha256=" + MetaHandlerUtils.hmac(FBMessageHandlerTest.SAMPLE_MESSAGE, APP_SECRET);
+  }
+
+  @Benchmark
+  public boolean signatureValid() {
+    return MetaHandlerUtils.signatureValid(
+        signature, FBMessageHandlerTest.SAMPLE_MESSAGE, APP_SECRET);
+  }
+}
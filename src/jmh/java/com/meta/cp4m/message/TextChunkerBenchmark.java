@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextChunkerBenchmark {
+
+  private static final String SENTENCE = "This is a sentence of a typical generated reply. ";
+
+  @Param({"1000", "10000"})
+  public int length;
+
+  private TextChunker chunker;
+  private String text;
+
+  @Setup
+  public void setUp() {
+    chunker = TextChunker.standard(2000);
+    StringBuilder builder = new StringBuilder(length);
+    int sentences = 0;
+    while (builder.length() < length) {
+      builder.append(SENTENCE);
+      if (++sentences % 5 == 0) {
+        builder.append("\n\n");
+      }
+    }
+    text = builder.substring(0, length);
+  }
+
+  @Benchmark
+  public List<String> chunks() {
+    return chunker.chunks(text).toList();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.meta.cp4m.Identifier;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadStateBenchmark {
+
+  @Param({"10", "100"})
+  public int messageCount;
+
+  private ThreadState<FBMessage> thread;
+  private ThreadState<FBMessage> overlapping;
+
+  @Setup
+  public void setUp() {
+    Instant start = Instant.now();
+    thread =
+        ThreadState.of(
+            new FBMessage(
+                start,
+                Identifier.random(),
+                Identifier.random(),
+                Identifier.random(),
+                "message 0",
+                Message.Role.USER));
+    for (int i = 1; i < messageCount; i++) {
+      thread =
+          thread.with(
+              thread.newMessageFromUser(
+                  start.plusMillis(i), "message " + i, Identifier.random()));
+    }
+    // shares the first half of the thread, like a store update racing a new message
+    overlapping = thread.truncateMessageHistory(messageCount / 2);
+    for (int i = 0; i < messageCount / 2; i++) {
+      overlapping =
+          overlapping.with(
+              overlapping.newMessageFromBot(start.plusMillis(messageCount + i), "reply " + i));
+    }
+  }
+
+  @Benchmark
+  public ThreadState<FBMessage> with() {
+    return thread.with(thread.newMessageFromUser(Instant.now(), "new message", Identifier.random()));
+  }
+
+  @Benchmark
+  public ThreadState<FBMessage> merge() {
+    return thread.merge(overlapping);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.Message.Role;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing and reading a thread with {@link ThreadStateCodec} compared with writing the same fields
+ * as JSON, the size of both is printed when the benchmark starts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadStateCodecBenchmark {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final MessageFactory<FBMessage> FACTORY =
+      MessageFactory.instance(FBMessage.class);
+
+  @Param({"4", "64"})
+  public int messages;
+
+  @Param({"40", "2000"})
+  public int textLength;
+
+  private ThreadState<FBMessage> thread;
+  private byte[] encoded;
+  private byte[] json;
+
+  @Setup
+  public void setUp() throws IOException {
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+    String words = "the quick brown fox jumps over the lazy dog ";
+    Instant timestamp = Instant.now();
+    for (int i = 0; i < messages; i++) {
+      StringBuilder text = new StringBuilder();
+      while (text.length() < textLength) {
+        int start = ThreadLocalRandom.current().nextInt(words.length() - 4);
+        text.append(words, start, words.indexOf(' ', start) + 1);
+      }
+      timestamp = timestamp.plusMillis(ThreadLocalRandom.current().nextInt(100_000));
+      boolean fromUser = i % 2 == 0;
+      FBMessage message =
+          new FBMessage(
+              timestamp,
+              Identifier.random(),
+              fromUser ? user : bot,
+              fromUser ? bot : user,
+              text.toString(),
+              fromUser ? Role.USER : Role.ASSISTANT);
+      thread = thread == null ? ThreadState.of(message) : thread.with(message);
+    }
+    encoded = ThreadStateCodec.encode(thread);
+    json = MAPPER.writeValueAsBytes(toJson(thread));
+    System.out.printf(
+        "%n%d messages of %d characters: codec %d bytes, uncompressed %d bytes, json %d bytes%n",
+        messages,
+        textLength,
+        encoded.length,
+        ThreadStateCodec.encode(thread, false).length,
+        json.length);
+  }
+
+  private static ObjectNode toJson(ThreadState<FBMessage> thread) {
+    ObjectNode root = MAPPER.createObjectNode();
+    ArrayNode array = root.putArray("messages");
+    for (FBMessage message : thread.messages()) {
+      array
+          .addObject()
+          .put("timestamp", message.timestamp().toString())
+          .put("instance_id", message.instanceId().toString())
+          .put("sender_id", message.senderId().toString())
+          .put("recipient_id", message.recipientId().toString())
+          .put("role", message.role().name())
+          .put("text", message.message());
+    }
+    return root;
+  }
+
+  private static ThreadState<FBMessage> fromJson(JsonNode root) {
+    List<FBMessage> messages = new ArrayList<>();
+    for (JsonNode node : root.get("messages")) {
+      messages.add(
+          FACTORY.newMessage(
+              Instant.parse(node.get("timestamp").textValue()),
+              new Payload.Text(node.get("text").textValue()),
+              Identifier.from(node.get("sender_id").textValue()),
+              Identifier.from(node.get("recipient_id").textValue()),
+              Identifier.from(node.get("instance_id").textValue()),
+              Role.valueOf(node.get("role").textValue())));
+    }
+    // the first message is from the user
+    return ThreadState.of(messages, UserData.create(messages.getFirst().senderId()));
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return ThreadStateCodec.encode(thread);
+  }
+
+  @Benchmark
+  public byte[] encodeUncompressed() {
+    return ThreadStateCodec.encode(thread, false);
+  }
+
+  @Benchmark
+  public ThreadState<FBMessage> decode() {
+    return ThreadStateCodec.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] encodeJson() throws IOException {
+    return MAPPER.writeValueAsBytes(toJson(thread));
+  }
+
+  @Benchmark
+  public ThreadState<FBMessage> decodeJson() throws IOException {
+    return fromJson(MAPPER.readTree(json));
+  }
+}
@@ -0,0 +1,26 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message.webhook.whatsapp;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebhookPayloadBenchmark {
+
+  @Benchmark
+  public WebhookPayload deserialize() throws JsonProcessingException {
+    return Utils.JSON_MAPPER.readValue(WebhookPayloadTest.TEST_MESSAGE, WebhookPayload.class);
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.meta.cp4m.message.FBMessage;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenAIPluginBenchmark {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /** the number of messages in the thread, most of them won't fit in the input token limit */
+  @Param({"10", "100"})
+  public int messageCount;
+
+  private OpenAIPlugin<FBMessage> plugin;
+  private ArrayNode messages;
+
+  @Setup
+  public void setUp() {
+    plugin =
+        new OpenAIPlugin<>(
+            OpenAIConfig.builder(OpenAIModel.GPT4, "api key").maxInputTokens(1000).build());
+    messages = MAPPER.createArrayNode();
+    messages.addObject().put("role", "system").put("content", "You're a helpful assistant.");
+    for (int i = 0; i < messageCount; i++) {
+      messages
+          .addObject()
+          .put("role", i % 2 == 0 ? "user" : "assistant")
+          .put(
+              "content",
+              "This is message number " + i + ", it is about as long as a typical message is.");
+    }
+  }
+
+  @Benchmark
+  public Optional<ArrayNode> pruneMessages() throws JsonProcessingException {
+    return plugin.pruneMessages(messages, null);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.store;
+
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Many threads adding to and updating a small number of conversations */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class MemoryStoreBenchmark {
+
+  @Param({"16", "1024"})
+  public int conversations;
+
+  private MemoryStore<FBMessage> store;
+  private Identifier[] users;
+  private Identifier bot;
+
+  @Setup
+  public void setUp() {
+    store = MemoryStoreConfig.of(1, 1024).toStore();
+    bot = Identifier.random();
+    users = new Identifier[conversations];
+    for (int i = 0; i < conversations; i++) {
+      users[i] = Identifier.random();
+    }
+  }
+
+  private FBMessage message() {
+    Identifier user = users[ThreadLocalRandom.current().nextInt(users.length)];
+    return new FBMessage(
+        Instant.now(), Identifier.random(), user, bot, "a message", Message.Role.USER);
+  }
+
+  @Benchmark
+  public ThreadState<FBMessage> add() {
+    return store.add(message());
+  }
+
+  @Benchmark
+  public ThreadState<FBMessage> update() {
+    return store.update(ThreadState.of(message()));
+  }
+}
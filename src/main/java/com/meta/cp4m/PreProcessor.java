@@ -10,9 +10,58 @@ package com.meta.cp4m;
 
 import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.util.concurrent.CompletableFuture;
 
 @FunctionalInterface
 public interface PreProcessor<T extends Message> {
 
     ThreadState<T> run(ThreadState<T> in);
-}
\ No newline at end of file
+
+    /**
+     * Run the preprocessor, leaving the work that doesn't change the thread, such as uploading
+     * media, to finish in the background. The service runs preprocessors this way and doesn't wait
+     * for the side effects before calling the plugin. Background work that can't be taken on
+     * because too much is already waiting should be dropped, not run on the calling thread, by
+     * completing the side effects with a {@link java.util.concurrent.RejectedExecutionException};
+     * the service counts these.
+     *
+     * <p>By default everything is done in {@link #run(ThreadState)}.
+     *
+     * @return the preprocessed thread and the side effects still running
+     */
+    default Result<T> runAsync(ThreadState<T> in) {
+        return new Result<>(run(in), CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Independent preprocessors don't rely on the changes made by the preprocessors that run before
+     * them and only add to the thread. Consecutive independent preprocessors are run concurrently
+     * and their results are merged.
+     *
+     * @return true if this preprocessor is independent
+     */
+    default boolean independent() {
+        return false;
+    }
+
+    /**
+     * Register this preprocessor's own metrics, if it has any
+     *
+     * @param registry the registry of the runner the service is added to
+     * @param service the path of the service the preprocessor belongs to
+     */
+    default void registerMetrics(MetricsRegistry registry, String service) {}
+
+    /**
+     * Release anything this preprocessor holds, such as clients or executors. Called when the
+     * runner the service is added to is closed.
+     */
+    default void close() {}
+
+    /**
+     * @param thread the thread to pass on to the rest of the service
+     * @param sideEffects completes when the work left running in the background is done
+     */
+    record Result<T extends Message>(ThreadState<T> thread, CompletableFuture<?> sideEffects) {}
+}
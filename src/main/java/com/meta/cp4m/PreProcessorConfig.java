@@ -14,7 +14,8 @@ import com.meta.cp4m.message.Message;
 
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "type")
 @JsonSubTypes({
-        @JsonSubTypes.Type(value = S3PreProcessorConfig.class, name = "aws_s3")
+        @JsonSubTypes.Type(value = S3PreProcessorConfig.class, name = "aws_s3"),
+        @JsonSubTypes.Type(value = SummarizingPreProcessorConfig.class, name = "summarizer")
 })
 public interface PreProcessorConfig {
     String name();
@@ -8,31 +8,64 @@
 
 package com.meta.cp4m;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.Payload;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.utils.BackgroundTasks;
+import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.jetbrains.annotations.TestOnly;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.WebIdentityTokenFileCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.*;
 
 public class S3PreProcessor<T extends Message> implements PreProcessor<T> {
+  public static final int DEFAULT_UPLOAD_CONCURRENCY = 4;
   private static final Logger LOGGER = LoggerFactory.getLogger(S3PreProcessor.class);
+  private static final int DEFAULT_PART_SIZE_BYTES = 8 * 1024 * 1024;
+  // each queued upload holds its media in memory, so only a few are allowed to wait
+  private static final int QUEUED_UPLOADS_PER_PERMIT = 4;
   private final String awsAccessKeyID;
   private final String awsSecretAccessKey;
   private final String region;
   private final String bucket;
   private final @Nullable String textMessageAddition;
+  private final @Nullable URI endpoint;
+  private final int uploadConcurrency;
+  // only created when uploads are left to run in the background
+  private final @Nullable BackgroundTasks backgroundUploads;
+  // bounds the number of concurrent uploads, including the parts of multipart uploads
+  private final Semaphore uploadPermits;
+  // created on first use and kept for the life of the preprocessor so connections are reused
+  private final Supplier<S3Client> client = Suppliers.memoize(this::client);
+  private volatile boolean clientCreated = false;
+  private int partSizeBytes = DEFAULT_PART_SIZE_BYTES;
 
   public S3PreProcessor(
       String awsAccessKeyID,
@@ -40,37 +73,120 @@ public class S3PreProcessor<T extends Message> implements PreProcessor<T> {
       String region,
       String bucket,
       @Nullable String textMessageAddition) {
+    this(
+        awsAccessKeyID,
+        awsSecretAccessKey,
+        region,
+        bucket,
+        textMessageAddition,
+        null,
+        DEFAULT_UPLOAD_CONCURRENCY,
+        false);
+  }
+
+  /**
+   * @param endpoint overrides the AWS endpoint, used for S3 compatible storage services
+   * @param uploadConcurrency the maximum number of requests sent to S3 at the same time
+   * @param backgroundUpload leave uploads to finish in the background when the service runs this
+   *     preprocessor, see {@link #runAsync(ThreadState)}
+   */
+  public S3PreProcessor(
+      String awsAccessKeyID,
+      String awsSecretAccessKey,
+      String region,
+      String bucket,
+      @Nullable String textMessageAddition,
+      @Nullable URI endpoint,
+      int uploadConcurrency,
+      boolean backgroundUpload) {
+    Preconditions.checkArgument(uploadConcurrency > 0, "uploadConcurrency must be greater than 0");
     this.awsAccessKeyID = awsAccessKeyID;
     this.awsSecretAccessKey = awsSecretAccessKey;
     this.region = region;
     this.bucket = bucket;
     this.textMessageAddition = textMessageAddition;
+    this.endpoint = endpoint;
+    this.uploadConcurrency = uploadConcurrency;
+    this.uploadPermits = new Semaphore(uploadConcurrency);
+    // uploads that don't fit in the queue are dropped rather than queueing media until memory
+    // runs out
+    this.backgroundUploads =
+        backgroundUpload
+            ? new BackgroundTasks(
+                "s3-upload-", uploadConcurrency, uploadConcurrency * QUEUED_UPLOADS_PER_PERMIT)
+            : null;
+  }
+
+  @TestOnly
+  void partSizeBytes(int partSizeBytes) {
+    this.partSizeBytes = partSizeBytes;
   }
 
   @Override
   public ThreadState<T> run(ThreadState<T> in) {
+    @Nullable Runnable upload = upload(in);
+    if (upload == null) {
+      return in;
+    }
+    upload.run();
+    return withAddition(in);
+  }
 
+  /** Leaves the upload running in the background when background uploads are enabled */
+  @Override
+  public Result<T> runAsync(ThreadState<T> in) {
+    if (backgroundUploads == null) {
+      return PreProcessor.super.runAsync(in);
+    }
+    @Nullable Runnable upload = upload(in);
+    if (upload == null) {
+      return new Result<>(in, CompletableFuture.completedFuture(null));
+    }
+    return new Result<>(withAddition(in), backgroundUploads.submit(upload));
+  }
+
+  /** @return the upload of the media in the thread's last message, null if there is no media */
+  private @Nullable Runnable upload(ThreadState<T> in) {
+    String senderID = in.userId().toString();
     switch (in.tail().payload()) {
       case Payload.Image i -> {
         LOGGER.atDebug().addKeyValue("payload", i).log("Received image payload");
-        this.sendRequest(i.value(), in.userId().toString(), i.extension(), i.mimeType());
+        return () -> sendRequest(i.value(), senderID, i.extension(), i.mimeType());
       }
       case Payload.Document i -> {
         LOGGER.atDebug().addKeyValue("payload", i).log("Received document payload");
-        this.sendRequest(i.value(), in.userId().toString(), i.extension(), i.mimeType());
+        return () -> sendRequest(i.value(), senderID, i.extension(), i.mimeType());
       }
       default -> {
         LOGGER.debug("Received text payload");
-        return in;
+        return null;
       }
     }
+  }
+
+  private ThreadState<T> withAddition(ThreadState<T> in) {
     return textMessageAddition == null
         ? in
         : in.with(in.newMessageFromUser(Instant.now(), textMessageAddition, Identifier.random()));
   }
 
+  /** The upload doesn't affect the thread, only the optional text message addition does */
+  @Override
+  public boolean independent() {
+    return true;
+  }
+
   private S3Client client() {
-    S3ClientBuilder clientBuilder = S3Client.builder().region(Region.of(this.region));
+    S3ClientBuilder clientBuilder =
+        S3Client.builder()
+            .region(Region.of(this.region))
+            .httpClientBuilder(ApacheHttpClient.builder().maxConnections(uploadConcurrency));
+    if (endpoint != null) {
+      // S3 compatible services generally don't support virtual host style bucket addressing
+      clientBuilder
+          .endpointOverride(endpoint)
+          .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+    }
     if (!this.awsAccessKeyID.isEmpty() && !this.awsSecretAccessKey.isEmpty()) {
       AwsSessionCredentials sessionCredentials =
           AwsSessionCredentials.create(this.awsAccessKeyID, this.awsSecretAccessKey, "");
@@ -89,29 +205,138 @@ public class S3PreProcessor<T extends Message> implements PreProcessor<T> {
               .build();
       clientBuilder = clientBuilder.credentialsProvider(webCredentials);
     }
-    return clientBuilder.build();
+    S3Client built = clientBuilder.build();
+    clientCreated = true;
+    return built;
+  }
+
+  /** Waits for queued background uploads to finish before closing the client */
+  @Override
+  public void close() {
+    if (backgroundUploads != null) {
+      backgroundUploads.close();
+    }
+    if (clientCreated) {
+      client.get().close();
+    }
   }
 
   public void sendRequest(byte[] media, String senderID, String extension, String mimeType) {
     String key = senderID + '_' + Instant.now().toEpochMilli() + '.' + extension;
     LOGGER.debug("attempting to upload \"" + key + "\" file to AWS S3");
-    try (S3Client s3Client = client()) {
+    try {
+      if (media.length > partSizeBytes) {
+        multipartUpload(media, key, mimeType);
+      } else {
+        putObject(media, key, mimeType);
+      }
+      LOGGER.info("Media upload to AWS S3 successful");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("Media upload to AWS S3 interrupted", e);
+    } catch (IOException | SdkException e) {
+      LOGGER.error("Media upload to AWS S3 failed", e);
+    }
+  }
 
-      PutObjectRequest request =
-          PutObjectRequest.builder().bucket(this.bucket).key(key).contentType(mimeType).build();
-      LOGGER
-          .atDebug()
-          .addKeyValue("request", request)
-          .log("AWS S3 request created for media upload");
-      PutObjectResponse response = s3Client.putObject(request, RequestBody.fromBytes(media));
+  private void putObject(byte[] media, String key, String mimeType) throws InterruptedException {
+    PutObjectRequest request =
+        PutObjectRequest.builder().bucket(this.bucket).key(key).contentType(mimeType).build();
+    LOGGER.atDebug().addKeyValue("request", request).log("AWS S3 request created for media upload");
+    PutObjectResponse response;
+    uploadPermits.acquire();
+    try {
+      response = client.get().putObject(request, RequestBody.fromBytes(media));
+    } finally {
+      uploadPermits.release();
+    }
+    LOGGER
+        .atDebug()
+        .addKeyValue("response", response)
+        .addKeyValue("file", key)
+        .log("AWS S3 response received on successful upload");
+  }
+
+  private void multipartUpload(byte[] media, String key, String mimeType)
+      throws IOException, InterruptedException {
+    S3Client s3Client = client.get();
+    String uploadId =
+        s3Client
+            .createMultipartUpload(
+                CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(mimeType)
+                    .build())
+            .uploadId();
+    LOGGER
+        .atDebug()
+        .addKeyValue("file", key)
+        .addKeyValue("upload_id", uploadId)
+        .log("AWS S3 multipart upload created");
+    try {
+      List<CompletedPart> parts = uploadParts(s3Client, media, key, uploadId);
+      CompleteMultipartUploadResponse response =
+          s3Client.completeMultipartUpload(
+              CompleteMultipartUploadRequest.builder()
+                  .bucket(bucket)
+                  .key(key)
+                  .uploadId(uploadId)
+                  .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                  .build());
       LOGGER
           .atDebug()
           .addKeyValue("response", response)
           .addKeyValue("file", key)
-          .log("AWS S3 response received on successful upload");
-      LOGGER.info("Media upload to AWS S3 successful");
-    } catch (Exception e) {
-      LOGGER.error("Media upload to AWS S3 failed, {e}", e);
+          .addKeyValue("parts", parts.size())
+          .log("AWS S3 response received on successful multipart upload");
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      // don't leave orphaned parts in the bucket
+      s3Client.abortMultipartUpload(
+          AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build());
+      throw e;
+    }
+  }
+
+  private List<CompletedPart> uploadParts(
+      S3Client s3Client, byte[] media, String key, String uploadId)
+      throws IOException, InterruptedException {
+    List<Future<CompletedPart>> futures = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int offset = 0; offset < media.length; offset += partSizeBytes) {
+        // part numbers start at 1
+        int number = futures.size() + 1;
+        byte[] part =
+            Arrays.copyOfRange(media, offset, Math.min(media.length, offset + partSizeBytes));
+        futures.add(
+            executor.submit(
+                () -> {
+                  UploadPartRequest request =
+                      UploadPartRequest.builder()
+                          .bucket(bucket)
+                          .key(key)
+                          .uploadId(uploadId)
+                          .partNumber(number)
+                          .build();
+                  uploadPermits.acquire();
+                  try {
+                    String eTag = s3Client.uploadPart(request, RequestBody.fromBytes(part)).eTag();
+                    return CompletedPart.builder().partNumber(number).eTag(eTag).build();
+                  } finally {
+                    uploadPermits.release();
+                  }
+                }));
+      }
+    }
+
+    List<CompletedPart> parts = new ArrayList<>(futures.size());
+    for (Future<CompletedPart> future : futures) {
+      try {
+        parts.add(future.get());
+      } catch (ExecutionException e) {
+        throw new IOException("failed to upload part of multipart upload", e.getCause());
+      }
     }
+    return parts;
   }
 }
@@ -12,6 +12,7 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
 import com.meta.cp4m.message.Message;
+import java.net.URI;
 import java.util.Objects;
 import java.util.regex.Pattern;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -22,7 +23,10 @@ public record S3PreProcessorConfig(
     String awsSecretAccessKey,
     String region,
     String bucket,
-    @Nullable String textMessageAddition)
+    @Nullable String textMessageAddition,
+    @Nullable String endpoint,
+    Integer uploadConcurrency,
+    Boolean backgroundUpload)
     implements PreProcessorConfig {
 
   private static final Pattern KEBAB_CASE = Pattern.compile("^[a-z0-9]+(-[a-z0-9]+)*$");
@@ -34,11 +38,17 @@ public record S3PreProcessorConfig(
       @JsonProperty("aws_secret_access_key") @Nullable String awsSecretAccessKey,
       @JsonProperty("region") String region,
       @JsonProperty("bucket") String bucket,
-      @JsonProperty("text_message_addition") @Nullable String textMessageAddition) {
+      @JsonProperty("text_message_addition") @Nullable String textMessageAddition,
+      @JsonProperty("endpoint") @Nullable String endpoint,
+      @JsonProperty("upload_concurrency") @Nullable Integer uploadConcurrency,
+      @JsonProperty("background_upload") @Nullable Boolean backgroundUpload) {
 
     Preconditions.checkArgument(
         KEBAB_CASE.matcher(bucket).matches(),
         "bucket does not match the aws region format(kebab case) or is empty");
+    Preconditions.checkArgument(
+        uploadConcurrency == null || uploadConcurrency > 0,
+        "upload_concurrency must be greater than 0");
 
     this.name = Objects.requireNonNull(name, "name is a required parameter");
     this.awsAccessKeyId = Objects.requireNonNullElse(awsAccessKeyId, "");
@@ -46,11 +56,22 @@ public record S3PreProcessorConfig(
     this.region = Objects.requireNonNull(region, "region is a required parameter");
     this.bucket = Objects.requireNonNull(bucket, "bucket is a required parameter");
     this.textMessageAddition = textMessageAddition;
+    this.endpoint = endpoint;
+    this.uploadConcurrency =
+        Objects.requireNonNullElse(uploadConcurrency, S3PreProcessor.DEFAULT_UPLOAD_CONCURRENCY);
+    this.backgroundUpload = Objects.requireNonNullElse(backgroundUpload, false);
   }
 
   @Override
   public <T extends Message> PreProcessor<T> toPreProcessor() {
     return new S3PreProcessor<>(
-        awsAccessKeyId, awsSecretAccessKey, region, bucket, textMessageAddition);
+        awsAccessKeyId,
+        awsSecretAccessKey,
+        region,
+        bucket,
+        textMessageAddition,
+        endpoint == null ? null : URI.create(endpoint),
+        uploadConcurrency,
+        backgroundUpload);
   }
 }
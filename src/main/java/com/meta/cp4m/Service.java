@@ -12,9 +12,15 @@ import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.MessageHandler;
 import com.meta.cp4m.message.RequestProcessor;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.Counter;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.metrics.StageMetrics;
+import com.meta.cp4m.metrics.StageMetrics.ThrowingSupplier;
 import com.meta.cp4m.plugin.Plugin;
+import com.meta.cp4m.plugin.SingleFlightPlugin;
 import com.meta.cp4m.routing.Route;
 import com.meta.cp4m.store.ChatStore;
+import com.meta.cp4m.tracing.MessageTrace;
 import io.javalin.http.Context;
 import java.io.IOException;
 import java.util.*;
@@ -22,6 +28,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.*;
+import org.HdrHistogram.Histogram;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +43,8 @@ public class Service<T extends Message> {
 
   private final String path;
   private final List <PreProcessor<T>> preProcessors;
+  // replaced when the service is added to a runner so the metrics are scraped with the runner's
+  private volatile Stages stages;
 
   public Service(ChatStore<T> store, MessageHandler<T> handler, Plugin<T> plugin, String path) {
     this.handler = Objects.requireNonNull(handler);
@@ -43,6 +52,7 @@ public class Service<T extends Message> {
     this.plugin = Objects.requireNonNull(plugin);
     this.path = Objects.requireNonNull(path);
     this.preProcessors = Collections.emptyList();
+    this.stages = new Stages(new MetricsRegistry());
   }
 
   public Service(
@@ -52,12 +62,58 @@ public class Service<T extends Message> {
     this.plugin = plugin;
     this.path = path;
     this.preProcessors = Collections.unmodifiableList(preProcessors);
+    this.stages = new Stages(new MetricsRegistry());
+  }
+
+  private static String componentName(Object component) {
+    return component.getClass().getSimpleName();
+  }
+
+  /** Time a call in both the stage's metrics and the message's trace */
+  private static <R, E extends Exception> R timed(
+      StageMetrics stage, MessageTrace trace, ThrowingSupplier<R, E> call) throws E {
+    return trace.span(stage.stage(), stage.component(), () -> stage.call(call));
+  }
+
+  /**
+   * Keep this service's metrics in the given registry from now on
+   *
+   * @param registry the registry of the runner this service is added to
+   */
+  void registerMetrics(MetricsRegistry registry) {
+    this.stages = new Stages(registry);
+    handler.registerMetrics(registry);
+    store.registerMetrics(registry, path);
+    plugin.registerMetrics(registry, path);
+    preProcessors.forEach(p -> p.registerMetrics(registry, path));
+    if (plugin instanceof SingleFlightPlugin<T> singleFlight) {
+      registry.counter(
+          "cp4m_single_flight_leader_requests_total",
+          "Plugin requests sent upstream by a single flight plugin",
+          singleFlight::leaderRequests,
+          "service",
+          path);
+      registry.counter(
+          "cp4m_single_flight_collapsed_requests_total",
+          "Plugin requests answered with the response of an identical in flight request",
+          singleFlight::collapsedRequests,
+          "service",
+          path);
+    }
+  }
+
+  /** Release what the components of this service hold, called when its runner is closed */
+  void close() {
+    preProcessors.forEach(PreProcessor::close);
+    plugin.close();
   }
 
   <IN> void handler(Context ctx, IN in, RequestProcessor<IN, T> processor) {
+    Stages stages = this.stages;
+    MessageTrace request = MessageTrace.of(ctx);
     List<ThreadState<T>> threads;
     try {
-      threads = processor.process(ctx, in);
+      threads = timed(stages.webhook(), request, () -> processor.process(ctx, in));
     } catch (RuntimeException e) {
       LOGGER
           .atError()
@@ -70,8 +126,16 @@ public class Service<T extends Message> {
     }
     // TODO: once we have a non-volatile store, on startup send stored but not replied to messages
     for (ThreadState<T> threadState : threads) {
-      ThreadState<T> fullThreadState = store.update(threadState);
-      executorService.submit(() -> execute(fullThreadState));
+      MessageTrace trace = request.fork(path);
+      T trigger = threadState.tail();
+      ThreadState<T> fullThreadState =
+          timed(stages.store(), trace, () -> store.update(threadState));
+      long submitted = System.nanoTime();
+      executorService.submit(
+          () -> {
+            trace.record("queue", "Service", submitted, System.nanoTime());
+            execute(fullThreadState, trigger, trace);
+          });
     }
   }
 
@@ -91,23 +155,134 @@ public class Service<T extends Message> {
     return this.plugin;
   }
 
-  private void execute(ThreadState<T> thread) {
-    ThreadState<T> preproccessed = thread;
-    for (PreProcessor<T> preProcessor : preProcessors) {
-      preproccessed = preProcessor.run(preproccessed);
-    }
+  public List<PreProcessor<T>> preProcessors() {
+    return preProcessors;
+  }
 
-    T pluginResponse;
+  /**
+   * @return a snapshot of the time, in microseconds, spent in each preprocessor, in the same order
+   *     as {@link #preProcessors()}
+   */
+  public List<Histogram> preProcessorLatencyMicros() {
+    return stages.preProcessors().stream().map(s -> s.latency().snapshotMicros()).toList();
+  }
+
+  /**
+   * @param trigger the user's message that is being replied to
+   */
+  private void execute(ThreadState<T> thread, T trigger, MessageTrace trace) {
+    Stages stages = this.stages;
     try {
-      pluginResponse = plugin.handle(preproccessed);
-    } catch (IOException e) {
-      LOGGER.error("Plugin failure occurred", e);
-      return;
+      stages
+          .execute()
+          .run(
+              () -> {
+                ThreadState<T> preproccessed = preprocess(thread, trace);
+
+                try {
+                  new PluginCall(stages.plugin(), trigger, trace).run(preproccessed);
+                } catch (IOException e) {
+                  LOGGER
+                      .atError()
+                      .addKeyValue("trace_id", trace.traceId())
+                      .setCause(e)
+                      .log("Plugin failure occurred");
+                }
+              });
+    } finally {
+      trace.finish();
     }
-    store.add(pluginResponse);
+  }
+
+  ThreadState<T> preprocess(ThreadState<T> thread) {
+    return preprocess(thread, MessageTrace.NOOP);
+  }
+
+  private ThreadState<T> preprocess(ThreadState<T> thread, MessageTrace trace) {
+    ThreadState<T> preprocessed = thread;
+    int start = 0;
+    while (start < preProcessors.size()) {
+      int end = start + 1;
+      if (preProcessors.get(start).independent()) {
+        while (end < preProcessors.size() && preProcessors.get(end).independent()) {
+          end++;
+        }
+      }
+      preprocessed =
+          end - start == 1
+              ? runPreProcessor(start, preprocessed, trace)
+              : runConcurrently(start, end, preprocessed, trace);
+      start = end;
+    }
+    return preprocessed;
+  }
+
+  private ThreadState<T> runConcurrently(
+      int start, int end, ThreadState<T> thread, MessageTrace trace) {
+    List<Future<ThreadState<T>>> futures = new ArrayList<>(end - start);
+    for (int i = start; i < end; i++) {
+      int index = i;
+      futures.add(executorService.submit(() -> runPreProcessor(index, thread, trace)));
+    }
+    ThreadState<T> merged = thread;
+    for (Future<ThreadState<T>> future : futures) {
+      try {
+        merged = merged.merge(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException cause) {
+          throw cause;
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return merged;
+  }
+
+  private ThreadState<T> runPreProcessor(int index, ThreadState<T> thread, MessageTrace trace) {
+    Stages stages = this.stages;
+    PreProcessor<T> preProcessor = preProcessors.get(index);
+    PreProcessor.Result<T> result =
+        timed(stages.preProcessors().get(index), trace, () -> preProcessor.runAsync(thread));
+    // the reply doesn't wait for the side effects, they are only watched for failures
+    result
+        .sideEffects()
+        .whenComplete(
+            (ignored, e) -> {
+              Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+              if (cause instanceof RejectedExecutionException) {
+                stages.droppedSideEffects().get(index).increment();
+                LOGGER
+                    .atWarn()
+                    .addKeyValue("pre_processor", componentName(preProcessor))
+                    .log("preprocessor side effects dropped, too many are waiting");
+              } else if (cause != null) {
+                LOGGER
+                    .atError()
+                    .addKeyValue("pre_processor", componentName(preProcessor))
+                    .setCause(cause)
+                    .log("preprocessor side effects failed");
+              }
+            });
+    return result.thread();
+  }
+
+  /**
+   * Store a response from the plugin and send it to the user
+   *
+   * @param pluginResponse a complete response, or a complete part of a response, from the plugin
+   * @param trigger the user's message that is being replied to
+   * @param trace the trace of the message being replied to
+   */
+  private void deliver(T pluginResponse, T trigger, MessageTrace trace) {
+    Stages stages = this.stages;
+    timed(stages.store(), trace, () -> store.add(pluginResponse));
     @Nullable ThreadState<T> updatedThreadState = null;
     try {
-      updatedThreadState = handler.respond(pluginResponse);
+      updatedThreadState =
+          timed(stages.respond(), trace, () -> handler.respond(pluginResponse, trigger));
     } catch (Exception e) {
       // we log in the handler where we have the body context
       // TODO: create transactional store add
@@ -115,7 +290,55 @@ public class Service<T extends Message> {
       LOGGER.error("an error occurred while attempting to respond", e);
     }
     if (updatedThreadState != null) {
-      store.update(updatedThreadState);
+      ThreadState<T> update = updatedThreadState;
+      timed(stages.store(), trace, () -> store.update(update));
+    }
+  }
+
+  /**
+   * Times a plugin call in the plugin stage without the time spent delivering what it streams. The
+   * plugin span is ended before each chunk is delivered and a new one started after it, so the
+   * trace shows the plugin and the delivery of each chunk one after the other.
+   */
+  private final class PluginCall {
+
+    private final StageMetrics stage;
+    private final T trigger;
+    private final MessageTrace trace;
+    private MessageTrace.@Nullable ActiveSpan span;
+    private long deliveringNanos;
+
+    private PluginCall(StageMetrics stage, T trigger, MessageTrace trace) {
+      this.stage = stage;
+      this.trigger = trigger;
+      this.trace = trace;
+    }
+
+    void run(ThreadState<T> thread) throws IOException {
+      stage.call(
+          () -> {
+            span = trace.begin(stage.stage(), stage.component());
+            boolean failed = true;
+            try {
+              plugin.stream(thread, this::deliverChunk);
+              failed = false;
+            } finally {
+              Objects.requireNonNull(span).end(failed);
+            }
+            return null;
+          },
+          () -> deliveringNanos);
+    }
+
+    private void deliverChunk(T response) {
+      Objects.requireNonNull(span).end(false);
+      long start = System.nanoTime();
+      try {
+        deliver(response, trigger, trace);
+      } finally {
+        deliveringNanos += System.nanoTime() - start;
+        span = trace.begin(stage.stage(), stage.component());
+      }
     }
   }
 
@@ -136,4 +359,71 @@ public class Service<T extends Message> {
     }
     return routes;
   }
+
+  /** The metrics for every stage a message goes through in this service */
+  private final class Stages {
+    private final StageMetrics webhook;
+    private final StageMetrics store;
+    private final List<StageMetrics> preProcessors;
+    private final List<Counter> droppedSideEffects;
+    private final StageMetrics plugin;
+    private final StageMetrics respond;
+    private final StageMetrics execute;
+
+    private Stages(MetricsRegistry registry) {
+      webhook = new StageMetrics(registry, path, "webhook", componentName(handler));
+      store = new StageMetrics(registry, path, "store", componentName(Service.this.store));
+      plugin = new StageMetrics(registry, path, "plugin", componentName(Service.this.plugin));
+      respond = new StageMetrics(registry, path, "respond", componentName(handler));
+      execute = new StageMetrics(registry, path, "execute", "Service");
+      Map<String, Integer> seen = new HashMap<>();
+      List<StageMetrics> preProcessorStages = new ArrayList<>();
+      List<Counter> dropped = new ArrayList<>();
+      for (PreProcessor<T> preProcessor : Service.this.preProcessors) {
+        // preprocessors of the same type are told apart by the order they run in
+        String name = componentName(preProcessor);
+        int count = seen.merge(name, 1, Integer::sum);
+        String component = count == 1 ? name : name + "#" + count;
+        preProcessorStages.add(new StageMetrics(registry, path, "pre_processor", component));
+        dropped.add(
+            registry.counter(
+                "cp4m_pre_processor_dropped_side_effects_total",
+                "Preprocessor side effects dropped because too many were waiting to run",
+                "service",
+                path,
+                "component",
+                component));
+      }
+      this.preProcessors = Collections.unmodifiableList(preProcessorStages);
+      this.droppedSideEffects = Collections.unmodifiableList(dropped);
+    }
+
+    StageMetrics webhook() {
+      return webhook;
+    }
+
+    StageMetrics store() {
+      return store;
+    }
+
+    List<StageMetrics> preProcessors() {
+      return preProcessors;
+    }
+
+    List<Counter> droppedSideEffects() {
+      return droppedSideEffects;
+    }
+
+    StageMetrics plugin() {
+      return plugin;
+    }
+
+    StageMetrics respond() {
+      return respond;
+    }
+
+    StageMetrics execute() {
+      return execute;
+    }
+  }
 }
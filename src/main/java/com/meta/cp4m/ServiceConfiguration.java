@@ -23,6 +23,7 @@ public class ServiceConfiguration {
   private final @Nullable String store;
   private final String plugin;
   private final @Nullable List<String> preProcessors;
+  private final boolean collapseIdenticalRequests;
 
   @JsonCreator
   ServiceConfiguration(
@@ -30,7 +31,8 @@ public class ServiceConfiguration {
       @JsonProperty("handler") String handler,
       @JsonProperty("store") @Nullable String store,
       @JsonProperty("plugin") String plugin,
-      @JsonProperty("pre_processors") @Nullable List<String> preProcessors) {
+      @JsonProperty("pre_processors") @Nullable List<String> preProcessors,
+      @JsonProperty("collapse_identical_requests") @Nullable Boolean collapseIdenticalRequests) {
     Preconditions.checkArgument(
         webhookPath != null && webhookPath.startsWith("/"),
         "webhook_path must be present and it must start with a forward slash (/)");
@@ -39,6 +41,7 @@ public class ServiceConfiguration {
     this.store = store;
     this.plugin = Objects.requireNonNull(plugin, "plugin must be present");
     this.preProcessors = preProcessors == null ? Collections.emptyList() : preProcessors;
+    this.collapseIdenticalRequests = Objects.requireNonNullElse(collapseIdenticalRequests, false);
   }
 
   public String webhookPath() {
@@ -61,4 +64,12 @@ public class ServiceConfiguration {
   public String plugin() {
     return plugin;
   }
+
+  /**
+   * @return true if identical plugin requests that are in flight at the same time should be sent
+   *     upstream only once
+   */
+  public boolean collapseIdenticalRequests() {
+    return collapseIdenticalRequests;
+  }
 }
@@ -9,12 +9,27 @@
 package com.meta.cp4m;
 
 import com.google.common.base.Preconditions;
+import com.meta.cp4m.jfr.JfrAdmin;
+import com.meta.cp4m.jfr.WebhookEvent;
+import com.meta.cp4m.metrics.Counter;
+import com.meta.cp4m.metrics.Gauge;
+import com.meta.cp4m.metrics.Latency;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.recording.RecordedWebhook;
+import com.meta.cp4m.recording.WebhookRecorder;
 import com.meta.cp4m.routing.Route;
+import com.meta.cp4m.tracing.MessageTrace;
+import com.meta.cp4m.tracing.Tracer;
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Handler;
 import io.javalin.http.HandlerType;
+import io.javalin.http.HttpResponseException;
+import java.time.Instant;
 import java.util.*;
+import java.util.function.Function;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.common.returnsreceiver.qual.This;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,10 +39,15 @@ public class ServicesRunner implements AutoCloseable {
   private static final Logger LOGGER = LoggerFactory.getLogger(ServicesRunner.class);
   private final Javalin app = Javalin.create();
   private final Set<Service<?>> services = new LinkedHashSet<>();
+  private final MetricsRegistry metrics = new MetricsRegistry();
 
   private String heartbeatPath = "/heartbeat";
+  private String metricsPath = "/metrics";
   private boolean started = false;
   private int port = 8080;
+  private @Nullable WebhookRecorder webhookRecorder;
+  private Tracer tracer = Tracer.disabled();
+  private @Nullable JfrAdmin jfrAdmin;
 
   private ServicesRunner() {}
 
@@ -69,6 +89,56 @@ public class ServicesRunner implements AutoCloseable {
     throw new BadRequestResponse("unable to handle webhook");
   }
 
+  /** Count, time and track the outcome of every request to the handler */
+  private Handler instrumented(HandlerType method, String path, Handler handler) {
+    String[] labels = {"method", method.name(), "path", path};
+    Function<String, Counter> requests =
+        status ->
+            metrics.counter(
+                "cp4m_http_requests_total",
+                "HTTP requests by outcome",
+                "method",
+                method.name(),
+                "path",
+                path,
+                "status",
+                status);
+    Counter success = requests.apply("2xx");
+    Counter clientError = requests.apply("4xx");
+    Counter serverError = requests.apply("5xx");
+    Gauge inFlight =
+        metrics.gauge("cp4m_http_requests_in_flight", "HTTP requests being handled", labels);
+    Latency latency =
+        metrics.latency(
+            "cp4m_http_request_latency_seconds", "Time taken to handle HTTP requests", labels);
+    return ctx -> {
+      WebhookEvent event = new WebhookEvent();
+      event.begin();
+      long start = System.nanoTime();
+      inFlight.increment();
+      int status = 500;
+      try {
+        handler.handle(ctx);
+        status = ctx.statusCode();
+      } catch (HttpResponseException e) {
+        status = e.getStatus();
+        throw e;
+      } finally {
+        inFlight.decrement();
+        latency.recordNanos(System.nanoTime() - start);
+        (status >= 500 ? serverError : status >= 400 ? clientError : success).increment();
+        event.end();
+        if (event.shouldCommit()) {
+          event.method = method.name();
+          event.path = path;
+          event.status = status;
+          event.bodyBytes = ctx.contentLength();
+          event.commit();
+        }
+      }
+    };
+  }
+
   public @This ServicesRunner start() {
     if (started) {
       return this;
@@ -85,6 +155,16 @@ public class ServicesRunner implements AutoCloseable {
                 .log("received webhook"));
 
     app.addHttpHandler(HandlerType.GET, heartbeatPath, ctx -> {});
+    app.addHttpHandler(
+        HandlerType.GET,
+        metricsPath,
+        ctx -> ctx.contentType(MetricsRegistry.CONTENT_TYPE).result(metrics.scrape()));
+    if (jfrAdmin != null) {
+      app.addHttpHandler(HandlerType.GET, jfrAdmin.path(), jfrAdmin::status);
+      app.addHttpHandler(HandlerType.POST, jfrAdmin.path() + "/start", jfrAdmin::start);
+      app.addHttpHandler(HandlerType.POST, jfrAdmin.path() + "/stop", jfrAdmin::stop);
+      app.addHttpHandler(HandlerType.GET, jfrAdmin.path() + "/dump", jfrAdmin::dump);
+    }
     record RouteGroup(String path, HandlerType handlerType) {}
     Map<RouteGroup, List<Route<?>>> routeGroups = new HashMap<>();
     for (Service<?> s : services) { // this is not a stream because order matters here
@@ -101,7 +181,25 @@ public class ServicesRunner implements AutoCloseable {
             app.addHttpHandler(
                 routeGroup.handlerType(),
                 routeGroup.path(),
-                ctx -> this.routeSelectorAndHandler(ctx, routes)));
+                instrumented(
+                    routeGroup.handlerType(),
+                    routeGroup.path(),
+                    ctx -> {
+                      MessageTrace trace = tracer.start(ctx.path());
+                      ctx.attribute(MessageTrace.CONTEXT_ATTRIBUTE, trace);
+                      try {
+                        if (webhookRecorder != null
+                            && routeGroup.handlerType() == HandlerType.POST) {
+                          webhookRecorder.record(
+                              RecordedWebhook.of(
+                                  Instant.now(), ctx.path(), ctx.headerMap(), ctx.body()));
+                        }
+                        this.routeSelectorAndHandler(ctx, routes);
+                      } finally {
+                        // a webhook that failed to parse, or had no messages, is never forked
+                        trace.finish();
+                      }
+                    })));
 
     if (!started) {
       started = true;
@@ -114,6 +212,7 @@ public class ServicesRunner implements AutoCloseable {
     Preconditions.checkState(!started, "cannot add service, server already started");
 
     services.add(service);
+    service.registerMetrics(metrics);
     return this;
   }
 
@@ -123,6 +222,67 @@ public class ServicesRunner implements AutoCloseable {
     return this;
   }
 
+  /**
+   * Record every webhook that is posted to a service so it can be replayed later
+   *
+   * @param webhookRecorder the recorder to write webhooks to, it is closed with this runner
+   * @return this
+   */
+  public @This ServicesRunner webhookRecorder(WebhookRecorder webhookRecorder) {
+    Preconditions.checkState(!started, "cannot add webhook recorder, server already started");
+    this.webhookRecorder = webhookRecorder;
+    metrics.counter(
+        "cp4m_webhook_recorder_dropped_total",
+        "Webhooks not recorded because the recorder had fallen behind",
+        webhookRecorder::dropped);
+    return this;
+  }
+
+  /**
+   * Trace the stages each inbound message goes through, {@link Tracer#disabled()} by default
+   *
+   * @param tracer decides which messages are traced and exports them
+   * @return this
+   */
+  public @This ServicesRunner tracer(Tracer tracer) {
+    Preconditions.checkState(!started, "cannot change tracer, server already started");
+    this.tracer = Objects.requireNonNull(tracer);
+    return this;
+  }
+
+  /**
+   * Serve endpoints that start, stop and download a flight recording of this process
+   *
+   * @param jfrAdmin the admin endpoints, the recording is discarded when this runner is closed
+   * @return this
+   */
+  public @This ServicesRunner jfrAdmin(JfrAdmin jfrAdmin) {
+    Preconditions.checkState(!started, "cannot add jfr admin, server already started");
+    this.jfrAdmin = Objects.requireNonNull(jfrAdmin);
+    return this;
+  }
+
+  public Tracer tracer() {
+    return tracer;
+  }
+
+  public @This ServicesRunner metricsPath(String path) {
+    Preconditions.checkState(!started, "cannot change metrics path, server already started");
+    this.metricsPath = path;
+    return this;
+  }
+
+  public String metricsPath() {
+    return metricsPath;
+  }
+
+  /**
+   * @return the registry of every metric exposed on {@link #metricsPath()}
+   */
+  public MetricsRegistry metrics() {
+    return metrics;
+  }
+
   public Collection<Service<?>> services() {
     return Collections.unmodifiableCollection(services);
   }
@@ -149,5 +309,12 @@ public class ServicesRunner implements AutoCloseable {
   @Override
   public void close() {
     app.stop();
+    services.forEach(Service::close);
+    if (webhookRecorder != null) {
+      webhookRecorder.close();
+    }
+    if (jfrAdmin != null) {
+      jfrAdmin.close();
+    }
   }
 }
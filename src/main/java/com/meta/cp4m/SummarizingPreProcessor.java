@@ -0,0 +1,293 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.plugin.Plugin;
+import com.meta.cp4m.utils.ApproximateTokens;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps prompts for long threads small by replacing older messages with a summary of them.
+ *
+ * <p>Once a thread, with any earlier summary in place of the messages it covers, is estimated to
+ * be over the token threshold the older messages are summarized in the background by the summary
+ * plugin. The most recent messages, up to the recent token budget, are always kept as they are. The
+ * reply that triggers a summary is not held up by it, later replies use the summary once it is
+ * ready. Each summary folds in the one before it so the summary message only changes when the
+ * thread grows past the threshold again.
+ *
+ * <p>Summaries are kept in memory for each thread, a thread whose summary has expired is summarized
+ * again when it next goes over the threshold.
+ *
+ * @param <T> the type of message being handled
+ */
+public class SummarizingPreProcessor<T extends Message> implements PreProcessor<T> {
+
+  public static final String DEFAULT_INSTRUCTIONS =
+      "Summarize the conversation below between a user and an assistant. Keep every fact, name,"
+          + " number, request and commitment that later replies may depend on. Reply with the"
+          + " summary only.";
+  public static final String DEFAULT_SUMMARY_PREFIX = "Summary of the earlier conversation: ";
+  private static final Logger LOGGER = LoggerFactory.getLogger(SummarizingPreProcessor.class);
+  private static final int MAX_TRACKED_THREADS = 100_000;
+  private static final Duration THREAD_EXPIRY = Duration.ofHours(1);
+
+  private final Plugin<T> plugin;
+  private final int thresholdTokens;
+  private final int recentTokens;
+  private final String instructions;
+  private final String summaryPrefix;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final Cache<Identifier, Summary<T>> summaries =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_TRACKED_THREADS)
+          .expireAfterAccess(THREAD_EXPIRY)
+          .build();
+  // threads that are being summarized, a thread is only summarized by one task at a time
+  private final Set<Identifier> pending = ConcurrentHashMap.newKeySet();
+
+  private final LongAdder summarized = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder compressed = new LongAdder();
+
+  /**
+   * @param plugin writes the summaries
+   * @param thresholdTokens threads estimated to be over this many tokens are summarized
+   * @param recentTokens the most recent messages up to this many tokens are never summarized
+   * @param instructions tells the plugin how to summarize, the conversation follows them
+   * @param summaryPrefix starts the summary message so the model can tell it apart from a reply
+   */
+  public SummarizingPreProcessor(
+      Plugin<T> plugin,
+      int thresholdTokens,
+      int recentTokens,
+      String instructions,
+      String summaryPrefix) {
+    Preconditions.checkArgument(recentTokens > 0, "recentTokens must be greater than 0");
+    Preconditions.checkArgument(
+        thresholdTokens > recentTokens, "thresholdTokens must be greater than recentTokens");
+    this.plugin = Objects.requireNonNull(plugin);
+    this.thresholdTokens = thresholdTokens;
+    this.recentTokens = recentTokens;
+    this.instructions = Objects.requireNonNull(instructions);
+    this.summaryPrefix = Objects.requireNonNull(summaryPrefix);
+  }
+
+  public SummarizingPreProcessor(Plugin<T> plugin, int thresholdTokens, int recentTokens) {
+    this(plugin, thresholdTokens, recentTokens, DEFAULT_INSTRUCTIONS, DEFAULT_SUMMARY_PREFIX);
+  }
+
+  @Override
+  public ThreadState<T> run(ThreadState<T> in) {
+    @Nullable Summary<T> summary = summaries.getIfPresent(in.threadId());
+    ThreadState<T> thread = summary == null ? in : summary.apply(in);
+    if (thread != in) {
+      compressed.increment();
+    }
+    int tokens = 0;
+    for (T message : thread.messages()) {
+      tokens += ApproximateTokens.of(message);
+    }
+    if (tokens > thresholdTokens) {
+      summarize(thread);
+    }
+    return thread;
+  }
+
+  /** Start summarizing the older messages of the thread unless it is already being summarized */
+  private void summarize(ThreadState<T> thread) {
+    List<T> messages = thread.messages();
+    int tokens = 0;
+    int recent = 0;
+    // walk back from the latest message, which is always kept
+    for (int i = messages.size() - 1; i >= 0; i--) {
+      tokens += ApproximateTokens.of(messages.get(i));
+      if (recent > 0 && tokens > recentTokens) {
+        break;
+      }
+      recent++;
+    }
+    List<T> older = messages.subList(0, messages.size() - recent);
+    // a lone earlier summary has nothing new to fold in
+    if (older.isEmpty() || (older.size() == 1 && isSummary(thread, older.getFirst()))) {
+      return;
+    }
+    Identifier threadId = thread.threadId();
+    if (!pending.add(threadId)) {
+      return;
+    }
+    try {
+      executor.execute(() -> write(thread, threadId, older));
+    } catch (RejectedExecutionException e) {
+      // the preprocessor is closed
+      pending.remove(threadId);
+    }
+  }
+
+  private void write(ThreadState<T> thread, Identifier threadId, List<T> older) {
+    boolean succeeded = false;
+    try {
+      T last = older.getLast();
+      T reply = plugin.handle(prompt(thread, older));
+      T message = thread.newMessageFromBot(last.timestamp(), summaryPrefix + reply.message());
+      summaries.put(threadId, new Summary<>(message, last.instanceId(), last.timestamp()));
+      succeeded = true;
+      LOGGER
+          .atDebug()
+          .addKeyValue("thread_id", threadId)
+          .addKeyValue("messages", older.size())
+          .log("summarized thread");
+    } catch (IOException | RuntimeException e) {
+      LOGGER.atWarn().setCause(e).addKeyValue("thread_id", threadId).log("summary failed");
+    } finally {
+      pending.remove(threadId);
+      (succeeded ? summarized : failures).increment();
+    }
+  }
+
+  private boolean isSummary(ThreadState<T> thread, T message) {
+    @Nullable Summary<T> summary = summaries.getIfPresent(thread.threadId());
+    return summary != null && summary.message().equals(message);
+  }
+
+  private ThreadState<T> prompt(ThreadState<T> thread, List<T> older) {
+    StringBuilder prompt = new StringBuilder(instructions).append("\n\n");
+    for (T message : older) {
+      String role =
+          switch (message.role()) {
+            case USER -> "user";
+            case ASSISTANT -> "assistant";
+          };
+      prompt.append(role).append(": ").append(message.message()).append('\n');
+    }
+    return ThreadState.of(
+        thread.newMessageFromUser(Instant.now(), prompt.toString(), Identifier.random()));
+  }
+
+  /** Summaries being written are abandoned, they are only kept in memory anyway */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    plugin.close();
+  }
+
+  @Override
+  public void registerMetrics(MetricsRegistry registry, String service) {
+    plugin.registerMetrics(registry, service);
+    registry.counter(
+        "cp4m_summaries_total",
+        "Summaries written of the older messages of a thread",
+        this::summarized,
+        "service",
+        service);
+    registry.counter(
+        "cp4m_summary_failures_total",
+        "Summaries that failed, the thread is summarized again on its next message",
+        this::failures,
+        "service",
+        service);
+    registry.counter(
+        "cp4m_summarized_threads_total",
+        "Threads passed on with older messages replaced by a summary",
+        this::compressed,
+        "service",
+        service);
+    registry.gauge(
+        "cp4m_summaries_pending", "Summaries being written", pending::size, "service", service);
+  }
+
+  public Plugin<T> plugin() {
+    return plugin;
+  }
+
+  public int thresholdTokens() {
+    return thresholdTokens;
+  }
+
+  public int recentTokens() {
+    return recentTokens;
+  }
+
+  /**
+   * @return the number of summaries written
+   */
+  public long summarized() {
+    return summarized.sum();
+  }
+
+  /**
+   * @return the number of summaries that failed
+   */
+  public long failures() {
+    return failures.sum();
+  }
+
+  /**
+   * @return the number of threads passed on with older messages replaced by a summary
+   */
+  public long compressed() {
+    return compressed.sum();
+  }
+
+  /**
+   * A summary of a thread up to and including one of its messages
+   *
+   * @param message the message that stands in for the summarized messages
+   * @param through the instance id of the last summarized message
+   * @param throughTimestamp the timestamp of the last summarized message, used if that message is
+   *     no longer in the thread
+   */
+  private record Summary<T extends Message>(
+      T message, Identifier through, Instant throughTimestamp) {
+
+    ThreadState<T> apply(ThreadState<T> thread) {
+      List<T> messages = thread.messages();
+      int start = -1;
+      for (int i = messages.size() - 1; i >= 0; i--) {
+        if (messages.get(i).instanceId().equals(through)) {
+          start = i + 1;
+          break;
+        }
+      }
+      if (start < 0) {
+        start = 0;
+        while (start < messages.size()
+            && !messages.get(start).timestamp().isAfter(throughTimestamp)) {
+          start++;
+        }
+      }
+      // the latest message is never replaced
+      start = Math.min(start, messages.size() - 1);
+      ThreadState<T> summarized = ThreadState.of(message).withUserData(thread.userData());
+      for (T kept : messages.subList(start, messages.size())) {
+        summarized = summarized.with(kept);
+      }
+      return summarized;
+    }
+  }
+}
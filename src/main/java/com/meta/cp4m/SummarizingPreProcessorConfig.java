@@ -0,0 +1,65 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.plugin.PluginConfig;
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public record SummarizingPreProcessorConfig(
+    String name,
+    PluginConfig plugin,
+    Integer thresholdTokens,
+    Integer recentTokens,
+    String instructions,
+    String summaryPrefix)
+    implements PreProcessorConfig {
+
+  private static final int DEFAULT_THRESHOLD_TOKENS = 3000;
+
+  @JsonCreator
+  public SummarizingPreProcessorConfig(
+      @JsonProperty("name") String name,
+      @JsonProperty("plugin") PluginConfig plugin,
+      @JsonProperty("threshold_tokens") @Nullable Integer thresholdTokens,
+      @JsonProperty("recent_tokens") @Nullable Integer recentTokens,
+      @JsonProperty("instructions") @Nullable String instructions,
+      @JsonProperty("summary_prefix") @Nullable String summaryPrefix) {
+    Preconditions.checkArgument(name != null && !name.isBlank(), "name cannot be blank");
+    Preconditions.checkArgument(plugin != null, "plugin is a required parameter");
+    Preconditions.checkArgument(
+        thresholdTokens == null || thresholdTokens > 0, "threshold_tokens must be greater than 0");
+    Preconditions.checkArgument(
+        recentTokens == null || recentTokens > 0, "recent_tokens must be greater than 0");
+    Preconditions.checkArgument(
+        instructions == null || !instructions.isBlank(), "instructions cannot be blank");
+    this.name = name;
+    this.plugin = plugin;
+    this.thresholdTokens = Objects.requireNonNullElse(thresholdTokens, DEFAULT_THRESHOLD_TOKENS);
+    // by default half of the threshold is kept as it is and the rest is summarized
+    this.recentTokens = Objects.requireNonNullElse(recentTokens, this.thresholdTokens / 2);
+    Preconditions.checkArgument(
+        this.recentTokens < this.thresholdTokens,
+        "recent_tokens must be less than threshold_tokens");
+    this.instructions =
+        Objects.requireNonNullElse(instructions, SummarizingPreProcessor.DEFAULT_INSTRUCTIONS);
+    this.summaryPrefix =
+        Objects.requireNonNullElse(summaryPrefix, SummarizingPreProcessor.DEFAULT_SUMMARY_PREFIX);
+  }
+
+  @Override
+  public <T extends Message> PreProcessor<T> toPreProcessor() {
+    return new SummarizingPreProcessor<>(
+        plugin.toPlugin(), thresholdTokens, recentTokens, instructions, summaryPrefix);
+  }
+}
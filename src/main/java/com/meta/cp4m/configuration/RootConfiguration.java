@@ -12,14 +12,18 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
 import com.meta.cp4m.*;
+import com.meta.cp4m.jfr.JfrAdminConfig;
 import com.meta.cp4m.message.HandlerConfig;
 import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.MessageHandler;
 import com.meta.cp4m.plugin.Plugin;
 import com.meta.cp4m.plugin.PluginConfig;
+import com.meta.cp4m.plugin.SingleFlightPlugin;
+import com.meta.cp4m.recording.WebhookRecorderConfig;
 import com.meta.cp4m.store.ChatStore;
 import com.meta.cp4m.store.NullStore;
 import com.meta.cp4m.store.StoreConfig;
+import com.meta.cp4m.tracing.TracingConfig;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -39,7 +43,11 @@ public class RootConfiguration {
 
   private final int port;
   private final String heartbeatPath;
+  private final String metricsPath;
   private final Level logLevel;
+  private final @Nullable WebhookRecorderConfig webhookRecorder;
+  private final @Nullable TracingConfig tracing;
+  private final @Nullable JfrAdminConfig jfrAdmin;
 
   @JsonCreator
   RootConfiguration(
@@ -50,7 +58,11 @@ public class RootConfiguration {
       @JsonProperty("services") Collection<ServiceConfiguration> services,
       @JsonProperty("port") @Nullable Integer port,
       @JsonProperty("heartbeat_path") @Nullable String heartbeatPath,
-      @JsonProperty("log_level") @Nullable Level logLevel) {
+      @JsonProperty("metrics_path") @Nullable String metricsPath,
+      @JsonProperty("log_level") @Nullable Level logLevel,
+      @JsonProperty("webhook_recorder") @Nullable WebhookRecorderConfig webhookRecorder,
+      @JsonProperty("tracing") @Nullable TracingConfig tracing,
+      @JsonProperty("jfr_admin") @Nullable JfrAdminConfig jfrAdmin) {
 
     LoggerContext ctx = (LoggerContext) LogManager.getContext(false);
     Configuration config = ctx.getConfiguration();
@@ -60,7 +72,19 @@ public class RootConfiguration {
 
     this.port = port == null ? 8080 : port;
     this.heartbeatPath = heartbeatPath == null ? "/heartbeat" : heartbeatPath;
+    this.metricsPath = metricsPath == null ? "/metrics" : metricsPath;
+    Preconditions.checkArgument(
+        !this.metricsPath.equals(this.heartbeatPath),
+        "metrics_path and heartbeat_path must be different");
     this.logLevel = Objects.requireNonNullElse(logLevel, Level.INFO);
+    this.webhookRecorder = webhookRecorder;
+    this.tracing = tracing;
+    this.jfrAdmin = jfrAdmin;
+    Preconditions.checkArgument(
+        jfrAdmin == null
+            || (!jfrAdmin.path().equals(this.heartbeatPath)
+                && !jfrAdmin.path().equals(this.metricsPath)),
+        "jfr_admin path must be different from heartbeat_path and metrics_path");
     stores = stores == null ? Collections.emptyList() : stores;
     preProcessors = preProcessors == null ? Collections.emptyList() : preProcessors;
     Preconditions.checkArgument(
@@ -118,6 +142,11 @@ public class RootConfiguration {
           s.store() + " must be the name of a store");
       Preconditions.checkArgument(
           this.handlers.containsKey(s.handler()), s.handler() + " must be the name of a handler");
+      Preconditions.checkArgument(
+          jfrAdmin == null
+              || (!s.webhookPath().equals(jfrAdmin.path())
+                  && !s.webhookPath().startsWith(jfrAdmin.path() + "/")),
+          "jfr_admin path must not overlap the webhook_path of " + s.webhookPath());
       for (PreProcessorConfig preProcessor : preProcessors) {
         Preconditions.checkArgument(
             this.preProcessors.containsKey(preProcessor.name()),
@@ -155,9 +184,16 @@ public class RootConfiguration {
     return heartbeatPath;
   }
 
+  public String metricsPath() {
+    return metricsPath;
+  }
+
   private <T extends Message> Service<T> createService(
       MessageHandler<T> handler, ServiceConfiguration serviceConfig) {
     Plugin<T> plugin = plugins.get(serviceConfig.plugin()).toPlugin();
+    if (serviceConfig.collapseIdenticalRequests()) {
+      plugin = new SingleFlightPlugin<>(plugin);
+    }
     ChatStore<T> store;
     if (serviceConfig.store() != null) {
       store = stores.get(serviceConfig.store()).toStore();
@@ -179,15 +215,40 @@ public class RootConfiguration {
   }
 
   public ServicesRunner toServicesRunner() {
-    ServicesRunner runner = ServicesRunner.newInstance().port(port).heartbeatPath(heartbeatPath);
+    ServicesRunner runner =
+        ServicesRunner.newInstance()
+            .port(port)
+            .heartbeatPath(heartbeatPath)
+            .metricsPath(metricsPath);
     for (ServiceConfiguration service : services) {
       MessageHandler<?> handler = handlers.get(service.handler()).toMessageHandler();
       runner.service(createService(handler, service));
     }
+    if (webhookRecorder != null) {
+      runner.webhookRecorder(webhookRecorder.toWebhookRecorder());
+    }
+    if (tracing != null) {
+      runner.tracer(tracing.toTracer());
+    }
+    if (jfrAdmin != null) {
+      runner.jfrAdmin(jfrAdmin.toJfrAdmin());
+    }
     return runner;
   }
 
   public Level logLevel() {
     return logLevel;
   }
+
+  public Optional<WebhookRecorderConfig> webhookRecorder() {
+    return Optional.ofNullable(webhookRecorder);
+  }
+
+  public Optional<TracingConfig> tracing() {
+    return Optional.ofNullable(tracing);
+  }
+
+  public Optional<JfrAdminConfig> jfrAdmin() {
+    return Optional.ofNullable(jfrAdmin);
+  }
 }
@@ -0,0 +1,31 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** A message that was delivered more than once and dropped by the deduplicator */
+@Name("com.meta.cp4m.DuplicateMessage")
+@Label("Duplicate Message")
+@Category("CP4M")
+@Description("A message that had already been received and was dropped")
+@StackTrace(false)
+public class DuplicateMessageEvent extends Event {
+
+  @Label("Handler")
+  public String handler;
+
+  @Label("Message Id")
+  public String messageId;
+}
@@ -0,0 +1,41 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** One chunk of a reply sent to the Graph API */
+@Name("com.meta.cp4m.GraphSend")
+@Label("Graph Send")
+@Category("CP4M")
+@Description("A chunk of a reply sent to the Graph API")
+@StackTrace(false)
+public class GraphSendEvent extends Event {
+
+  @Label("Handler")
+  public String handler;
+
+  @Label("Chunk")
+  @Description("Position of this chunk in the reply, starting at 0")
+  public int chunk;
+
+  @Label("Chunks")
+  public int chunks;
+
+  @Label("Characters")
+  public int characters;
+
+  @Label("Succeeded")
+  public boolean succeeded;
+}
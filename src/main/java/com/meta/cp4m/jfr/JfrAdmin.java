@@ -0,0 +1,231 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.http.UnauthorizedResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts, stops and downloads a Java Flight Recorder recording of the running process. At most one
+ * recording is kept, starting a new one discards the previous recording.
+ *
+ * <ul>
+ *   <li>{@code GET <path>} returns the state of the recording
+ *   <li>{@code POST <path>/start} starts a recording, it accepts the optional query parameters
+ *       {@code settings} ({@code default} or {@code profile}, the default), {@code
+ *       max_age_seconds}, {@code max_size_mbs} and {@code duration_seconds}
+ *   <li>{@code POST <path>/stop} stops the recording and keeps it for download
+ *   <li>{@code GET <path>/dump} downloads everything recorded so far, the recording may still be
+ *       running
+ * </ul>
+ *
+ * <p>Every request must carry {@code Authorization: Bearer <token>}. Recordings contain stack
+ * traces, thread names and the CP4M events, which include webhook paths and message ids.
+ *
+ * <p>Handlers run on virtual threads so a lock is used rather than synchronized, dumping a large
+ * recording must not pin the carrier thread.
+ */
+public class JfrAdmin implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JfrAdmin.class);
+  private static final JsonMapper MAPPER = new JsonMapper();
+  private static final long MB = 1024 * 1024;
+
+  private final String path;
+  private final byte[] token;
+  private final ReentrantLock lock = new ReentrantLock();
+  private @Nullable Recording recording;
+  private @Nullable Instant startedAt;
+
+  /**
+   * @param path the path the endpoints are served under
+   * @param token the bearer token every request must present
+   */
+  public JfrAdmin(String path, String token) {
+    Preconditions.checkArgument(path.startsWith("/"), "path must start with a forward slash (/)");
+    Preconditions.checkArgument(!token.isBlank(), "token must not be blank");
+    this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    this.token = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+  }
+
+  public String path() {
+    return path;
+  }
+
+  private void authorize(Context ctx) {
+    @Nullable String header = ctx.header("Authorization");
+    byte[] presented = Objects.requireNonNullElse(header, "").getBytes(StandardCharsets.UTF_8);
+    if (!MessageDigest.isEqual(presented, token)) {
+      throw new UnauthorizedResponse();
+    }
+  }
+
+  private static @Nullable Long longParam(Context ctx, String name) {
+    @Nullable String value = ctx.queryParam(name);
+    if (value == null) {
+      return null;
+    }
+    try {
+      long parsed = Long.parseLong(value);
+      if (parsed <= 0) {
+        throw new BadRequestResponse(name + " must be greater than zero");
+      }
+      return parsed;
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse(name + " must be a number");
+    }
+  }
+
+  private ObjectNode state() {
+    ObjectNode state = MAPPER.createObjectNode();
+    Recording current = recording;
+    if (current == null) {
+      return state.put("state", "none");
+    }
+    state
+        .put("state", current.getState().name().toLowerCase())
+        .put("name", current.getName())
+        .put("started_at", String.valueOf(startedAt))
+        .put("size_bytes", current.getSize());
+    return state;
+  }
+
+  public void status(Context ctx) {
+    authorize(ctx);
+    lock.lock();
+    try {
+      ctx.json(state());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void start(Context ctx) {
+    authorize(ctx);
+    lock.lock();
+    try {
+      startRecording(ctx);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void startRecording(Context ctx) {
+    if (recording != null && recording.getState() == RecordingState.RUNNING) {
+      throw new ConflictResponse("a recording is already running");
+    }
+    String settings = Objects.requireNonNullElse(ctx.queryParam("settings"), "profile");
+    Configuration configuration;
+    try {
+      configuration = Configuration.getConfiguration(settings);
+    } catch (IOException | ParseException e) {
+      throw new BadRequestResponse("unknown settings: " + settings);
+    }
+    @Nullable Long maxAgeSeconds = longParam(ctx, "max_age_seconds");
+    @Nullable Long maxSizeMbs = longParam(ctx, "max_size_mbs");
+    @Nullable Long durationSeconds = longParam(ctx, "duration_seconds");
+
+    Recording next = new Recording(configuration);
+    next.setName("cp4m-" + Instant.now().toEpochMilli());
+    next.setToDisk(true);
+    next.setMaxAge(Duration.ofSeconds(Objects.requireNonNullElse(maxAgeSeconds, 600L)));
+    next.setMaxSize(Objects.requireNonNullElse(maxSizeMbs, 256L) * MB);
+    if (durationSeconds != null) {
+      next.setDuration(Duration.ofSeconds(durationSeconds));
+    }
+    if (recording != null) {
+      recording.close();
+    }
+    next.start();
+    recording = next;
+    startedAt = Instant.now();
+    LOGGER
+        .atInfo()
+        .addKeyValue("name", next.getName())
+        .addKeyValue("settings", settings)
+        .log("started flight recording");
+    ctx.json(state());
+  }
+
+  public void stop(Context ctx) {
+    authorize(ctx);
+    lock.lock();
+    try {
+      if (recording == null || recording.getState() != RecordingState.RUNNING) {
+        throw new ConflictResponse("no recording is running");
+      }
+      recording.stop();
+      LOGGER.atInfo().addKeyValue("name", recording.getName()).log("stopped flight recording");
+      ctx.json(state());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void dump(Context ctx) throws IOException {
+    authorize(ctx);
+    Path file = Files.createTempFile("cp4m-", ".jfr");
+    String name;
+    lock.lock();
+    try {
+      if (recording == null || recording.getState() == RecordingState.NEW) {
+        Files.deleteIfExists(file);
+        throw new NotFoundResponse("there is no recording");
+      }
+      name = recording.getName();
+      recording.dump(file);
+    } finally {
+      lock.unlock();
+    }
+    ctx.contentType("application/octet-stream")
+        .header("Content-Disposition", "attachment; filename=\"" + name + ".jfr\"");
+    try (InputStream in = Files.newInputStream(file)) {
+      in.transferTo(ctx.outputStream());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /** Discard the recording if there is one */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      if (recording != null) {
+        recording.close();
+        recording = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+}
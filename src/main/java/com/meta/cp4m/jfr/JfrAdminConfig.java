@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class JfrAdminConfig {
+
+  private final String path;
+  private final String token;
+
+  @JsonCreator
+  JfrAdminConfig(
+      @JsonProperty("path") @Nullable String path, @JsonProperty("token") String token) {
+    this.path = Objects.requireNonNullElse(path, "/admin/jfr");
+    Preconditions.checkArgument(
+        this.path.startsWith("/"), "path must start with a forward slash (/)");
+    Preconditions.checkArgument(token != null && !token.isBlank(), "token must be present");
+    this.token = token;
+  }
+
+  /**
+   * @return the path the recording endpoints are served under
+   */
+  public String path() {
+    return path;
+  }
+
+  /**
+   * @return the bearer token that every request to the endpoints must present
+   */
+  public String token() {
+    return token;
+  }
+
+  public JfrAdmin toJfrAdmin() {
+    return new JfrAdmin(path, token);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** One request to a large language model, token counts are -1 when they are unknown */
+@Name("com.meta.cp4m.PluginCall")
+@Label("Plugin Call")
+@Category("CP4M")
+@Description("A request from a plugin to a large language model")
+@StackTrace(false)
+public class PluginCallEvent extends Event {
+
+  @Label("Plugin")
+  public String plugin;
+
+  @Label("Model")
+  public String model;
+
+  @Label("Streamed")
+  public boolean streamed;
+
+  @Label("Prompt Tokens")
+  public int promptTokens = -1;
+
+  @Label("Completion Tokens")
+  public int completionTokens = -1;
+
+  @Label("Succeeded")
+  public boolean succeeded;
+}
@@ -0,0 +1,43 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One stage of a message trace, such as a preprocessor, the plugin or a chat store update, emitted
+ * for every message while a recording has the event enabled
+ */
+@Name("com.meta.cp4m.Stage")
+@Label("Message Stage")
+@Category("CP4M")
+@Description("A stage an inbound message went through on its way to a reply")
+@StackTrace(false)
+public class StageEvent extends Event {
+
+  @Label("Trace Id")
+  public String traceId;
+
+  @Label("Service")
+  public String service;
+
+  @Label("Stage")
+  public String stage;
+
+  @Label("Component")
+  public String component;
+
+  @Label("Failed")
+  public boolean failed;
+}
@@ -0,0 +1,29 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A reader that had to wait for an expiring value, such as an OAuth token, to be refreshed */
+@Name("com.meta.cp4m.TokenWait")
+@Label("Token Wait")
+@Category("CP4M")
+@Description("Time a reader waited for an expired value, such as an OAuth token, to be refreshed")
+public class TokenWaitEvent extends Event {
+
+  @Label("Value Holder")
+  public String holder;
+
+  @Label("Succeeded")
+  public boolean succeeded;
+}
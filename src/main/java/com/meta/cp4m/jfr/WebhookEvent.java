@@ -0,0 +1,39 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** A webhook request, from when it was received to when it was acknowledged */
+@Name("com.meta.cp4m.Webhook")
+@Label("Webhook")
+@Category("CP4M")
+@Description("A webhook request from when it was received until it was acknowledged")
+@StackTrace(false)
+public class WebhookEvent extends Event {
+
+  @Label("Method")
+  public String method;
+
+  @Label("Path")
+  public String path;
+
+  @Label("Status")
+  public int status;
+
+  @Label("Body Size")
+  @DataAmount
+  public long bodyBytes;
+}
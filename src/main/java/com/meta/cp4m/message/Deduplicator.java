@@ -10,12 +10,17 @@ package com.meta.cp4m.message;
 
 import com.google.common.base.Preconditions;
 import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantLock;
 
-// TODO: make this not synchronized
+/**
+ * Remembers the most recent values. Every inbound message is checked on a virtual thread so a lock
+ * is used rather than synchronized, which would pin the carrier thread of a waiting caller.
+ */
 public class Deduplicator<T> {
 
   private final int capacity;
   private final LinkedHashSet<T> set;
+  private final ReentrantLock lock = new ReentrantLock();
 
   public Deduplicator(int capacity) {
     Preconditions.checkArgument(capacity > 0);
@@ -23,15 +28,25 @@ public class Deduplicator<T> {
     set = new LinkedHashSet<>(capacity);
   }
 
-  public synchronized boolean addAndGetIsDuplicate(T value) {
-    boolean added = set.add(value);
-    if (added && set.size() > capacity) {
-      set.remove(set.getFirst());
+  public boolean addAndGetIsDuplicate(T value) {
+    lock.lock();
+    try {
+      boolean added = set.add(value);
+      if (added && set.size() > capacity) {
+        set.remove(set.getFirst());
+      }
+      return !added;
+    } finally {
+      lock.unlock();
     }
-    return !added;
   }
 
-  public synchronized int size() {
-    return set.size();
+  public int size() {
+    lock.lock();
+    try {
+      return set.size();
+    } finally {
+      lock.unlock();
+    }
   }
 }
@@ -0,0 +1,197 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.webhook.whatsapp.SendResponse;
+import com.meta.cp4m.message.webhook.whatsapp.Status;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Correlates WhatsApp status webhooks with the messages we sent to measure the latency users
+ * actually see.
+ *
+ * <ul>
+ *   <li>{@code cp4m_wa_user_message_to_delivered_seconds}: from the user's message that a reply
+ *       answers to the first part of the reply being delivered to their device
+ *   <li>{@code cp4m_wa_sent_to_read_seconds}: from the first part of a reply being sent to the user
+ *       reading it
+ *   <li>{@code cp4m_wa_delivery_failures_total}: replies that WhatsApp reported as failed
+ * </ul>
+ *
+ * <p>A reply sent in several chunks is measured once, by its first chunk to reach each status.
+ * Every metric is labeled with the business phone number id. WhatsApp timestamps have a resolution
+ * of one second. The correlation table is bounded in size and entries expire, so statuses that
+ * never arrive do not leak memory.
+ */
+public class DeliveryTracker {
+
+  private static final int DEFAULT_MAX_ENTRIES = 100_000;
+  private static final Duration DEFAULT_EXPIRY = Duration.ofHours(24);
+
+  // every message that has been sent and not yet read or failed, to the reply it is part of
+  private final Cache<Identifier, Reply> sent;
+  private volatile MetricsRegistry registry = new MetricsRegistry();
+
+  public DeliveryTracker() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_EXPIRY);
+  }
+
+  /**
+   * @param maxEntries the number of unread messages that are tracked
+   * @param expiry how long to wait for a status before forgetting about a message
+   */
+  public DeliveryTracker(int maxEntries, Duration expiry) {
+    Preconditions.checkArgument(maxEntries > 0, "maxEntries must be greater than zero");
+    Preconditions.checkArgument(
+        !expiry.isNegative() && !expiry.isZero(), "expiry must be greater than zero");
+    this.sent = CacheBuilder.newBuilder().maximumSize(maxEntries).expireAfterWrite(expiry).build();
+  }
+
+  void registerMetrics(MetricsRegistry registry) {
+    this.registry = Objects.requireNonNull(registry);
+  }
+
+  /**
+   * Start tracking a reply, pass it to {@link #sent(Reply, SendResponse, Instant)} for each chunk
+   *
+   * @param phoneNumberId the business phone number the reply is sent from
+   * @param userMessageAt when WhatsApp received the user's message that the reply answers, null if
+   *     it is not known
+   * @return the reply
+   */
+  public Reply reply(Identifier phoneNumberId, @Nullable Instant userMessageAt) {
+    return new Reply(phoneNumberId, userMessageAt);
+  }
+
+  /**
+   * A chunk of a reply was accepted by the Graph API
+   *
+   * @param reply the reply the chunk is part of
+   * @param response the response of the Graph API, which contains the id of the chunk
+   * @param sentAt when the Graph API accepted the chunk
+   */
+  public void sent(Reply reply, SendResponse response, Instant sentAt) {
+    reply.sentAt(sentAt);
+    for (SendResponse.SendResponseMessages message : response.messages()) {
+      sent.put(Identifier.from(message.messageId()), reply);
+    }
+  }
+
+  /**
+   * A status webhook arrived for a message sent from the phone number
+   *
+   * @param status the status
+   */
+  public void status(Status status) {
+    @Nullable Reply reply = sent.getIfPresent(status.id());
+    if (reply == null) {
+      return; // sent by someone else, before a restart, or expired
+    }
+    String phoneNumberId = reply.phoneNumberId().toString();
+    switch (status.status()) {
+      case DELIVERED -> {
+        @Nullable Instant userMessageAt = reply.userMessageAt();
+        if (userMessageAt != null && reply.delivered.compareAndSet(false, true)) {
+          registry
+              .latency(
+                  "cp4m_wa_user_message_to_delivered_seconds",
+                  "Time from a user's message to our reply to it being delivered to them",
+                  "phone_number_id",
+                  phoneNumberId)
+              .recordNanos(nanosBetween(userMessageAt, status.timestamp()));
+        }
+      }
+      case READ -> {
+        sent.invalidate(status.id());
+        if (reply.read.compareAndSet(false, true)) {
+          registry
+              .latency(
+                  "cp4m_wa_sent_to_read_seconds",
+                  "Time from our reply being sent to the user reading it",
+                  "phone_number_id",
+                  phoneNumberId)
+              .recordNanos(nanosBetween(reply.sentAt(), status.timestamp()));
+        }
+      }
+      case FAILED -> {
+        sent.invalidate(status.id());
+        if (reply.failed.compareAndSet(false, true)) {
+          registry
+              .counter(
+                  "cp4m_wa_delivery_failures_total",
+                  "Replies that WhatsApp failed to deliver",
+                  "phone_number_id",
+                  phoneNumberId)
+              .increment();
+        }
+      }
+      default -> {}
+    }
+  }
+
+  // our clock and WhatsApp's are not in sync, and its timestamps are truncated to the second
+  private static long nanosBetween(Instant from, Instant to) {
+    return Math.max(0, Duration.between(from, to).toNanos());
+  }
+
+  /**
+   * @return the number of sent messages waiting for a status
+   */
+  public long pending() {
+    sent.cleanUp();
+    return sent.size();
+  }
+
+  /**
+   * One reply to a user's message, which may be sent as several messages. WhatsApp may send a
+   * status more than once and sends one for each message, each status is only counted the first
+   * time it arrives for any message of the reply.
+   */
+  public static final class Reply {
+    private final Identifier phoneNumberId;
+    private final @Nullable Instant userMessageAt;
+    private final AtomicReference<@Nullable Instant> sentAt = new AtomicReference<>();
+    private final AtomicBoolean delivered = new AtomicBoolean();
+    private final AtomicBoolean read = new AtomicBoolean();
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    private Reply(Identifier phoneNumberId, @Nullable Instant userMessageAt) {
+      this.phoneNumberId = Objects.requireNonNull(phoneNumberId);
+      this.userMessageAt = userMessageAt;
+    }
+
+    Identifier phoneNumberId() {
+      return phoneNumberId;
+    }
+
+    @Nullable Instant userMessageAt() {
+      return userMessageAt;
+    }
+
+    Instant sentAt() {
+      return Objects.requireNonNull(sentAt.get());
+    }
+
+    // the reply was sent when its first chunk was accepted, chunks may be accepted out of order
+    private void sentAt(Instant at) {
+      sentAt.accumulateAndGet(
+          at, (first, next) -> first == null || next.isBefore(first) ? next : first);
+    }
+  }
+}
@@ -11,21 +11,24 @@ package com.meta.cp4m.message;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.meta.cp4m.Identifier;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.utils.HttpRequests;
 import io.javalin.http.BadRequestResponse;
-import io.javalin.http.Context;
 import io.javalin.http.HandlerType;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
 import java.util.function.Function;
 import org.apache.hc.client5.http.fluent.Request;
-import org.apache.hc.client5.http.fluent.Response;
 import org.apache.hc.core5.http.ContentType;
-import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
 import org.apache.hc.core5.net.URIBuilder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.common.returnsreceiver.qual.This;
@@ -39,6 +42,10 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
   private static final JsonMapper MAPPER = new JsonMapper();
   private static final Logger LOGGER = LoggerFactory.getLogger(FBMessageHandler.class);
   private static final TextChunker CHUNKER = TextChunker.standard(2000);
+  // https://developers.facebook.com/docs/graph-api/batch-requests
+  private static final int MAX_BATCH_SIZE = 50;
+  private static final URI DEFAULT_BATCH_URI =
+      MetaHandlerUtils.staticURI("https://graph.facebook.com/" + API_VERSION + "/");
 
   private final String verifyToken;
   private final String appSecret;
@@ -48,6 +55,9 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
   private final @Nullable String connectedFacebookPageForInstagram;
 
   private final Deduplicator<Identifier> messageDeduplicator = new Deduplicator<>(10_000);
+  private final OrderedSender orderedSender = new OrderedSender("FBMessageHandler");
+  private final boolean batchSends;
+  private URI batchURI = DEFAULT_BATCH_URI;
   private Function<Identifier, URI> baseURLFactory =
       pageId -> {
         try {
@@ -74,6 +84,7 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
     this.accessToken = pageAccessToken;
     this.connectedFacebookPageForInstagram = connectedFacebookPageForInstagram;
     this.appSecretProof = MetaHandlerUtils.hmac(accessToken, appSecret);
+    this.batchSends = false;
   }
 
   public FBMessageHandler(String verifyToken, String pageAccessToken, String appSecret) {
@@ -82,6 +93,7 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
     this.accessToken = pageAccessToken;
     this.connectedFacebookPageForInstagram = null;
     this.appSecretProof = MetaHandlerUtils.hmac(accessToken, appSecret);
+    this.batchSends = false;
   }
 
   FBMessageHandler(FBMessengerConfig config) {
@@ -93,6 +105,7 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
         config.connectedFacebookPageForInstagram().isPresent()
             ? config.connectedFacebookPageForInstagram().get()
             : null;
+    this.batchSends = config.batchSends();
   }
 
   @TestOnly
@@ -101,7 +114,7 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
     return MetaHandlerUtils.hmac(body, appSecret);
   }
 
-  private List<ThreadState<FBMessage>> postHandler(Context ctx, JsonNode body) {
+  List<ThreadState<FBMessage>> postHandler(JsonNode body) {
     JsonNode entries = body.get("entry");
     ArrayList<FBMessage> output = new ArrayList<>();
     for (JsonNode entry : entries) {
@@ -124,6 +137,7 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
           // https://developers.facebook.com/docs/messenger-platform/reference/webhook-events/messages
           Identifier messageId = Identifier.from(messageObject.get("mid").textValue());
           if (messageDeduplicator.addAndGetIsDuplicate(messageId)) {
+            MetaHandlerUtils.duplicateDropped("FBMessageHandler", messageId);
             continue;
           }
 
@@ -165,6 +179,18 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
     return this;
   }
 
+  @TestOnly
+  @This
+  FBMessageHandler batchURI(URI batchURI) {
+    this.batchURI = Objects.requireNonNull(batchURI);
+    return this;
+  }
+
+  @Override
+  public void registerMetrics(MetricsRegistry registry) {
+    orderedSender.registerMetrics(registry);
+  }
+
   @Override
   public ThreadState<FBMessage> respond(FBMessage message) throws IOException {
     if (!(message.payload() instanceof Payload.Text)) {
@@ -172,26 +198,43 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
           "Non-text payloads cannot be sent to Messenger client currently");
     }
     List<String> chunkedText = CHUNKER.chunks(message.message()).toList();
-    for (String text : chunkedText) {
-      send(text, message.recipientId(), message.senderId());
+    Identifier pageId =
+        connectedFacebookPageForInstagram == null
+            ? message.senderId()
+            : Identifier.from(connectedFacebookPageForInstagram);
+    OrderedSender.Prepare<ObjectNode> prepare = text -> messageBody(text, message.recipientId());
+    MetaHandlerUtils.GraphSend<ObjectNode, @Nullable Void> send =
+        body -> {
+          send(body, pageId);
+          return null;
+        };
+    if (batchSends) {
+      orderedSender.sendBatched(
+          chunkedText,
+          MAX_BATCH_SIZE,
+          (from, to) -> sendBatch(chunkedText.subList(from, to), message.recipientId(), pageId),
+          prepare,
+          send);
+    } else {
+      orderedSender.send(chunkedText, prepare, send);
     }
     return ThreadState.of(message);
   }
 
-  private void send(String message, Identifier recipient, Identifier sender) throws IOException {
-    URI url;
+  private static ObjectNode messageBody(String message, Identifier recipient) {
     ObjectNode body = MAPPER.createObjectNode();
     body.put("messaging_type", "RESPONSE").putObject("recipient").put("id", recipient.toString());
     body.putObject("message").put("text", message);
+    return body;
+  }
+
+  private void send(ObjectNode body, Identifier pageId) throws IOException {
+    URI url;
     String bodyString;
     try {
       bodyString = MAPPER.writeValueAsString(body);
       url =
-          new URIBuilder(
-                  baseURLFactory.apply(
-                      connectedFacebookPageForInstagram == null
-                          ? sender
-                          : Identifier.from(connectedFacebookPageForInstagram)))
+          new URIBuilder(baseURLFactory.apply(pageId))
               .addParameter("access_token", accessToken)
               .addParameter("appsecret_proof", appSecretProof)
               .build();
@@ -200,23 +243,91 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
       throw new RuntimeException(e);
     }
 
-    Response response =
-        Request.post(url).bodyString(bodyString, ContentType.APPLICATION_JSON).execute();
-    HttpResponse responseContent = response.returnResponse();
-    if (responseContent.getCode() != 200) {
-      String errorMessage =
-          "received a "
-              + responseContent.getCode()
-              + " error code when attempting to reply. "
-              + responseContent.getReasonPhrase();
-
-      LOGGER.atError().addKeyValue("body", bodyString).setMessage(errorMessage).log();
-      throw new IOException(
-          "received a "
-              + responseContent.getCode()
-              + " error code when attempting to reply. "
-              + responseContent.getReasonPhrase());
+    HttpRequests.execute(
+        url,
+        Request.post(url).bodyString(bodyString, ContentType.APPLICATION_JSON),
+        response -> {
+          if (response.getCode() != 200) {
+            String errorMessage =
+                "received a "
+                    + response.getCode()
+                    + " error code when attempting to reply. "
+                    + response.getReasonPhrase();
+
+            LOGGER.atError().addKeyValue("body", bodyString).setMessage(errorMessage).log();
+            throw new GraphSendException(response.getCode(), errorMessage);
+          }
+          return null;
+        });
+  }
+
+  /**
+   * Send the chunks in one Graph API batch request, each chunk depends on the one before it so they
+   * are sent in order and a failed chunk stops the rest of the batch.
+   *
+   * @return the number of chunks, from the start, that were accepted
+   */
+  private int sendBatch(List<String> chunks, Identifier recipient, Identifier pageId)
+      throws IOException {
+    ArrayNode batch = MAPPER.createArrayNode();
+    for (int i = 0; i < chunks.size(); i++) {
+      ObjectNode body = messageBody(chunks.get(i), recipient);
+      String encodedBody =
+          "messaging_type=RESPONSE&recipient="
+              + URLEncoder.encode(body.get("recipient").toString(), StandardCharsets.UTF_8)
+              + "&message="
+              + URLEncoder.encode(body.get("message").toString(), StandardCharsets.UTF_8);
+      ObjectNode request =
+          batch
+              .addObject()
+              .put("method", "POST")
+              .put("name", "chunk" + i)
+              .put("relative_url", pageId + "/messages")
+              .put("body", encodedBody)
+              .put("omit_response_on_success", false);
+      if (i > 0) {
+        request.put("depends_on", "chunk" + (i - 1));
+      }
+    }
+    JsonNode responses =
+        MetaHandlerUtils.sendChunk(
+            "FBMessageHandler",
+            0,
+            chunks.size(),
+            String.join("", chunks),
+            batch,
+            b ->
+                HttpRequests.execute(
+                    batchURI,
+                    Request.post(batchURI)
+                        .bodyForm(
+                            new BasicNameValuePair("access_token", accessToken),
+                            new BasicNameValuePair("appsecret_proof", appSecretProof),
+                            new BasicNameValuePair("include_headers", "false"),
+                            new BasicNameValuePair("batch", MAPPER.writeValueAsString(b))),
+                    response -> {
+                      if (response.getCode() != 200) {
+                        throw new GraphSendException(
+                            response.getCode(),
+                            "received a "
+                                + response.getCode()
+                                + " error code when attempting to send a batch. "
+                                + response.getReasonPhrase());
+                      }
+                      return MAPPER.readTree(response.getEntity().getContent());
+                    }));
+    for (int i = 0; i < chunks.size(); i++) {
+      @Nullable JsonNode response = responses.get(i);
+      if (response == null || response.path("code").asInt() != 200) {
+        LOGGER
+            .atWarn()
+            .addKeyValue("chunk", i)
+            .addKeyValue("response", response)
+            .log("chunk in batch was not accepted");
+        return i;
+      }
     }
+    return chunks.size();
   }
 
   @Override
@@ -245,7 +356,7 @@ public class FBMessageHandler implements MessageHandler<FBMessage> {
               }
               return Optional.empty();
             },
-            this::postHandler);
+            (ctx, body) -> postHandler(body));
 
     return List.of(MetaHandlerUtils.subscriptionVerificationRouteDetails(verifyToken), postDetails);
   }
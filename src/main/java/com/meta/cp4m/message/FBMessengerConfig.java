@@ -10,6 +10,7 @@ package com.meta.cp4m.message;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -21,6 +22,7 @@ public class FBMessengerConfig implements HandlerConfig {
   private final String appSecret;
   private final String pageAccessToken;
   private final @Nullable String connectedFacebookPageForInstagram;
+  private final boolean batchSends;
 
   private FBMessengerConfig(
       @JsonProperty("name") String name,
@@ -28,7 +30,8 @@ public class FBMessengerConfig implements HandlerConfig {
       @JsonProperty("app_secret") String appSecret,
       @JsonProperty("page_access_token") String pageAccessToken,
       @JsonProperty("connected_facebook_page_for_instagram")
-          @Nullable String connectedFacebookPageForInstagram) {
+          @Nullable String connectedFacebookPageForInstagram,
+      @JsonProperty("batch_sends") @Nullable Boolean batchSends) {
 
     Preconditions.checkArgument(name != null && !name.isBlank(), "name cannot be blank");
     Preconditions.checkArgument(
@@ -43,6 +46,7 @@ public class FBMessengerConfig implements HandlerConfig {
     this.appSecret = appSecret;
     this.pageAccessToken = pageAccessToken;
     this.connectedFacebookPageForInstagram = connectedFacebookPageForInstagram;
+    this.batchSends = Objects.requireNonNullElse(batchSends, false);
   }
 
   public static FBMessengerConfig of(
@@ -56,13 +60,14 @@ public class FBMessengerConfig implements HandlerConfig {
         verifyToken,
         appSecret,
         pageAccessToken,
-        connectedFacebookPageForInstagram);
+        connectedFacebookPageForInstagram,
+        null);
   }
 
   public static FBMessengerConfig of(String verifyToken, String appSecret, String pageAccessToken) {
     // human readability of the name only matters when it's coming from a config
     return new FBMessengerConfig(
-        UUID.randomUUID().toString(), verifyToken, appSecret, pageAccessToken, null);
+        UUID.randomUUID().toString(), verifyToken, appSecret, pageAccessToken, null, null);
   }
 
   @Override
@@ -90,4 +95,11 @@ public class FBMessengerConfig implements HandlerConfig {
   public Optional<String> connectedFacebookPageForInstagram() {
     return Optional.ofNullable(connectedFacebookPageForInstagram);
   }
+
+  /**
+   * @return true if the chunks of a long reply are sent in a single Graph API batch request
+   */
+  public boolean batchSends() {
+    return batchSends;
+  }
 }
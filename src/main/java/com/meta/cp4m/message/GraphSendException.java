@@ -0,0 +1,60 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import java.io.IOException;
+import java.util.Set;
+
+/** The Graph API responded to a send with an error status */
+class GraphSendException extends IOException {
+
+  // https://developers.facebook.com/docs/whatsapp/cloud-api/support/error-codes/#throttling-errors
+  private static final Set<Integer> THROTTLING_ERROR_CODES = Set.of(4, 80007, 130429);
+
+  private final int statusCode;
+  private final int errorCode;
+
+  GraphSendException(int statusCode, String message) {
+    this(statusCode, -1, message);
+  }
+
+  /**
+   * @param statusCode the HTTP status of the response
+   * @param errorCode the Graph API error code in the body of the response, -1 if there was none
+   * @param message a description of the error
+   */
+  GraphSendException(int statusCode, int errorCode, String message) {
+    super(message);
+    this.statusCode = statusCode;
+    this.errorCode = errorCode;
+  }
+
+  int statusCode() {
+    return statusCode;
+  }
+
+  int errorCode() {
+    return errorCode;
+  }
+
+  /**
+   * @return true if the sender has gone over its rate limit
+   */
+  boolean throttled() {
+    return statusCode == 429 || THROTTLING_ERROR_CODES.contains(errorCode);
+  }
+
+  /**
+   * @return true if the Graph API did not accept the message and it is safe to send it again
+   */
+  boolean retryable() {
+    // throttled or unavailable, other errors may have been sent before failing
+    return throttled() || statusCode == 503;
+  }
+}
@@ -8,6 +8,7 @@
 
 package com.meta.cp4m.message;
 
+import com.meta.cp4m.metrics.MetricsRegistry;
 import com.meta.cp4m.routing.Acceptor;
 import io.javalin.http.HandlerType;
 import java.io.IOException;
@@ -24,5 +25,23 @@ public interface MessageHandler<T extends Message> {
    */
   ThreadState<T> respond(T message) throws IOException;
 
+  /**
+   * Respond to a message from a user, knowing which message is being answered. Handlers that
+   * measure how long users wait for a reply override this, the rest respond the same either way.
+   *
+   * @param message the response
+   * @param inReplyTo the user's message that the response answers
+   */
+  default ThreadState<T> respond(T message, T inReplyTo) throws IOException {
+    return respond(message);
+  }
+
   List<RouteDetails<?, T>> routeDetails();
+
+  /**
+   * Keep any metrics specific to this handler in the given registry
+   *
+   * @param registry the registry of the runner the handler's service is added to
+   */
+  default void registerMetrics(MetricsRegistry registry) {}
 }
@@ -8,8 +8,11 @@
 
 package com.meta.cp4m.message;
 
+import com.meta.cp4m.jfr.DuplicateMessageEvent;
+import com.meta.cp4m.jfr.GraphSendEvent;
 import io.javalin.http.Context;
 import io.javalin.http.HandlerType;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
@@ -63,6 +66,55 @@ class MetaHandlerUtils {
         });
   }
 
+  /**
+   * Emit a JFR event for a message that was dropped because it had already been received
+   *
+   * @param handler the handler that received the message
+   * @param messageId the id of the duplicate message
+   */
+  static void duplicateDropped(String handler, Object messageId) {
+    DuplicateMessageEvent event = new DuplicateMessageEvent();
+    if (event.shouldCommit()) {
+      event.handler = handler;
+      event.messageId = messageId.toString();
+      event.commit();
+    }
+  }
+
+  /**
+   * Send one chunk of a reply to the Graph API and emit a JFR event with its duration
+   *
+   * @param handler the handler sending the reply
+   * @param chunk position of the chunk in the reply
+   * @param chunks number of chunks in the reply
+   * @param text the text of the chunk
+   * @param request the request that sends the chunk
+   * @param send sends the request
+   * @return the result of the send
+   */
+  static <P, R> R sendChunk(
+      String handler, int chunk, int chunks, String text, P request, GraphSend<P, R> send)
+      throws IOException {
+    GraphSendEvent event = new GraphSendEvent();
+    event.begin();
+    boolean succeeded = false;
+    try {
+      R result = send.send(request);
+      succeeded = true;
+      return result;
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.handler = handler;
+        event.chunk = chunk;
+        event.chunks = chunks;
+        event.characters = text.length();
+        event.succeeded = succeeded;
+        event.commit();
+      }
+    }
+  }
+
   static String hmac(String body, String appSecret) {
     Mac sha256HMAC;
     SecretKeySpec secretKey;
@@ -88,17 +140,31 @@ class MetaHandlerUtils {
    * @param appSecret app secret corresponding to this app
    */
   static boolean postHeaderValid(Context ctx, String appSecret) {
-    @Nullable String sig = ctx.header("X-Hub-Signature-256");
-    if (sig == null) {
+    return signatureValid(ctx.header("X-Hub-Signature-256"), ctx.body(), appSecret);
+  }
+
+  /**
+   * @param signature the value of the X-Hub-Signature-256 header
+   * @param body the body of the post request
+   * @param appSecret app secret corresponding to this app
+   * @return true if the signature matches the body
+   */
+  static boolean signatureValid(@Nullable String signature, String body, String appSecret) {
+    if (signature == null) {
       return false;
     }
 
-    String[] hashParts = sig.strip().split("=");
+    String[] hashParts = signature.strip().split("=");
     if (hashParts.length != 2) {
       return false;
     }
 
-    String calculatedHmac = hmac(ctx.body(), appSecret);
+    String calculatedHmac = hmac(body, appSecret);
     return hashParts[1].equals(calculatedHmac);
   }
+
+  @FunctionalInterface
+  interface GraphSend<P, R> {
+    R send(P request) throws IOException;
+  }
 }
@@ -0,0 +1,222 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the chunks of a reply to the Graph API in order.
+ *
+ * <p>The Graph API does not guarantee that concurrently sent messages are delivered in the order
+ * they were sent, the only acknowledgement of order it gives is the response to a send. So sends
+ * are never overlapped, a chunk is sent as soon as the previous one is accepted and never before.
+ * Each request is built before the first is sent so the gap between chunks is just the round trip,
+ * and the pooled connection of the fluent client is reused for every chunk. Where the Graph API
+ * can order the chunks itself, in a batch request, {@link #sendBatched} sends many per round trip.
+ *
+ * <p>A chunk that the Graph API did not accept, because the connection could not be made or it was
+ * throttled, is retried with exponential backoff before any later chunk is sent. Other failures
+ * are not retried because the chunk may already have been delivered.
+ */
+final class OrderedSender {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OrderedSender.class);
+  private static final int DEFAULT_MAX_ATTEMPTS = 3;
+  private static final Duration DEFAULT_BACKOFF = Duration.ofMillis(200);
+
+  private final String handler;
+  private final int maxAttempts;
+  private final Duration backoff;
+  private volatile MetricsRegistry registry = new MetricsRegistry();
+
+  OrderedSender(String handler) {
+    this(handler, DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF);
+  }
+
+  /**
+   * @param handler the name of the handler, used to label metrics
+   * @param maxAttempts the number of times each chunk is attempted
+   * @param backoff the wait before the first retry, it doubles for every retry after that
+   */
+  OrderedSender(String handler, int maxAttempts, Duration backoff) {
+    Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be greater than zero");
+    Preconditions.checkArgument(!backoff.isNegative(), "backoff must not be negative");
+    this.handler = handler;
+    this.maxAttempts = maxAttempts;
+    this.backoff = backoff;
+  }
+
+  void registerMetrics(MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  static boolean retryable(IOException e) {
+    return e instanceof ConnectException || (e instanceof GraphSendException s && s.retryable());
+  }
+
+  /**
+   * Send every chunk in order
+   *
+   * @param chunks the chunks of the reply
+   * @param prepare builds the request for a chunk
+   * @param send sends a request, returning only once the Graph API has accepted it
+   * @return the result of each send, in the order of the chunks
+   * @throws IOException if a chunk could not be sent, no later chunk is sent
+   */
+  <P, R> List<R> send(
+      List<String> chunks, Prepare<P> prepare, MetaHandlerUtils.GraphSend<P, R> send)
+      throws IOException {
+    long start = System.nanoTime();
+    List<P> requests = new ArrayList<>(chunks.size());
+    for (String chunk : chunks) {
+      requests.add(prepare.prepare(chunk));
+    }
+    List<R> results = new ArrayList<>(chunks.size());
+    boolean succeeded = false;
+    try {
+      for (int i = 0; i < chunks.size(); i++) {
+        results.add(sendWithRetries(i, chunks, requests.get(i), send));
+      }
+      succeeded = true;
+      return results;
+    } finally {
+      recordReply(start, succeeded);
+    }
+  }
+
+  /**
+   * Send every chunk in order, as many as possible in each batch. A chunk that a batch did not
+   * accept is sent on its own, with retries, and then batching carries on from the chunk after it,
+   * so only the chunks that were not accepted are sent again.
+   *
+   * @param chunks the chunks of the reply
+   * @param maxBatchSize the most chunks that can be sent in one batch
+   * @param batch sends a range of the chunks in one request
+   * @param prepare builds the request for a chunk that is sent on its own
+   * @param send sends a request for a single chunk, returning only once the Graph API has accepted
+   *     it
+   * @throws IOException if a chunk could not be sent, no later chunk is sent
+   */
+  <P> void sendBatched(
+      List<String> chunks,
+      int maxBatchSize,
+      Batch batch,
+      Prepare<P> prepare,
+      MetaHandlerUtils.GraphSend<P, ?> send)
+      throws IOException {
+    long start = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int next = 0;
+      while (next < chunks.size()) {
+        int to = Math.min(chunks.size(), next + maxBatchSize);
+        if (to - next > 1) {
+          int accepted = 0;
+          try {
+            accepted = batch.send(next, to);
+          } catch (IOException e) {
+            if (!retryable(e)) {
+              throw e;
+            }
+            LOGGER
+                .atWarn()
+                .addKeyValue("handler", handler)
+                .addKeyValue("chunk", next)
+                .setCause(e)
+                .log("batch was not accepted, sending its first chunk on its own");
+          }
+          next += accepted;
+          if (next == to) {
+            continue;
+          }
+        }
+        // the first chunk that was not accepted in a batch
+        sendWithRetries(next, chunks, prepare.prepare(chunks.get(next)), send);
+        next++;
+      }
+      succeeded = true;
+    } finally {
+      recordReply(start, succeeded);
+    }
+  }
+
+  private void recordReply(long start, boolean succeeded) {
+    registry
+        .latency(
+            "cp4m_reply_send_seconds",
+            "Time to send every chunk of a reply, including retries",
+            "handler",
+            handler,
+            "succeeded",
+            String.valueOf(succeeded))
+        .recordNanos(System.nanoTime() - start);
+  }
+
+  private <P, R> R sendWithRetries(
+      int chunk, List<String> chunks, P request, MetaHandlerUtils.GraphSend<P, R> send)
+      throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return MetaHandlerUtils.sendChunk(
+            handler, chunk, chunks.size(), chunks.get(chunk), request, send);
+      } catch (IOException e) {
+        if (attempt >= maxAttempts || !retryable(e)) {
+          throw e;
+        }
+        registry
+            .counter(
+                "cp4m_reply_send_retries_total",
+                "Chunks of a reply that were sent again after the Graph API did not accept them",
+                "handler",
+                handler)
+            .increment();
+        long wait = backoff.toMillis() << (attempt - 1);
+        LOGGER
+            .atWarn()
+            .addKeyValue("handler", handler)
+            .addKeyValue("chunk", chunk)
+            .addKeyValue("attempt", attempt)
+            .addKeyValue("wait_ms", wait)
+            .setCause(e)
+            .log("chunk was not accepted, retrying");
+        try {
+          TimeUnit.MILLISECONDS.sleep(wait);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while waiting to retry a chunk");
+        }
+      }
+    }
+  }
+
+  @FunctionalInterface
+  interface Prepare<P> {
+    P prepare(String text) throws IOException;
+  }
+
+  @FunctionalInterface
+  interface Batch {
+    /**
+     * @param from the index of the first chunk to send
+     * @param to the index after the last chunk to send
+     * @return how many chunks, starting at from, were accepted
+     */
+    int send(int from, int to) throws IOException;
+  }
+}
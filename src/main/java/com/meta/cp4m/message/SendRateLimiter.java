@@ -0,0 +1,283 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the requests sent from each business phone number under its Graph API throughput limit.
+ *
+ * <p>Every phone number has a token bucket that refills at the current rate and holds up to one
+ * second of tokens, so short bursts go out immediately and longer ones are smoothed. Requests that
+ * have to wait are queued by priority, replies are always sent before read receipts, and in the
+ * order they arrived within a priority. A request is rejected if the queue of its phone number is
+ * full or it cannot be sent before its deadline.
+ *
+ * <p>The rate adapts to the Graph API, it is halved every time a request is throttled and then
+ * grows back by one percent of the limit for every request that is accepted.
+ *
+ * <p>Callers wait on virtual threads so a lock and condition are used rather than synchronized.
+ */
+final class SendRateLimiter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SendRateLimiter.class);
+
+  private final double messagesPerSecond;
+  private final int maxQueued;
+  private final Duration maxWait;
+  private final Map<Identifier, Bucket> buckets = new ConcurrentHashMap<>();
+  private volatile MetricsRegistry registry = new MetricsRegistry();
+
+  /**
+   * @param messagesPerSecond the throughput limit of each phone number
+   * @param maxQueued the number of requests that can wait for each phone number
+   * @param maxWait how long a request can wait before it is rejected
+   */
+  SendRateLimiter(double messagesPerSecond, int maxQueued, Duration maxWait) {
+    Preconditions.checkArgument(messagesPerSecond > 0, "messagesPerSecond must be greater than 0");
+    Preconditions.checkArgument(maxQueued >= 0, "maxQueued must not be negative");
+    Preconditions.checkArgument(!maxWait.isNegative(), "maxWait must not be negative");
+    this.messagesPerSecond = messagesPerSecond;
+    this.maxQueued = maxQueued;
+    this.maxWait = maxWait;
+  }
+
+  void registerMetrics(MetricsRegistry registry) {
+    this.registry = registry;
+    buckets.values().forEach(Bucket::registerGauges);
+  }
+
+  /**
+   * Send a request once the phone number has capacity for it
+   *
+   * @param phoneNumberId the business phone number the request is sent from
+   * @param priority the priority of the request
+   * @param request the request
+   * @param send sends the request
+   * @return the result of the send
+   * @throws IOException if the request was rejected or could not be sent
+   */
+  <P, R> R send(
+      Identifier phoneNumberId, Priority priority, P request, MetaHandlerUtils.GraphSend<P, R> send)
+      throws IOException {
+    Bucket bucket = buckets.computeIfAbsent(phoneNumberId, Bucket::new);
+    bucket.acquire(priority);
+    try {
+      R result = send.send(request);
+      bucket.accepted();
+      return result;
+    } catch (GraphSendException e) {
+      if (e.throttled()) {
+        bucket.throttled();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return the current rate of the phone number in messages per second
+   */
+  double rate(Identifier phoneNumberId) {
+    Bucket bucket = buckets.get(phoneNumberId);
+    return bucket == null ? messagesPerSecond : bucket.rate();
+  }
+
+  enum Priority {
+    // declared from highest to lowest priority
+    REPLY,
+    READ_RECEIPT;
+
+    String label() {
+      return name().toLowerCase();
+    }
+  }
+
+  private final class Bucket {
+    private final String phoneNumberId;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Priority, ArrayDeque<Object>> waiting = new EnumMap<>(Priority.class);
+    private double rate = messagesPerSecond;
+    private double tokens = Math.max(1, messagesPerSecond);
+    private long refilledAt = System.nanoTime();
+
+    private Bucket(Identifier phoneNumberId) {
+      this.phoneNumberId = phoneNumberId.toString();
+      for (Priority priority : Priority.values()) {
+        waiting.put(priority, new ArrayDeque<>());
+      }
+      registerGauges();
+    }
+
+    private void registerGauges() {
+      MetricsRegistry registry = SendRateLimiter.this.registry;
+      for (Priority priority : Priority.values()) {
+        registry.gauge(
+            "cp4m_wa_send_queue_depth",
+            "Requests waiting for capacity to send from the phone number",
+            () -> queued(priority),
+            "phone_number_id",
+            phoneNumberId,
+            "priority",
+            priority.label());
+      }
+      registry.gauge(
+          "cp4m_wa_send_rate",
+          "Current send rate limit of the phone number in messages per second",
+          () -> Math.round(rate()),
+          "phone_number_id",
+          phoneNumberId);
+    }
+
+    private int queued(Priority priority) {
+      lock.lock();
+      try {
+        return waiting.get(priority).size();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private double rate() {
+      lock.lock();
+      try {
+        return rate;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void refill(long now) {
+      tokens = Math.min(Math.max(1, rate), tokens + (now - refilledAt) * rate / 1e9);
+      refilledAt = now;
+    }
+
+    private boolean higherPriorityWaiting(Priority priority) {
+      return waiting.entrySet().stream()
+          .anyMatch(e -> e.getKey().compareTo(priority) < 0 && !e.getValue().isEmpty());
+    }
+
+    private void acquire(Priority priority) throws IOException {
+      long start = System.nanoTime();
+      long deadline = start + maxWait.toNanos();
+      Object ticket = new Object();
+      lock.lock();
+      try {
+        int queued = waiting.values().stream().mapToInt(ArrayDeque::size).sum();
+        if (queued >= maxQueued) {
+          refill(start);
+          if (queued > 0 || tokens < 1) {
+            throw rejected(priority, "queue_full");
+          }
+        }
+        ArrayDeque<Object> queue = waiting.get(priority);
+        queue.addLast(ticket);
+        try {
+          while (true) {
+            long now = System.nanoTime();
+            refill(now);
+            if (queue.peekFirst() == ticket && tokens >= 1 && !higherPriorityWaiting(priority)) {
+              tokens -= 1;
+              break;
+            }
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+              throw rejected(priority, "deadline");
+            }
+            if (tokens >= 1) {
+              changed.awaitNanos(remaining); // wait for the requests ahead of this one
+            } else {
+              long untilToken = (long) Math.ceil((1 - tokens) * 1e9 / rate);
+              changed.awaitNanos(Math.min(remaining, Math.max(untilToken, 1)));
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while waiting to send");
+        } finally {
+          queue.remove(ticket);
+          changed.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+      registry
+          .latency(
+              "cp4m_wa_send_queue_wait_seconds",
+              "Time requests waited for capacity to send from the phone number",
+              "phone_number_id",
+              phoneNumberId,
+              "priority",
+              priority.label())
+          .recordNanos(System.nanoTime() - start);
+    }
+
+    private IOException rejected(Priority priority, String reason) {
+      registry
+          .counter(
+              "cp4m_wa_send_rejected_total",
+              "Requests that were not sent because the phone number was over its rate limit",
+              "phone_number_id",
+              phoneNumberId,
+              "priority",
+              priority.label(),
+              "reason",
+              reason)
+          .increment();
+      return new IOException(
+          "unable to send from " + phoneNumberId + " within its rate limit: " + reason);
+    }
+
+    private void accepted() {
+      lock.lock();
+      try {
+        rate = Math.min(messagesPerSecond, rate + messagesPerSecond / 100);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void throttled() {
+      double halved;
+      lock.lock();
+      try {
+        rate = Math.max(messagesPerSecond / 100, rate / 2);
+        tokens = Math.min(tokens, 0);
+        halved = rate;
+      } finally {
+        lock.unlock();
+      }
+      registry
+          .counter(
+              "cp4m_wa_send_throttled_total",
+              "Requests the Graph API rejected because the phone number was over its rate limit",
+              "phone_number_id",
+              phoneNumberId)
+          .increment();
+      LOGGER
+          .atWarn()
+          .addKeyValue("phone_number_id", phoneNumberId)
+          .addKeyValue("rate", halved)
+          .log("throttled by the Graph API, lowering the send rate");
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Assembles a stream of text fragments, such as the tokens generated by an LLM, into complete
+ * chunks of text. A chunk is released as soon as the buffered text contains a paragraph break after
+ * at least the minimum number of characters. If the buffered text grows past the maximum number of
+ * characters without a paragraph break, it is released at the last line break, sentence end or
+ * space before the maximum, in that order of preference.
+ *
+ * <p>Instances are stateful and are not thread safe, use one per generated response.
+ */
+public class StreamingTextChunker {
+
+  private static final String PARAGRAPH_BREAK = "\n\n";
+  private static final List<String> FALLBACK_SEPARATORS = List.of("\n", ". ", " ");
+
+  private final int minCharsPerChunk;
+  private final int maxCharsPerChunk;
+  private final StringBuilder buffer = new StringBuilder();
+
+  private StreamingTextChunker(int minCharsPerChunk, int maxCharsPerChunk) {
+    Preconditions.checkArgument(minCharsPerChunk >= 0, "minCharsPerChunk cannot be negative");
+    Preconditions.checkArgument(
+        maxCharsPerChunk > minCharsPerChunk, "maxCharsPerChunk must be > minCharsPerChunk");
+    this.minCharsPerChunk = minCharsPerChunk;
+    this.maxCharsPerChunk = maxCharsPerChunk;
+  }
+
+  public static StreamingTextChunker of(int minCharsPerChunk, int maxCharsPerChunk) {
+    return new StreamingTextChunker(minCharsPerChunk, maxCharsPerChunk);
+  }
+
+  /**
+   * @param fragment the next piece of text
+   * @return all chunks that were completed by this fragment, in order
+   */
+  public List<String> append(CharSequence fragment) {
+    buffer.append(fragment);
+    List<String> out = new ArrayList<>(1);
+    while (true) {
+      int end = chunkEnd();
+      if (end < 0) {
+        return out;
+      }
+      String chunk = buffer.substring(0, end).strip();
+      buffer.delete(0, end);
+      if (!chunk.isEmpty()) {
+        out.add(chunk);
+      }
+    }
+  }
+
+  /**
+   * @return whatever text is left once the stream is complete
+   */
+  public Optional<String> finish() {
+    String rest = buffer.toString().strip();
+    buffer.setLength(0);
+    return rest.isEmpty() ? Optional.empty() : Optional.of(rest);
+  }
+
+  /**
+   * @return the index just past the end of the next complete chunk or -1 if there isn't one yet
+   */
+  private int chunkEnd() {
+    int paragraph = buffer.indexOf(PARAGRAPH_BREAK, minCharsPerChunk);
+    if (paragraph >= 0 && paragraph <= maxCharsPerChunk) {
+      return paragraph + PARAGRAPH_BREAK.length();
+    }
+    if (buffer.length() <= maxCharsPerChunk) {
+      return -1;
+    }
+    for (String separator : FALLBACK_SEPARATORS) {
+      int index = buffer.lastIndexOf(separator, maxCharsPerChunk - separator.length());
+      if (index > 0) {
+        return index + separator.length();
+      }
+    }
+    return maxCharsPerChunk;
+  }
+}
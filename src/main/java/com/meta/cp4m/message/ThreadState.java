@@ -66,6 +66,23 @@ public class ThreadState<T extends Message> {
     return new ThreadState<>(message);
   }
 
+  /** Rebuild a thread from its messages in order, such as a thread read back from storage */
+  static <T extends Message> ThreadState<T> of(List<T> messages, UserData userData) {
+    Preconditions.checkArgument(!messages.isEmpty(), "a thread needs at least one message");
+    T first = messages.getFirst();
+    for (int i = 1; i < messages.size(); i++) {
+      T message = messages.get(i);
+      Preconditions.checkArgument(
+          first.threadId().equals(message.threadId()),
+          "all messages in a thread must have the same thread id");
+      Preconditions.checkArgument(
+          !message.timestamp().isBefore(messages.get(i - 1).timestamp()),
+          "messages must be in timestamp order");
+    }
+    return new ThreadState<>(
+        ImmutableList.copyOf(messages), MessageFactory.instance(first), userData);
+  }
+
   public Identifier userId() {
     T message = tail();
     return switch (message.role()) {
@@ -0,0 +1,510 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.Message.Role;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Serializes threads to a compact binary format so that they can be kept outside the Java heap.
+ *
+ * <p>The first byte is the format version. Threads are always written in the latest version and
+ * every earlier version can still be read, so stored threads survive an upgrade. Version 2 writes
+ * integers as varints, writes the sender and recipient ids once and refers to them by index, writes
+ * ids that are UUIDs or numbers in binary, writes each timestamp as the difference from the one
+ * before and can deflate long texts.
+ */
+public final class ThreadStateCodec {
+
+  static final byte V1 = 1;
+  static final byte V2 = 2;
+  static final byte VERSION = V2;
+  // shorter texts rarely deflate to less than they started as
+  static final int COMPRESS_ABOVE = 256;
+
+  private static final byte FB_MESSAGE = 0;
+  private static final byte WA_MESSAGE = 1;
+  private static final byte TEXT = 0;
+  private static final byte IMAGE = 1;
+  private static final byte DOCUMENT = 2;
+  private static final byte HAS_NAME = 1;
+  private static final byte HAS_PHONE_NUMBER = 2;
+
+  // the bits of the header byte of each message in version 2
+  private static final int ROLE_BIT = 1;
+  private static final int PAYLOAD_SHIFT = 1;
+  private static final int PAYLOAD_MASK = 0b11;
+  private static final int DEFLATED_BIT = 1 << 3;
+
+  private static final byte RAW_ID = 0;
+  private static final byte UUID_ID = 1;
+  private static final byte NUMBER_ID = 2;
+
+  private ThreadStateCodec() {}
+
+  public static byte[] encode(ThreadState<?> thread) {
+    return encode(thread, true);
+  }
+
+  /**
+   * @param compressText deflate texts longer than {@value #COMPRESS_ABOVE} bytes if that makes them
+   *     smaller, costs time when writing and reading
+   */
+  public static byte[] encode(ThreadState<?> thread, boolean compressText) {
+    Writer out = new Writer();
+    out.write(VERSION);
+    out.write(messageType(thread.tail()));
+    UserData userData = thread.userData();
+    out.write(
+        (userData.name().isPresent() ? HAS_NAME : 0)
+            | (userData.phoneNumber().isPresent() ? HAS_PHONE_NUMBER : 0));
+    userData.name().ifPresent(out::writeString);
+    userData.phoneNumber().ifPresent(out::writeString);
+
+    // a thread is between a user and a bot so there are usually only two
+    Map<Identifier, Integer> dictionary = new HashMap<>();
+    for (Message message : thread.messages()) {
+      dictionary.putIfAbsent(message.senderId(), dictionary.size());
+      dictionary.putIfAbsent(message.recipientId(), dictionary.size());
+    }
+    Identifier[] ids = new Identifier[dictionary.size()];
+    dictionary.forEach((id, index) -> ids[index] = id);
+    out.writeVarint(ids.length);
+    for (Identifier id : ids) {
+      out.writeIdentifier(id);
+    }
+
+    out.writeVarint(thread.messages().size());
+    long previousSecond = 0;
+    for (Message message : thread.messages()) {
+      @Nullable byte[] deflated = null;
+      if (compressText && message.payload() instanceof Payload.Text text) {
+        deflated = deflate(text.value().getBytes(StandardCharsets.UTF_8));
+      }
+      out.write(
+          message.role().ordinal()
+              | payloadType(message.payload()) << PAYLOAD_SHIFT
+              | (deflated != null ? DEFLATED_BIT : 0));
+      out.writeVarint(dictionary.get(message.senderId()));
+      out.writeVarint(dictionary.get(message.recipientId()));
+      out.writeIdentifier(message.instanceId());
+      long second = message.timestamp().getEpochSecond();
+      out.writeSignedVarint(second - previousSecond);
+      out.writeVarint(message.timestamp().getNano());
+      previousSecond = second;
+      switch (message.payload()) {
+        case Payload.Text text -> {
+          if (deflated != null) {
+            out.writeVarint(text.value().getBytes(StandardCharsets.UTF_8).length);
+            out.writeByteArray(deflated);
+          } else {
+            out.writeString(text.value());
+          }
+        }
+        case Payload.Image image -> {
+          out.writeString(image.mimeType());
+          out.writeByteArray(image.value());
+        }
+        case Payload.Document document -> {
+          out.writeString(document.mimeType());
+          out.writeByteArray(document.value());
+        }
+        default -> throw new AssertionError("checked by payloadType");
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param bytes a thread written by {@link #encode(ThreadState)} in any version
+   * @return the thread, the caller is trusted to know the type of its messages
+   */
+  public static <T extends Message> ThreadState<T> decode(byte[] bytes) {
+    if (bytes.length == 0) {
+      throw new IllegalArgumentException("malformed thread");
+    }
+    return switch (bytes[0]) {
+      case V1 -> decodeV1(bytes);
+      case V2 -> decodeV2(bytes);
+      default -> throw new IllegalArgumentException("unknown thread format version " + bytes[0]);
+    };
+  }
+
+  private static <T extends Message> ThreadState<T> decodeV2(byte[] bytes) {
+    try {
+      Reader in = new Reader(bytes);
+      in.read(); // the version
+      MessageFactory<T> factory = factory(in.read());
+      int flags = in.read();
+      @Nullable String name = (flags & HAS_NAME) != 0 ? in.readString() : null;
+      @Nullable String phoneNumber = (flags & HAS_PHONE_NUMBER) != 0 ? in.readString() : null;
+
+      Identifier[] ids = new Identifier[in.readLength()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = in.readIdentifier();
+      }
+
+      int size = in.readLength();
+      List<T> messages = new ArrayList<>(size);
+      long second = 0;
+      for (int i = 0; i < size; i++) {
+        int header = in.read();
+        Identifier senderId = ids[in.readLength()];
+        Identifier recipientId = ids[in.readLength()];
+        Identifier instanceId = in.readIdentifier();
+        second += in.readSignedVarint();
+        Instant timestamp = Instant.ofEpochSecond(second, in.readVarint());
+        Role role = Role.values()[header & ROLE_BIT];
+        int type = header >> PAYLOAD_SHIFT & PAYLOAD_MASK;
+        Payload<?> payload =
+            switch (type) {
+              case TEXT -> {
+                if ((header & DEFLATED_BIT) != 0) {
+                  int length = in.readInflatedLength();
+                  yield new Payload.Text(
+                      new String(inflate(in.readBytes(), length), StandardCharsets.UTF_8));
+                }
+                yield new Payload.Text(in.readString());
+              }
+              case IMAGE -> {
+                String mimeType = in.readString();
+                yield new Payload.Image(in.readBytes(), mimeType);
+              }
+              case DOCUMENT -> {
+                String mimeType = in.readString();
+                yield new Payload.Document(in.readBytes(), mimeType);
+              }
+              default -> throw new IllegalArgumentException("unknown payload type " + type);
+            };
+        messages.add(
+            factory.newMessage(timestamp, payload, senderId, recipientId, instanceId, role));
+      }
+      return ThreadState.of(messages, userData(messages, name, phoneNumber));
+    } catch (BufferUnderflowException
+        | IndexOutOfBoundsException
+        | NegativeArraySizeException
+        | DataFormatException e) {
+      throw new IllegalArgumentException("malformed thread", e);
+    }
+  }
+
+  /** The first version wrote fixed width integers and every id in full */
+  private static <T extends Message> ThreadState<T> decodeV1(byte[] bytes) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      in.readByte(); // the version
+      MessageFactory<T> factory = factory(in.readByte());
+      byte flags = in.readByte();
+      @Nullable String name = (flags & HAS_NAME) != 0 ? readStringV1(in) : null;
+      @Nullable String phoneNumber = (flags & HAS_PHONE_NUMBER) != 0 ? readStringV1(in) : null;
+      int size = in.readInt();
+      List<T> messages = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        messages.add(readMessageV1(in, factory));
+      }
+      return ThreadState.of(messages, userData(messages, name, phoneNumber));
+    } catch (IOException e) {
+      throw new IllegalArgumentException("malformed thread", e);
+    }
+  }
+
+  private static <T extends Message> T readMessageV1(
+      DataInputStream in, MessageFactory<T> factory) throws IOException {
+    Instant timestamp = Instant.ofEpochSecond(in.readLong(), in.readInt());
+    Identifier instanceId = Identifier.from(readStringV1(in));
+    Identifier senderId = Identifier.from(readStringV1(in));
+    Identifier recipientId = Identifier.from(readStringV1(in));
+    Role role = Role.values()[in.readByte()];
+    byte type = in.readByte();
+    Payload<?> payload =
+        switch (type) {
+          case TEXT -> new Payload.Text(readStringV1(in));
+          case IMAGE -> {
+            String mimeType = readStringV1(in);
+            yield new Payload.Image(readBytesV1(in), mimeType);
+          }
+          case DOCUMENT -> {
+            String mimeType = readStringV1(in);
+            yield new Payload.Document(readBytesV1(in), mimeType);
+          }
+          default -> throw new IllegalArgumentException("unknown payload type " + type);
+        };
+    return factory.newMessage(timestamp, payload, senderId, recipientId, instanceId, role);
+  }
+
+  private static String readStringV1(DataInputStream in) throws IOException {
+    return new String(readBytesV1(in), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readBytesV1(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    byte[] value = in.readNBytes(length);
+    if (value.length != length) {
+      throw new EOFException("thread is truncated");
+    }
+    return value;
+  }
+
+  private static <T extends Message> UserData userData(
+      List<T> messages, @Nullable String name, @Nullable String phoneNumber) {
+    if (messages.isEmpty()) {
+      throw new IllegalArgumentException("malformed thread, it has no messages");
+    }
+    T tail = messages.getLast();
+    UserData userData =
+        UserData.create(tail.role() == Role.USER ? tail.senderId() : tail.recipientId());
+    if (name != null) {
+      userData = userData.withName(name);
+    }
+    if (phoneNumber != null) {
+      userData = userData.withPhoneNumber(phoneNumber);
+    }
+    return userData;
+  }
+
+  private static byte messageType(Message message) {
+    return switch (message) {
+      case FBMessage m -> FB_MESSAGE;
+      case WAMessage m -> WA_MESSAGE;
+      default ->
+          throw new IllegalArgumentException(message.getClass() + " cannot be serialized");
+    };
+  }
+
+  private static <T extends Message> MessageFactory<T> factory(int type) {
+    Class<? extends Message> clazz =
+        switch (type) {
+          case FB_MESSAGE -> FBMessage.class;
+          case WA_MESSAGE -> WAMessage.class;
+          default -> throw new IllegalArgumentException("unknown message type " + type);
+        };
+    @SuppressWarnings("unchecked") // the caller is trusted to know what it stored
+    MessageFactory<T> factory = (MessageFactory<T>) MessageFactory.instance(clazz);
+    return factory;
+  }
+
+  private static int payloadType(Payload<?> payload) {
+    return switch (payload) {
+      case Payload.Text text -> TEXT;
+      case Payload.Image image -> IMAGE;
+      case Payload.Document document -> DOCUMENT;
+      default -> throw new IllegalArgumentException(payload.getClass() + " cannot be serialized");
+    };
+  }
+
+  /**
+   * @return the deflated text or null if it is too short or doesn't get smaller
+   */
+  private static byte @Nullable [] deflate(byte[] text) {
+    if (text.length <= COMPRESS_ABOVE) {
+      return null;
+    }
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(text);
+      deflater.finish();
+      // anything that isn't smaller than the text is useless
+      byte[] buffer = new byte[text.length - 1];
+      int length = deflater.deflate(buffer);
+      return deflater.finished() ? Arrays.copyOf(buffer, length) : null;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] deflated, int length) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(deflated);
+      byte[] text = new byte[length];
+      if (inflater.inflate(text) != length || !inflater.finished()) {
+        throw new DataFormatException("deflated text is not " + length + " bytes");
+      }
+      return text;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static final class Writer extends ByteArrayOutputStream {
+
+    private void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    private void writeSignedVarint(long value) {
+      writeVarint((value << 1) ^ (value >> 63)); // zigzag so that small negatives stay small
+    }
+
+    private void writeByteArray(byte[] value) {
+      writeVarint(value.length);
+      write(value, 0, value.length);
+    }
+
+    private void writeString(String value) {
+      writeByteArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeIdentifier(Identifier id) {
+      String value = id.toString();
+      @Nullable UUID uuid = uuid(value);
+      if (uuid != null) {
+        write(UUID_ID);
+        writeLong(uuid.getMostSignificantBits());
+        writeLong(uuid.getLeastSignificantBits());
+        return;
+      }
+      @Nullable Long number = number(value);
+      if (number != null) {
+        write(NUMBER_ID);
+        writeSignedVarint(number);
+        return;
+      }
+      write(RAW_ID);
+      writeString(value);
+    }
+
+    private void writeLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        write((int) (value >>> shift));
+      }
+    }
+
+    /**
+     * @return the UUID if the id is a UUID that is written back exactly the same
+     */
+    private static @Nullable UUID uuid(String value) {
+      if (value.length() != 36 || value.charAt(8) != '-') {
+        return null;
+      }
+      try {
+        UUID uuid = UUID.fromString(value);
+        return uuid.toString().equals(value) ? uuid : null;
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    /**
+     * @return the number if the id is a number that is written back exactly the same
+     */
+    private static @Nullable Long number(String value) {
+      if (value.isEmpty() || value.length() > 19) {
+        return null;
+      }
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if ((c < '0' || c > '9') && !(i == 0 && c == '-' && value.length() > 1)) {
+          return null;
+        }
+      }
+      try {
+        long number = Long.parseLong(value);
+        return Long.toString(number).equals(value) ? number : null;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  private static final class Reader {
+    private final ByteBuffer buffer;
+
+    private Reader(byte[] bytes) {
+      this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    private int read() {
+      return buffer.get() & 0xFF;
+    }
+
+    private long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = read();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("malformed thread, varint is too long");
+    }
+
+    private long readSignedVarint() {
+      long value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return a varint that is the length of something in the thread
+     */
+    private int readLength() {
+      long length = readVarint();
+      if (length > buffer.capacity()) {
+        // no part of the thread can be longer than the whole of it
+        throw new IllegalArgumentException("malformed thread, length " + length + " is too long");
+      }
+      return (int) length;
+    }
+
+    /**
+     * @return a varint that is the length of a deflated text once it is inflated
+     */
+    private int readInflatedLength() {
+      long length = readVarint();
+      // deflate cannot shrink anything to less than about a thousandth of its size
+      if (length > Math.min((long) buffer.capacity() * 1032, Integer.MAX_VALUE - 8)) {
+        throw new IllegalArgumentException("malformed thread, length " + length + " is too long");
+      }
+      return (int) length;
+    }
+
+    private byte[] readBytes() {
+      byte[] value = new byte[readLength()];
+      buffer.get(value);
+      return value;
+    }
+
+    private String readString() {
+      return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    private Identifier readIdentifier() {
+      int kind = read();
+      return switch (kind) {
+        case UUID_ID -> Identifier.from(new UUID(buffer.getLong(), buffer.getLong()).toString());
+        case NUMBER_ID -> Identifier.from(readSignedVarint());
+        case RAW_ID -> Identifier.from(readString());
+        default -> throw new IllegalArgumentException("unknown id type " + kind);
+      };
+    }
+  }
+}
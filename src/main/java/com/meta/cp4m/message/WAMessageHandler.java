@@ -9,21 +9,28 @@
 package com.meta.cp4m.message;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.meta.cp4m.Identifier;
 import com.meta.cp4m.message.webhook.whatsapp.*;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.tracing.MessageTrace;
+import com.meta.cp4m.utils.HttpRequests;
 import io.javalin.http.Context;
 import io.javalin.http.HandlerType;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.net.URIBuilder;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -51,11 +58,14 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
 
   private final ExecutorService asyncExecutor = Executors.newVirtualThreadPerTaskExecutor();
   private final Deduplicator<Identifier> messageDeduplicator = new Deduplicator<>(10_000);
+  private final DeliveryTracker deliveryTracker = new DeliveryTracker();
+  private final OrderedSender orderedSender = new OrderedSender("WAMessageHandler");
   private final String appSecret;
   private final String verifyToken;
   private final String accessToken;
   private final String appSecretProof;
   private final @Nullable String welcomeMessage;
+  private final SendRateLimiter rateLimiter;
   private URI baseURL = DEFAULT_BASE_URI;
 
   public WAMessageHandler(WAMessengerConfig config) {
@@ -64,6 +74,9 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
     this.appSecret = config.appSecret();
     this.welcomeMessage = config.welcomeMessage().orElse(null);
     this.appSecretProof = MetaHandlerUtils.hmac(accessToken, appSecret);
+    this.rateLimiter =
+        new SendRateLimiter(
+            config.messagesPerSecond(), config.sendQueueSize(), config.sendQueueTimeout());
   }
 
   private List<ThreadState<WAMessage>> post(Context ctx, WebhookPayload payload) {
@@ -82,9 +95,11 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
                               .addKeyValue("body", ctx.body())
                               .log("Whatsapp Error: " + e));
               Identifier phoneNumberId = change.value().metadata().phoneNumberId();
+              change.value().statuses().forEach(deliveryTracker::status);
 
               for (WebhookMessage message : change.value().messages()) {
                 if (messageDeduplicator.addAndGetIsDuplicate(message.id())) {
+                  MetaHandlerUtils.duplicateDropped("WAMessageHandler", message.id());
                   continue; // message is a duplicate
                 }
                 Payload<?> payloadValue;
@@ -92,20 +107,18 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
                   case TextWebhookMessage m -> payloadValue = new Payload.Text(m.text().body());
                   case ImageWebhookMessage m -> {
                     try {
-                      GetMediaIdBody mediaDetails = this.mediaDetails(m.image().id());
-                      byte[] media = this.getMediaFromUrl(mediaDetails.url());
+                      byte[] media = fetchMedia(ctx, m.image().id());
                       payloadValue = new Payload.Image(media, m.image().mimeType());
-                    } catch (IOException | URISyntaxException e) {
+                    } catch (IOException e) {
                       throw new RuntimeException(e);
                     }
                   }
 
                   case DocumentWebhookMessage m -> {
                     try {
-                      GetMediaIdBody mediaDetails = this.mediaDetails(m.document().id());
-                      byte[] media = this.getMediaFromUrl(mediaDetails.url());
+                      byte[] media = fetchMedia(ctx, m.document().id());
                       payloadValue = new Payload.Document(media, m.document().mimeType());
-                    } catch (IOException | URISyntaxException e) {
+                    } catch (IOException e) {
                       throw new RuntimeException(e);
                     }
                   }
@@ -161,6 +174,18 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
     return threadStates;
   }
 
+  @Override
+  public void registerMetrics(MetricsRegistry registry) {
+    deliveryTracker.registerMetrics(registry);
+    orderedSender.registerMetrics(registry);
+    rateLimiter.registerMetrics(registry);
+  }
+
+  @TestOnly
+  DeliveryTracker deliveryTracker() {
+    return deliveryTracker;
+  }
+
   @TestOnly
   @This
   WAMessageHandler baseUrl(URI baseURL) {
@@ -170,15 +195,30 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
 
   @Override
   public ThreadState<WAMessage> respond(WAMessage message) throws IOException {
+    return respond(message, deliveryTracker.reply(message.senderId(), null));
+  }
+
+  @Override
+  public ThreadState<WAMessage> respond(WAMessage message, WAMessage inReplyTo)
+      throws IOException {
+    return respond(message, deliveryTracker.reply(message.senderId(), inReplyTo.timestamp()));
+  }
+
+  private ThreadState<WAMessage> respond(WAMessage message, DeliveryTracker.Reply reply)
+      throws IOException {
     if (!(message.payload() instanceof Payload.Text)) {
       throw new UnsupportedOperationException(
           "Non-text payloads cannot be sent to Whatsapp client currently");
     }
-    @Nullable List<SendResponse> responses = new ArrayList<>();
-    for (String text : CHUNKER.chunks(message.message()).toList()) {
-      SendResponse r = send(message.recipientId(), message.senderId(), text);
-      responses.add(r);
-    }
+    List<SendResponse> responses =
+        orderedSender.send(
+            CHUNKER.chunks(message.message()).toList(),
+            text -> textBody(message.recipientId(), text),
+            body -> {
+              SendResponse r = postMessage(message.senderId(), body);
+              deliveryTracker.sent(reply, r, Instant.now());
+              return r;
+            });
     ThreadState<WAMessage> ts = ThreadState.of(message);
     return responses.stream()
         .map(SendResponse::contacts)
@@ -203,6 +243,10 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
   }
 
   SendResponse send(Identifier recipient, Identifier sender, String text) throws IOException {
+    return postMessage(sender, textBody(recipient, text));
+  }
+
+  private String textBody(Identifier recipient, String text) throws JsonProcessingException {
     ObjectNode body =
         MAPPER
             .createObjectNode()
@@ -211,21 +255,63 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
             .put("type", "text")
             .put("to", recipient.toString());
     body.putObject("text").put("body", text);
-    String bodyString;
-    bodyString = MAPPER.writeValueAsString(body);
-    return Request.post(messagesURI(sender))
-        .setHeader("Authorization", "Bearer " + accessToken)
-        .setHeader("appsecret_proof", appSecretProof)
-        .bodyString(bodyString, ContentType.APPLICATION_JSON)
-        .execute()
-        .handleResponse(
-            response -> {
-              try {
-                return MAPPER.readValue(response.getEntity().getContent(), SendResponse.class);
-              } catch (IOException e) {
-                throw new RuntimeException(e);
-              }
-            });
+    return MAPPER.writeValueAsString(body);
+  }
+
+  private SendResponse postMessage(Identifier sender, String body) throws IOException {
+    return rateLimiter.send(
+        sender,
+        SendRateLimiter.Priority.REPLY,
+        body,
+        b ->
+            sendRequest(
+                sender,
+                b,
+                response -> {
+                  try {
+                    return MAPPER.readValue(response.getEntity().getContent(), SendResponse.class);
+                  } catch (IOException e) {
+                    throw new RuntimeException(e);
+                  }
+                }));
+  }
+
+  private <R> R sendRequest(
+      Identifier phoneNumberId, String body, HttpClientResponseHandler<R> responseHandler)
+      throws IOException {
+    URI uri = messagesURI(phoneNumberId);
+    return HttpRequests.execute(
+        uri,
+        Request.post(uri)
+            .setHeader("Authorization", "Bearer " + accessToken)
+            .setHeader("appsecret_proof", appSecretProof)
+            .bodyString(body, ContentType.APPLICATION_JSON),
+        response -> {
+          if (response.getCode() >= 300) {
+            throw graphError(response);
+          }
+          return responseHandler.handleResponse(response);
+        });
+  }
+
+  private static GraphSendException graphError(ClassicHttpResponse response) {
+    int errorCode = -1;
+    String message = response.getReasonPhrase();
+    try {
+      // https://developers.facebook.com/docs/whatsapp/cloud-api/support/error-codes
+      JsonNode error = MAPPER.readTree(response.getEntity().getContent()).path("error");
+      errorCode = error.path("code").asInt(-1);
+      message = error.path("message").asText(message);
+    } catch (IOException | RuntimeException e) {
+      // the body is not a Graph API error, the status code is all we have
+    }
+    return new GraphSendException(
+        response.getCode(),
+        errorCode,
+        "received a "
+            + response.getCode()
+            + " error code when attempting to send a message. "
+            + message);
   }
 
   @Override
@@ -270,12 +356,18 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
     }
 
     try {
-      Request.post(messagesURI(phoneNumberId))
-          .setHeader("Authorization", "Bearer " + accessToken)
-          .setHeader("appsecret_proof", appSecretProof)
-          .bodyString(bodyString, ContentType.APPLICATION_JSON)
-          .execute()
-          .discardContent();
+      rateLimiter.send(
+          phoneNumberId,
+          SendRateLimiter.Priority.READ_RECEIPT,
+          bodyString,
+          b ->
+              sendRequest(
+                  phoneNumberId,
+                  b,
+                  response -> {
+                    EntityUtils.consume(response.getEntity());
+                    return null;
+                  }));
     } catch (IOException e) {
       // nothing we can do here, marking later messages as read will mark all previous messages read
       // so this is not a fatal issue
@@ -283,43 +375,57 @@ public class WAMessageHandler implements MessageHandler<WAMessage> {
     }
   }
 
-  GetMediaIdBody mediaDetails(String mediaID) throws IOException, URISyntaxException {
-    URI getUrl = new URIBuilder(this.baseURL).appendPath(mediaID).build();
-    return Request.get(getUrl)
-        .setHeader("Authorization", "Bearer " + accessToken)
-        .setHeader("appsecret_proof", appSecretProof)
-        .execute()
-        .handleResponse(
-            response -> {
-              String jsonResponse = EntityUtils.toString(response.getEntity());
-              GetMediaIdBody parsedResponse;
+  private byte[] fetchMedia(Context ctx, String mediaID) throws IOException {
+    return MessageTrace.of(ctx)
+        .span(
+            "media_fetch",
+            "WAMessageHandler",
+            () -> {
               try {
-                parsedResponse = MAPPER.readValue(jsonResponse, GetMediaIdBody.class);
-              } catch (Exception e) {
-                LOGGER
-                    .atError()
-                    .addKeyValue("url", getUrl)
-                    .addKeyValue("response", jsonResponse)
-                    .setCause(e)
-                    .log("Unable to parse response from media get request");
-                throw new RuntimeException(e);
+                return getMediaFromUrl(this.mediaDetails(mediaID).url());
+              } catch (URISyntaxException e) {
+                throw new IOException("invalid media url for " + mediaID, e);
               }
-              return parsedResponse;
             });
   }
 
+  GetMediaIdBody mediaDetails(String mediaID) throws IOException, URISyntaxException {
+    URI getUrl = new URIBuilder(this.baseURL).appendPath(mediaID).build();
+    return HttpRequests.execute(
+        getUrl,
+        Request.get(getUrl)
+            .setHeader("Authorization", "Bearer " + accessToken)
+            .setHeader("appsecret_proof", appSecretProof),
+        response -> {
+          String jsonResponse = EntityUtils.toString(response.getEntity());
+          GetMediaIdBody parsedResponse;
+          try {
+            parsedResponse = MAPPER.readValue(jsonResponse, GetMediaIdBody.class);
+          } catch (Exception e) {
+            LOGGER
+                .atError()
+                .addKeyValue("url", getUrl)
+                .addKeyValue("response", jsonResponse)
+                .setCause(e)
+                .log("Unable to parse response from media get request");
+            throw new RuntimeException(e);
+          }
+          return parsedResponse;
+        });
+  }
+
   private byte[] getMediaFromUrl(URI url) throws IOException {
-    return Request.get(url)
-        .setHeader("Authorization", "Bearer " + accessToken)
-        .setHeader("appsecret_proof", appSecretProof)
-        .execute()
-        .handleResponse(
-            response -> {
-              try {
-                return EntityUtils.toByteArray(response.getEntity());
-              } catch (IOException e) {
-                throw new RuntimeException(e);
-              }
-            });
+    return HttpRequests.execute(
+        url,
+        Request.get(url)
+            .setHeader("Authorization", "Bearer " + accessToken)
+            .setHeader("appsecret_proof", appSecretProof),
+        response -> {
+          try {
+            return EntityUtils.toByteArray(response.getEntity());
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        });
   }
 }
@@ -10,6 +10,8 @@ package com.meta.cp4m.message;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -21,14 +23,29 @@ public class WAMessengerConfig implements HandlerConfig {
   private final String appSecret;
   private final String accessToken;
   private final @Nullable String welcomeMessage;
+  private final double messagesPerSecond;
+  private final int sendQueueSize;
+  private final long sendQueueTimeoutMs;
 
   private WAMessengerConfig(
       @JsonProperty("name") String name,
       @JsonProperty("verify_token") String verifyToken,
       @JsonProperty("app_secret") String appSecret,
       @JsonProperty("access_token") String accessToken,
-      @Nullable @JsonProperty("welcome_message") String welcomeMessage) {
+      @Nullable @JsonProperty("welcome_message") String welcomeMessage,
+      @Nullable @JsonProperty("messages_per_second") Double messagesPerSecond,
+      @Nullable @JsonProperty("send_queue_size") Integer sendQueueSize,
+      @Nullable @JsonProperty("send_queue_timeout_ms") Long sendQueueTimeoutMs) {
     this.welcomeMessage = welcomeMessage;
+    // the default throughput of a business phone number on the Cloud API
+    this.messagesPerSecond = Objects.requireNonNullElse(messagesPerSecond, 80.0);
+    this.sendQueueSize = Objects.requireNonNullElse(sendQueueSize, 1000);
+    this.sendQueueTimeoutMs = Objects.requireNonNullElse(sendQueueTimeoutMs, 10_000L);
+    Preconditions.checkArgument(
+        this.messagesPerSecond > 0, "messages_per_second must be greater than zero");
+    Preconditions.checkArgument(this.sendQueueSize >= 0, "send_queue_size must not be negative");
+    Preconditions.checkArgument(
+        this.sendQueueTimeoutMs >= 0, "send_queue_timeout_ms must not be negative");
 
     Preconditions.checkArgument(name != null && !name.isBlank(), "name cannot be blank");
     Preconditions.checkArgument(
@@ -47,14 +64,21 @@ public class WAMessengerConfig implements HandlerConfig {
   public static WAMessengerConfig of(String verifyToken, String appSecret, String accessToken) {
     // human readability of the name only matters when it's coming from a config
     return new WAMessengerConfig(
-        UUID.randomUUID().toString(), verifyToken, appSecret, accessToken, null);
+        UUID.randomUUID().toString(), verifyToken, appSecret, accessToken, null, null, null, null);
   }
 
   public static WAMessengerConfig of(
       String verifyToken, String appSecret, String accessToken, @Nullable String welcomeMessage) {
     // human readability of the name only matters when it's coming from a config
     return new WAMessengerConfig(
-        UUID.randomUUID().toString(), verifyToken, appSecret, accessToken, welcomeMessage);
+        UUID.randomUUID().toString(),
+        verifyToken,
+        appSecret,
+        accessToken,
+        welcomeMessage,
+        null,
+        null,
+        null);
   }
 
   @Override
@@ -82,4 +106,25 @@ public class WAMessengerConfig implements HandlerConfig {
   public Optional<String> welcomeMessage() {
     return Optional.ofNullable(welcomeMessage);
   }
+
+  /**
+   * @return the throughput limit of each business phone number
+   */
+  public double messagesPerSecond() {
+    return messagesPerSecond;
+  }
+
+  /**
+   * @return the number of requests that can wait to be sent from each business phone number
+   */
+  public int sendQueueSize() {
+    return sendQueueSize;
+  }
+
+  /**
+   * @return how long a request can wait to be sent before it is dropped
+   */
+  public Duration sendQueueTimeout() {
+    return Duration.ofMillis(sendQueueTimeoutMs);
+  }
 }
@@ -0,0 +1,38 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.metrics;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A value that only ever goes up, such as the number of requests */
+public class Counter implements Metric {
+
+  private final LongAdder value = new LongAdder();
+
+  Counter() {}
+
+  public void increment() {
+    value.increment();
+  }
+
+  public void add(long amount) {
+    Preconditions.checkArgument(amount >= 0, "counters cannot be decremented");
+    value.add(amount);
+  }
+
+  public long value() {
+    return value.sum();
+  }
+
+  @Override
+  public void write(StringBuilder out, String name, String labels) {
+    out.append(name).append(labels).append(' ').append(value()).append('\n');
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** A value that goes up and down, such as the number of requests in flight */
+public class Gauge implements Metric {
+
+  private final LongAdder value = new LongAdder();
+
+  Gauge() {}
+
+  public void increment() {
+    value.increment();
+  }
+
+  public void decrement() {
+    value.decrement();
+  }
+
+  public long value() {
+    return value.sum();
+  }
+
+  @Override
+  public void write(StringBuilder out, String name, String labels) {
+    out.append(name).append(labels).append(' ').append(value()).append('\n');
+  }
+}
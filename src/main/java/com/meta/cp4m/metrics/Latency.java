@@ -0,0 +1,83 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Durations exposed as a Prometheus histogram, in seconds, with fixed buckets from a millisecond to
+ * a minute. Buckets are cumulative counters so quantiles over any window, and across instances,
+ * are computed by Prometheus with {@code histogram_quantile} and {@code rate}. Recording is wait
+ * free.
+ *
+ * <p>The values are also recorded into an HDR histogram with microsecond resolution for callers in
+ * the process that want the distribution, the cost of copying it is only paid when it is read.
+ */
+public class Latency implements Metric {
+
+  private static final long[] BUCKET_MICROS = {
+    1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000,
+    5_000_000, 10_000_000, 30_000_000, 60_000_000
+  };
+  private static final double MICROS_PER_SECOND = TimeUnit.SECONDS.toMicros(1);
+
+  private final ConcurrentHistogram micros = new ConcurrentHistogram(3);
+  // one more than the bounds, the last is +Inf
+  private final LongAdder[] buckets = new LongAdder[BUCKET_MICROS.length + 1];
+  private final LongAdder sumMicros = new LongAdder();
+
+  Latency() {
+    Arrays.setAll(buckets, i -> new LongAdder());
+  }
+
+  public void recordNanos(long nanos) {
+    long value = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+    micros.recordValue(value);
+    int bucket = Arrays.binarySearch(BUCKET_MICROS, value);
+    buckets[bucket >= 0 ? bucket : -bucket - 1].increment();
+    sumMicros.add(value);
+  }
+
+  /**
+   * @return a copy of the recorded values in microseconds
+   */
+  public Histogram snapshotMicros() {
+    return micros.copy();
+  }
+
+  @Override
+  public void write(StringBuilder out, String name, String labels) {
+    String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+    long count = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      count += buckets[i].sum();
+      String le =
+          i < BUCKET_MICROS.length ? String.valueOf(BUCKET_MICROS[i] / MICROS_PER_SECOND) : "+Inf";
+      out.append(name)
+          .append("_bucket")
+          .append(labelPrefix)
+          .append("le=\"")
+          .append(le)
+          .append("\"} ")
+          .append(count)
+          .append('\n');
+    }
+    out.append(name)
+        .append("_sum")
+        .append(labels)
+        .append(' ')
+        .append(sumMicros.sum() / MICROS_PER_SECOND)
+        .append('\n');
+    out.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+  }
+}
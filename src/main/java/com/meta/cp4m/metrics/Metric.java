@@ -0,0 +1,22 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.metrics;
+
+/** A single time series, or a group of them for summaries, that can be written for scraping */
+interface Metric {
+
+  /**
+   * Write the current value in the Prometheus text format
+   *
+   * @param out where to write the samples
+   * @param name the name of the metric family
+   * @param labels the rendered labels of this metric, either empty or {@code {name="value",...}}
+   */
+  void write(StringBuilder out, String name, String labels);
+}
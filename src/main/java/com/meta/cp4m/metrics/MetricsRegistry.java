@@ -0,0 +1,162 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.metrics;
+
+import com.google.common.base.Preconditions;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Holds every metric of a {@link com.meta.cp4m.ServicesRunner} and renders them in the Prometheus
+ * text exposition format.
+ *
+ * <p>Metrics are looked up once, when the component that owns them is created, and then updated
+ * directly so the registry is never touched on the hot path. Asking for a metric with the same name
+ * and labels returns the same instance.
+ *
+ * <p>Labels are given as alternating names and values, {@code counter("requests_total", "help",
+ * "service", "/whatsapp")}.
+ */
+public class MetricsRegistry {
+
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final Pattern METRIC_NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+  private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+  private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+  private static String renderLabels(String... labels) {
+    Preconditions.checkArgument(
+        labels.length % 2 == 0, "labels must be given as name and value pairs");
+    if (labels.length == 0) {
+      return "";
+    }
+    StringBuilder rendered = new StringBuilder("{");
+    for (int i = 0; i < labels.length; i += 2) {
+      Preconditions.checkArgument(
+          LABEL_NAME.matcher(labels[i]).matches(), "invalid label name: " + labels[i]);
+      if (i > 0) {
+        rendered.append(',');
+      }
+      rendered.append(labels[i]).append("=\"");
+      String value = labels[i + 1];
+      for (int c = 0; c < value.length(); c++) {
+        char ch = value.charAt(c);
+        switch (ch) {
+          case '\\' -> rendered.append("\\\\");
+          case '"' -> rendered.append("\\\"");
+          case '\n' -> rendered.append("\\n");
+          default -> rendered.append(ch);
+        }
+      }
+      rendered.append('"');
+    }
+    return rendered.append('}').toString();
+  }
+
+  public Counter counter(String name, String help, String... labels) {
+    return metric(name, help, Type.COUNTER, Counter.class, Counter::new, labels);
+  }
+
+  public Gauge gauge(String name, String help, String... labels) {
+    return metric(name, help, Type.GAUGE, Gauge.class, Gauge::new, labels);
+  }
+
+  public Latency latency(String name, String help, String... labels) {
+    return metric(name, help, Type.HISTOGRAM, Latency.class, Latency::new, labels);
+  }
+
+  /**
+   * Expose a counter that is already kept somewhere else, it is read at scrape time
+   *
+   * @param value reads the current value
+   */
+  public void counter(String name, String help, LongSupplier value, String... labels) {
+    metric(name, help, Type.COUNTER, FunctionMetric.class, () -> new FunctionMetric(value), labels);
+  }
+
+  /**
+   * Expose a gauge that is already kept somewhere else, it is read at scrape time
+   *
+   * @param value reads the current value
+   */
+  public void gauge(String name, String help, LongSupplier value, String... labels) {
+    metric(name, help, Type.GAUGE, FunctionMetric.class, () -> new FunctionMetric(value), labels);
+  }
+
+  private <M extends Metric> M metric(
+      String name,
+      String help,
+      Type type,
+      Class<M> metricClass,
+      Supplier<M> factory,
+      String... labels) {
+    Preconditions.checkArgument(
+        METRIC_NAME.matcher(name).matches(), "invalid metric name: " + name);
+    Family family = families.computeIfAbsent(name, ignored -> new Family(help, type));
+    Preconditions.checkArgument(
+        family.type() == type, name + " is already registered as a " + family.type().text());
+    Metric metric =
+        family.metrics().computeIfAbsent(renderLabels(labels), ignored -> factory.get());
+    Preconditions.checkArgument(
+        metricClass.isInstance(metric),
+        name + " is already registered as a different kind of metric");
+    return metricClass.cast(metric);
+  }
+
+  /**
+   * @return every metric in the Prometheus text exposition format
+   */
+  public String scrape() {
+    StringBuilder out = new StringBuilder();
+    families.forEach(
+        (name, family) -> {
+          out.append("# HELP ")
+              .append(name)
+              .append(' ')
+              .append(family.help().replace("\\", "\\\\").replace("\n", "\\n"))
+              .append('\n');
+          out.append("# TYPE ").append(name).append(' ').append(family.type().text()).append('\n');
+          family.metrics().forEach((labels, metric) -> metric.write(out, name, labels));
+        });
+    return out.toString();
+  }
+
+  private enum Type {
+    COUNTER("counter"),
+    GAUGE("gauge"),
+    HISTOGRAM("histogram");
+
+    private final String text;
+
+    Type(String text) {
+      this.text = text;
+    }
+
+    String text() {
+      return text;
+    }
+  }
+
+  private record Family(String help, Type type, Map<String, Metric> metrics) {
+    Family(String help, Type type) {
+      this(help, type, new ConcurrentSkipListMap<>());
+    }
+  }
+
+  private record FunctionMetric(LongSupplier value) implements Metric {
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      out.append(name).append(labels).append(' ').append(value.getAsLong()).append('\n');
+    }
+  }
+}
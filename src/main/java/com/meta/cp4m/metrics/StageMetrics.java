@@ -0,0 +1,127 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Request count, error count, in flight gauge and latency for one stage of a service, such as the
+ * plugin or the store. Every stage shares the same metric names and is told apart by its labels.
+ */
+public class StageMetrics {
+
+  private final String stage;
+  private final String component;
+  private final Counter requests;
+  private final Counter errors;
+  private final Gauge inFlight;
+  private final Latency latency;
+
+  /**
+   * @param registry the registry the metrics are kept in
+   * @param service the webhook path of the service
+   * @param stage what the service is doing, e.g. plugin or store
+   * @param component the implementation doing the work, e.g. OpenAIPlugin
+   */
+  public StageMetrics(MetricsRegistry registry, String service, String stage, String component) {
+    this.stage = stage;
+    this.component = component;
+    String[] labels = {"service", service, "stage", stage, "component", component};
+    this.requests =
+        registry.counter("cp4m_stage_requests_total", "Calls into each stage of a service", labels);
+    this.errors =
+        registry.counter(
+            "cp4m_stage_errors_total", "Calls into each stage that threw an exception", labels);
+    this.inFlight =
+        registry.gauge("cp4m_stage_in_flight", "Calls into each stage currently running", labels);
+    this.latency =
+        registry.latency(
+            "cp4m_stage_latency_seconds", "Time spent in each stage of a service", labels);
+  }
+
+  /**
+   * Time a call that returns a value
+   *
+   * @return the result of the call
+   * @throws E if the call throws, the error is counted before rethrowing
+   */
+  public <R, E extends Exception> R call(ThrowingSupplier<R, E> call) throws E {
+    return call(call, () -> 0);
+  }
+
+  /**
+   * Time a call that returns a value, leaving out time it spent on work that is timed elsewhere
+   *
+   * @param excludedNanos read once the call returns, the time to leave out of its latency
+   * @return the result of the call
+   * @throws E if the call throws, the error is counted before rethrowing
+   */
+  public <R, E extends Exception> R call(ThrowingSupplier<R, E> call, LongSupplier excludedNanos)
+      throws E {
+    long start = System.nanoTime();
+    requests.increment();
+    inFlight.increment();
+    try {
+      return call.get();
+    } catch (Throwable t) {
+      errors.increment();
+      throw t;
+    } finally {
+      inFlight.decrement();
+      latency.recordNanos(System.nanoTime() - start - excludedNanos.getAsLong());
+    }
+  }
+
+  /**
+   * Time a call that does not return a value
+   *
+   * @throws E if the call throws, the error is counted before rethrowing
+   */
+  public <E extends Exception> void run(ThrowingRunnable<E> call) throws E {
+    call(
+        () -> {
+          call.run();
+          return null;
+        });
+  }
+
+  public String stage() {
+    return stage;
+  }
+
+  public String component() {
+    return component;
+  }
+
+  public Counter requests() {
+    return requests;
+  }
+
+  public Counter errors() {
+    return errors;
+  }
+
+  public Gauge inFlight() {
+    return inFlight;
+  }
+
+  public Latency latency() {
+    return latency;
+  }
+
+  @FunctionalInterface
+  public interface ThrowingSupplier<R, E extends Exception> {
+    R get() throws E;
+  }
+
+  @FunctionalInterface
+  public interface ThrowingRunnable<E extends Exception> {
+    void run() throws E;
+  }
+}
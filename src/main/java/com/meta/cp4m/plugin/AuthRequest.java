@@ -15,19 +15,18 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.google.common.collect.ImmutableList;
 import com.meta.cp4m.message.webhook.whatsapp.Utils;
-import com.meta.cp4m.utils.BlockingExpiringValue;
+import com.meta.cp4m.utils.AsyncRefreshingValue;
+import com.meta.cp4m.utils.HttpRequests;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.Collection;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalLong;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import org.apache.hc.client5.http.fluent.Request;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -84,8 +83,10 @@ public interface AuthRequest {
   class OauthRequest implements AuthRequest {
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthRequest.class);
     private static final JsonMapper MAPPER = Utils.JSON_MAPPER;
-    private final ScheduledExecutorService scheduledExecutor =
-        Executors.newSingleThreadScheduledExecutor();
+    // proactive refreshes happen well before expiry, the grace period only matters when the tenant
+    // is slow or unavailable right around expiry
+    private static final Duration STALE_GRACE = Duration.ofSeconds(10);
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(3);
     private final URI oauthTenantUrl;
     private final String clientId;
     private final String clientSecret;
@@ -93,8 +94,7 @@ public interface AuthRequest {
     private final @Nullable String audience;
 
     private final Collection<BasicNameValuePair> refreshParams;
-    private final BlockingExpiringValue<String> token =
-        new BlockingExpiringValue<>(Instant.EPOCH, "");
+    private final AsyncRefreshingValue<String> token;
 
     @JsonCreator
     public OauthRequest(
@@ -116,73 +116,54 @@ public interface AuthRequest {
         refreshParams.add(new BasicNameValuePair("audience", this.audience));
       }
       this.refreshParams = refreshParams.build();
-      scheduleRefresh(0);
+      this.token = new AsyncRefreshingValue<>(this::loadToken, STALE_GRACE, RETRY_DELAY);
+      token.refresh();
     }
 
     private OauthRefreshResponse refreshToken() throws IOException {
-      return Request.post(oauthTenantUrl)
-          .bodyForm(refreshParams, StandardCharsets.UTF_8)
-          .execute()
-          .handleResponse(
-              r -> {
-                String body = new String(r.getEntity().getContent().readAllBytes());
-                try {
-                  return MAPPER.readValue(body, OauthRefreshResponse.class);
-                } catch (Exception e) {
-                  LOGGER
-                      .atError()
-                      .setCause(e)
-                      .setMessage("failed to parse OAuth response")
-                      .addKeyValue("response_body", body)
-                      .log();
-                  throw new RuntimeException(e);
-                }
-              });
-    }
-
-    private void scheduleRefresh(long timeSeconds) {
-      scheduledExecutor.schedule(
-          () -> {
-            @Nullable OauthRefreshResponse res = null;
+      return HttpRequests.execute(
+          oauthTenantUrl,
+          Request.post(oauthTenantUrl).bodyForm(refreshParams, StandardCharsets.UTF_8),
+          r -> {
+            String body = new String(r.getEntity().getContent().readAllBytes());
             try {
-              res = refreshToken();
-              token.update(res.expiresAt().orElse(Instant.MAX), res.accessToken());
-            } catch (IOException e) {
-              LOGGER.atError().setCause(e).setMessage("failed to updated OAuth token").log();
+              return MAPPER.readValue(body, OauthRefreshResponse.class);
+            } catch (Exception e) {
+              LOGGER
+                  .atError()
+                  .setCause(e)
+                  .setMessage("failed to parse OAuth response")
+                  .addKeyValue("response_body", body)
+                  .log();
               throw new RuntimeException(e);
-            } finally {
-              if (res == null) {
-                // failed to get new token, wait a few second to try again to avoid spamming
-                scheduleRefresh(3);
-              } else if (res.expiresAt().isPresent()) {
-                // 5 minutes before expiration or at the halfway point between now and expiration,
-                // whichever is longer
-                long secondToExpiration =
-                    Long.max(0, Instant.now().until(res.expiresAt().get(), ChronoUnit.SECONDS));
-                scheduleRefresh(Long.max(secondToExpiration - 5 * 60, secondToExpiration / 2));
-              }
             }
-          },
-          timeSeconds,
-          TimeUnit.SECONDS);
+          });
     }
 
-    @Override
-    public Request post(URI url) {
+    private AsyncRefreshingValue.Loaded<String> loadToken() throws IOException {
+      OauthRefreshResponse res = refreshToken();
+      return new AsyncRefreshingValue.Loaded<>(
+          res.accessToken(), res.expiresAt().orElse(Instant.MAX));
+    }
+
+    private String token() {
       try {
-        return Request.post(url).addHeader("Authorization", "Bearer " + token.get());
+        return token.get();
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
     }
 
+    @Override
+    public Request post(URI url) {
+      return Request.post(url).addHeader("Authorization", "Bearer " + token());
+    }
+
     @Override
     public Request get(URI url) {
-      try {
-        return Request.get(url).addHeader("Authorization", "Bearer " + token.get());
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
-      }
+      return Request.get(url).addHeader("Authorization", "Bearer " + token());
     }
 
     static final class OauthRefreshResponse {
@@ -0,0 +1,478 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.utils.HttpRequests;
+import com.meta.cp4m.metrics.StageMetrics.ThrowingSupplier;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calling a plugin while it is failing or slow so that replies are not held up by the full
+ * timeout of every request to a degraded upstream.
+ *
+ * <p>The outcome of the most recent calls is kept in a sliding window. Once the window has enough
+ * calls and either the rate of failed calls or the rate of slow calls reaches its threshold the
+ * circuit opens and calls are short-circuited to the fallback without calling the plugin. After
+ * the open duration the circuit is half-open and lets a few probe calls through, if they all
+ * succeed quickly the circuit closes and otherwise it opens again.
+ *
+ * <p>Failed and short-circuited calls are answered by the fallback plugin if there is one, then by
+ * the fallback message if there is one, and otherwise the failure is thrown.
+ *
+ * <p>With a call timeout the plugin is called on a thread of its own and waited for at most the
+ * timeout, so that plugins which hand their work to other threads, such as hedged or batched
+ * plugins, are bounded too. A call that runs out of time is interrupted and counts as failed. The
+ * timeout is also put on the HTTP requests the plugin makes through {@link HttpRequests} on the
+ * calling thread so that a request which runs out of time is ended rather than left running in the
+ * background. Time spent in the sink of a stream, sending the reply, is not part of the call.
+ *
+ * @param <T> the type of message being handled
+ */
+public class CircuitBreakerPlugin<T extends Message> implements Plugin<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreakerPlugin.class);
+  private static final int NOT_EMITTED = 0;
+  private static final int EMITTED = 1;
+  private static final int OVER = 2;
+
+  private final Plugin<T> plugin;
+  private final @Nullable Plugin<T> fallback;
+  private final @Nullable String fallbackMessage;
+  private final Policy policy;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // a ring buffer of the outcome of the last calls
+  private final boolean[] failed;
+  private final boolean[] slow;
+  private int calls = 0;
+  private int next = 0;
+  private State state = State.CLOSED;
+  private long openedAt;
+  private int probesStarted;
+  private int probesSucceeded;
+
+  private final Map<State, LongAdder> transitions = new EnumMap<>(State.class);
+  private final LongAdder shortCircuited = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * @param plugin the plugin the circuit breaker protects
+   * @param fallback answers failed and short-circuited calls
+   * @param fallbackMessage the reply to failed and short-circuited calls if there is no fallback
+   * @param policy when the circuit opens and closes
+   */
+  public CircuitBreakerPlugin(
+      Plugin<T> plugin,
+      @Nullable Plugin<T> fallback,
+      @Nullable String fallbackMessage,
+      Policy policy) {
+    this.plugin = Objects.requireNonNull(plugin);
+    this.fallback = fallback;
+    this.fallbackMessage = fallbackMessage;
+    this.policy = Objects.requireNonNull(policy);
+    this.failed = new boolean[policy.windowSize()];
+    this.slow = new boolean[policy.windowSize()];
+    for (State s : State.values()) {
+      transitions.put(s, new LongAdder());
+    }
+  }
+
+  @Override
+  public T handle(ThreadState<T> threadState) throws IOException {
+    @Nullable State permit = permit();
+    if (permit == null) {
+      shortCircuited.increment();
+      return fallback(threadState, null);
+    }
+    long start = System.nanoTime();
+    try {
+      T response = call(() -> plugin.handle(threadState), start, new SinkTime());
+      record(permit, false, System.nanoTime() - start);
+      return response;
+    } catch (IOException | RuntimeException e) {
+      record(permit, true, System.nanoTime() - start);
+      return fallback(threadState, e);
+    }
+  }
+
+  @Override
+  public void stream(ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    @Nullable State permit = permit();
+    if (permit == null) {
+      shortCircuited.increment();
+      sink.accept(fallback(threadState, null));
+      return;
+    }
+    SinkTime sinkTime = new SinkTime();
+    // whether a chunk has been sent, once the call is over no more chunks are sent
+    AtomicInteger emitted = new AtomicInteger(NOT_EMITTED);
+    long start = System.nanoTime();
+    try {
+      call(
+          () -> {
+            plugin.stream(
+                threadState,
+                message -> {
+                  if (emitted.compareAndExchange(NOT_EMITTED, EMITTED) == OVER) {
+                    return; // the call ran out of time and has been answered
+                  }
+                  // sending the chunk is not part of the plugin call
+                  sinkTime.run(
+                      () ->
+                          HttpRequests.withTimeout(
+                              null,
+                              () -> {
+                                sink.accept(message);
+                                return null;
+                              }));
+                });
+            return null;
+          },
+          start,
+          sinkTime);
+      record(permit, false, System.nanoTime() - start - sinkTime.total());
+    } catch (IOException | RuntimeException e) {
+      record(permit, true, System.nanoTime() - start - sinkTime.total());
+      if (emitted.getAndSet(OVER) == EMITTED) {
+        throw e; // part of the response was already sent, a fallback would not make sense
+      }
+      sink.accept(fallback(threadState, e));
+    }
+  }
+
+  /**
+   * Make the call, on a thread of its own if there is a call timeout
+   *
+   * @param start when the call started
+   * @param sinkTime the time the call spends in the sink, which does not count towards the timeout
+   * @return the result of the call
+   * @throws SocketTimeoutException if the call ran out of time, it is interrupted
+   */
+  private <R> R call(ThrowingSupplier<R, IOException> call, long start, SinkTime sinkTime)
+      throws IOException {
+    @Nullable Duration timeout = policy.callTimeout();
+    if (timeout == null) {
+      return call.get();
+    }
+    Future<R> future = executor.submit(() -> HttpRequests.withTimeout(timeout, call));
+    try {
+      while (true) {
+        long left = timeout.toNanos() - (System.nanoTime() - start - sinkTime.elapsed());
+        if (left <= 0) {
+          future.cancel(true);
+          throw new SocketTimeoutException("plugin call ran out of time");
+        }
+        try {
+          return future.get(left, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          // time spent in the sink while waiting is given back
+        }
+      }
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for the plugin");
+    } catch (ExecutionException e) {
+      switch (e.getCause()) {
+        case IOException cause -> throw cause;
+        case RuntimeException cause -> throw cause;
+        case Error cause -> throw cause;
+        default -> throw new IOException("plugin call failed", e.getCause());
+      }
+    }
+  }
+
+  @Override
+  public Optional<HashCode> requestKey(ThreadState<T> threadState) {
+    return plugin.requestKey(threadState);
+  }
+
+  private T fallback(ThreadState<T> threadState, @Nullable Exception cause) throws IOException {
+    if (fallback != null) {
+      fallbacks.increment();
+      return fallback.handle(threadState);
+    } else if (fallbackMessage != null) {
+      fallbacks.increment();
+      return threadState.newMessageFromBot(Instant.now(), fallbackMessage);
+    } else if (cause instanceof IOException e) {
+      throw e;
+    } else if (cause instanceof RuntimeException e) {
+      throw e;
+    }
+    throw new IOException("circuit breaker is open");
+  }
+
+  /**
+   * @return the state the call is made in or null if it is short-circuited
+   */
+  private @Nullable State permit() {
+    lock.lock();
+    try {
+      if (state == State.OPEN && System.nanoTime() - openedAt >= policy.openDuration().toNanos()) {
+        transition(State.HALF_OPEN);
+        probesStarted = 0;
+        probesSucceeded = 0;
+      }
+      return switch (state) {
+        case CLOSED -> State.CLOSED;
+        case OPEN -> null;
+        case HALF_OPEN -> {
+          if (probesStarted >= policy.halfOpenCalls()) {
+            yield null;
+          }
+          probesStarted++;
+          yield State.HALF_OPEN;
+        }
+      };
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void record(State permit, boolean callFailed, long nanos) {
+    boolean callSlow = nanos >= policy.slowCall().toNanos();
+    lock.lock();
+    try {
+      if (permit != state) {
+        return; // the state changed while the call was in flight
+      }
+      switch (state) {
+        case CLOSED -> {
+          failed[next] = callFailed;
+          slow[next] = callSlow;
+          next = (next + 1) % failed.length;
+          calls = Math.min(calls + 1, failed.length);
+          if (calls >= policy.minimumCalls() && overThreshold()) {
+            open();
+          }
+        }
+        case HALF_OPEN -> {
+          if (callFailed || callSlow) {
+            open();
+          } else if (++probesSucceeded >= policy.halfOpenCalls()) {
+            transition(State.CLOSED);
+            calls = 0;
+            next = 0;
+          }
+        }
+        case OPEN -> {}
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean overThreshold() {
+    int failedCalls = 0;
+    int slowCalls = 0;
+    for (int i = 0; i < calls; i++) {
+      failedCalls += failed[i] ? 1 : 0;
+      slowCalls += slow[i] ? 1 : 0;
+    }
+    return failedCalls >= policy.failureRateThreshold() * calls
+        || slowCalls >= policy.slowCallRateThreshold() * calls;
+  }
+
+  private void open() {
+    transition(State.OPEN);
+    openedAt = System.nanoTime();
+  }
+
+  private void transition(State to) {
+    LOGGER.atWarn().addKeyValue("from", state).addKeyValue("to", to).log("circuit breaker changed");
+    state = to;
+    transitions.get(to).increment();
+  }
+
+  @Override
+  public void registerMetrics(MetricsRegistry registry, String service) {
+    plugin.registerMetrics(registry, service);
+    if (fallback != null) {
+      fallback.registerMetrics(registry, service);
+    }
+    for (State to : State.values()) {
+      registry.counter(
+          "cp4m_circuit_breaker_transitions_total",
+          "Times a circuit breaker moved to the state",
+          () -> transitions(to),
+          "service",
+          service,
+          "state",
+          to.label());
+    }
+    registry.gauge(
+        "cp4m_circuit_breaker_state",
+        "State of the circuit breaker, 0 is closed, 1 is open and 2 is half-open",
+        () -> state().ordinal(),
+        "service",
+        service);
+    registry.counter(
+        "cp4m_circuit_breaker_short_circuited_total",
+        "Calls that were not sent to the plugin because the circuit was open",
+        this::shortCircuited,
+        "service",
+        service);
+    registry.counter(
+        "cp4m_circuit_breaker_fallbacks_total",
+        "Calls that were answered by the fallback",
+        this::fallbacks,
+        "service",
+        service);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    plugin.close();
+    if (fallback != null) {
+      fallback.close();
+    }
+  }
+
+  public Plugin<T> plugin() {
+    return plugin;
+  }
+
+  public State state() {
+    lock.lock();
+    try {
+      return state;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of times the circuit has moved to the given state
+   */
+  public long transitions(State to) {
+    return transitions.get(to).sum();
+  }
+
+  /**
+   * @return the number of calls that were not sent to the plugin because the circuit was open
+   */
+  public long shortCircuited() {
+    return shortCircuited.sum();
+  }
+
+  /**
+   * @return the number of calls that were answered by the fallback
+   */
+  public long fallbacks() {
+    return fallbacks.sum();
+  }
+
+  /** The time a call spends in the sink of a stream */
+  private static final class SinkTime {
+    private final AtomicLong total = new AtomicLong();
+    // when the sink was entered or 0 if the call is not in the sink
+    private final AtomicLong enteredAt = new AtomicLong();
+
+    private void run(ThrowingSupplier<?, RuntimeException> sink) {
+      enteredAt.set(System.nanoTime());
+      try {
+        sink.get();
+      } finally {
+        // added before it is cleared, counting it twice for a moment only gives the call more time
+        total.addAndGet(System.nanoTime() - enteredAt.get());
+        enteredAt.set(0);
+      }
+    }
+
+    /**
+     * @return the time spent in the sink so far, including a sink that has not returned yet
+     */
+    private long elapsed() {
+      long entered = enteredAt.get();
+      return total.get() + (entered == 0 ? 0 : System.nanoTime() - entered);
+    }
+
+    private long total() {
+      return total.get();
+    }
+  }
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+
+    public String label() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * When a circuit breaker opens and closes
+   *
+   * @param failureRateThreshold the fraction of failed calls in the window that opens the circuit
+   * @param slowCall calls that take at least this long are slow
+   * @param slowCallRateThreshold the fraction of slow calls in the window that opens the circuit
+   * @param minimumCalls the number of calls needed in the window before the circuit can open
+   * @param windowSize the number of most recent calls that are considered
+   * @param openDuration how long the circuit stays open before it lets probe calls through
+   * @param halfOpenCalls the number of probe calls that must succeed to close the circuit
+   * @param callTimeout the time the plugin has to answer, not counting the time spent in the sink
+   *     of a stream, calls that take longer are interrupted and count as failed
+   */
+  public record Policy(
+      double failureRateThreshold,
+      Duration slowCall,
+      double slowCallRateThreshold,
+      int minimumCalls,
+      int windowSize,
+      Duration openDuration,
+      int halfOpenCalls,
+      @Nullable Duration callTimeout) {
+    public Policy {
+      Preconditions.checkArgument(
+          failureRateThreshold > 0 && failureRateThreshold <= 1,
+          "failureRateThreshold must be greater than 0 and at most 1");
+      Preconditions.checkArgument(
+          slowCallRateThreshold > 0 && slowCallRateThreshold <= 1,
+          "slowCallRateThreshold must be greater than 0 and at most 1");
+      Preconditions.checkArgument(windowSize > 0, "windowSize must be greater than 0");
+      Preconditions.checkArgument(
+          minimumCalls > 0 && minimumCalls <= windowSize,
+          "minimumCalls must be greater than 0 and at most windowSize");
+      Preconditions.checkArgument(halfOpenCalls > 0, "halfOpenCalls must be greater than 0");
+      Objects.requireNonNull(slowCall);
+      Objects.requireNonNull(openDuration);
+    }
+  }
+}
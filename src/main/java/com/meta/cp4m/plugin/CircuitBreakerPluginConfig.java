@@ -0,0 +1,106 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.message.Message;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class CircuitBreakerPluginConfig implements PluginConfig {
+
+  private final String name;
+  private final PluginConfig plugin;
+  private final @Nullable PluginConfig fallback;
+  private final @Nullable String fallbackMessage;
+  private final CircuitBreakerPlugin.Policy policy;
+
+  @JsonCreator
+  CircuitBreakerPluginConfig(
+      @JsonProperty("name") String name,
+      @JsonProperty("plugin") PluginConfig plugin,
+      @JsonProperty("fallback") @Nullable PluginConfig fallback,
+      @JsonProperty("fallback_message") @Nullable String fallbackMessage,
+      @JsonProperty("failure_rate_threshold") @Nullable Double failureRateThreshold,
+      @JsonProperty("slow_call_ms") @Nullable Long slowCallMs,
+      @JsonProperty("slow_call_rate_threshold") @Nullable Double slowCallRateThreshold,
+      @JsonProperty("minimum_calls") @Nullable Integer minimumCalls,
+      @JsonProperty("window_size") @Nullable Integer windowSize,
+      @JsonProperty("open_duration_ms") @Nullable Long openDurationMs,
+      @JsonProperty("half_open_calls") @Nullable Integer halfOpenCalls,
+      @JsonProperty("call_timeout_ms") @Nullable Long callTimeoutMs) {
+    Preconditions.checkArgument(name != null && !name.isBlank(), "name cannot be blank");
+    Preconditions.checkArgument(plugin != null, "plugin is a required parameter");
+    Preconditions.checkArgument(
+        fallbackMessage == null || !fallbackMessage.isBlank(), "fallback_message cannot be blank");
+    Preconditions.checkArgument(
+        slowCallMs == null || slowCallMs > 0, "slow_call_ms must be greater than 0");
+    Preconditions.checkArgument(
+        openDurationMs == null || openDurationMs > 0, "open_duration_ms must be greater than 0");
+    Preconditions.checkArgument(
+        callTimeoutMs == null || callTimeoutMs > 0, "call_timeout_ms must be greater than 0");
+    this.name = name;
+    this.plugin = plugin;
+    this.fallback = fallback;
+    this.fallbackMessage = fallbackMessage;
+    this.policy =
+        new CircuitBreakerPlugin.Policy(
+            Objects.requireNonNullElse(failureRateThreshold, 0.5),
+            Duration.ofMillis(Objects.requireNonNullElse(slowCallMs, 10_000L)),
+            Objects.requireNonNullElse(slowCallRateThreshold, 0.8),
+            Objects.requireNonNullElse(minimumCalls, 10),
+            Objects.requireNonNullElse(windowSize, 50),
+            Duration.ofMillis(Objects.requireNonNullElse(openDurationMs, 30_000L)),
+            Objects.requireNonNullElse(halfOpenCalls, 3),
+            callTimeoutMs == null ? null : Duration.ofMillis(callTimeoutMs));
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  /**
+   * @return the plugin the circuit breaker protects
+   */
+  public PluginConfig plugin() {
+    return plugin;
+  }
+
+  /**
+   * @return the plugin that answers calls while the protected plugin is failing
+   */
+  public Optional<PluginConfig> fallback() {
+    return Optional.ofNullable(fallback);
+  }
+
+  /**
+   * @return the reply to calls while the protected plugin is failing, if there is no fallback
+   */
+  public Optional<String> fallbackMessage() {
+    return Optional.ofNullable(fallbackMessage);
+  }
+
+  public CircuitBreakerPlugin.Policy policy() {
+    return policy;
+  }
+
+  @Override
+  public <T extends Message> Plugin<T> toPlugin() {
+    return new CircuitBreakerPlugin<>(
+        plugin.toPlugin(),
+        fallback == null ? null : fallback.<T>toPlugin(),
+        fallbackMessage,
+        policy);
+  }
+}
@@ -11,26 +11,127 @@ package com.meta.cp4m.plugin;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import com.meta.cp4m.Identifier;
 import com.meta.cp4m.message.*;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.utils.HttpRequests;
+import com.meta.cp4m.utils.MicroBatcher;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import org.apache.hc.client5.http.HttpResponseException;
 import org.apache.hc.core5.http.ContentType;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
+/**
+ * Sends the conversation to a remote HTTP endpoint and replies with the text it responds with.
+ *
+ * <p>With protocol version 1 every request carries the whole message history. With protocol version
+ * 2 every request also carries a stable conversation id and a sequence number, and once the remote
+ * has answered a request only the messages after the last message it has seen are sent. The remote
+ * answers {@code {"type": "cache_miss"}} if it does not have the state the request builds on, then
+ * the whole history is sent again. Requests for one conversation to one URL are sent one at a time
+ * and what the remote has seen is shared by every plugin that posts to that URL, so plugins in a
+ * pool or hedged set agree on it.
+ *
+ * <p>With batching, requests from concurrent conversations are gathered for a short time and posted
+ * to the batch URL as one JSON array. The remote answers with an array holding the response to
+ * each request in the same order, a request it could not answer can have the response {@code
+ * {"type": "error", "message": "..."}} which fails only that request.
+ *
+ * <p>With streaming, the remote can answer with NDJSON or server sent events where every line or
+ * event is a response holding the next part of the text. The parts are assembled into chunks that
+ * are passed on as soon as they are complete so that users can start reading before the remote has
+ * finished.
+ *
+ * @param <T> the type of message being handled
+ */
 public class GenericPlugin<T extends Message> implements Plugin<T> {
 
   private static final JsonMapper MAPPER = new JsonMapper();
+  private static final int MAX_TRACKED_CONVERSATIONS = 100_000;
+  private static final Duration CONVERSATION_EXPIRY = Duration.ofHours(1);
+  private static final int STREAM_MIN_CHARS_PER_CHUNK = 300;
+  private static final int STREAM_MAX_CHARS_PER_CHUNK = 2000;
+  // what each remote acknowledged of each conversation, only used by protocol version 2
+  private static final Cache<Conversation, Acknowledged> ACKNOWLEDGED =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_TRACKED_CONVERSATIONS)
+          .expireAfterAccess(CONVERSATION_EXPIRY)
+          .build();
+  private static final Striped<Lock> CONVERSATION_LOCKS = Striped.lock(1024);
+
   private final URI url;
   private final AuthRequest authRequest;
+  private final int protocolVersion;
+  private final @Nullable Batching batching;
+  private final @Nullable MicroBatcher<ObjectNode, JsonNode> batcher;
+  private final boolean stream;
+  private final LongAdder fullSyncs = new LongAdder();
+  private final LongAdder deltaSyncs = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
 
-  public GenericPlugin(URI url, AuthRequest authRequest) {
+  /**
+   * @param url where requests are posted
+   * @param authRequest how requests are authenticated
+   * @param protocolVersion 1 to send the whole message history with every request, 2 to send only
+   *     new messages
+   * @param batching how requests are batched, null to send every request on its own
+   * @param stream true to ask the remote to stream its responses
+   */
+  public GenericPlugin(
+      URI url,
+      AuthRequest authRequest,
+      int protocolVersion,
+      @Nullable Batching batching,
+      boolean stream) {
+    Preconditions.checkArgument(
+        protocolVersion == 1 || protocolVersion == 2, "protocol version must be 1 or 2");
+    Preconditions.checkArgument(
+        !(stream && batching != null), "streamed requests cannot be batched");
     this.url = url;
     this.authRequest = authRequest;
+    this.protocolVersion = protocolVersion;
+    this.batching = batching;
+    this.batcher =
+        batching == null
+            ? null
+            : new MicroBatcher<>(batching.maxSize(), batching.maxWait(), this::postBatch);
+    this.stream = stream;
+  }
+
+  public GenericPlugin(
+      URI url, AuthRequest authRequest, int protocolVersion, @Nullable Batching batching) {
+    this(url, authRequest, protocolVersion, batching, false);
+  }
+
+  public GenericPlugin(URI url, AuthRequest authRequest, int protocolVersion) {
+    this(url, authRequest, protocolVersion, null);
+  }
+
+  public GenericPlugin(URI url, AuthRequest authRequest) {
+    this(url, authRequest, 1);
   }
 
   public GenericPlugin(URI url) {
@@ -39,6 +140,107 @@ public class GenericPlugin<T extends Message> implements Plugin<T> {
 
   @Override
   public T handle(ThreadState<T> threadState) throws IOException {
+    return sync(
+        threadState,
+        payload -> {
+          GenericPluginThreadUpdateResponse response = post(payload);
+          return response.cacheMiss()
+              ? null
+              : threadState.newMessageFromBot(
+                  Instant.now(), Objects.requireNonNull(response.value));
+        });
+  }
+
+  @Override
+  public void stream(ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    if (!stream) {
+      sink.accept(handle(threadState));
+      return;
+    }
+    sync(threadState, payload -> postStreamed(payload.put("stream", true), threadState, sink));
+  }
+
+  /**
+   * Send the thread to the remote, with protocol version 2 only the messages the remote has not
+   * seen are sent unless it reports a cache miss
+   *
+   * @param exchange sends one request
+   * @return the last message of the reply
+   */
+  private T sync(ThreadState<T> threadState, Exchange<T> exchange) throws IOException {
+    if (protocolVersion == 1) {
+      @Nullable T reply = exchange.send(payload(threadState, threadState.messages()));
+      if (reply == null) {
+        throw new IOException("remote reported a cache miss but protocol version 1 is in use");
+      }
+      return reply;
+    }
+
+    Identifier conversationId = threadState.threadId();
+    Conversation conversation = new Conversation(url, conversationId);
+    // the sequence numbers of a conversation must not be used by two requests at once
+    Lock lock = CONVERSATION_LOCKS.get(conversation);
+    lock.lock();
+    try {
+      return sync(threadState, exchange, conversation);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private T sync(ThreadState<T> threadState, Exchange<T> exchange, Conversation conversation)
+      throws IOException {
+    Identifier conversationId = conversation.id();
+    @Nullable Acknowledged previous = ACKNOWLEDGED.getIfPresent(conversation);
+    long sequence = previous == null ? 1 : previous.sequence() + 1;
+    @Nullable T reply = null;
+    @Nullable List<T> delta = previous == null ? null : previous.after(threadState.messages());
+    if (previous != null && delta != null) {
+      deltaSyncs.increment();
+      reply =
+          exchange.send(
+              payload(threadState, delta, conversationId, sequence, previous.sequence()));
+      if (reply == null) {
+        cacheMisses.increment();
+      }
+    }
+    if (reply == null) {
+      fullSyncs.increment();
+      reply =
+          exchange.send(
+              payload(threadState, threadState.messages(), conversationId, sequence, null));
+      if (reply == null) {
+        ACKNOWLEDGED.invalidate(conversation);
+        throw new IOException("remote reported a cache miss for a full sync");
+      }
+    }
+    ACKNOWLEDGED.put(conversation, new Acknowledged(sequence, reply.instanceId()));
+    return reply;
+  }
+
+  /**
+   * @param baseSequence the sequence number of the request the messages follow, null if the
+   *     messages are the whole history
+   */
+  private ObjectNode payload(
+      ThreadState<T> threadState,
+      List<T> messages,
+      Identifier conversationId,
+      long sequence,
+      @Nullable Long baseSequence) {
+    ObjectNode payload =
+        payload(threadState, messages)
+            .put("protocol_version", 2)
+            .put("conversation_id", conversationId.toString())
+            .put("sequence", sequence)
+            .put("sync", baseSequence == null ? "full" : "delta");
+    if (baseSequence != null) {
+      payload.put("base_sequence", baseSequence);
+    }
+    return payload;
+  }
+
+  private ObjectNode payload(ThreadState<T> threadState, List<T> messages) {
     ObjectNode postPayload = MAPPER.createObjectNode();
     switch (threadState.tail()) {
       case WAMessage ignored -> postPayload.put("source_client", "whatsapp");
@@ -52,45 +254,315 @@ public class GenericPlugin<T extends Message> implements Plugin<T> {
     userData.phoneNumber().ifPresent(pn -> userObj.put("phone_number", pn));
     userData.name().ifPresent(name -> userObj.put("name", name));
     ArrayNode messagesArray = postPayload.putArray("messages");
-    for (T message : threadState.messages()) {
+    for (T message : messages) {
       if (message.payload() instanceof Payload.Text text) {
-        messagesArray
-            .addObject()
-            .put("timestamp", message.timestamp().toString())
-            .put("type", "text")
-            .put("value", text.value());
+        ObjectNode messageObj =
+            messagesArray
+                .addObject()
+                .put("timestamp", message.timestamp().toString())
+                .put("type", "text")
+                .put("value", text.value());
+        if (protocolVersion >= 2) {
+          messageObj.put("id", message.instanceId().toString());
+          messageObj.put("role", message.role().name().toLowerCase());
+        }
       }
     }
+    return postPayload;
+  }
+
+  private GenericPluginThreadUpdateResponse post(ObjectNode postPayload) throws IOException {
+    if (batcher != null) {
+      return postBatched(postPayload);
+    }
+    return HttpRequests.execute(
+        url,
+        authRequest.post(url).bodyString(toJson(postPayload), ContentType.APPLICATION_JSON),
+        res ->
+            MAPPER.readValue(
+                res.getEntity().getContent(), GenericPluginThreadUpdateResponse.class));
+  }
 
-    String jsonPostPayload;
+  private GenericPluginThreadUpdateResponse postBatched(ObjectNode postPayload) throws IOException {
+    Objects.requireNonNull(batcher);
+    JsonNode response;
     try {
-      jsonPostPayload = MAPPER.writeValueAsString(postPayload);
+      response = batcher.submit(postPayload).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for batched request", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw new IOException("batched request failed", cause);
+      }
+      throw new RuntimeException("batched request failed", e.getCause());
+    }
+    if (Objects.equals(response.path("type").textValue(), "error")) {
+      throw new IOException("remote failed the request: " + response.path("message").asText());
+    }
+    return MAPPER.treeToValue(response, GenericPluginThreadUpdateResponse.class);
+  }
+
+  /**
+   * @return the last chunk passed to the sink or null if the remote reported a cache miss
+   */
+  private @Nullable T postStreamed(
+      ObjectNode postPayload, ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    return HttpRequests.<T, @Nullable T>stream(
+        url,
+        authRequest
+            .post(url)
+            .bodyString(toJson(postPayload), ContentType.APPLICATION_JSON)
+            .setHeader("Accept", "application/x-ndjson, text/event-stream, application/json"),
+        (response, emit) -> {
+          if (response.getCode() >= 300) {
+            throw new HttpResponseException(response.getCode(), response.getReasonPhrase());
+          }
+          StreamedReply reply = new StreamedReply(threadState, emit);
+          @Nullable String contentType = response.getEntity().getContentType();
+          InputStream content = response.getEntity().getContent();
+          if (contentType != null && contentType.startsWith("application/json")) {
+            // the remote did not stream, the whole response is a single part
+            return reply.part(MAPPER.readTree(content)) ? null : reply.finish();
+          }
+          boolean sse = contentType != null && contentType.startsWith("text/event-stream");
+          try (BufferedReader reader =
+              new BufferedReader(new InputStreamReader(content, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              if (sse) {
+                // server sent events, each part arrives as a 'data:' line containing json
+                if (!line.startsWith("data:")) {
+                  continue;
+                }
+                line = line.substring("data:".length());
+              }
+              if (line.isBlank() || line.strip().equals("[DONE]")) {
+                continue;
+              }
+              if (reply.part(MAPPER.readTree(line))) {
+                return null;
+              }
+            }
+          }
+          return reply.finish();
+        },
+        sink);
+  }
+
+  /** Send all the payloads in one request, the remote returns one response per payload */
+  private List<JsonNode> postBatch(List<ObjectNode> payloads) throws IOException {
+    Objects.requireNonNull(batching);
+    ArrayNode body = MAPPER.createArrayNode().addAll(payloads);
+    JsonNode responseBody =
+        HttpRequests.execute(
+            batching.url(),
+            authRequest.post(batching.url()).bodyString(toJson(body), ContentType.APPLICATION_JSON),
+            res -> MAPPER.readTree(res.getEntity().getContent()));
+    if (!responseBody.isArray()) {
+      throw new IOException("batch response must be an array");
+    }
+    List<JsonNode> responses = new ArrayList<>(responseBody.size());
+    responseBody.forEach(responses::add);
+    return responses;
+  }
+
+  private static String toJson(JsonNode payload) {
+    try {
+      return MAPPER.writeValueAsString(payload);
     } catch (JsonProcessingException e) {
       // this should be impossible because we're building the payload here
       throw new RuntimeException(e);
     }
+  }
 
-    GenericPluginThreadUpdateResponse response =
-        authRequest
-            .post(url)
-            .bodyString(jsonPostPayload, ContentType.APPLICATION_JSON)
-            .execute()
-            .handleResponse(
-                res ->
-                    MAPPER.readValue(
-                        res.getEntity().getContent(), GenericPluginThreadUpdateResponse.class));
+  @Override
+  public void registerMetrics(MetricsRegistry registry, String service) {
+    if (protocolVersion < 2) {
+      return;
+    }
+    registry.counter(
+        "cp4m_generic_plugin_syncs_total",
+        "Requests to the remote by whether they carried the whole history or only new messages",
+        deltaSyncs::sum,
+        "service",
+        service,
+        "sync",
+        "delta");
+    registry.counter(
+        "cp4m_generic_plugin_syncs_total",
+        "Requests to the remote by whether they carried the whole history or only new messages",
+        fullSyncs::sum,
+        "service",
+        service,
+        "sync",
+        "full");
+    registry.counter(
+        "cp4m_generic_plugin_cache_misses_total",
+        "Delta requests the remote could not apply because it did not have the conversation",
+        cacheMisses::sum,
+        "service",
+        service);
+  }
+
+  public int protocolVersion() {
+    return protocolVersion;
+  }
+
+  /**
+   * @return true if the remote is asked to stream its responses
+   */
+  public boolean streams() {
+    return stream;
+  }
+
+  /**
+   * @return the batcher used to group requests into a single request, empty if batching is disabled
+   */
+  public Optional<MicroBatcher<ObjectNode, JsonNode>> batcher() {
+    return Optional.ofNullable(batcher);
+  }
+
+  /**
+   * @return the number of requests that carried the whole message history
+   */
+  public long fullSyncs() {
+    return fullSyncs.sum();
+  }
+
+  /**
+   * @return the number of requests that carried only the messages the remote had not seen
+   */
+  public long deltaSyncs() {
+    return deltaSyncs.sum();
+  }
+
+  /**
+   * @return the number of delta requests the remote answered with a cache miss
+   */
+  public long cacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  /** Assembles the parts of a streamed response into chunks and emits them as they are ready */
+  private class StreamedReply {
+    private final ThreadState<T> threadState;
+    private final Consumer<T> sink;
+    private final StreamingTextChunker chunker =
+        StreamingTextChunker.of(STREAM_MIN_CHARS_PER_CHUNK, STREAM_MAX_CHARS_PER_CHUNK);
+    private boolean received = false;
+    private @Nullable T last;
+
+    private StreamedReply(ThreadState<T> threadState, Consumer<T> sink) {
+      this.threadState = threadState;
+      this.sink = sink;
+    }
+
+    /**
+     * @return true if the remote reported a cache miss
+     */
+    private boolean part(JsonNode part) throws IOException {
+      if (Objects.equals(part.path("type").textValue(), "error")) {
+        throw new IOException("remote failed the request: " + part.path("message").asText());
+      }
+      GenericPluginThreadUpdateResponse response =
+          MAPPER.treeToValue(part, GenericPluginThreadUpdateResponse.class);
+      if (response.cacheMiss()) {
+        if (received) {
+          throw new IOException("remote reported a cache miss after it started responding");
+        }
+        return true;
+      }
+      received = true;
+      for (String chunk : chunker.append(Objects.requireNonNull(response.value()))) {
+        emit(chunk);
+      }
+      return false;
+    }
+
+    /**
+     * @return the last chunk passed to the sink
+     */
+    private T finish() throws IOException {
+      chunker.finish().ifPresent(this::emit);
+      if (last == null) {
+        throw new IOException("remote streamed a response without any text");
+      }
+      return last;
+    }
+
+    private void emit(String chunk) {
+      last = threadState.newMessageFromBot(Instant.now(), chunk);
+      sink.accept(last);
+    }
+  }
 
-    return threadState.newMessageFromBot(Instant.now(), response.value);
+  @FunctionalInterface
+  private interface Exchange<T> {
+
+    /**
+     * @param payload the request to send
+     * @return the last message of the reply or null if the remote reported a cache miss
+     */
+    @Nullable T send(ObjectNode payload) throws IOException;
+  }
+
+  /**
+   * @param url where the requests of the conversation are posted
+   * @param id the conversation id sent to the remote
+   */
+  private record Conversation(URI url, Identifier id) {}
+
+  /**
+   * @param sequence the sequence number of the last request the remote answered
+   * @param lastSeen the last message the remote has seen, its reply to that request
+   */
+  private record Acknowledged(long sequence, Identifier lastSeen) {
+
+    /**
+     * @return the messages after the last one the remote has seen or null if it is not in the
+     *     thread any more and the whole history must be sent
+     */
+    <M extends Message> @Nullable List<M> after(List<M> messages) {
+      for (int i = messages.size() - 1; i >= 0; i--) {
+        if (messages.get(i).instanceId().equals(lastSeen)) {
+          return messages.subList(i + 1, messages.size());
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * How requests are batched
+   *
+   * @param url where batches are posted
+   * @param maxSize the most requests in a batch
+   * @param maxWait the longest a request waits for a batch to fill up before it is sent
+   */
+  public record Batching(URI url, int maxSize, Duration maxWait) {
+    public Batching {
+      Objects.requireNonNull(url);
+      Preconditions.checkArgument(maxSize > 1, "maxSize must be greater than one");
+      Preconditions.checkArgument(
+          !maxWait.isNegative() && !maxWait.isZero(), "maxWait must be greater than zero");
+    }
   }
 
-  record GenericPluginThreadUpdateResponse(String type, String value) {
+  record GenericPluginThreadUpdateResponse(String type, @Nullable String value) {
 
     @JsonCreator
     GenericPluginThreadUpdateResponse(
-        @JsonProperty("type") String type, @JsonProperty("value") String value) {
-      Preconditions.checkArgument(Objects.equals(type, "text"), "type must be equal to text");
+        @JsonProperty("type") String type, @JsonProperty("value") @Nullable String value) {
+      Preconditions.checkArgument(
+          Objects.equals(type, "text") || Objects.equals(type, "cache_miss"),
+          "type must be equal to text or cache_miss");
       this.type = type;
-      this.value = Objects.requireNonNull(value);
+      this.value = Objects.equals(type, "text") ? Objects.requireNonNull(value) : value;
+    }
+
+    boolean cacheMiss() {
+      return type.equals("cache_miss");
     }
   }
 }
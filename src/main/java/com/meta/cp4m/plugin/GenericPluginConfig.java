@@ -8,32 +8,83 @@
 
 package com.meta.cp4m.plugin;
 
-import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import com.google.common.base.Preconditions;
 import com.meta.cp4m.message.Message;
 import java.net.URI;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.common.returnsreceiver.qual.This;
 
+@JsonDeserialize(builder = GenericPluginConfig.Builder.class)
 public class GenericPluginConfig implements PluginConfig {
   private final String name;
   private final URI url;
   private final AuthRequest authRequest;
+  private final int protocolVersion;
+  private final GenericPlugin.@Nullable Batching batching;
+  private final boolean stream;
 
-  @JsonCreator
-  public GenericPluginConfig(
-      @JsonProperty("name") String name,
-      @JsonProperty("url") String url,
-      @JsonProperty("authentication") @Nullable AuthRequest authRequest) {
-    this.name = Objects.requireNonNull(name, "name is a required parameter");
-    this.url = URI.create(Objects.requireNonNull(url, "url is a required parameter"));
-    this.authRequest = authRequest == null ? new AuthRequest.NoAuthRequest() : authRequest;
+  public GenericPluginConfig(String name, String url, @Nullable AuthRequest authRequest) {
+    this(
+        Objects.requireNonNull(name, "name is a required parameter"),
+        URI.create(Objects.requireNonNull(url, "url is a required parameter")),
+        authRequest == null ? new AuthRequest.NoAuthRequest() : authRequest,
+        1,
+        null,
+        false);
+  }
+
+  private GenericPluginConfig(
+      String name,
+      URI url,
+      AuthRequest authRequest,
+      int protocolVersion,
+      GenericPlugin.@Nullable Batching batching,
+      boolean stream) {
+    this.name = name;
+    this.url = url;
+    this.authRequest = authRequest;
+    this.protocolVersion = protocolVersion;
+    this.batching = batching;
+    this.stream = stream;
+  }
+
+  public static Builder builder(String url) {
+    // readability of the name is not important unless it comes from the config
+    return new Builder().name(UUID.randomUUID().toString()).url(url);
   }
 
   public URI url() {
     return url;
   }
 
+  /**
+   * @return 1 to send the whole message history with every request, 2 to send only new messages
+   */
+  public int protocolVersion() {
+    return protocolVersion;
+  }
+
+  /**
+   * @return how requests are batched, empty if every request is sent on its own
+   */
+  public Optional<GenericPlugin.Batching> batching() {
+    return Optional.ofNullable(batching);
+  }
+
+  /**
+   * @return true if the remote is asked to stream its responses
+   */
+  public boolean stream() {
+    return stream;
+  }
+
   @Override
   public String name() {
     return name;
@@ -41,6 +92,102 @@ public class GenericPluginConfig implements PluginConfig {
 
   @Override
   public <T extends Message> Plugin<T> toPlugin() {
-    return new GenericPlugin<>(url, authRequest);
+    return new GenericPlugin<>(url, authRequest, protocolVersion, batching, stream);
+  }
+
+  @JsonPOJOBuilder(withPrefix = "")
+  public static class Builder {
+
+    private @Nullable String name;
+    private @Nullable URI url;
+
+    @JsonProperty("authentication")
+    private @Nullable AuthRequest authentication;
+
+    @JsonProperty("protocol_version")
+    private int protocolVersion = 1;
+
+    @JsonProperty("batch_url")
+    private @Nullable URI batchUrl;
+
+    @JsonProperty("batch_max_size")
+    private @Nullable Integer batchMaxSize;
+
+    @JsonProperty("batch_max_wait_ms")
+    private @Nullable Long batchMaxWaitMs;
+
+    private boolean stream = false;
+
+    private Builder() {}
+
+    public @This Builder name(String name) {
+      Preconditions.checkArgument(!name.isBlank(), "name cannot be blank");
+      this.name = name;
+      return this;
+    }
+
+    public @This Builder url(String url) {
+      this.url = URI.create(url);
+      return this;
+    }
+
+    public @This Builder authentication(AuthRequest authentication) {
+      this.authentication = Objects.requireNonNull(authentication);
+      return this;
+    }
+
+    public @This Builder protocolVersion(int protocolVersion) {
+      Preconditions.checkArgument(
+          protocolVersion == 1 || protocolVersion == 2, "protocol_version must be 1 or 2");
+      this.protocolVersion = protocolVersion;
+      return this;
+    }
+
+    public @This Builder batchUrl(String batchUrl) {
+      this.batchUrl = URI.create(batchUrl);
+      return this;
+    }
+
+    public @This Builder batchMaxSize(int batchMaxSize) {
+      Preconditions.checkArgument(batchMaxSize > 1, "batch_max_size must be greater than one");
+      this.batchMaxSize = batchMaxSize;
+      return this;
+    }
+
+    public @This Builder batchMaxWaitMs(long batchMaxWaitMs) {
+      Preconditions.checkArgument(
+          batchMaxWaitMs > 0, "batch_max_wait_ms must be greater than zero");
+      this.batchMaxWaitMs = batchMaxWaitMs;
+      return this;
+    }
+
+    public @This Builder stream(boolean stream) {
+      this.stream = stream;
+      return this;
+    }
+
+    public GenericPluginConfig build() {
+      Objects.requireNonNull(name, "name is a required parameter");
+      Objects.requireNonNull(url, "url is a required parameter");
+      Preconditions.checkArgument(
+          batchMaxSize != null || (batchUrl == null && batchMaxWaitMs == null),
+          "batch_max_size is required to batch requests");
+      Preconditions.checkArgument(
+          !(stream && batchMaxSize != null), "stream cannot be used with batch_max_size");
+      GenericPlugin.@Nullable Batching batching =
+          batchMaxSize == null
+              ? null
+              : new GenericPlugin.Batching(
+                  Objects.requireNonNullElse(batchUrl, url),
+                  batchMaxSize,
+                  Duration.ofMillis(Objects.requireNonNullElse(batchMaxWaitMs, 10L)));
+      return new GenericPluginConfig(
+          name,
+          url,
+          authentication == null ? new AuthRequest.NoAuthRequest() : authentication,
+          protocolVersion,
+          batching,
+          stream);
+    }
   }
 }
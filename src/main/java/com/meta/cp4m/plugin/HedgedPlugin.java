@@ -0,0 +1,386 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends each request to one of several equivalent plugins and, if it has not responded by the time
+ * most requests have, sends the same request to another one. The first successful response is used
+ * and the requests still in flight are cancelled.
+ *
+ * <p>The hedge delay is a percentile of the latency of recent requests, until enough requests
+ * have been made the initial delay is used. A request that fails is hedged right away.
+ *
+ * <p>Hedges are extra load on the backends so they are limited by a budget, every request earns a
+ * fraction of a hedge and every hedge spends a whole one. With a budget of 0.1 at most about one in
+ * ten requests is hedged, however slow the backends are.
+ *
+ * @param <T> the type of message being handled
+ */
+public class HedgedPlugin<T extends Message> implements Plugin<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HedgedPlugin.class);
+  // a burst of slow requests can spend at most this many hedges at once
+  private static final double MAX_SAVED_HEDGES = 10;
+  private static final int LATENCY_WINDOW = 512;
+  private static final int MIN_LATENCY_SAMPLES = 20;
+  private static final int RECOMPUTE_EVERY = 16;
+
+  private final List<Plugin<T>> plugins;
+  private final Policy policy;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final AtomicInteger nextPlugin = new AtomicInteger();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // the latency of the most recent requests
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private int samples = 0;
+  private int nextSample = 0;
+  private long hedgeDelayNanos;
+  private double savedHedges = 1;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder hedgeWins = new LongAdder();
+  private final LongAdder hedgesDenied = new LongAdder();
+
+  /**
+   * @param plugins equivalent plugins, any of them can answer any request
+   * @param policy when requests are hedged
+   */
+  public HedgedPlugin(List<Plugin<T>> plugins, Policy policy) {
+    Preconditions.checkArgument(plugins.size() >= 2, "at least two plugins are needed to hedge");
+    this.plugins = List.copyOf(plugins);
+    this.policy = policy;
+    this.hedgeDelayNanos = policy.initialDelay().toNanos();
+  }
+
+  @Override
+  public T handle(ThreadState<T> threadState) throws IOException {
+    List<T> response = new ArrayList<>(1);
+    hedge((plugin, emit) -> emit.accept(plugin.handle(threadState)), response::add);
+    return response.getFirst();
+  }
+
+  /**
+   * Streamed requests are hedged until one of them sends its first part, that request is then
+   * followed to the end and the others are cancelled.
+   */
+  @Override
+  public void stream(ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    hedge((plugin, emit) -> plugin.stream(threadState, emit), sink);
+  }
+
+  private void hedge(Attempt<T> attempt, Consumer<T> sink) throws IOException {
+    requests.increment();
+    earnHedge();
+    BlockingQueue<Event<T>> events = new LinkedBlockingQueue<>();
+    // indexed by the number of the attempt, the first is the primary request
+    List<Future<?>> inFlight = new ArrayList<>();
+    int first = Math.floorMod(nextPlugin.getAndIncrement(), plugins.size());
+    long lastSent = System.nanoTime();
+    int running = 1;
+    int winner = -1;
+    boolean mayHedge = true;
+    @Nullable Exception failure = null;
+    try {
+      inFlight.add(executor.submit(run(attempt, 0, plugins.get(first), events)));
+      while (true) {
+        int sent = inFlight.size();
+        mayHedge = mayHedge && winner < 0 && sent <= policy.maxHedges() && sent < plugins.size();
+        @Nullable Event<T> event =
+            mayHedge
+                ? events.poll(hedgeDelayNanos() - (System.nanoTime() - lastSent), NANOSECONDS)
+                : events.take();
+        if (event == null) {
+          // nothing has responded within the hedge delay
+          if (spendHedge()) {
+            inFlight.add(executor.submit(run(attempt, sent, next(first, sent), events)));
+            running++;
+            lastSent = System.nanoTime();
+          } else {
+            mayHedge = false;
+          }
+        } else if (winner >= 0) {
+          if (event.attempt() != winner) {
+            continue; // left over from a cancelled request
+          } else if (event.message() != null) {
+            sink.accept(event.message());
+          } else if (event.failure() != null) {
+            // part of the response was already sent, it cannot fail over
+            failure = event.failure();
+            break;
+          } else {
+            return;
+          }
+        } else if (event.message() != null) {
+          winner = event.attempt();
+          if (winner != 0) {
+            hedgeWins.increment();
+          }
+          for (int i = 0; i < inFlight.size(); i++) {
+            if (i != winner) {
+              inFlight.get(i).cancel(true);
+            }
+          }
+          sink.accept(event.message());
+        } else if (event.failure() == null) {
+          return; // finished without a response
+        } else {
+          running--;
+          failure = event.failure();
+          LOGGER.atWarn().setCause(failure).log("hedged request failed");
+          if (running == 0
+              && mayHedge
+              && sent <= policy.maxHedges()
+              && sent < plugins.size()
+              && spendHedge()) {
+            // fail over right away rather than waiting out the hedge delay
+            inFlight.add(executor.submit(run(attempt, sent, next(first, sent), events)));
+            running++;
+            lastSent = System.nanoTime();
+          } else if (running == 0) {
+            break;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a hedged request");
+    } finally {
+      inFlight.forEach(f -> f.cancel(true));
+    }
+    if (failure instanceof IOException e) {
+      throw e;
+    } else if (failure instanceof RuntimeException e) {
+      throw e;
+    }
+    throw new IOException("every hedged request failed", failure);
+  }
+
+  @Override
+  public Optional<HashCode> requestKey(ThreadState<T> threadState) {
+    // the plugins are equivalent so they make the same request
+    return plugins.getFirst().requestKey(threadState);
+  }
+
+  @Override
+  public void registerMetrics(MetricsRegistry registry, String service) {
+    plugins.forEach(p -> p.registerMetrics(registry, service));
+    registry.counter(
+        "cp4m_hedged_requests_total",
+        "Requests made to a hedged plugin",
+        this::requests,
+        "service",
+        service);
+    registry.counter(
+        "cp4m_hedged_hedges_total",
+        "Extra requests sent because the first was slow or failed",
+        this::hedges,
+        "service",
+        service);
+    registry.counter(
+        "cp4m_hedged_hedge_wins_total",
+        "Requests answered by a hedge rather than the first request",
+        this::hedgeWins,
+        "service",
+        service);
+    registry.counter(
+        "cp4m_hedged_hedges_denied_total",
+        "Hedges that were not sent because the hedge budget was spent",
+        this::hedgesDenied,
+        "service",
+        service);
+    registry.gauge(
+        "cp4m_hedged_hedge_delay_ms",
+        "How long a request waits before it is hedged",
+        () -> TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos()),
+        "service",
+        service);
+  }
+
+  private Plugin<T> next(int first, int offset) {
+    return plugins.get((first + offset) % plugins.size());
+  }
+
+  /**
+   * The latency of a request is how long it took to send its first part. A request that fails or
+   * is cancelled before that is recorded with how long it ran, which is at most its latency, so
+   * that slow requests that lose to a hedge still raise the hedge delay.
+   */
+  private Runnable run(
+      Attempt<T> attempt, int number, Plugin<T> plugin, BlockingQueue<Event<T>> events) {
+    return () -> {
+      long start = System.nanoTime();
+      AtomicBoolean responded = new AtomicBoolean();
+      try {
+        attempt.run(
+            plugin,
+            message -> {
+              if (!responded.getAndSet(true)) {
+                recordLatency(System.nanoTime() - start);
+              }
+              events.add(new Event<>(number, message, null));
+            });
+        events.add(new Event<>(number, null, null));
+      } catch (Exception e) {
+        events.add(new Event<>(number, null, e));
+      } finally {
+        if (!responded.get()) {
+          recordLatency(System.nanoTime() - start);
+        }
+      }
+    };
+  }
+
+  private void recordLatency(long nanos) {
+    lock.lock();
+    try {
+      latencies[nextSample] = nanos;
+      nextSample = (nextSample + 1) % latencies.length;
+      samples++;
+      if (samples >= MIN_LATENCY_SAMPLES && samples % RECOMPUTE_EVERY == 0) {
+        long[] window = Arrays.copyOf(latencies, Math.min(samples, latencies.length));
+        Arrays.sort(window);
+        int index = (int) Math.ceil(policy.percentile() * window.length) - 1;
+        hedgeDelayNanos = Math.max(policy.minDelay().toNanos(), window[Math.max(0, index)]);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    plugins.forEach(Plugin::close);
+  }
+
+  long hedgeDelayNanos() {
+    lock.lock();
+    try {
+      return hedgeDelayNanos;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void earnHedge() {
+    lock.lock();
+    try {
+      savedHedges = Math.min(MAX_SAVED_HEDGES, savedHedges + policy.budget());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean spendHedge() {
+    lock.lock();
+    try {
+      if (savedHedges < 1) {
+        hedgesDenied.increment();
+        return false;
+      }
+      savedHedges -= 1;
+      hedges.increment();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public List<Plugin<T>> plugins() {
+    return plugins;
+  }
+
+  /**
+   * @return the number of requests made to this plugin
+   */
+  public long requests() {
+    return requests.sum();
+  }
+
+  /**
+   * @return the number of extra requests sent because the first was slow or failed
+   */
+  public long hedges() {
+    return hedges.sum();
+  }
+
+  /**
+   * @return the number of requests that were answered by a hedge
+   */
+  public long hedgeWins() {
+    return hedgeWins.sum();
+  }
+
+  /**
+   * @return the number of hedges that were not sent because the budget was spent
+   */
+  public long hedgesDenied() {
+    return hedgesDenied.sum();
+  }
+
+  private interface Attempt<T extends Message> {
+    void run(Plugin<T> plugin, Consumer<T> emit) throws IOException;
+  }
+
+  /** A part of a response if message is set, otherwise the end of a request and how it failed */
+  private record Event<T>(int attempt, @Nullable T message, @Nullable Exception failure) {}
+
+  /**
+   * When requests are hedged
+   *
+   * @param percentile the percentile of recent latency after which a request is hedged
+   * @param initialDelay the hedge delay until enough requests have been made to measure latency
+   * @param minDelay requests are never hedged sooner than this
+   * @param budget the fraction of a hedge every request earns, limits hedges to about this
+   *     fraction of requests
+   * @param maxHedges the most hedges sent for a single request
+   */
+  public record Policy(
+      double percentile, Duration initialDelay, Duration minDelay, double budget, int maxHedges) {
+    public Policy {
+      Preconditions.checkArgument(
+          percentile > 0 && percentile < 1, "percentile must be between 0 and 1");
+      Preconditions.checkArgument(!initialDelay.isNegative(), "initialDelay must not be negative");
+      Preconditions.checkArgument(!minDelay.isNegative(), "minDelay must not be negative");
+      Preconditions.checkArgument(budget >= 0 && budget <= 1, "budget must be between 0 and 1");
+      Preconditions.checkArgument(maxHedges > 0, "maxHedges must be greater than 0");
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.message.Message;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class HedgedPluginConfig implements PluginConfig {
+
+  private final String name;
+  private final List<PluginConfig> plugins;
+  private final HedgedPlugin.Policy policy;
+
+  @JsonCreator
+  HedgedPluginConfig(
+      @JsonProperty("name") String name,
+      @JsonProperty("plugins") List<PluginConfig> plugins,
+      @JsonProperty("hedge_percentile") @Nullable Double hedgePercentile,
+      @JsonProperty("initial_hedge_delay_ms") @Nullable Long initialHedgeDelayMs,
+      @JsonProperty("min_hedge_delay_ms") @Nullable Long minHedgeDelayMs,
+      @JsonProperty("hedge_budget") @Nullable Double hedgeBudget,
+      @JsonProperty("max_hedges") @Nullable Integer maxHedges) {
+    Preconditions.checkArgument(name != null && !name.isBlank(), "name cannot be blank");
+    Preconditions.checkArgument(
+        plugins != null && plugins.size() >= 2, "plugins must have at least two plugins");
+    Preconditions.checkArgument(
+        initialHedgeDelayMs == null || initialHedgeDelayMs > 0,
+        "initial_hedge_delay_ms must be greater than 0");
+    Preconditions.checkArgument(
+        minHedgeDelayMs == null || minHedgeDelayMs >= 0,
+        "min_hedge_delay_ms must not be negative");
+    this.name = name;
+    this.plugins = List.copyOf(plugins);
+    this.policy =
+        new HedgedPlugin.Policy(
+            Objects.requireNonNullElse(hedgePercentile, 0.95),
+            Duration.ofMillis(Objects.requireNonNullElse(initialHedgeDelayMs, 1_000L)),
+            Duration.ofMillis(Objects.requireNonNullElse(minHedgeDelayMs, 10L)),
+            Objects.requireNonNullElse(hedgeBudget, 0.1),
+            Objects.requireNonNullElse(maxHedges, 1));
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  /**
+   * @return equivalent plugins, any of them can answer any request
+   */
+  public List<PluginConfig> plugins() {
+    return plugins;
+  }
+
+  public HedgedPlugin.Policy policy() {
+    return policy;
+  }
+
+  @Override
+  public <T extends Message> Plugin<T> toPlugin() {
+    return new HedgedPlugin<>(plugins.stream().map(p -> p.<T>toPlugin()).toList(), policy);
+  }
+}
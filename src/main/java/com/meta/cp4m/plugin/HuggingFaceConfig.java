@@ -34,6 +34,9 @@ public class HuggingFaceConfig implements PluginConfig {
   private final @Nullable String systemMessage;
 
   private final long maxInputTokens;
+  private final @Nullable Integer batchMaxSize;
+  private final long batchMaxWaitMs;
+  private final boolean stream;
 
   private HuggingFaceConfig(
       URI endpoint,
@@ -47,7 +50,10 @@ public class HuggingFaceConfig implements PluginConfig {
       @Nullable Double frequencyPenalty,
       Map<Long, Double> logitBias,
       @Nullable String systemMessage,
-      long maxInputTokens) {
+      long maxInputTokens,
+      @Nullable Integer batchMaxSize,
+      long batchMaxWaitMs,
+      boolean stream) {
     this.endpoint = endpoint;
     this.name = name;
     this.apiKey = apiKey;
@@ -60,6 +66,9 @@ public class HuggingFaceConfig implements PluginConfig {
     this.logitBias = Collections.unmodifiableMap(logitBias);
     this.systemMessage = systemMessage;
     this.maxInputTokens = maxInputTokens;
+    this.batchMaxSize = batchMaxSize;
+    this.batchMaxWaitMs = batchMaxWaitMs;
+    this.stream = stream;
   }
 
   public static Builder builder(String apiKey) {
@@ -118,6 +127,30 @@ public class HuggingFaceConfig implements PluginConfig {
     return maxInputTokens;
   }
 
+  /**
+   * @return the maximum number of prompts to send in a single request, empty if batching is
+   *     disabled
+   */
+  public Optional<Integer> batchMaxSize() {
+    return Optional.ofNullable(batchMaxSize);
+  }
+
+  /**
+   * @return the maximum time in milliseconds a prompt waits for a batch to fill up before the batch
+   *     is sent
+   */
+  public long batchMaxWaitMs() {
+    return batchMaxWaitMs;
+  }
+
+  /**
+   * @return true if responses should be streamed from the endpoint and sent to the user as each
+   *     part of the response is completed
+   */
+  public boolean stream() {
+    return stream;
+  }
+
   public <T extends Message> HuggingFaceLlamaPlugin<T> toPlugin() {
     return new HuggingFaceLlamaPlugin<>(this);
   }
@@ -157,6 +190,14 @@ public class HuggingFaceConfig implements PluginConfig {
     @JsonProperty("max_input_tokens")
     private @Nullable Long maxInputTokens;
 
+    @JsonProperty("batch_max_size")
+    private @Nullable Integer batchMaxSize;
+
+    @JsonProperty("batch_max_wait_ms")
+    private long batchMaxWaitMs = 10;
+
+    private boolean stream = false;
+
     public @This Builder endpoint(String endpoint) {
       this.endpoint = URI.create(endpoint);
       return this;
@@ -237,11 +278,31 @@ public class HuggingFaceConfig implements PluginConfig {
       return this;
     }
 
+    public @This Builder batchMaxSize(int batchMaxSize) {
+      Preconditions.checkArgument(batchMaxSize > 1, "batch_max_size must be greater than one");
+      this.batchMaxSize = batchMaxSize;
+      return this;
+    }
+
+    public @This Builder batchMaxWaitMs(long batchMaxWaitMs) {
+      Preconditions.checkArgument(
+          batchMaxWaitMs > 0, "batch_max_wait_ms must be greater than zero");
+      this.batchMaxWaitMs = batchMaxWaitMs;
+      return this;
+    }
+
+    public @This Builder stream(boolean stream) {
+      this.stream = stream;
+      return this;
+    }
+
     public HuggingFaceConfig build() {
       Objects.requireNonNull(endpoint, "endpoint is a required parameter");
       Objects.requireNonNull(name, "name is a required parameter");
       Objects.requireNonNull(tokenLimit, "token_limit is a required parameter");
       Objects.requireNonNull(apiKey, "api_key is a required parameter");
+      Preconditions.checkArgument(
+          !(stream && batchMaxSize != null), "stream cannot be used with batch_max_size");
       if (maxOutputTokens != null) {
         Preconditions.checkArgument(
             maxOutputTokens <= tokenLimit, "max_tokens must be <= " + tokenLimit + "'");
@@ -274,7 +335,10 @@ public class HuggingFaceConfig implements PluginConfig {
           frequencyPenalty,
           logitBias,
           systemMessage,
-          maxInputTokens);
+          maxInputTokens,
+          batchMaxSize,
+          batchMaxWaitMs,
+          stream);
     }
   }
 }
@@ -11,67 +11,272 @@ package com.meta.cp4m.plugin;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.meta.cp4m.jfr.PluginCallEvent;
 import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.StreamingTextChunker;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.utils.HttpRequests;
+import com.meta.cp4m.utils.MicroBatcher;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.fluent.ContentResponseHandler;
 import org.apache.hc.client5.http.fluent.Request;
-import org.apache.hc.client5.http.fluent.Response;
 import org.apache.hc.core5.http.ContentType;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class HuggingFaceLlamaPlugin<T extends Message> implements Plugin<T> {
 
   private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final int STREAM_MIN_CHARS_PER_CHUNK = 300;
+  private static final int STREAM_MAX_CHARS_PER_CHUNK = 2000;
+  private static final String TOO_LONG_RESPONSE = "I'm sorry but that request was too long for me.";
   private final HuggingFaceConfig config;
   private final HuggingFaceLlamaPrompt<T> promptCreator;
 
+  private final @Nullable MicroBatcher<String, String> batcher;
+
   private URI endpoint;
 
   public HuggingFaceLlamaPlugin(HuggingFaceConfig config) {
     this.config = config;
     this.endpoint = this.config.endpoint();
     promptCreator = new HuggingFaceLlamaPrompt<>(config.systemMessage(), config.maxInputTokens());
+    this.batcher =
+        config
+            .batchMaxSize()
+            .map(
+                size ->
+                    new MicroBatcher<>(
+                        size, Duration.ofMillis(config.batchMaxWaitMs()), this::generateBatch))
+            .orElse(null);
   }
 
-  @Override
-  public T handle(ThreadState<T> threadState) throws IOException {
-    ObjectNode body = MAPPER.createObjectNode();
+  private ObjectNode parameters() {
     ObjectNode params = MAPPER.createObjectNode();
-
     config.topP().ifPresent(v -> params.put("top_p", v));
     config.temperature().ifPresent(v -> params.put("temperature", v));
     config.maxOutputTokens().ifPresent(v -> params.put("max_new_tokens", v));
+    return params;
+  }
+
+  private JsonNode post(ObjectNode body) throws IOException {
+    String bodyString;
+    try {
+      bodyString = MAPPER.writeValueAsString(body);
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException(e); // this should be impossible
+    }
+    Request request =
+        Request.post(endpoint)
+            .bodyString(bodyString, ContentType.APPLICATION_JSON)
+            .setHeader("Authorization", "Bearer " + config.apiKey());
+    return MAPPER.readTree(
+        HttpRequests.execute(endpoint, request, new ContentResponseHandler()).asBytes());
+  }
+
+  /**
+   * Send all the prompts in one request. The endpoint returns one result per input, each result is
+   * either the generation itself or a list containing the generation.
+   */
+  private List<String> generateBatch(List<String> prompts) throws IOException {
+    ObjectNode body = MAPPER.createObjectNode();
+    body.set("parameters", parameters());
+    ArrayNode inputs = body.putArray("inputs");
+    prompts.forEach(inputs::add);
 
-    body.set("parameters", params);
+    JsonNode responseBody = post(body);
+    List<String> generated = new ArrayList<>(prompts.size());
+    for (JsonNode result : responseBody) {
+      JsonNode generation = result.isArray() ? result.get(0) : result;
+      generated.add(generation.get("generated_text").textValue());
+    }
+    return generated;
+  }
+
+  private String generate(String prompt) throws IOException {
+    if (batcher == null) {
+      return post(requestBody(prompt)).get(0).get("generated_text").textValue();
+    }
+
+    try {
+      return batcher.submit(prompt).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for batched request", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw new IOException("batched request failed", cause);
+      }
+      throw new RuntimeException("batched request failed", e.getCause());
+    }
+  }
+
+  /**
+   * @return the batcher used to group prompts into a single request, empty if batching is disabled
+   */
+  public Optional<MicroBatcher<String, String>> batcher() {
+    return Optional.ofNullable(batcher);
+  }
+
+  /**
+   * Build the body of the request for a single prompt, batched requests put many prompts in one
+   * body with the same parameters
+   */
+  private ObjectNode requestBody(String prompt) {
+    ObjectNode body = MAPPER.createObjectNode();
+    if (config.stream()) {
+      // only the generated tokens are returned, so there's no need to remove the prompt afterward
+      body.set("parameters", parameters().put("return_full_text", false));
+      body.put("inputs", prompt).put("stream", true);
+    } else {
+      body.set("parameters", parameters());
+      body.put("inputs", prompt);
+    }
+    return body;
+  }
+
+  @Override
+  public Optional<HashCode> requestKey(ThreadState<T> threadState) {
+    return promptCreator
+        .createPrompt(threadState)
+        .map(p -> Hashing.sha256().hashString(requestBody(p).toString(), StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public T handle(ThreadState<T> threadState) throws IOException {
+    if (config.stream()) {
+      List<String> parts = new ArrayList<>();
+      stream(threadState, m -> parts.add(m.message()));
+      return threadState.newMessageFromBot(Instant.now(), String.join("\n\n", parts));
+    }
 
     Optional<String> prompt = promptCreator.createPrompt(threadState);
     if (prompt.isEmpty()) {
-      return threadState.newMessageFromBot(
-          Instant.now(), "I'm sorry but that request was too long for me.");
+      return threadState.newMessageFromBot(Instant.now(), TOO_LONG_RESPONSE);
     }
 
-    body.put("inputs", prompt.get());
+    PluginCallEvent event = new PluginCallEvent();
+    event.begin();
+    @Nullable String allGeneratedText = null;
+    try {
+      allGeneratedText = generate(prompt.get());
+    } finally {
+      commit(event, false, allGeneratedText != null, -1);
+    }
+    String llmResponse = allGeneratedText.strip().replace(prompt.get().strip(), "");
+    Instant timestamp = Instant.now();
+
+    return threadState.newMessageFromBot(timestamp, llmResponse);
+  }
+
+  @Override
+  public void stream(ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    if (!config.stream()) {
+      sink.accept(handle(threadState));
+      return;
+    }
+
+    Optional<String> prompt = promptCreator.createPrompt(threadState);
+    if (prompt.isEmpty()) {
+      sink.accept(threadState.newMessageFromBot(Instant.now(), TOO_LONG_RESPONSE));
+      return;
+    }
 
     String bodyString;
     try {
-      bodyString = MAPPER.writeValueAsString(body);
+      bodyString = MAPPER.writeValueAsString(requestBody(prompt.get()));
     } catch (JsonProcessingException e) {
       throw new RuntimeException(e); // this should be impossible
     }
-    Response response =
+
+    StreamingTextChunker chunker =
+        StreamingTextChunker.of(STREAM_MIN_CHARS_PER_CHUNK, STREAM_MAX_CHARS_PER_CHUNK);
+    PluginCallEvent event = new PluginCallEvent();
+    event.begin();
+    AtomicInteger generatedTokens = new AtomicInteger();
+    boolean succeeded = false;
+    try {
+      streamRequest(bodyString, threadState, sink, chunker, generatedTokens);
+      succeeded = true;
+    } finally {
+      commit(event, true, succeeded, generatedTokens.get());
+    }
+    chunker.finish().ifPresent(c -> sink.accept(threadState.newMessageFromBot(Instant.now(), c)));
+  }
+
+  private void commit(
+      PluginCallEvent event, boolean streamed, boolean succeeded, int completionTokens) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.plugin = "HuggingFaceLlamaPlugin";
+      event.model = endpoint.toString();
+      event.streamed = streamed;
+      event.succeeded = succeeded;
+      event.completionTokens = completionTokens;
+      event.commit();
+    }
+  }
+
+  private void streamRequest(
+      String bodyString,
+      ThreadState<T> threadState,
+      Consumer<T> sink,
+      StreamingTextChunker chunker,
+      AtomicInteger generatedTokens)
+      throws IOException {
+    HttpRequests.<T, @Nullable Void>stream(
+        endpoint,
         Request.post(endpoint)
             .bodyString(bodyString, ContentType.APPLICATION_JSON)
             .setHeader("Authorization", "Bearer " + config.apiKey())
-            .execute();
-
-    JsonNode responseBody = MAPPER.readTree(response.returnContent().asBytes());
-    String allGeneratedText = responseBody.get(0).get("generated_text").textValue();
-    String llmResponse = allGeneratedText.strip().replace(prompt.get().strip(), "");
-    Instant timestamp = Instant.now();
-
-    return threadState.newMessageFromBot(timestamp, llmResponse);
+            .setHeader("Accept", "text/event-stream"),
+        (response, emit) -> {
+          if (response.getCode() >= 300) {
+            throw new HttpResponseException(response.getCode(), response.getReasonPhrase());
+          }
+          try (BufferedReader reader =
+              new BufferedReader(
+                  new InputStreamReader(
+                      response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              // server sent events, each token arrives as a 'data:' line containing json
+              if (!line.startsWith("data:")) {
+                continue;
+              }
+              JsonNode event = MAPPER.readTree(line.substring("data:".length()));
+              @Nullable JsonNode error = event.get("error");
+              if (error != null) {
+                throw new IOException("error while streaming generated text: " + error);
+              }
+              @Nullable JsonNode token = event.get("token");
+              if (token == null || token.path("special").asBoolean(false)) {
+                continue;
+              }
+              generatedTokens.incrementAndGet();
+              for (String chunk : chunker.append(token.path("text").asText())) {
+                emit.accept(threadState.newMessageFromBot(Instant.now(), chunk));
+              }
+            }
+          }
+          return null;
+        },
+        sink);
   }
 }
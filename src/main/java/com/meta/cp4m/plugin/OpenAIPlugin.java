@@ -13,18 +13,23 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.knuddels.jtokkit.Encodings;
 import com.knuddels.jtokkit.api.Encoding;
+import com.meta.cp4m.jfr.PluginCallEvent;
 import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.Payload;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.utils.HttpRequests;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.Optional;
+import org.apache.hc.client5.http.fluent.ContentResponseHandler;
 import org.apache.hc.client5.http.fluent.Request;
-import org.apache.hc.client5.http.fluent.Response;
 import org.apache.hc.core5.http.ContentType;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.common.returnsreceiver.qual.This;
@@ -86,7 +91,7 @@ public class OpenAIPlugin<T extends Message> implements Plugin<T> {
     return tokenCount;
   }
 
-  private Optional<ArrayNode> pruneMessages(ArrayNode messages, @Nullable JsonNode functions)
+  Optional<ArrayNode> pruneMessages(ArrayNode messages, @Nullable JsonNode functions)
       throws JsonProcessingException {
 
     int functionTokens = 0;
@@ -128,16 +133,18 @@ public class OpenAIPlugin<T extends Message> implements Plugin<T> {
     return Optional.of(output);
   }
 
-  @Override
-  public T handle(ThreadState<T> threadState) throws IOException {
-    T fromUser = threadState.tail();
-
+  /**
+   * Build the request body for this thread, excluding the user identifier
+   *
+   * @return the request body or empty if the thread doesn't fit within the input token limit
+   */
+  private Optional<ObjectNode> requestBody(ThreadState<T> threadState)
+      throws JsonProcessingException {
     ObjectNode body = MAPPER.createObjectNode();
     body.put("model", config.model().properties().name())
         // .put("function_call", "auto") // Update when we support functions
         .put("n", 1)
-        .put("stream", false)
-        .put("user", fromUser.senderId().toString());
+        .put("stream", false);
     config.topP().ifPresent(v -> body.put("top_p", v));
     config.temperature().ifPresent(v -> body.put("temperature", v));
     config.maxOutputTokens().ifPresent(v -> body.put("max_tokens", v));
@@ -168,10 +175,33 @@ public class OpenAIPlugin<T extends Message> implements Plugin<T> {
 
     Optional<ArrayNode> prunedMessages = pruneMessages(messages, null);
     if (prunedMessages.isEmpty()) {
+      return Optional.empty();
+    }
+    body.set("messages", prunedMessages.get());
+    return Optional.of(body);
+  }
+
+  @Override
+  public Optional<HashCode> requestKey(ThreadState<T> threadState) {
+    try {
+      // the user field is only used for abuse monitoring so it's left out of the key
+      return requestBody(threadState)
+          .map(b -> Hashing.sha256().hashString(b.toString(), StandardCharsets.UTF_8));
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException(e); // this should be impossible
+    }
+  }
+
+  @Override
+  public T handle(ThreadState<T> threadState) throws IOException {
+    T fromUser = threadState.tail();
+
+    Optional<ObjectNode> requestBody = requestBody(threadState);
+    if (requestBody.isEmpty()) {
       return threadState.newMessageFromBot(
           Instant.now(), "I'm sorry but that request was too long for me.");
     }
-    body.set("messages", prunedMessages.get());
+    ObjectNode body = requestBody.get().put("user", fromUser.senderId().toString());
 
     String bodyString;
     try {
@@ -179,13 +209,31 @@ public class OpenAIPlugin<T extends Message> implements Plugin<T> {
     } catch (JsonProcessingException e) {
       throw new RuntimeException(e); // this should be impossible
     }
-    Response response =
-        Request.post(endpoint)
-            .bodyString(bodyString, ContentType.APPLICATION_JSON)
-            .setHeader("Authorization", "Bearer " + config.apiKey())
-            .execute();
-
-    JsonNode responseBody = MAPPER.readTree(response.returnContent().asBytes());
+    PluginCallEvent event = new PluginCallEvent();
+    event.begin();
+    @Nullable JsonNode responseBody = null;
+    try {
+      Request request =
+          Request.post(endpoint)
+              .bodyString(bodyString, ContentType.APPLICATION_JSON)
+              .setHeader("Authorization", "Bearer " + config.apiKey());
+      responseBody =
+          MAPPER.readTree(
+              HttpRequests.execute(endpoint, request, new ContentResponseHandler()).asBytes());
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.plugin = "OpenAIPlugin";
+        event.model = config.model().properties().name();
+        event.succeeded = responseBody != null;
+        if (responseBody != null) {
+          JsonNode usage = responseBody.path("usage");
+          event.promptTokens = usage.path("prompt_tokens").asInt(-1);
+          event.completionTokens = usage.path("completion_tokens").asInt(-1);
+        }
+        event.commit();
+      }
+    }
     Instant timestamp = Instant.ofEpochSecond(responseBody.get("created").longValue());
     JsonNode choice = responseBody.get("choices").get(0);
     String messageContent = choice.get("message").get("content").textValue();
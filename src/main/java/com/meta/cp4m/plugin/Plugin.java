@@ -8,11 +8,54 @@
 
 package com.meta.cp4m.plugin;
 
+import com.google.common.hash.HashCode;
 import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
 import java.io.IOException;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface Plugin<T extends Message> {
 
   T handle(ThreadState<T> threadState) throws IOException;
+
+  /**
+   * Generate a response and pass each part of it to the sink as soon as that part is complete.
+   * Plugins that can stream their output should override this, by default the full response is
+   * generated with {@link #handle(ThreadState)} and passed to the sink as a single message.
+   *
+   * @param threadState the thread to respond to
+   * @param sink receives each part of the response, in order
+   */
+  default void stream(ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    sink.accept(handle(threadState));
+  }
+
+  /**
+   * A key that identifies the upstream request this plugin would make for the given thread. Two
+   * threads that produce the same key must produce equivalent requests, so the response generated
+   * for one can be reused for the other.
+   *
+   * @param threadState the thread that would be passed to {@link #handle(ThreadState)}
+   * @return the key or empty if requests from this plugin cannot be shared between threads
+   */
+  default Optional<HashCode> requestKey(ThreadState<T> threadState) {
+    return Optional.empty();
+  }
+
+  /**
+   * Keep any metrics specific to this plugin in the given registry. Plugins that wrap other
+   * plugins should pass the registry on to them.
+   *
+   * @param registry the registry of the runner the plugin's service is added to
+   * @param service the path of the service, used to label the metrics
+   */
+  default void registerMetrics(MetricsRegistry registry, String service) {}
+
+  /**
+   * Release anything this plugin holds, such as clients or executors. Called when the runner the
+   * plugin's service is added to is closed. Plugins that wrap other plugins should close them too.
+   */
+  default void close() {}
 }
@@ -18,6 +18,9 @@ import com.meta.cp4m.message.Message;
   @JsonSubTypes.Type(value = HuggingFaceConfig.class, name = "hugging_face"),
   @JsonSubTypes.Type(value = EchoPluginConfig.class, name = "echo"),
   @JsonSubTypes.Type(value = GenericPluginConfig.class, name = "generic"),
+  @JsonSubTypes.Type(value = CircuitBreakerPluginConfig.class, name = "circuit_breaker"),
+  @JsonSubTypes.Type(value = HedgedPluginConfig.class, name = "hedged"),
+  @JsonSubTypes.Type(value = PoolPluginConfig.class, name = "pool"),
 })
 public interface PluginConfig {
 
@@ -0,0 +1,430 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads requests over a pool of equivalent endpoints, such as several replicas of a self-hosted
+ * model, without an external load balancer.
+ *
+ * <p>Each request goes to the endpoint with the fewest outstanding requests or, with {@link
+ * Selection#POWER_OF_TWO_CHOICES}, to the cheaper of two endpoints picked at random where the cost
+ * is the number of outstanding requests weighted by an exponentially weighted moving average of the
+ * endpoint's latency. A failed request counts as twice as slow as the average and at least a
+ * second, so an endpoint that fails fast is not picked over one that answers.
+ *
+ * <p>An endpoint that fails several requests in a row is ejected from the pool. Once the ejection
+ * duration has passed the next request is sent to it as a probe, if the probe succeeds the endpoint
+ * rejoins the pool and otherwise it is ejected again. If every endpoint is ejected requests are
+ * spread over all of them rather than failing outright.
+ *
+ * @param <T> the type of message being handled
+ */
+public class PoolPlugin<T extends Message> implements Plugin<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PoolPlugin.class);
+  // the weight of the latest request in the latency average
+  private static final double EWMA_WEIGHT = 0.2;
+  // a failed request counts as at least this slow in the latency average
+  private static final long FAILURE_PENALTY_NANOS = Duration.ofSeconds(1).toNanos();
+
+  private final List<Endpoint> endpoints;
+  private final Selection selection;
+  private final Policy policy;
+
+  /**
+   * @param endpoints equivalent plugins by name, any of them can answer any request
+   * @param selection how an endpoint is picked for each request
+   * @param policy when endpoints are ejected from the pool
+   */
+  public PoolPlugin(Map<String, Plugin<T>> endpoints, Selection selection, Policy policy) {
+    Preconditions.checkArgument(!endpoints.isEmpty(), "a pool needs at least one endpoint");
+    List<Endpoint> list = new ArrayList<>(endpoints.size());
+    endpoints.forEach((name, plugin) -> list.add(new Endpoint(name, plugin)));
+    this.endpoints = List.copyOf(list);
+    this.selection = selection;
+    this.policy = policy;
+  }
+
+  @Override
+  public T handle(ThreadState<T> threadState) throws IOException {
+    Endpoint endpoint = select();
+    long start = System.nanoTime();
+    try {
+      T response = endpoint.plugin.handle(threadState);
+      succeeded(endpoint, System.nanoTime() - start);
+      return response;
+    } catch (IOException | RuntimeException e) {
+      failed(endpoint, System.nanoTime() - start, e);
+      throw e;
+    } finally {
+      endpoint.outstanding.decrementAndGet();
+    }
+  }
+
+  @Override
+  public void stream(ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    Endpoint endpoint = select();
+    // the time spent passing parts on is not the endpoint's latency
+    AtomicLong sinkNanos = new AtomicLong();
+    long start = System.nanoTime();
+    try {
+      endpoint.plugin.stream(
+          threadState,
+          message -> {
+            long passed = System.nanoTime();
+            sink.accept(message);
+            sinkNanos.addAndGet(System.nanoTime() - passed);
+          });
+      succeeded(endpoint, System.nanoTime() - start - sinkNanos.get());
+    } catch (IOException | RuntimeException e) {
+      failed(endpoint, System.nanoTime() - start - sinkNanos.get(), e);
+      throw e;
+    } finally {
+      endpoint.outstanding.decrementAndGet();
+    }
+  }
+
+  @Override
+  public Optional<HashCode> requestKey(ThreadState<T> threadState) {
+    // the endpoints are equivalent so they make the same request
+    return endpoints.getFirst().plugin.requestKey(threadState);
+  }
+
+  /**
+   * Picks the endpoint for a request and counts the request as outstanding on it
+   *
+   * @return the endpoint the request must be sent to
+   */
+  Endpoint select() {
+    long now = System.nanoTime();
+    List<Endpoint> healthy = new ArrayList<>(endpoints.size());
+    for (Endpoint endpoint : endpoints) {
+      switch (endpoint.admit(now)) {
+        case PROBE -> {
+          return endpoint.start();
+        }
+        case HEALTHY -> healthy.add(endpoint);
+        case EJECTED -> {}
+      }
+    }
+    if (healthy.isEmpty()) {
+      LOGGER.atWarn().log("every endpoint in the pool is ejected, using all of them");
+      healthy = endpoints;
+    }
+    return switch (selection) {
+      case LEAST_OUTSTANDING -> leastOutstanding(healthy).start();
+      case POWER_OF_TWO_CHOICES -> powerOfTwoChoices(healthy).start();
+    };
+  }
+
+  private Endpoint leastOutstanding(List<Endpoint> candidates) {
+    // start at a random endpoint so that ties are spread over the pool
+    int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+    Endpoint best = candidates.get(offset);
+    for (int i = 1; i < candidates.size(); i++) {
+      Endpoint candidate = candidates.get((offset + i) % candidates.size());
+      int outstanding = candidate.outstanding.get();
+      int bestOutstanding = best.outstanding.get();
+      if (outstanding < bestOutstanding
+          || (outstanding == bestOutstanding && candidate.ewmaNanos() < best.ewmaNanos())) {
+        best = candidate;
+      }
+    }
+    return best;
+  }
+
+  private Endpoint powerOfTwoChoices(List<Endpoint> candidates) {
+    if (candidates.size() == 1) {
+      return candidates.getFirst();
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(candidates.size());
+    int second = random.nextInt(candidates.size() - 1);
+    if (second >= first) {
+      second++;
+    }
+    Endpoint a = candidates.get(first);
+    Endpoint b = candidates.get(second);
+    return a.cost() <= b.cost() ? a : b;
+  }
+
+  private void succeeded(Endpoint endpoint, long nanos) {
+    endpoint.requests.increment();
+    endpoint.lock.lock();
+    try {
+      endpoint.record(nanos);
+      endpoint.consecutiveFailures = 0;
+      if (endpoint.ejected) {
+        LOGGER.atInfo().addKeyValue("endpoint", endpoint.name).log("endpoint rejoined the pool");
+      }
+      endpoint.ejected = false;
+      endpoint.probing = false;
+    } finally {
+      endpoint.lock.unlock();
+    }
+  }
+
+  private void failed(Endpoint endpoint, long nanos, Exception e) {
+    endpoint.requests.increment();
+    endpoint.failures.increment();
+    endpoint.lock.lock();
+    try {
+      endpoint.record(Math.max(nanos, Math.max(FAILURE_PENALTY_NANOS, 2 * endpoint.ewmaNanos)));
+      endpoint.consecutiveFailures++;
+      if (endpoint.probing
+          || (!endpoint.ejected && endpoint.consecutiveFailures >= policy.consecutiveFailures())) {
+        LOGGER
+            .atWarn()
+            .setCause(e)
+            .addKeyValue("endpoint", endpoint.name)
+            .addKeyValue("consecutive_failures", endpoint.consecutiveFailures)
+            .log("ejecting endpoint from the pool");
+        endpoint.ejected = true;
+        endpoint.probing = false;
+        endpoint.ejectedAt = System.nanoTime();
+        endpoint.ejections.increment();
+      }
+    } finally {
+      endpoint.lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    endpoints.forEach(endpoint -> endpoint.plugin.close());
+  }
+
+  @Override
+  public void registerMetrics(MetricsRegistry registry, String service) {
+    for (Endpoint endpoint : endpoints) {
+      endpoint.plugin.registerMetrics(registry, service);
+      registry.gauge(
+          "cp4m_pool_outstanding_requests",
+          "Requests in flight to the endpoint",
+          endpoint.outstanding::get,
+          "service",
+          service,
+          "endpoint",
+          endpoint.name);
+      registry.gauge(
+          "cp4m_pool_latency_ewma_ms",
+          "Moving average of the latency of requests to the endpoint, failures count as slow",
+          () -> TimeUnit.NANOSECONDS.toMillis((long) endpoint.ewmaNanos()),
+          "service",
+          service,
+          "endpoint",
+          endpoint.name);
+      registry.gauge(
+          "cp4m_pool_ejected",
+          "1 if the endpoint is ejected from the pool, otherwise 0",
+          () -> endpoint.ejected() ? 1 : 0,
+          "service",
+          service,
+          "endpoint",
+          endpoint.name);
+      registry.counter(
+          "cp4m_pool_requests_total",
+          "Requests sent to the endpoint",
+          endpoint.requests::sum,
+          "service",
+          service,
+          "endpoint",
+          endpoint.name);
+      registry.counter(
+          "cp4m_pool_failures_total",
+          "Requests to the endpoint that failed",
+          endpoint.failures::sum,
+          "service",
+          service,
+          "endpoint",
+          endpoint.name);
+      registry.counter(
+          "cp4m_pool_ejections_total",
+          "Times the endpoint was ejected from the pool",
+          endpoint.ejections::sum,
+          "service",
+          service,
+          "endpoint",
+          endpoint.name);
+    }
+  }
+
+  public Selection selection() {
+    return selection;
+  }
+
+  /**
+   * @return the endpoints in the pool
+   */
+  public List<Endpoint> endpoints() {
+    return endpoints;
+  }
+
+  private enum Admission {
+    HEALTHY,
+    PROBE,
+    EJECTED
+  }
+
+  public final class Endpoint {
+    private final String name;
+    private final Plugin<T> plugin;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private double ewmaNanos = 0;
+    private int consecutiveFailures = 0;
+    private boolean ejected = false;
+    private boolean probing = false;
+    private long ejectedAt;
+
+    private Endpoint(String name, Plugin<T> plugin) {
+      this.name = name;
+      this.plugin = plugin;
+    }
+
+    private Admission admit(long now) {
+      lock.lock();
+      try {
+        if (!ejected) {
+          return Admission.HEALTHY;
+        } else if (!probing && now - ejectedAt >= policy.ejectionDuration().toNanos()) {
+          probing = true;
+          return Admission.PROBE;
+        }
+        return Admission.EJECTED;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Adds a request to the latency average, the lock must be held */
+    private void record(double nanos) {
+      ewmaNanos = ewmaNanos == 0 ? nanos : EWMA_WEIGHT * nanos + (1 - EWMA_WEIGHT) * ewmaNanos;
+    }
+
+    private Endpoint start() {
+      outstanding.incrementAndGet();
+      return this;
+    }
+
+    private double cost() {
+      // an endpoint that has not answered yet is tried before the others
+      return (outstanding.get() + 1) * ewmaNanos();
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public Plugin<T> plugin() {
+      return plugin;
+    }
+
+    /**
+     * @return the number of requests in flight to this endpoint
+     */
+    public int outstanding() {
+      return outstanding.get();
+    }
+
+    /**
+     * @return the moving average of the latency of requests in nanoseconds, with failures counted
+     *     as slow requests
+     */
+    public double ewmaNanos() {
+      lock.lock();
+      try {
+        return ewmaNanos;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public boolean ejected() {
+      lock.lock();
+      try {
+        return ejected;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return the number of requests sent to this endpoint
+     */
+    public long requests() {
+      return requests.sum();
+    }
+
+    /**
+     * @return the number of times this endpoint was ejected from the pool
+     */
+    public long ejections() {
+      return ejections.sum();
+    }
+  }
+
+  public enum Selection {
+    LEAST_OUTSTANDING,
+    POWER_OF_TWO_CHOICES;
+
+    public String label() {
+      return name().toLowerCase();
+    }
+
+    public static Selection fromLabel(String label) {
+      for (Selection selection : values()) {
+        if (selection.label().equals(label)) {
+          return selection;
+        }
+      }
+      throw new IllegalArgumentException("unknown selection " + label);
+    }
+  }
+
+  /**
+   * When endpoints are ejected from the pool
+   *
+   * @param consecutiveFailures the number of requests in a row that must fail to eject an endpoint
+   * @param ejectionDuration how long an endpoint is ejected before a probe request is sent to it
+   */
+  public record Policy(int consecutiveFailures, Duration ejectionDuration) {
+    public Policy {
+      Preconditions.checkArgument(
+          consecutiveFailures > 0, "consecutiveFailures must be greater than 0");
+      Preconditions.checkArgument(
+          !ejectionDuration.isNegative(), "ejectionDuration must not be negative");
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.message.Message;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class PoolPluginConfig implements PluginConfig {
+
+  private final String name;
+  private final List<PluginConfig> endpoints;
+  private final PoolPlugin.Selection selection;
+  private final PoolPlugin.Policy policy;
+
+  @JsonCreator
+  PoolPluginConfig(
+      @JsonProperty("name") String name,
+      @JsonProperty("endpoints") List<PluginConfig> endpoints,
+      @JsonProperty("selection") @Nullable String selection,
+      @JsonProperty("consecutive_failures") @Nullable Integer consecutiveFailures,
+      @JsonProperty("ejection_ms") @Nullable Long ejectionMs) {
+    Preconditions.checkArgument(name != null && !name.isBlank(), "name cannot be blank");
+    Preconditions.checkArgument(
+        endpoints != null && !endpoints.isEmpty(), "endpoints must have at least one plugin");
+    Preconditions.checkArgument(
+        endpoints.stream().map(PluginConfig::name).distinct().count() == endpoints.size(),
+        "endpoints must have unique names");
+    Preconditions.checkArgument(
+        ejectionMs == null || ejectionMs > 0, "ejection_ms must be greater than 0");
+    this.name = name;
+    this.endpoints = List.copyOf(endpoints);
+    this.selection =
+        PoolPlugin.Selection.fromLabel(Objects.requireNonNullElse(selection, "least_outstanding"));
+    this.policy =
+        new PoolPlugin.Policy(
+            Objects.requireNonNullElse(consecutiveFailures, 5),
+            Duration.ofMillis(Objects.requireNonNullElse(ejectionMs, 30_000L)));
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  /**
+   * @return equivalent plugins, any of them can answer any request
+   */
+  public List<PluginConfig> endpoints() {
+    return endpoints;
+  }
+
+  public PoolPlugin.Selection selection() {
+    return selection;
+  }
+
+  public PoolPlugin.Policy policy() {
+    return policy;
+  }
+
+  @Override
+  public <T extends Message> Plugin<T> toPlugin() {
+    Map<String, Plugin<T>> plugins = new LinkedHashMap<>();
+    endpoints.forEach(e -> plugins.put(e.name(), e.toPlugin()));
+    return new PoolPlugin<>(plugins, selection, policy);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import com.google.common.hash.HashCode;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapses identical in-flight requests into a single call to the wrapped plugin. The first thread
+ * to make a request with a given {@link Plugin#requestKey(ThreadState)} becomes the leader and
+ * calls the wrapped plugin, every thread that makes the same request while the leader is in flight
+ * waits for the leader's response and receives a copy of it addressed to its own thread.
+ *
+ * @param <T> the type of message being handled
+ */
+public class SingleFlightPlugin<T extends Message> implements Plugin<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SingleFlightPlugin.class);
+  private final Plugin<T> plugin;
+  private final ConcurrentHashMap<HashCode, CompletableFuture<T>> inFlight =
+      new ConcurrentHashMap<>();
+  private final LongAdder leaderRequests = new LongAdder();
+  private final LongAdder collapsedRequests = new LongAdder();
+
+  public SingleFlightPlugin(Plugin<T> plugin) {
+    this.plugin = Objects.requireNonNull(plugin);
+  }
+
+  @Override
+  public T handle(ThreadState<T> threadState) throws IOException {
+    Optional<HashCode> key = plugin.requestKey(threadState);
+    if (key.isEmpty()) {
+      return plugin.handle(threadState);
+    }
+
+    CompletableFuture<T> leader = new CompletableFuture<>();
+    @Nullable CompletableFuture<T> existing = inFlight.putIfAbsent(key.get(), leader);
+    if (existing == null) {
+      leaderRequests.increment();
+      try {
+        T response = plugin.handle(threadState);
+        leader.complete(response);
+        return response;
+      } catch (IOException | RuntimeException e) {
+        leader.completeExceptionally(e);
+        throw e;
+      } finally {
+        inFlight.remove(key.get(), leader);
+      }
+    }
+
+    collapsedRequests.increment();
+    LOGGER
+        .atDebug()
+        .addKeyValue("request_key", key.get())
+        .addKeyValue("thread_id", threadState.threadId())
+        .log("collapsing request into in-flight request");
+    T leaderResponse;
+    try {
+      leaderResponse = existing.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for collapsed request", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw new IOException("collapsed request failed", cause);
+      }
+      throw new RuntimeException("collapsed request failed", e.getCause());
+    }
+    return threadState.newMessageFromBot(Instant.now(), leaderResponse.payload());
+  }
+
+  /**
+   * Streamed responses are not collapsed, they go straight to the wrapped plugin so that every
+   * caller sees its parts as they are generated
+   */
+  @Override
+  public void stream(ThreadState<T> threadState, Consumer<T> sink) throws IOException {
+    plugin.stream(threadState, sink);
+  }
+
+  @Override
+  public Optional<HashCode> requestKey(ThreadState<T> threadState) {
+    return plugin.requestKey(threadState);
+  }
+
+  @Override
+  public void registerMetrics(MetricsRegistry registry, String service) {
+    plugin.registerMetrics(registry, service);
+  }
+
+  @Override
+  public void close() {
+    plugin.close();
+  }
+
+  public Plugin<T> plugin() {
+    return plugin;
+  }
+
+  /**
+   * @return the number of requests that were sent to the wrapped plugin
+   */
+  public long leaderRequests() {
+    return leaderRequests.sum();
+  }
+
+  /**
+   * @return the number of requests that were answered with the response of an in-flight request
+   */
+  public long collapsedRequests() {
+    return collapsedRequests.sum();
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.recording;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * One webhook exactly as it arrived, this is the unit that is written to and read from capture
+ * files
+ *
+ * @param arrivalMicros microseconds since the epoch at which the webhook arrived
+ * @param path the path the webhook was posted to
+ * @param headers the request headers
+ * @param body the raw request body
+ */
+public record RecordedWebhook(
+    @JsonProperty("arrival_micros") long arrivalMicros,
+    @JsonProperty("path") String path,
+    @JsonProperty("headers") Map<String, String> headers,
+    @JsonProperty("body") String body) {
+
+  public RecordedWebhook {
+    Objects.requireNonNull(path);
+    headers = Map.copyOf(headers);
+    Objects.requireNonNull(body);
+  }
+
+  public static RecordedWebhook of(
+      Instant arrival, String path, Map<String, String> headers, String body) {
+    return new RecordedWebhook(
+        ChronoUnit.MICROS.between(Instant.EPOCH, arrival), path, headers, body);
+  }
+
+  @JsonIgnore
+  public Instant arrival() {
+    return Instant.EPOCH.plus(arrivalMicros, ChronoUnit.MICROS);
+  }
+}
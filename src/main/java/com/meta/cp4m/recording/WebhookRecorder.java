@@ -0,0 +1,238 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.recording;
+
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingOutputStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends webhooks to gzip compressed JSON lines capture files so production traffic can be
+ * replayed later with {@link WebhookReplayer}.
+ *
+ * <p>Recording never blocks the request thread, webhooks are put on a bounded queue and written in
+ * batches by a single background thread. If the writer falls behind the webhook is dropped and
+ * counted in {@link #dropped()}. Each batch is flushed so a crash loses at most the batch being
+ * written. Files are rotated once they reach the maximum size and the oldest files are deleted so
+ * that at most {@code maxFiles} are kept.
+ *
+ * <p>Capture files contain the full message contents sent by users, treat them accordingly.
+ */
+public class WebhookRecorder implements AutoCloseable {
+
+  static final String FILE_PREFIX = "webhooks-";
+  static final String FILE_SUFFIX = ".jsonl.gz";
+  private static final Logger LOGGER = LoggerFactory.getLogger(WebhookRecorder.class);
+  private static final JsonMapper MAPPER = new JsonMapper();
+
+  private final Path directory;
+  private final long maxFileSizeBytes;
+  private final int maxFiles;
+  private final BlockingQueue<RecordedWebhook> queue;
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writer;
+  private volatile boolean closed = false;
+
+  // only accessed by the writer thread
+  private @Nullable CountingOutputStream fileOut;
+  private @Nullable OutputStream out;
+  private long fileSequence = 0;
+
+  public WebhookRecorder(Path directory, long maxFileSizeBytes, int maxFiles, int queueCapacity)
+      throws IOException {
+    Preconditions.checkArgument(maxFileSizeBytes > 0, "maxFileSizeBytes must be greater than 0");
+    Preconditions.checkArgument(maxFiles > 0, "maxFiles must be greater than 0");
+    this.directory = Files.createDirectories(directory);
+    this.maxFileSizeBytes = maxFileSizeBytes;
+    this.maxFiles = maxFiles;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.writer = Thread.ofPlatform().name("webhook-recorder").daemon().start(this::writeLoop);
+  }
+
+  /**
+   * Read every webhook in a capture file, or in every capture file in a directory oldest first.
+   * The returned stream reads lazily and must be closed.
+   *
+   * @param path a capture file or a directory of capture files
+   * @return the recorded webhooks in the order they were recorded
+   */
+  public static Stream<RecordedWebhook> read(Path path) throws IOException {
+    List<Path> files;
+    if (Files.isDirectory(path)) {
+      try (Stream<Path> list = Files.list(path)) {
+        files = list.filter(WebhookRecorder::isCaptureFile).sorted().toList();
+      }
+    } else {
+      files = List.of(path);
+    }
+    return files.stream().flatMap(WebhookRecorder::readFile);
+  }
+
+  private static boolean isCaptureFile(Path file) {
+    String name = file.getFileName().toString();
+    return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+  }
+
+  private static Stream<RecordedWebhook> readFile(Path file) {
+    BufferedReader reader;
+    try {
+      reader =
+          new BufferedReader(
+              new InputStreamReader(
+                  new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return reader
+        .lines()
+        .filter(line -> !line.isBlank())
+        .map(
+            line -> {
+              try {
+                return MAPPER.readValue(line, RecordedWebhook.class);
+              } catch (IOException e) {
+                throw new UncheckedIOException("unable to parse line in " + file, e);
+              }
+            })
+        .onClose(
+            () -> {
+              try {
+                reader.close();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+  }
+
+  /**
+   * Queue a webhook to be written, this never blocks
+   *
+   * @param webhook the webhook to record
+   */
+  public void record(RecordedWebhook webhook) {
+    if (closed || !queue.offer(webhook)) {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * @return the number of webhooks that were not recorded because the writer had fallen behind
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  public Path directory() {
+    return directory;
+  }
+
+  private void writeLoop() {
+    List<RecordedWebhook> batch = new ArrayList<>();
+    while (!closed || !queue.isEmpty()) {
+      try {
+        @Nullable RecordedWebhook first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch);
+        write(batch);
+      } catch (InterruptedException e) {
+        break;
+      } catch (IOException e) {
+        LOGGER
+            .atError()
+            .setCause(e)
+            .addKeyValue("webhooks", batch.size())
+            .log("unable to write webhooks to capture file");
+        closeFile();
+      }
+      batch.clear();
+    }
+    closeFile();
+  }
+
+  private void write(List<RecordedWebhook> batch) throws IOException {
+    @Nullable OutputStream current = out;
+    for (RecordedWebhook webhook : batch) {
+      if (current == null || fileOut == null || fileOut.getCount() >= maxFileSizeBytes) {
+        current = rotate();
+      }
+      current.write(MAPPER.writeValueAsBytes(webhook));
+      current.write('\n');
+    }
+    if (current != null) {
+      current.flush();
+    }
+  }
+
+  private OutputStream rotate() throws IOException {
+    closeFile();
+    Path file =
+        directory.resolve(
+            String.format(
+                "%s%d-%06d%s",
+                FILE_PREFIX, System.currentTimeMillis(), fileSequence++, FILE_SUFFIX));
+    fileOut = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+    // sync flush so every flushed batch can be read back even while the file is still open
+    OutputStream gzip = new GZIPOutputStream(fileOut, true);
+    out = gzip;
+    pruneOldFiles();
+    return gzip;
+  }
+
+  private void pruneOldFiles() throws IOException {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.filter(WebhookRecorder::isCaptureFile).sorted().toList();
+    }
+    for (int i = 0; i < files.size() - maxFiles; i++) {
+      Files.deleteIfExists(files.get(i));
+    }
+  }
+
+  private void closeFile() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOGGER.atError().setCause(e).log("unable to close capture file");
+      }
+    }
+    out = null;
+    fileOut = null;
+  }
+
+  /** Stop accepting webhooks and wait for the queued webhooks to be written */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.recording;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class WebhookRecorderConfig {
+  private static final long MB = 1024 * 1024;
+
+  private final Path directory;
+  private final long maxFileSizeMbs;
+  private final int maxFiles;
+  private final int queueCapacity;
+
+  @JsonCreator
+  WebhookRecorderConfig(
+      @JsonProperty("directory") String directory,
+      @JsonProperty("max_file_size_mbs") @Nullable Long maxFileSizeMbs,
+      @JsonProperty("max_files") @Nullable Integer maxFiles,
+      @JsonProperty("queue_capacity") @Nullable Integer queueCapacity) {
+    Preconditions.checkArgument(
+        directory != null && !directory.isBlank(), "directory must be present");
+    this.directory = Path.of(directory);
+    this.maxFileSizeMbs = Objects.requireNonNullElse(maxFileSizeMbs, 64L);
+    this.maxFiles = Objects.requireNonNullElse(maxFiles, 16);
+    this.queueCapacity = Objects.requireNonNullElse(queueCapacity, 10_000);
+    Preconditions.checkArgument(
+        this.maxFileSizeMbs > 0, "max_file_size_mbs must be greater than zero");
+    Preconditions.checkArgument(this.maxFiles > 0, "max_files must be greater than zero");
+    Preconditions.checkArgument(
+        this.queueCapacity > 0, "queue_capacity must be greater than zero");
+  }
+
+  /**
+   * @return the directory that capture files are written to
+   */
+  public Path directory() {
+    return directory;
+  }
+
+  /**
+   * @return the compressed size at which a capture file is closed and a new one is started
+   */
+  public long maxFileSizeMbs() {
+    return maxFileSizeMbs;
+  }
+
+  /**
+   * @return the number of capture files to keep, the oldest is deleted once there are more
+   */
+  public int maxFiles() {
+    return maxFiles;
+  }
+
+  /**
+   * @return the number of webhooks that can be waiting to be written before new ones are dropped
+   */
+  public int queueCapacity() {
+    return queueCapacity;
+  }
+
+  public WebhookRecorder toWebhookRecorder() {
+    try {
+      return new WebhookRecorder(directory, maxFileSizeMbs * MB, maxFiles, queueCapacity);
+    } catch (IOException e) {
+      throw new UncheckedIOException("unable to create webhook recorder in " + directory, e);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.recording;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.meta.cp4m.utils.HttpRequests;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpResponse;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends webhooks captured by {@link WebhookRecorder} to a running {@link
+ * com.meta.cp4m.ServicesRunner}.
+ *
+ * <p>Webhooks are sent with the same spacing they arrived with, divided by the speed. A speed of
+ * {@link Double#POSITIVE_INFINITY} sends them as fast as possible. Webhooks from the same user are
+ * always sent one at a time and in their original order, each waits for the previous one to be
+ * acknowledged, so the conversation each user sees is unchanged. Every webhook is signed again with
+ * the app secret for its path, which lets captures from production be replayed against a test
+ * deployment with different secrets.
+ *
+ * <p>Run with: {@code java -cp cp4m.jar com.meta.cp4m.recording.WebhookReplayer --capture
+ * <file or directory> --target http://localhost:8080 --app-secret <secret> --speed 2}. {@code
+ * --app-secret} may be given once per webhook path as {@code /path=secret}, and {@code --speed}
+ * also accepts {@code max}.
+ */
+public class WebhookReplayer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WebhookReplayer.class);
+  private static final JsonMapper MAPPER = new JsonMapper();
+  // these are recalculated or set by the http client and must not be copied from the capture
+  private static final Set<String> SKIPPED_HEADERS =
+      Set.of(
+          "x-hub-signature",
+          "x-hub-signature-256",
+          "content-length",
+          "content-type",
+          "host",
+          "connection",
+          "transfer-encoding");
+  private static final int PRUNE_LANES_EVERY = 10_000;
+
+  private final URI target;
+  private final Function<String, String> appSecretForPath;
+  private final double speed;
+
+  /**
+   * @param target base url of the services runner, the recorded path is resolved against it
+   * @param appSecretForPath the app secret used to sign webhooks sent to the given path
+   * @param speed multiplier applied to the recorded pace, {@link Double#POSITIVE_INFINITY} for as
+   *     fast as possible
+   */
+  public WebhookReplayer(URI target, Function<String, String> appSecretForPath, double speed) {
+    Preconditions.checkArgument(speed > 0, "speed must be greater than zero");
+    this.target = Objects.requireNonNull(target);
+    this.appSecretForPath = Objects.requireNonNull(appSecretForPath);
+    this.speed = speed;
+  }
+
+  public static void main(String[] args) throws IOException {
+    @Nullable Path capture = null;
+    URI target = URI.create("http://localhost:8080");
+    Map<String, String> secrets = new HashMap<>();
+    @Nullable String defaultSecret = null;
+    double speed = 1;
+    Preconditions.checkArgument(args.length % 2 == 0, "every option must have a value");
+    for (int i = 0; i < args.length; i += 2) {
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "--capture" -> capture = Path.of(value);
+        case "--target" -> target = URI.create(value);
+        case "--speed" ->
+            speed = value.equals("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(value);
+        case "--app-secret" -> {
+          int split = value.indexOf('=');
+          if (value.startsWith("/") && split > 0) {
+            secrets.put(value.substring(0, split), value.substring(split + 1));
+          } else {
+            defaultSecret = value;
+          }
+        }
+        default -> throw new IllegalArgumentException("unknown option: " + args[i]);
+      }
+    }
+    Preconditions.checkArgument(capture != null, "--capture is required");
+    Preconditions.checkArgument(
+        defaultSecret != null || !secrets.isEmpty(), "--app-secret is required");
+    @Nullable String fallback = defaultSecret;
+    Function<String, String> appSecretForPath =
+        path -> {
+          @Nullable String secret = secrets.getOrDefault(path, fallback);
+          Preconditions.checkArgument(secret != null, "no app secret given for " + path);
+          return secret;
+        };
+
+    Result result;
+    try (Stream<RecordedWebhook> webhooks = WebhookRecorder.read(capture)) {
+      result = new WebhookReplayer(target, appSecretForPath, speed).replay(webhooks);
+    }
+    System.out.println(result.summary());
+  }
+
+  /**
+   * Find the user that sent a webhook. WhatsApp messages and statuses and Messenger messages are
+   * understood, everything else shares a single key so its order is kept.
+   *
+   * @param body the webhook body
+   * @return the key that identifies the conversation the webhook belongs to
+   */
+  static String threadKey(String body) {
+    JsonNode root;
+    try {
+      root = MAPPER.readTree(body);
+    } catch (JsonProcessingException e) {
+      return "";
+    }
+    for (JsonNode entry : root.path("entry")) {
+      for (JsonNode change : entry.path("changes")) {
+        JsonNode value = change.path("value");
+        for (JsonNode message : value.path("messages")) {
+          if (message.hasNonNull("from")) {
+            return message.get("from").asText();
+          }
+        }
+        for (JsonNode status : value.path("statuses")) {
+          if (status.hasNonNull("recipient_id")) {
+            return status.get("recipient_id").asText();
+          }
+        }
+      }
+      for (JsonNode messaging : entry.path("messaging")) {
+        JsonNode sender = messaging.path("sender").path("id");
+        if (!sender.isMissingNode()) {
+          return sender.asText();
+        }
+      }
+    }
+    return "";
+  }
+
+  /**
+   * Send every webhook and wait for all of them to be acknowledged
+   *
+   * @param webhooks the webhooks in the order they were recorded
+   * @return the outcome of the replay
+   */
+  public Result replay(Stream<RecordedWebhook> webhooks) {
+    ConcurrentHistogram ackLatencyMicros = new ConcurrentHistogram(3);
+    LongAdder failed = new LongAdder();
+    LongAdder sent = new LongAdder();
+    Map<String, CompletableFuture<Void>> lanes = new HashMap<>();
+    long start = System.nanoTime();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      long firstArrival = -1;
+      long dispatched = 0;
+      for (Iterator<RecordedWebhook> it = webhooks.iterator(); it.hasNext(); ) {
+        RecordedWebhook webhook = it.next();
+        if (firstArrival < 0) {
+          firstArrival = webhook.arrivalMicros();
+        }
+        if (speed != Double.POSITIVE_INFINITY) {
+          long offsetNanos = TimeUnit.MICROSECONDS.toNanos(webhook.arrivalMicros() - firstArrival);
+          long wait = start + (long) (offsetNanos / speed) - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        Runnable send =
+            () -> {
+              long sendStart = System.nanoTime();
+              if (!send(webhook)) {
+                failed.increment();
+              }
+              sent.increment();
+              ackLatencyMicros.recordValue(
+                  TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendStart));
+            };
+        lanes.compute(
+            threadKey(webhook.body()),
+            (key, previous) ->
+                previous == null
+                    ? CompletableFuture.runAsync(send, executor)
+                    : previous.thenRunAsync(send, executor));
+        if (++dispatched % PRUNE_LANES_EVERY == 0) {
+          lanes.values().removeIf(CompletableFuture::isDone);
+        }
+      }
+      CompletableFuture.allOf(lanes.values().toArray(CompletableFuture[]::new)).join();
+    }
+    return new Result(
+        sent.sum(), failed.sum(), Duration.ofNanos(System.nanoTime() - start), ackLatencyMicros);
+  }
+
+  private boolean send(RecordedWebhook webhook) {
+    String signature =
+        "sha256="
+            + Hashing.hmacSha256(
+                    appSecretForPath.apply(webhook.path()).getBytes(StandardCharsets.UTF_8))
+                .hashString(webhook.body(), StandardCharsets.UTF_8);
+    URI uri = target.resolve(webhook.path());
+    Request request =
+        Request.post(uri)
+            .bodyString(webhook.body(), ContentType.APPLICATION_JSON)
+            .setHeader("X-Hub-Signature-256", signature);
+    webhook.headers().entrySet().stream()
+        .filter(h -> !SKIPPED_HEADERS.contains(h.getKey().toLowerCase(Locale.ROOT)))
+        .forEach(h -> request.setHeader(h.getKey(), h.getValue()));
+    try {
+      int code = HttpRequests.execute(uri, request, HttpResponse::getCode);
+      if (code >= 200 && code < 300) {
+        return true;
+      }
+      LOGGER
+          .atWarn()
+          .addKeyValue("path", webhook.path())
+          .addKeyValue("status", code)
+          .log("replayed webhook was rejected");
+    } catch (IOException e) {
+      LOGGER
+          .atWarn()
+          .setCause(e)
+          .addKeyValue("path", webhook.path())
+          .log("unable to replay webhook");
+    }
+    return false;
+  }
+
+  /**
+   * @param sent number of webhooks sent
+   * @param failed number of webhooks that were not acknowledged with a 2xx
+   * @param elapsed time taken to send every webhook and receive every acknowledgement
+   * @param ackLatencyMicros time taken for each webhook to be acknowledged
+   */
+  public record Result(long sent, long failed, Duration elapsed, Histogram ackLatencyMicros) {
+
+    public String summary() {
+      double seconds = elapsed.toNanos() / 1e9;
+      return String.format(
+          "replayed %d webhooks in %.1fs (%.1f/s), %d failed%n"
+              + "ack latency (ms): p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+          sent,
+          seconds,
+          sent / seconds,
+          failed,
+          ackLatencyMicros.getValueAtPercentile(50) / 1000.0,
+          ackLatencyMicros.getValueAtPercentile(90) / 1000.0,
+          ackLatencyMicros.getValueAtPercentile(99) / 1000.0,
+          ackLatencyMicros.getMaxValue() / 1000.0);
+    }
+  }
+}
@@ -10,6 +10,7 @@ package com.meta.cp4m.store;
 
 import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
 import java.util.List;
 
 /**
@@ -28,4 +29,12 @@ public interface ChatStore<T extends Message> {
   ThreadState<T> update(ThreadState<T> threadState);
 
   List<ThreadState<T>> list();
+
+  /**
+   * Register this store's own metrics, if it has any
+   *
+   * @param registry the registry of the runner the service is added to
+   * @param service the path of the service the store belongs to
+   */
+  default void registerMetrics(MetricsRegistry registry, String service) {}
 }
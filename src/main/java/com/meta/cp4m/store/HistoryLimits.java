@@ -0,0 +1,113 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.store;
+
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.Payload;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.utils.ApproximateTokens;
+import java.util.List;
+
+/**
+ * How much of each thread a store keeps. The oldest messages are dropped so that every limit is
+ * met, the latest message is always kept.
+ *
+ * @param length the number of messages
+ * @param tokens the approximate number of tokens, see {@link ApproximateTokens}
+ * @param bytes the total size of the payloads, text is measured in UTF-8
+ */
+record HistoryLimits(int length, long tokens, long bytes) {
+
+  HistoryLimits {
+    Preconditions.checkArgument(length > 0, "length must be greater than zero");
+    Preconditions.checkArgument(tokens > 0, "tokens must be greater than zero");
+    Preconditions.checkArgument(bytes > 0, "bytes must be greater than zero");
+  }
+
+  <T extends Message> ThreadState<T> truncate(ThreadState<T> thread) {
+    return track(thread).thread();
+  }
+
+  /**
+   * @return the thread cut down to the limits along with its totals
+   */
+  <T extends Message> Tracked<T> track(ThreadState<T> thread) {
+    long tokens = 0;
+    long bytes = 0;
+    for (T message : thread.messages()) {
+      tokens += ApproximateTokens.of(message);
+      bytes += bytes(message);
+    }
+    return dropOldest(thread, tokens, bytes);
+  }
+
+  /**
+   * Add a message to a thread, only the new message and the messages that are dropped are measured
+   *
+   * @return the thread with the message, cut down to the limits
+   */
+  <T extends Message> Tracked<T> add(Tracked<T> tracked, T message) {
+    return dropOldest(
+        tracked.thread().with(message),
+        tracked.tokens() + ApproximateTokens.of(message),
+        tracked.bytes() + bytes(message));
+  }
+
+  private <T extends Message> Tracked<T> dropOldest(
+      ThreadState<T> thread, long tokens, long bytes) {
+    List<T> messages = thread.messages();
+    int drop = 0;
+    while (messages.size() - drop > 1
+        && (messages.size() - drop > length || tokens > this.tokens || bytes > this.bytes)) {
+      T oldest = messages.get(drop++);
+      tokens -= ApproximateTokens.of(oldest);
+      bytes -= bytes(oldest);
+    }
+    return new Tracked<>(thread.truncateMessageHistory(messages.size() - drop), tokens, bytes);
+  }
+
+  /**
+   * @return the size of the message's payload, text is measured by its UTF-8 encoding
+   */
+  static long bytes(Message message) {
+    if (!(message.payload() instanceof Payload.Text text)) {
+      return message.payload().size();
+    }
+    String value = text.value();
+    long bytes = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        bytes += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        bytes += 1; // an unpaired surrogate is encoded as '?'
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * A thread with the totals of its messages so that they do not have to be measured again
+   *
+   * @param thread the messages kept
+   * @param tokens the approximate number of tokens of the messages
+   * @param bytes the size of the payloads of the messages
+   */
+  record Tracked<T extends Message>(ThreadState<T> thread, long tokens, long bytes) {}
+}
@@ -13,22 +13,30 @@ import com.google.common.cache.CacheBuilder;
 import com.meta.cp4m.Identifier;
 import com.meta.cp4m.message.Message;
 import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.store.HistoryLimits.Tracked;
 import java.time.Duration;
 import java.util.List;
 
+/**
+ * Keeps threads in memory. The history of each thread can be limited by the number of messages, by
+ * an approximate number of tokens and by the size of the payloads, the oldest messages are dropped
+ * as new ones arrive so that every limit is met. The latest message is always kept. The totals of
+ * each thread are kept with it so that adding a message only measures the messages that change.
+ *
+ * @param <T> the type of message being stored
+ */
 public class MemoryStore<T extends Message> implements ChatStore<T> {
-  private final Cache<Identifier, ThreadState<T>> store;
-  private final int messageHistoryLength;
+
+  private final Cache<Identifier, Tracked<T>> store;
+  private final HistoryLimits limits;
 
   MemoryStore(MemoryStoreConfig config) {
-    this.messageHistoryLength = config.messageHistoryLength();
+    this.limits = config.historyLimits();
     this.store =
         CacheBuilder.newBuilder()
             .expireAfterWrite(Duration.ofHours(config.storageDurationHours()))
             .maximumWeight((long) (config.storageCapacityMb() * Math.pow(2, 20))) // megabytes
-            .<Identifier, ThreadState<T>>weigher(
-                (k, v) ->
-                    v.messages().stream().map(m -> m.payload().size()).reduce(0, Integer::sum))
+            .<Identifier, Tracked<T>>weigher((k, v) -> (int) Math.min(Integer.MAX_VALUE, v.bytes()))
             .build();
   }
 
@@ -40,10 +48,11 @@ public class MemoryStore<T extends Message> implements ChatStore<T> {
             message.threadId(),
             (k, v) -> {
               if (v == null) {
-                return ThreadState.of(message);
+                return limits.track(ThreadState.of(message));
               }
-              return v.with(message).truncateMessageHistory(messageHistoryLength);
-            });
+              return limits.add(v, message);
+            })
+        .thread();
   }
 
   @Override
@@ -54,14 +63,15 @@ public class MemoryStore<T extends Message> implements ChatStore<T> {
             threadState.threadId(),
             (k, v) -> {
               if (v == null) {
-                return threadState.truncateMessageHistory(messageHistoryLength);
+                return limits.track(threadState);
               }
-              return threadState.merge(v).truncateMessageHistory(messageHistoryLength);
-            });
+              return limits.track(threadState.merge(v.thread()));
+            })
+        .thread();
   }
 
   @Override
   public List<ThreadState<T>> list() {
-    return store.asMap().values().stream().toList();
+    return store.asMap().values().stream().map(Tracked::thread).toList();
   }
 }
@@ -13,7 +13,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
 import com.meta.cp4m.message.Message;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class MemoryStoreConfig implements StoreConfig {
 
@@ -21,13 +23,17 @@ public class MemoryStoreConfig implements StoreConfig {
   private final long storageDurationHours;
   private final long storageCapacityMb;
   private final int messageHistoryLength;
+  private final @Nullable Integer messageHistoryTokens;
+  private final @Nullable Long messageHistoryBytes;
 
   @JsonCreator
   private MemoryStoreConfig(
       @JsonProperty("name") String name,
       @JsonProperty("storage_duration_hours") long storageDurationHours,
       @JsonProperty("storage_capacity_mbs") long storageCapacityMbs,
-      @JsonProperty("message_history_length") Integer messageHistoryLength) {
+      @JsonProperty("message_history_length") Integer messageHistoryLength,
+      @JsonProperty("message_history_tokens") @Nullable Integer messageHistoryTokens,
+      @JsonProperty("message_history_bytes") @Nullable Long messageHistoryBytes) {
     messageHistoryLength = messageHistoryLength == null ? Integer.MAX_VALUE : messageHistoryLength;
     Preconditions.checkArgument(
         messageHistoryLength > 0, "message_history_length must be greater than zero");
@@ -36,17 +42,30 @@ public class MemoryStoreConfig implements StoreConfig {
         storageDurationHours > 0, "storage_duration_hours must be greater than zero");
     Preconditions.checkArgument(
         storageCapacityMbs > 0, "storage_duration_hours must be greater than zero");
+    Preconditions.checkArgument(
+        messageHistoryTokens == null || messageHistoryTokens > 0,
+        "message_history_tokens must be greater than zero");
+    Preconditions.checkArgument(
+        messageHistoryBytes == null || messageHistoryBytes > 0,
+        "message_history_bytes must be greater than zero");
 
     this.name = Objects.requireNonNull(name);
     this.storageDurationHours = storageDurationHours;
     this.storageCapacityMb = storageCapacityMbs;
     this.messageHistoryLength = messageHistoryLength;
+    this.messageHistoryTokens = messageHistoryTokens;
+    this.messageHistoryBytes = messageHistoryBytes;
   }
 
   public static MemoryStoreConfig of(long storageDurationHours, long storageCapacityMb) {
     // readability of the name doesn't matter unless it comes from the config
     return new MemoryStoreConfig(
-        UUID.randomUUID().toString(), storageDurationHours, storageCapacityMb, Integer.MAX_VALUE);
+        UUID.randomUUID().toString(),
+        storageDurationHours,
+        storageCapacityMb,
+        Integer.MAX_VALUE,
+        null,
+        null);
   }
 
   public static MemoryStoreConfig of(
@@ -56,7 +75,9 @@ public class MemoryStoreConfig implements StoreConfig {
         UUID.randomUUID().toString(),
         storageDurationHours,
         storageCapacityMb,
-        messageHistoryLength);
+        messageHistoryLength,
+        null,
+        null);
   }
 
   @Override
@@ -77,7 +98,30 @@ public class MemoryStoreConfig implements StoreConfig {
     return new MemoryStore<>(this);
   }
 
+  HistoryLimits historyLimits() {
+    return new HistoryLimits(
+        messageHistoryLength,
+        Objects.requireNonNullElse(messageHistoryTokens, Integer.MAX_VALUE),
+        Objects.requireNonNullElse(messageHistoryBytes, Long.MAX_VALUE));
+  }
+
   public int messageHistoryLength() {
     return messageHistoryLength;
   }
+
+  /**
+   * @return the approximate number of tokens of history kept for each thread, empty if the history
+   *     is not limited by tokens
+   */
+  public Optional<Integer> messageHistoryTokens() {
+    return Optional.ofNullable(messageHistoryTokens);
+  }
+
+  /**
+   * @return the size in bytes of the payloads kept for each thread, text measured in UTF-8, empty
+   *     if the history is not limited by size
+   */
+  public Optional<Long> messageHistoryBytes() {
+    return Optional.ofNullable(messageHistoryBytes);
+  }
 }
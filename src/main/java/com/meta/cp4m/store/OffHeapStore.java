@@ -0,0 +1,480 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Striped;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.message.ThreadStateCodec;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.InstantSource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Keeps serialized threads in direct memory so that the number of threads stored doesn't add to
+ * the work of the garbage collector. Only the index from thread id to the location of the thread
+ * is kept on the heap. A thread is deserialized when it is read and serialized again when it
+ * changes.
+ *
+ * <p>Threads are appended to fixed size slabs of direct memory. A changed thread is appended again
+ * and its old copy becomes garbage. A slab that is mostly garbage is compacted by moving the
+ * threads still in it to the newest slab. When the capacity is reached the oldest slab is evicted
+ * along with every thread last written to it, so the threads that have gone the longest without a
+ * new message are dropped first. A thread that doesn't fit in a slab is given a slab of its own.
+ *
+ * <p>Expired threads are removed when they are read, when their slab is compacted or evicted and
+ * by a sweep of the index that runs on a write at most once a minute.
+ *
+ * <p>The history of each thread is limited in the same way as {@link MemoryStore}.
+ *
+ * @param <T> the type of message being stored
+ */
+public class OffHeapStore<T extends Message> implements ChatStore<T> {
+  // the length of the serialized thread, when it was written and the length of the thread id
+  private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES + Integer.BYTES;
+  // slabs with less than this fraction of live threads are compacted
+  private static final double COMPACT_BELOW = 0.25;
+  private static final long SWEEP_EVERY_MILLIS = Duration.ofMinutes(1).toMillis();
+
+  private final long capacityBytes;
+  private final int slabBytes;
+  private final long expiryMillis;
+  private final HistoryLimits limits;
+  private final InstantSource clock;
+  // a thread is read, changed and written back by one caller at a time
+  private final Striped<Lock> threadLocks = Striped.lock(256);
+
+  // guards the index and the slabs, it is never held while serializing
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<Identifier, Location> index = new HashMap<>();
+  // oldest first, the last slab is the one being appended to
+  private final ArrayDeque<Slab> slabs = new ArrayDeque<>();
+  // emptied slabs kept for reuse rather than waiting for the garbage collector to free them
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+  private long reservedBytes = 0;
+  private long liveBytes = 0;
+  private long sweptAt;
+
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder compactions = new LongAdder();
+
+  OffHeapStore(OffHeapStoreConfig config) {
+    this(
+        config.storageCapacityMb() << 20,
+        config.slabSizeKb() << 10,
+        Duration.ofHours(config.storageDurationHours()),
+        config.historyLimits(),
+        InstantSource.system());
+  }
+
+  OffHeapStore(
+      long capacityBytes,
+      int slabBytes,
+      Duration expiry,
+      HistoryLimits limits,
+      InstantSource clock) {
+    Preconditions.checkArgument(slabBytes > 0, "slabBytes must be greater than 0");
+    Preconditions.checkArgument(
+        capacityBytes >= slabBytes, "capacityBytes must be at least slabBytes");
+    this.capacityBytes = capacityBytes;
+    this.slabBytes = slabBytes;
+    this.expiryMillis = expiry.toMillis();
+    this.limits = limits;
+    this.clock = clock;
+    this.sweptAt = clock.millis();
+  }
+
+  @Override
+  public ThreadState<T> add(T message) {
+    Identifier threadId = message.threadId();
+    Lock threadLock = threadLocks.get(threadId);
+    threadLock.lock();
+    try {
+      @Nullable ThreadState<T> stored = read(threadId);
+      ThreadState<T> thread =
+          stored == null ? ThreadState.of(message) : limits.truncate(stored.with(message));
+      write(threadId, thread);
+      return thread;
+    } finally {
+      threadLock.unlock();
+    }
+  }
+
+  @Override
+  public ThreadState<T> update(ThreadState<T> threadState) {
+    Identifier threadId = threadState.threadId();
+    Lock threadLock = threadLocks.get(threadId);
+    threadLock.lock();
+    try {
+      @Nullable ThreadState<T> stored = read(threadId);
+      ThreadState<T> thread =
+          limits.truncate(stored == null ? threadState : threadState.merge(stored));
+      write(threadId, thread);
+      return thread;
+    } finally {
+      threadLock.unlock();
+    }
+  }
+
+  @Override
+  public List<ThreadState<T>> list() {
+    List<byte[]> serialized = new ArrayList<>();
+    lock.lock();
+    try {
+      long now = clock.millis();
+      for (Location location : index.values()) {
+        if (!expired(location, now)) {
+          serialized.add(location.value());
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return serialized.stream().map(ThreadStateCodec::<T>decode).toList();
+  }
+
+  private @Nullable ThreadState<T> read(Identifier threadId) {
+    byte[] serialized;
+    lock.lock();
+    try {
+      @Nullable Location location = index.get(threadId);
+      if (location == null) {
+        return null;
+      } else if (expired(location, clock.millis())) {
+        index.remove(threadId);
+        discard(location);
+        return null;
+      }
+      serialized = location.value();
+    } finally {
+      lock.unlock();
+    }
+    return ThreadStateCodec.decode(serialized);
+  }
+
+  private void write(Identifier threadId, ThreadState<T> thread) {
+    byte[] serialized = ThreadStateCodec.encode(thread);
+    byte[] key = threadId.toString().getBytes(StandardCharsets.UTF_8);
+    lock.lock();
+    try {
+      long now = clock.millis();
+      if (now - sweptAt >= Math.min(expiryMillis, SWEEP_EVERY_MILLIS)) {
+        sweep(now);
+      }
+      // removed first so that making room for the new copy can't evict the old one from under us
+      @Nullable Location old = index.remove(threadId);
+      if (old != null) {
+        discard(old);
+      }
+      Location location = reserve(RECORD_HEADER + key.length + serialized.length, true);
+      ByteBuffer buffer = location.slab().buffer;
+      int offset = location.offset();
+      buffer.putInt(offset, serialized.length);
+      buffer.putLong(offset + Integer.BYTES, now);
+      buffer.putInt(offset + Integer.BYTES + Long.BYTES, key.length);
+      buffer.put(offset + RECORD_HEADER, key);
+      buffer.put(offset + RECORD_HEADER + key.length, serialized);
+      index.put(threadId, location);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean expired(Location location, long now) {
+    return now - location.writtenAt() >= expiryMillis;
+  }
+
+  /** Remove every expired thread so that threads that are never read again don't stay */
+  private void sweep(long now) {
+    sweptAt = now;
+    List<Identifier> expired = new ArrayList<>();
+    index.forEach(
+        (threadId, location) -> {
+          if (expired(location, now)) {
+            expired.add(threadId);
+          }
+        });
+    for (Identifier threadId : expired) {
+      // compacting a slab may have removed it already
+      @Nullable Location location = index.remove(threadId);
+      if (location != null) {
+        discard(location);
+      }
+    }
+  }
+
+  /**
+   * Make room for a record at the end of the newest slab
+   *
+   * @param mayEvict whether threads may be evicted to stay within the capacity
+   */
+  private Location reserve(int length, boolean mayEvict) {
+    @Nullable Slab slab = slabs.peekLast();
+    if (slab == null || slab.capacity() - slab.used < length) {
+      @Nullable Slab full = slab;
+      slab = openSlab(length, mayEvict);
+      // garbage made while it was the newest slab hasn't been looked at yet
+      if (full != null && slabs.contains(full) && full.live < full.capacity() * COMPACT_BELOW) {
+        compact(full);
+      }
+    }
+    Location location = new Location(slab, slab.used, length);
+    slab.used += length;
+    slab.live += length;
+    liveBytes += length;
+    return location;
+  }
+
+  private Slab openSlab(int length, boolean mayEvict) {
+    int size = Math.max(slabBytes, length);
+    if (size > slabBytes) {
+      dropFreeSlabs(); // too small for this record
+    }
+    while (mayEvict && reservedBytes + size > capacityBytes && !slabs.isEmpty()) {
+      if (size == slabBytes && !free.isEmpty()) {
+        break;
+      }
+      evictOldest();
+      if (size > slabBytes) {
+        dropFreeSlabs();
+      }
+    }
+    ByteBuffer buffer;
+    if (size == slabBytes && !free.isEmpty()) {
+      buffer = free.pop();
+    } else {
+      buffer = ByteBuffer.allocateDirect(size);
+      reservedBytes += size;
+    }
+    Slab slab = new Slab(buffer);
+    slabs.addLast(slab);
+    return slab;
+  }
+
+  private void evictOldest() {
+    Slab oldest = slabs.removeFirst();
+    long now = clock.millis();
+    int offset = 0;
+    while (offset < oldest.used) {
+      Identifier threadId = oldest.threadId(offset);
+      int length = oldest.length(offset);
+      @Nullable Location location = index.get(threadId);
+      if (location != null && location.slab() == oldest && location.offset() == offset) {
+        index.remove(threadId);
+        liveBytes -= length;
+        if (!expired(location, now)) {
+          evictions.increment();
+        }
+      }
+      offset += length;
+    }
+    retire(oldest);
+  }
+
+  /** The record at the location is no longer part of the store */
+  private void discard(Location location) {
+    Slab slab = location.slab();
+    slab.live -= location.length();
+    liveBytes -= location.length();
+    if (slab != slabs.peekLast() && slab.live < slab.capacity() * COMPACT_BELOW) {
+      compact(slab);
+    }
+  }
+
+  /**
+   * Move the live records of the slab to the newest slab and reuse the slab, expired records are
+   * dropped rather than moved
+   */
+  private void compact(Slab slab) {
+    slabs.remove(slab);
+    long now = clock.millis();
+    // the records are copied out and the slab retired before they are written back, so that the
+    // slab can be reused for them rather than going over the capacity
+    List<Identifier> moving = new ArrayList<>();
+    ByteBuffer records = ByteBuffer.allocate(slab.live);
+    int offset = 0;
+    while (offset < slab.used) {
+      Identifier threadId = slab.threadId(offset);
+      int length = slab.length(offset);
+      @Nullable Location location = index.get(threadId);
+      if (location != null && location.slab() == slab && location.offset() == offset) {
+        index.remove(threadId);
+        liveBytes -= length;
+        if (!expired(location, now)) {
+          records.put(records.position(), slab.buffer, offset, length);
+          records.position(records.position() + length);
+          moving.add(threadId);
+        }
+      }
+      offset += length;
+    }
+    compactions.increment();
+    retire(slab);
+    int position = 0;
+    for (Identifier threadId : moving) {
+      int length = recordLength(records, position);
+      Location moved = reserve(length, false);
+      moved.slab().buffer.put(moved.offset(), records, position, length);
+      index.put(threadId, moved);
+      position += length;
+    }
+  }
+
+  private void retire(Slab slab) {
+    if (slab.capacity() == slabBytes && reservedBytes <= capacityBytes) {
+      free.push(slab.buffer);
+    } else {
+      reservedBytes -= slab.capacity();
+    }
+  }
+
+  private void dropFreeSlabs() {
+    reservedBytes -= (long) free.size() * slabBytes;
+    free.clear();
+  }
+
+  @Override
+  public void registerMetrics(MetricsRegistry registry, String service) {
+    registry.gauge(
+        "cp4m_off_heap_store_reserved_bytes",
+        "Direct memory held by the store, including garbage and free slabs",
+        this::reservedBytes,
+        "service",
+        service);
+    registry.gauge(
+        "cp4m_off_heap_store_live_bytes",
+        "Direct memory used by the latest copy of every stored thread",
+        this::liveBytes,
+        "service",
+        service);
+    registry.gauge(
+        "cp4m_off_heap_store_threads", "Threads in the store", this::threads, "service", service);
+    registry.counter(
+        "cp4m_off_heap_store_evictions_total",
+        "Threads evicted to stay within the capacity",
+        this::evictions,
+        "service",
+        service);
+    registry.counter(
+        "cp4m_off_heap_store_compactions_total",
+        "Slabs compacted because they were mostly garbage",
+        this::compactions,
+        "service",
+        service);
+  }
+
+  /**
+   * @return the direct memory held by the store in bytes, including garbage and free slabs
+   */
+  public long reservedBytes() {
+    lock.lock();
+    try {
+      return reservedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the direct memory used by the latest copy of every stored thread in bytes
+   */
+  public long liveBytes() {
+    lock.lock();
+    try {
+      return liveBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of threads in the store, including expired threads that haven't been
+   *     removed yet
+   */
+  public int threads() {
+    lock.lock();
+    try {
+      return index.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of threads evicted to stay within the capacity
+   */
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the number of slabs compacted because they were mostly garbage
+   */
+  public long compactions() {
+    return compactions.sum();
+  }
+
+  private static int recordLength(ByteBuffer buffer, int offset) {
+    int keyLength = buffer.getInt(offset + Integer.BYTES + Long.BYTES);
+    return RECORD_HEADER + keyLength + buffer.getInt(offset);
+  }
+
+  private static final class Slab {
+    private final ByteBuffer buffer;
+    // the bytes appended and the bytes of the latest copy of a thread
+    private int used = 0;
+    private int live = 0;
+
+    private Slab(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    private int capacity() {
+      return buffer.capacity();
+    }
+
+    private int length(int offset) {
+      return recordLength(buffer, offset);
+    }
+
+    private Identifier threadId(int offset) {
+      byte[] key = new byte[buffer.getInt(offset + Integer.BYTES + Long.BYTES)];
+      buffer.get(offset + RECORD_HEADER, key);
+      return Identifier.from(new String(key, StandardCharsets.UTF_8));
+    }
+  }
+
+  private record Location(Slab slab, int offset, int length) {
+
+    private byte[] value() {
+      ByteBuffer buffer = slab.buffer;
+      int keyLength = buffer.getInt(offset + Integer.BYTES + Long.BYTES);
+      byte[] value = new byte[buffer.getInt(offset)];
+      buffer.get(offset + RECORD_HEADER + keyLength, value);
+      return value;
+    }
+
+    private long writtenAt() {
+      return slab.buffer.getLong(offset + Integer.BYTES);
+    }
+  }
+}
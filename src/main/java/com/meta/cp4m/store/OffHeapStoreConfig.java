@@ -0,0 +1,136 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.store;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.message.Message;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class OffHeapStoreConfig implements StoreConfig {
+
+  private static final int DEFAULT_SLAB_SIZE_KB = 1024;
+  private static final int MAX_SLAB_SIZE_KB = 1 << 20; // a slab is at most a gigabyte
+
+  private final String name;
+  private final long storageDurationHours;
+  private final long storageCapacityMb;
+  private final int slabSizeKb;
+  private final int messageHistoryLength;
+  private final @Nullable Integer messageHistoryTokens;
+  private final @Nullable Long messageHistoryBytes;
+
+  @JsonCreator
+  private OffHeapStoreConfig(
+      @JsonProperty("name") String name,
+      @JsonProperty("storage_duration_hours") long storageDurationHours,
+      @JsonProperty("storage_capacity_mbs") long storageCapacityMbs,
+      @JsonProperty("slab_size_kbs") @Nullable Integer slabSizeKb,
+      @JsonProperty("message_history_length") @Nullable Integer messageHistoryLength,
+      @JsonProperty("message_history_tokens") @Nullable Integer messageHistoryTokens,
+      @JsonProperty("message_history_bytes") @Nullable Long messageHistoryBytes) {
+    slabSizeKb = Objects.requireNonNullElse(slabSizeKb, DEFAULT_SLAB_SIZE_KB);
+    messageHistoryLength = Objects.requireNonNullElse(messageHistoryLength, Integer.MAX_VALUE);
+    Preconditions.checkArgument(name != null && !name.isBlank(), "name cannot be blank");
+    Preconditions.checkArgument(
+        storageDurationHours > 0, "storage_duration_hours must be greater than zero");
+    Preconditions.checkArgument(
+        storageCapacityMbs > 0, "storage_capacity_mbs must be greater than zero");
+    Preconditions.checkArgument(
+        slabSizeKb > 0 && slabSizeKb <= MAX_SLAB_SIZE_KB,
+        "slab_size_kbs must be greater than zero and at most " + MAX_SLAB_SIZE_KB);
+    Preconditions.checkArgument(
+        (long) slabSizeKb <= storageCapacityMbs << 10,
+        "slab_size_kbs must not be larger than storage_capacity_mbs");
+    Preconditions.checkArgument(
+        messageHistoryLength > 0, "message_history_length must be greater than zero");
+    Preconditions.checkArgument(
+        messageHistoryTokens == null || messageHistoryTokens > 0,
+        "message_history_tokens must be greater than zero");
+    Preconditions.checkArgument(
+        messageHistoryBytes == null || messageHistoryBytes > 0,
+        "message_history_bytes must be greater than zero");
+
+    this.name = name;
+    this.storageDurationHours = storageDurationHours;
+    this.storageCapacityMb = storageCapacityMbs;
+    this.slabSizeKb = slabSizeKb;
+    this.messageHistoryLength = messageHistoryLength;
+    this.messageHistoryTokens = messageHistoryTokens;
+    this.messageHistoryBytes = messageHistoryBytes;
+  }
+
+  public static OffHeapStoreConfig of(long storageDurationHours, long storageCapacityMb) {
+    // readability of the name doesn't matter unless it comes from the config
+    return new OffHeapStoreConfig(
+        UUID.randomUUID().toString(),
+        storageDurationHours,
+        storageCapacityMb,
+        null,
+        null,
+        null,
+        null);
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  public long storageDurationHours() {
+    return storageDurationHours;
+  }
+
+  public long storageCapacityMb() {
+    return storageCapacityMb;
+  }
+
+  /**
+   * @return the size of each block of direct memory that threads are written to
+   */
+  public int slabSizeKb() {
+    return slabSizeKb;
+  }
+
+  public int messageHistoryLength() {
+    return messageHistoryLength;
+  }
+
+  /**
+   * @return the approximate number of tokens of history kept for each thread, empty if the history
+   *     is not limited by tokens
+   */
+  public Optional<Integer> messageHistoryTokens() {
+    return Optional.ofNullable(messageHistoryTokens);
+  }
+
+  /**
+   * @return the size in bytes of the payloads kept for each thread, text measured in UTF-8, empty
+   *     if the history is not limited by size
+   */
+  public Optional<Long> messageHistoryBytes() {
+    return Optional.ofNullable(messageHistoryBytes);
+  }
+
+  HistoryLimits historyLimits() {
+    return new HistoryLimits(
+        messageHistoryLength,
+        Objects.requireNonNullElse(messageHistoryTokens, Integer.MAX_VALUE),
+        Objects.requireNonNullElse(messageHistoryBytes, Long.MAX_VALUE));
+  }
+
+  @Override
+  public <T extends Message> OffHeapStore<T> toStore() {
+    return new OffHeapStore<>(this);
+  }
+}
@@ -16,6 +16,7 @@ import com.meta.cp4m.message.Message;
 @JsonSubTypes({
   @JsonSubTypes.Type(value = MemoryStoreConfig.class, name = "memory"),
   @JsonSubTypes.Type(value = NullStoreConfig.class, name = "null"),
+  @JsonSubTypes.Type(value = OffHeapStoreConfig.class, name = "off_heap"),
 })
 public interface StoreConfig {
 
@@ -0,0 +1,261 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.tracing;
+
+import com.meta.cp4m.jfr.StageEvent;
+import com.meta.cp4m.metrics.StageMetrics.ThrowingSupplier;
+import io.javalin.http.Context;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The stages one inbound message went through on its way to a reply, with monotonic start times
+ * and durations.
+ *
+ * <p>A trace is started by {@link Tracer#start(String)} when a webhook arrives and is attached to
+ * the request so message handlers can add their own stages, see {@link #of(Context)}. Once the
+ * webhook is turned into messages the trace is {@link #fork(String) forked} for each of them and
+ * follows that message through the preprocessors, plugin and reply. Traces that were not sampled
+ * are {@link #NOOP} or only emit JFR events, so it is safe to call every method on the hot path.
+ */
+public final class MessageTrace {
+
+  /** The {@link Context} attribute that holds the trace for the request */
+  public static final String CONTEXT_ATTRIBUTE = "cp4m.trace";
+
+  /** Records nothing, used when tracing is off or the message was not sampled */
+  public static final MessageTrace NOOP =
+      new MessageTrace(null, "", "", System.nanoTime(), false, false, false);
+
+  private final @Nullable Tracer tracer;
+  private final String traceId;
+  private final String service;
+  private final long startNanos;
+  private final boolean sampled;
+  private final boolean recording;
+  private final boolean jfr;
+  private final Collection<Span> spans = new ConcurrentLinkedQueue<>();
+  private volatile long totalNanos = -1;
+  private volatile boolean forked;
+
+  MessageTrace(
+      @Nullable Tracer tracer,
+      String traceId,
+      String service,
+      long startNanos,
+      boolean sampled,
+      boolean recording,
+      boolean jfr) {
+    this.tracer = tracer;
+    this.traceId = Objects.requireNonNull(traceId);
+    this.service = Objects.requireNonNull(service);
+    this.startNanos = startNanos;
+    this.sampled = sampled;
+    this.recording = recording;
+    this.jfr = jfr;
+  }
+
+  /**
+   * @param ctx the request the webhook arrived on
+   * @return the trace attached to the request, or {@link #NOOP} if there is none
+   */
+  public static MessageTrace of(Context ctx) {
+    @Nullable MessageTrace trace = ctx.attribute(CONTEXT_ATTRIBUTE);
+    return trace == null ? NOOP : trace;
+  }
+
+  /**
+   * Start a trace for one of the messages in this webhook. The new trace shares this trace's id
+   * prefix, start time and sampling decision and begins with a copy of its stages.
+   *
+   * @param service the webhook path of the service handling the message
+   * @return the trace of the message
+   */
+  public MessageTrace fork(String service) {
+    if (this == NOOP) {
+      return NOOP;
+    }
+    this.forked = true;
+    MessageTrace child =
+        new MessageTrace(
+            tracer,
+            traceId + "-" + Long.toHexString(Tracer.randomId()),
+            service,
+            startNanos,
+            sampled,
+            recording,
+            jfr);
+    child.spans.addAll(spans);
+    return child;
+  }
+
+  /**
+   * Time a call and add it to the trace as a stage
+   *
+   * @param stage what is being done, e.g. plugin or media_fetch
+   * @param component the implementation doing the work
+   * @return the result of the call
+   * @throws E if the call throws, the stage is marked as failed before rethrowing
+   */
+  public <R, E extends Exception> R span(
+      String stage, String component, ThrowingSupplier<R, E> call) throws E {
+    if (!recording && !jfr) {
+      return call.get();
+    }
+    ActiveSpan span = begin(stage, component);
+    boolean failed = true;
+    try {
+      R result = call.get();
+      failed = false;
+      return result;
+    } finally {
+      span.end(failed);
+    }
+  }
+
+  /**
+   * Start a stage that is ended by the caller, for work that is not a single call such as a plugin
+   * that is interrupted to deliver each chunk it streams
+   *
+   * @param stage what is being done, e.g. plugin or media_fetch
+   * @param component the implementation doing the work
+   * @return the started stage, {@link ActiveSpan#end(boolean)} must be called once
+   */
+  public ActiveSpan begin(String stage, String component) {
+    return new ActiveSpan(stage, component);
+  }
+
+  /**
+   * Add a stage that was timed by the caller, such as time spent waiting in a queue
+   *
+   * @param startNanos when the stage started, from {@link System#nanoTime()}
+   * @param endNanos when the stage ended, from {@link System#nanoTime()}
+   */
+  public void record(String stage, String component, long startNanos, long endNanos) {
+    if (recording) {
+      spans.add(
+          new Span(stage, component, startNanos - this.startNanos, endNanos - startNanos, false));
+    }
+  }
+
+  private long nanoTime() {
+    return tracer == null ? System.nanoTime() : tracer.nanoTime();
+  }
+
+  /**
+   * The message has been replied to, or has failed, export the trace if it should be kept. A trace
+   * that has been {@link #fork(String) forked} is exported by its forks and is not exported here.
+   */
+  public void finish() {
+    if (recording && tracer != null && !forked) {
+      totalNanos = nanoTime() - startNanos;
+      tracer.finished(this);
+    }
+  }
+
+  public String traceId() {
+    return traceId;
+  }
+
+  public String service() {
+    return service;
+  }
+
+  /**
+   * @return true if the trace was chosen by the sample rate, false if it is only kept when slow
+   */
+  public boolean sampled() {
+    return sampled;
+  }
+
+  /**
+   * @return true if stages are being kept for this trace
+   */
+  public boolean recording() {
+    return recording;
+  }
+
+  /**
+   * @return time from the arrival of the webhook to {@link #finish()}, -1 if it has not finished
+   */
+  public long totalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * @return every stage recorded so far ordered by when it started
+   */
+  public List<Span> spans() {
+    List<Span> sorted = new ArrayList<>(spans);
+    sorted.sort((a, b) -> Long.compare(a.offsetNanos(), b.offsetNanos()));
+    return sorted;
+  }
+
+  /** A stage started by {@link #begin(String, String)} that has not ended yet */
+  public final class ActiveSpan {
+
+    private final String stage;
+    private final String component;
+    private final @Nullable StageEvent event;
+    private final long start;
+
+    private ActiveSpan(String stage, String component) {
+      this.stage = stage;
+      this.component = component;
+      this.event = jfr ? new StageEvent() : null;
+      if (event != null) {
+        event.begin();
+      }
+      this.start = recording ? nanoTime() : 0;
+    }
+
+    /**
+     * @param failed true if the stage threw an exception
+     */
+    public void end(boolean failed) {
+      if (recording) {
+        long end = nanoTime();
+        spans.add(new Span(stage, component, start - startNanos, end - start, failed));
+      }
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.traceId = traceId;
+          event.service = service;
+          event.stage = stage;
+          event.component = component;
+          event.failed = failed;
+          event.commit();
+        }
+      }
+    }
+  }
+
+  /**
+   * @param stage what was being done
+   * @param component the implementation that did it
+   * @param offsetNanos time from the arrival of the webhook to the start of the stage
+   * @param durationNanos time spent in the stage
+   * @param failed true if the stage threw an exception
+   */
+  public record Span(
+      String stage, String component, long offsetNanos, long durationNanos, boolean failed) {
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s/%s@%.2f+%.2fms%s",
+          stage, component, offsetNanos / 1e6, durationNanos / 1e6, failed ? "!" : "");
+    }
+  }
+}
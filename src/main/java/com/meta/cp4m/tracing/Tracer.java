@@ -0,0 +1,168 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.tracing;
+
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.jfr.StageEvent;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import jdk.jfr.EventType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.spi.LoggingEventBuilder;
+
+/**
+ * Decides which inbound messages are traced and exports the finished traces as one structured log
+ * line per message.
+ *
+ * <p>A message is traced if it is chosen by the sample rate. When a slow threshold is set every
+ * message records its stages, which is a handful of small objects, and the ones that were not
+ * sampled are still exported if they took longer than the threshold. Whenever a JFR recording has
+ * the {@code com.meta.cp4m.Stage} event enabled every stage of every message is also emitted as
+ * one, whatever the sample rate, so the stages are in any recording that asks for them.
+ */
+public class Tracer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Tracer.class);
+  private static final Tracer DISABLED = new Tracer(0, null);
+  // checked for every message so that stage events start as soon as a recording enables them
+  private static final EventType STAGE_EVENT = EventType.getEventType(StageEvent.class);
+
+  private final double sampleRate;
+  private final @Nullable Duration slowThreshold;
+  private final Consumer<MessageTrace> exporter;
+  private final LongSupplier ticker;
+
+  /**
+   * @param sampleRate the fraction of messages to trace, between 0 and 1
+   * @param slowThreshold also export unsampled messages that take at least this long, null to only
+   *     export sampled messages
+   */
+  public Tracer(double sampleRate, @Nullable Duration slowThreshold) {
+    this(sampleRate, slowThreshold, Tracer::log);
+  }
+
+  /**
+   * @param exporter receives every trace that should be kept instead of it being logged
+   */
+  public Tracer(
+      double sampleRate, @Nullable Duration slowThreshold, Consumer<MessageTrace> exporter) {
+    this(sampleRate, slowThreshold, exporter, System::nanoTime);
+  }
+
+  Tracer(
+      double sampleRate,
+      @Nullable Duration slowThreshold,
+      Consumer<MessageTrace> exporter,
+      LongSupplier ticker) {
+    Preconditions.checkArgument(
+        sampleRate >= 0 && sampleRate <= 1, "sampleRate must be between 0 and 1");
+    Preconditions.checkArgument(
+        slowThreshold == null || !slowThreshold.isNegative(), "slowThreshold must not be negative");
+    this.sampleRate = sampleRate;
+    this.slowThreshold = slowThreshold;
+    this.exporter = Objects.requireNonNull(exporter);
+    this.ticker = Objects.requireNonNull(ticker);
+  }
+
+  /**
+   * @return a tracer that never traces
+   */
+  public static Tracer disabled() {
+    return DISABLED;
+  }
+
+  static long randomId() {
+    return ThreadLocalRandom.current().nextLong();
+  }
+
+  private static void log(MessageTrace trace) {
+    LoggingEventBuilder event =
+        LOGGER
+            .atInfo()
+            .addKeyValue("trace_id", trace.traceId())
+            .addKeyValue("service", trace.service())
+            .addKeyValue("sampled", trace.sampled())
+            .addKeyValue("total_ms", String.format("%.2f", trace.totalNanos() / 1e6));
+    List<MessageTrace.Span> spans = trace.spans();
+    // the sum for each stage makes the line easy to aggregate, the spans show the timeline
+    Map<String, Long> stageNanos =
+        spans.stream()
+            .collect(
+                Collectors.groupingBy(
+                    MessageTrace.Span::stage,
+                    LinkedHashMap::new,
+                    Collectors.summingLong(MessageTrace.Span::durationNanos)));
+    stageNanos.forEach(
+        (stage, nanos) -> event.addKeyValue(stage + "_ms", String.format("%.2f", nanos / 1e6)));
+    event
+        .addKeyValue(
+            "spans",
+            spans.stream().map(MessageTrace.Span::toString).collect(Collectors.joining(" ")))
+        .log("message trace");
+  }
+
+  /**
+   * @return true if this tracer never exports traces, stages are still emitted as JFR events
+   */
+  public boolean isDisabled() {
+    return sampleRate == 0 && slowThreshold == null;
+  }
+
+  public double sampleRate() {
+    return sampleRate;
+  }
+
+  public @Nullable Duration slowThreshold() {
+    return slowThreshold;
+  }
+
+  /**
+   * Start the trace for a webhook that has just arrived
+   *
+   * @param path the path the webhook was posted to
+   * @return the trace, {@link MessageTrace#NOOP} if nothing should be recorded
+   */
+  public MessageTrace start(String path) {
+    boolean jfr = STAGE_EVENT.isEnabled();
+    if (isDisabled() && !jfr) {
+      return MessageTrace.NOOP;
+    }
+    long start = ticker.getAsLong();
+    boolean sampled = sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    boolean recording = sampled || slowThreshold != null;
+    if (!recording && !jfr) {
+      return MessageTrace.NOOP;
+    }
+    return new MessageTrace(
+        this, Long.toHexString(randomId()), path, start, sampled, recording, jfr);
+  }
+
+  void finished(MessageTrace trace) {
+    if (trace.sampled()
+        || (slowThreshold != null && trace.totalNanos() >= slowThreshold.toNanos())) {
+      exporter.accept(trace);
+    }
+  }
+
+  /**
+   * @return the time in nanoseconds, {@link System#nanoTime()} outside of tests
+   */
+  long nanoTime() {
+    return ticker.getAsLong();
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.tracing;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public class TracingConfig {
+
+  private final double sampleRate;
+  private final @Nullable Long slowThresholdMs;
+
+  @JsonCreator
+  TracingConfig(
+      @JsonProperty("sample_rate") @Nullable Double sampleRate,
+      @JsonProperty("slow_threshold_ms") @Nullable Long slowThresholdMs) {
+    this.sampleRate = Objects.requireNonNullElse(sampleRate, 0.01);
+    this.slowThresholdMs = slowThresholdMs;
+    Preconditions.checkArgument(
+        this.sampleRate >= 0 && this.sampleRate <= 1, "sample_rate must be between 0 and 1");
+    Preconditions.checkArgument(
+        slowThresholdMs == null || slowThresholdMs >= 0, "slow_threshold_ms must not be negative");
+  }
+
+  /**
+   * @return the fraction of messages whose trace is logged
+   */
+  public double sampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * @return messages that take at least this long are logged even if they were not sampled
+   */
+  public Optional<Duration> slowThreshold() {
+    return Optional.ofNullable(slowThresholdMs).map(Duration::ofMillis);
+  }
+
+  public Tracer toTracer() {
+    return new Tracer(sampleRate, slowThreshold().orElse(null));
+  }
+}
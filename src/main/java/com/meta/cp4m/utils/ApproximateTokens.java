@@ -0,0 +1,36 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.Payload;
+
+/**
+ * Estimates how many tokens messages take up in a prompt without knowing which model reads them.
+ * Stores and preprocessors use it to size history, plugins that need exact counts must count for
+ * themselves.
+ */
+public final class ApproximateTokens {
+  // rough averages for English text
+  private static final int CHARS_PER_TOKEN = 4;
+  private static final int TOKENS_PER_MESSAGE = 4;
+
+  private ApproximateTokens() {}
+
+  /**
+   * @return roughly how many tokens the message takes up in a prompt, only text is counted
+   */
+  public static int of(Message message) {
+    int tokens = TOKENS_PER_MESSAGE;
+    if (message.payload() instanceof Payload.Text text) {
+      tokens += (text.size() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+    return tokens;
+  }
+}
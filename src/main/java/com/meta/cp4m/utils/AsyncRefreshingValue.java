@@ -0,0 +1,220 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.jfr.TokenWaitEvent;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.common.returnsreceiver.qual.This;
+import org.jetbrains.annotations.TestOnly;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds a value that expires, such as an access token, and keeps it fresh without ever blocking
+ * readers on a monitor. Readers get the current value from a volatile snapshot. At most one refresh
+ * is in flight at a time, it runs on a virtual thread and every reader that needs to wait for it
+ * waits on the same future.
+ *
+ * <ul>
+ *   <li>The value is refreshed proactively, 5 minutes before expiry or halfway to expiry, whichever
+ *       is later
+ *   <li>Once expired, the old value is still returned for the stale grace period while a refresh
+ *       is in flight
+ *   <li>After the grace period readers wait for the refresh to complete
+ *   <li>A failed refresh is retried after the retry delay
+ * </ul>
+ *
+ * @param <T> the type of the value
+ */
+public class AsyncRefreshingValue<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRefreshingValue.class);
+  private static final Duration PROACTIVE_REFRESH = Duration.ofMinutes(5);
+
+  // shared by every instance, only used to trigger refreshes which then run on virtual threads
+  private static final ScheduledExecutorService SCHEDULER =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "async-refreshing-value-scheduler");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static final ExecutorService LOADER_EXECUTOR =
+      Executors.newVirtualThreadPerTaskExecutor();
+
+  private final Loader<T> loader;
+  private final Duration staleGrace;
+  private final Duration retryDelay;
+  private final AtomicReference<@Nullable CompletableFuture<T>> inFlight = new AtomicReference<>();
+  private final AtomicReference<@Nullable ScheduledFuture<?>> scheduled = new AtomicReference<>();
+  private volatile @Nullable Loaded<T> snapshot;
+  private volatile Clock clock = Clock.systemUTC();
+
+  public AsyncRefreshingValue(Loader<T> loader, Duration staleGrace, Duration retryDelay) {
+    Preconditions.checkArgument(!staleGrace.isNegative(), "staleGrace cannot be negative");
+    Preconditions.checkArgument(
+        !retryDelay.isNegative() && !retryDelay.isZero(), "retryDelay must be greater than zero");
+    this.loader = Objects.requireNonNull(loader);
+    this.staleGrace = staleGrace;
+    this.retryDelay = retryDelay;
+  }
+
+  @TestOnly
+  @This
+  AsyncRefreshingValue<T> clock(Clock clock) {
+    this.clock = clock;
+    return this;
+  }
+
+  /**
+   * @return a future that completes with a value that is usable now
+   */
+  public CompletableFuture<T> getAsync() {
+    @Nullable Loaded<T> current = snapshot;
+    if (current == null) {
+      return refresh();
+    }
+    Instant now = clock.instant();
+    if (now.isBefore(current.expiry())) {
+      return CompletableFuture.completedFuture(current.value());
+    }
+    CompletableFuture<T> refresh = refresh();
+    if (now.isBefore(current.expiry().plus(staleGrace))) {
+      return CompletableFuture.completedFuture(current.value());
+    }
+    return refresh;
+  }
+
+  /**
+   * Wait, if necessary, for a usable value. This parks rather than holding a monitor so it is safe
+   * to call from virtual threads.
+   *
+   * @return a value that is usable now
+   * @throws IOException if the value had to be refreshed and the refresh failed
+   */
+  public T get() throws InterruptedException, IOException {
+    CompletableFuture<T> future = getAsync();
+    if (future.isDone()) {
+      return getNow(future);
+    }
+    TokenWaitEvent event = new TokenWaitEvent();
+    event.begin();
+    boolean succeeded = false;
+    try {
+      T value = getNow(future);
+      succeeded = true;
+      return value;
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.holder = "AsyncRefreshingValue";
+        event.succeeded = succeeded;
+        event.commit();
+      }
+    }
+  }
+
+  private static <T> T getNow(CompletableFuture<T> future)
+      throws InterruptedException, IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw new IOException("failed to refresh value", cause);
+      }
+      throw new RuntimeException("failed to refresh value", e.getCause());
+    }
+  }
+
+  /**
+   * Start a refresh unless one is already in flight
+   *
+   * @return the in flight refresh
+   */
+  public CompletableFuture<T> refresh() {
+    while (true) {
+      @Nullable CompletableFuture<T> existing = inFlight.get();
+      if (existing != null) {
+        return existing;
+      }
+      CompletableFuture<T> future = new CompletableFuture<>();
+      if (inFlight.compareAndSet(null, future)) {
+        LOADER_EXECUTOR.execute(() -> load(future));
+        return future;
+      }
+    }
+  }
+
+  private void load(CompletableFuture<T> future) {
+    Loaded<T> loaded;
+    try {
+      loaded = loader.load();
+    } catch (Exception e) {
+      LOGGER.atError().setCause(e).log("failed to refresh value");
+      inFlight.compareAndSet(future, null);
+      future.completeExceptionally(e);
+      // wait before trying again to avoid spamming
+      schedule(retryDelay);
+      return;
+    }
+    snapshot = loaded;
+    inFlight.compareAndSet(future, null);
+    future.complete(loaded.value());
+    if (loaded.expiry().equals(Instant.MAX)) {
+      return;
+    }
+    Duration untilExpiry = Duration.between(clock.instant(), loaded.expiry());
+    if (untilExpiry.isNegative() || untilExpiry.isZero()) {
+      LOGGER
+          .atWarn()
+          .addKeyValue("expiry", loaded.expiry())
+          .log("refreshed value was already expired");
+      schedule(retryDelay);
+      return;
+    }
+    Duration untilRefresh = untilExpiry.minus(PROACTIVE_REFRESH);
+    Duration halfway = untilExpiry.dividedBy(2);
+    schedule(untilRefresh.compareTo(halfway) > 0 ? untilRefresh : halfway);
+  }
+
+  private void schedule(Duration delay) {
+    ScheduledFuture<?> next =
+        SCHEDULER.schedule(this::refresh, delay.toMillis(), TimeUnit.MILLISECONDS);
+    @Nullable ScheduledFuture<?> previous = scheduled.getAndSet(next);
+    if (previous != null) {
+      previous.cancel(false);
+    }
+  }
+
+  @FunctionalInterface
+  public interface Loader<T> {
+
+    /**
+     * Fetch a fresh value, this is always called from a virtual thread
+     *
+     * @return the new value and the time at which it stops being valid
+     */
+    Loaded<T> load() throws IOException;
+  }
+
+  public record Loaded<T>(T value, Instant expiry) {
+    public Loaded {
+      Objects.requireNonNull(value);
+      Objects.requireNonNull(expiry);
+    }
+  }
+}
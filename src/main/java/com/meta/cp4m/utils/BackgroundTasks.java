@@ -0,0 +1,73 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs fire and forget work, such as the side effects of a preprocessor, on a bounded number of
+ * virtual threads. Work that arrives while every thread is busy and the queue is full is dropped
+ * rather than run on the submitter's thread, so the submitter is never slowed down by it.
+ */
+public class BackgroundTasks implements AutoCloseable {
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param name the prefix of the names of the threads the tasks run on
+   * @param concurrency the maximum number of tasks run at the same time
+   * @param queued the maximum number of tasks waiting for a thread
+   */
+  public BackgroundTasks(String name, int concurrency, int queued) {
+    Preconditions.checkArgument(concurrency > 0, "concurrency must be greater than 0");
+    Preconditions.checkArgument(queued > 0, "queued must be greater than 0");
+    this.executor =
+        new ThreadPoolExecutor(
+            concurrency,
+            concurrency,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queued),
+            Thread.ofVirtual().name(name, 0).factory());
+  }
+
+  /**
+   * @return completes once the task has run, or exceptionally with a {@link
+   *     RejectedExecutionException} if the task was dropped because too many tasks are waiting or
+   *     this is closed
+   */
+  public CompletableFuture<Void> submit(Runnable task) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    try {
+      executor.execute(
+          () -> {
+            try {
+              task.run();
+              done.complete(null);
+            } catch (Throwable e) {
+              done.completeExceptionally(e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      done.completeExceptionally(e);
+    }
+    return done;
+  }
+
+  /** Waits for running and queued tasks to finish, later tasks are dropped */
+  @Override
+  public void close() {
+    executor.close();
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import com.meta.cp4m.metrics.StageMetrics.ThrowingSupplier;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.util.Timeout;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Runs fluent requests without letting virtual threads wait inside the connection pool.
+ *
+ * <p>{@link Request#execute()} uses one connection pool for the whole process that allows {@value
+ * #MAX_PER_HOST} connections to each host and {@value #MAX_TOTAL} in total. A request made while
+ * they are all in use waits in {@link Object#wait()}, which pins the carrier thread of a virtual
+ * thread, so a burst of requests to a slow host stalls every virtual thread in the process. Taking
+ * a permit here first makes the request wait on a semaphore instead, where a virtual thread is
+ * unmounted, and the pool never has more requests than connections.
+ *
+ * <p>A call can be given a time limit with {@link #withTimeout(Duration, ThrowingSupplier)}, every
+ * request it makes on the same thread is then bounded by the time it has left.
+ *
+ * <p>A permit is held until the response handler returns, so a handler must never make another
+ * request or call code that might. Once every permit is held by a handler waiting for a permit the
+ * process deadlocks. A response that is passed on as it is read, such as a streamed reply that is
+ * sent to the user chunk by chunk, goes through {@link #stream(URI, Request,
+ * StreamingResponseHandler, Consumer)} instead.
+ */
+public final class HttpRequests {
+
+  // the limits of the pool behind Request.execute()
+  static final int MAX_PER_HOST = 100;
+  static final int MAX_TOTAL = 200;
+
+  private static final Permits PERMITS = new Permits(MAX_PER_HOST, MAX_TOTAL);
+  // the System.nanoTime() by which requests on this thread must be done, if there is a limit
+  private static final ThreadLocal<@Nullable Long> DEADLINE = new ThreadLocal<>();
+
+  private HttpRequests() {}
+
+  /**
+   * Run a call with a time limit on the requests it makes on this thread. Waiting for a connection,
+   * connecting and each wait for data from the server are bounded by the time left, a request that
+   * runs out of time fails with a {@link SocketTimeoutException}. The limit replaces any limit
+   * already in place and is removed when the call returns.
+   *
+   * @param timeout how long the call's requests have, null for no limit
+   * @return the result of the call
+   */
+  public static <R, E extends Exception> R withTimeout(
+      @Nullable Duration timeout, ThrowingSupplier<R, E> call) throws E {
+    @Nullable Long previous = DEADLINE.get();
+    DEADLINE.set(timeout == null ? null : System.nanoTime() + timeout.toNanos());
+    try {
+      return call.get();
+    } finally {
+      DEADLINE.set(previous);
+    }
+  }
+
+  /**
+   * Execute the request and handle its response while holding a connection permit
+   *
+   * @param uri where the request is sent, only the scheme, host and port are used
+   * @param request the request to send to uri
+   * @param handler reads the response, the connection is released once it returns
+   * @return the result of the handler
+   */
+  public static <T> T execute(URI uri, Request request, HttpClientResponseHandler<T> handler)
+      throws IOException {
+    return execute(PERMITS, uri, request, handler);
+  }
+
+  static <T> T execute(
+      Permits permits, URI uri, Request request, HttpClientResponseHandler<T> handler)
+      throws IOException {
+    Semaphore host = permits.host(uri);
+    @Nullable Long deadline = DEADLINE.get();
+    acquire(host, deadline);
+    try {
+      acquire(permits.total, deadline);
+      try {
+        if (deadline != null) {
+          Timeout left = Timeout.ofMilliseconds(millisLeft(deadline));
+          request.connectTimeout(left).responseTimeout(left);
+        }
+        return request.execute().handleResponse(handler);
+      } finally {
+        permits.total.release();
+      }
+    } finally {
+      host.release();
+    }
+  }
+
+  /**
+   * Execute the request and pass what the handler emits to the sink as the response is read. The
+   * response is read on another thread that holds the connection permit and never waits for the
+   * sink, the sink is called on this thread without a permit so it is free to make requests of its
+   * own. The time limit of this thread applies to the request.
+   *
+   * @param uri where the request is sent, only the scheme, host and port are used
+   * @param request the request to send to uri
+   * @param handler reads the response and emits what is passed to the sink
+   * @param sink called with everything the handler emits, in order, on this thread
+   * @return the result of the handler, once everything it emitted has been passed to the sink
+   */
+  public static <T, R> R stream(
+      URI uri, Request request, StreamingResponseHandler<T, R> handler, Consumer<T> sink)
+      throws IOException {
+    return stream(PERMITS, uri, request, handler, sink);
+  }
+
+  static <T, R> R stream(
+      Permits permits,
+      URI uri,
+      Request request,
+      StreamingResponseHandler<T, R> handler,
+      Consumer<T> sink)
+      throws IOException {
+    BlockingQueue<Streamed<T, R>> queue = new LinkedBlockingQueue<>();
+    @Nullable Long deadline = DEADLINE.get();
+    Thread reader =
+        Thread.ofVirtual()
+            .name("http-stream-reader")
+            .start(
+                () -> {
+                  DEADLINE.set(deadline);
+                  try {
+                    R result =
+                        execute(
+                            permits,
+                            uri,
+                            request,
+                            response ->
+                                handler.handleResponse(
+                                    response, item -> queue.add(new Streamed.Item<>(item))));
+                    queue.add(new Streamed.Done<>(result));
+                  } catch (Throwable e) {
+                    queue.add(new Streamed.Failed<>(e));
+                  }
+                });
+    try {
+      while (true) {
+        switch (queue.take()) {
+          case Streamed.Item<T, R> item -> sink.accept(item.value());
+          case Streamed.Done<T, R> done -> {
+            return done.result();
+          }
+          case Streamed.Failed<T, R> failed -> {
+            switch (failed.cause()) {
+              case IOException e -> throw e;
+              case RuntimeException e -> throw e;
+              case Error e -> throw e;
+              case Throwable e -> throw new IOException(e);
+            }
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while streaming a response");
+    } finally {
+      // stops reading a response that is no longer wanted because the sink failed
+      reader.interrupt();
+    }
+  }
+
+  private static long millisLeft(long deadline) throws SocketTimeoutException {
+    long left = deadline - System.nanoTime();
+    if (left <= 0) {
+      throw new SocketTimeoutException("ran out of time before the request was sent");
+    }
+    // round up, a timeout of 0 would mean no timeout
+    return TimeUnit.NANOSECONDS.toMillis(left) + 1;
+  }
+
+  private static void acquire(Semaphore permits, @Nullable Long deadline)
+      throws InterruptedIOException, SocketTimeoutException {
+    try {
+      if (deadline == null) {
+        permits.acquire();
+      } else if (!permits.tryAcquire(millisLeft(deadline), TimeUnit.MILLISECONDS)) {
+        throw new SocketTimeoutException("ran out of time waiting for a connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a connection");
+    }
+  }
+
+  /** The connections a request may wait for, per host and in total */
+  static final class Permits {
+    private final int maxPerHost;
+    private final Semaphore total;
+    private final ConcurrentHashMap<String, Semaphore> perHost = new ConcurrentHashMap<>();
+
+    Permits(int maxPerHost, int maxTotal) {
+      this.maxPerHost = maxPerHost;
+      this.total = new Semaphore(maxTotal, true);
+    }
+
+    private Semaphore host(URI uri) {
+      return perHost.computeIfAbsent(
+          uri.getScheme().toLowerCase(Locale.ROOT) + "://" + uri.getRawAuthority(),
+          k -> new Semaphore(maxPerHost, true));
+    }
+  }
+
+  /** Reads a response and emits what it reads as it goes */
+  @FunctionalInterface
+  public interface StreamingResponseHandler<T, R> {
+
+    /**
+     * @param response the response to read
+     * @param emit passes what has been read on to the sink, it never blocks
+     * @return the result of the request
+     */
+    R handleResponse(ClassicHttpResponse response, Consumer<T> emit) throws IOException;
+  }
+
+  private sealed interface Streamed<T, R> {
+
+    record Item<T, R>(T value) implements Streamed<T, R> {}
+
+    record Done<T, R>(R result) implements Streamed<T, R> {}
+
+    record Failed<T, R>(Throwable cause) implements Streamed<T, R> {}
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gathers items submitted from concurrent threads into batches. A batch is dispatched once it
+ * reaches the maximum batch size or once the oldest item in it has waited for the maximum wait
+ * time, whichever happens first. Each submitter receives a future that is completed with the result
+ * corresponding to its item.
+ *
+ * @param <I> the type of the items being batched
+ * @param <O> the type of the result for each item
+ */
+public class MicroBatcher<I, O> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MicroBatcher.class);
+
+  // only used to trigger flushes, batches are always dispatched on virtual threads
+  private static final ScheduledExecutorService TIMER =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "micro-batcher-timer");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final ExecutorService dispatcher = Executors.newVirtualThreadPerTaskExecutor();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final int maxBatchSize;
+  private final Duration maxWait;
+  private final BatchFunction<I, O> batchFunction;
+  private final Histogram batchSizes = new ConcurrentHistogram(3);
+  private final Histogram addedLatencyMicros = new ConcurrentHistogram(3);
+
+  private List<Pending<I, O>> pending = new ArrayList<>();
+  private @Nullable ScheduledFuture<?> flushTimer;
+
+  public MicroBatcher(int maxBatchSize, Duration maxWait, BatchFunction<I, O> batchFunction) {
+    Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be greater than zero");
+    Preconditions.checkArgument(
+        !maxWait.isNegative() && !maxWait.isZero(), "maxWait must be greater than zero");
+    this.maxBatchSize = maxBatchSize;
+    this.maxWait = maxWait;
+    this.batchFunction = Objects.requireNonNull(batchFunction);
+  }
+
+  public CompletableFuture<O> submit(I item) {
+    CompletableFuture<O> future = new CompletableFuture<>();
+    @Nullable List<Pending<I, O>> batch = null;
+    lock.lock();
+    try {
+      pending.add(new Pending<>(item, System.nanoTime(), future));
+      if (pending.size() >= maxBatchSize) {
+        batch = takePending();
+      } else if (pending.size() == 1) {
+        flushTimer = TIMER.schedule(this::flush, maxWait.toNanos(), TimeUnit.NANOSECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (batch != null) {
+      List<Pending<I, O>> fullBatch = batch;
+      dispatcher.execute(() -> dispatch(fullBatch));
+    }
+    return future;
+  }
+
+  /** Dispatch whatever is currently pending without waiting for the batch to fill up */
+  public void flush() {
+    List<Pending<I, O>> batch;
+    lock.lock();
+    try {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = takePending();
+    } finally {
+      lock.unlock();
+    }
+    dispatcher.execute(() -> dispatch(batch));
+  }
+
+  // must be called while holding the lock
+  private List<Pending<I, O>> takePending() {
+    List<Pending<I, O>> batch = pending;
+    pending = new ArrayList<>(maxBatchSize);
+    if (flushTimer != null) {
+      flushTimer.cancel(false);
+      flushTimer = null;
+    }
+    return batch;
+  }
+
+  private void dispatch(List<Pending<I, O>> batch) {
+    long dispatchTime = System.nanoTime();
+    batchSizes.recordValue(batch.size());
+    List<I> items = new ArrayList<>(batch.size());
+    for (Pending<I, O> p : batch) {
+      addedLatencyMicros.recordValue(
+          TimeUnit.NANOSECONDS.toMicros(Long.max(0, dispatchTime - p.enqueuedNanos())));
+      items.add(p.item());
+    }
+
+    List<O> results;
+    try {
+      results = batchFunction.apply(items);
+    } catch (Exception e) {
+      LOGGER.atWarn().setCause(e).addKeyValue("batch_size", batch.size()).log("batch failed");
+      batch.forEach(p -> p.future().completeExceptionally(e));
+      return;
+    }
+    if (results.size() != batch.size()) {
+      IOException e =
+          new IOException(
+              "batch of " + batch.size() + " items returned " + results.size() + " results");
+      batch.forEach(p -> p.future().completeExceptionally(e));
+      return;
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).future().complete(results.get(i));
+    }
+  }
+
+  public int maxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public Duration maxWait() {
+    return maxWait;
+  }
+
+  /**
+   * @return a snapshot of the number of items in each dispatched batch
+   */
+  public Histogram batchSizes() {
+    return batchSizes.copy();
+  }
+
+  /**
+   * @return a snapshot of the time, in microseconds, each item waited before its batch was
+   *     dispatched
+   */
+  public Histogram addedLatencyMicros() {
+    return addedLatencyMicros.copy();
+  }
+
+  @FunctionalInterface
+  public interface BatchFunction<I, O> {
+
+    /**
+     * @param batch the items to process
+     * @return one result per item, in the same order as the items
+     */
+    List<O> apply(List<I> batch) throws IOException;
+  }
+
+  private record Pending<I, O>(I item, long enqueuedNanos, CompletableFuture<O> future) {}
+}
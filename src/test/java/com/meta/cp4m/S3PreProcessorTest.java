@@ -8,14 +8,37 @@
 
 package com.meta.cp4m;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.google.common.hash.Hashing;
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.MessageFactory;
+import com.meta.cp4m.message.Payload;
+import com.meta.cp4m.message.ThreadState;
 import com.meta.cp4m.message.WAMessage;
 import com.meta.cp4m.message.WAMessageHandler;
 import com.meta.cp4m.message.WAMessengerConfig;
 import com.meta.cp4m.plugin.DummyPlugin;
 import com.meta.cp4m.store.NullStore;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 class S3PreProcessorTest {
@@ -35,4 +58,246 @@ class S3PreProcessorTest {
             "/whatsapp");
         ServicesRunner.newInstance().service(service).port(8080).start();
     }
+
+  private FakeS3 s3;
+
+  @BeforeEach
+  void setUp() {
+    s3 = new FakeS3();
+  }
+
+  @AfterEach
+  void tearDown() {
+    s3.close();
+  }
+
+  private S3PreProcessor<WAMessage> preProcessor(int uploadConcurrency) {
+    return preProcessor(uploadConcurrency, false);
+  }
+
+  private S3PreProcessor<WAMessage> preProcessor(int uploadConcurrency, boolean backgroundUpload) {
+    return new S3PreProcessor<>(
+        "someAccessKey",
+        "someSecretKey",
+        "us-east-1",
+        "bucket",
+        null,
+        URI.create("http://localhost:" + s3.port()),
+        uploadConcurrency,
+        backgroundUpload);
+  }
+
+  @Test
+  void smallMediaIsUploadedInOneRequest() {
+    S3PreProcessor<WAMessage> preProcessor = preProcessor(2);
+    byte[] media = new byte[1024];
+    new Random(0).nextBytes(media);
+    preProcessor.sendRequest(media, "sender", "png", "image/png");
+    preProcessor.sendRequest(media, "sender2", "png", "image/png");
+
+    assertThat(s3.objects).hasSize(2);
+    assertThat(s3.objects.values()).allSatisfy(o -> assertThat(o).isEqualTo(media));
+    assertThat(s3.requests.get()).isEqualTo(2);
+  }
+
+  @Test
+  void largeMediaIsUploadedInParallelParts() {
+    S3PreProcessor<WAMessage> preProcessor = preProcessor(2);
+    preProcessor.partSizeBytes(1024);
+    byte[] media = new byte[6 * 1024 + 1];
+    new Random(0).nextBytes(media);
+    s3.partDelayMillis = 100;
+    preProcessor.sendRequest(media, "sender", "pdf", "application/pdf");
+
+    assertThat(s3.objects).hasSize(1);
+    assertThat(s3.objects.values()).allSatisfy(o -> assertThat(o).isEqualTo(media));
+    assertThat(s3.maxConcurrentParts.get()).isEqualTo(2);
+    // create, 7 parts, complete
+    assertThat(s3.requests.get()).isEqualTo(9);
+  }
+
+  @Test
+  void failedMultipartUploadIsAborted() {
+    S3PreProcessor<WAMessage> preProcessor = preProcessor(2);
+    preProcessor.partSizeBytes(1024);
+    s3.failParts = true;
+    preProcessor.sendRequest(new byte[4 * 1024], "sender", "pdf", "application/pdf");
+
+    assertThat(s3.objects).isEmpty();
+    assertThat(s3.aborted.get()).isEqualTo(1);
+  }
+
+  @Test
+  void interruptIsKept() {
+    S3PreProcessor<WAMessage> preProcessor = preProcessor(1);
+    Thread.currentThread().interrupt();
+    preProcessor.sendRequest(new byte[1024], "sender", "png", "image/png");
+    // clears the flag so the rest of the test isn't affected
+    assertThat(Thread.interrupted()).isTrue();
+    assertThat(s3.objects).isEmpty();
+    preProcessor.close();
+  }
+
+  private static ThreadState<WAMessage> imageThread() {
+    return ThreadState.of(
+        MessageFactory.instance(WAMessage.class)
+            .newMessage(
+                Instant.now(),
+                new Payload.Image(new byte[1024], "image/png"),
+                Identifier.random(),
+                Identifier.random(),
+                Identifier.random(),
+                Message.Role.USER));
+  }
+
+  @Test
+  void backgroundUploadDoesNotBlock() throws Exception {
+    S3PreProcessor<WAMessage> preProcessor = preProcessor(1, true);
+    s3.putDelayMillis = 500;
+    ThreadState<WAMessage> thread = imageThread();
+    long start = System.nanoTime();
+    PreProcessor.Result<WAMessage> result = preProcessor.runAsync(thread);
+    assertThat(result.thread()).isSameAs(thread);
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofMillis(500));
+    assertThat(s3.objects).isEmpty();
+    result.sideEffects().get();
+    assertThat(s3.objects.values()).singleElement().isEqualTo(new byte[1024]);
+  }
+
+  @Test
+  void uploadsWaitWithoutBackgroundUpload() {
+    S3PreProcessor<WAMessage> preProcessor = preProcessor(1, false);
+    PreProcessor.Result<WAMessage> result = preProcessor.runAsync(imageThread());
+    assertThat(result.sideEffects()).isDone();
+    assertThat(s3.objects).hasSize(1);
+  }
+
+  @Test
+  void fullUploadQueueDropsUploads() {
+    S3PreProcessor<WAMessage> preProcessor = preProcessor(1, true);
+    s3.putDelayMillis = 200;
+    // one upload in flight and four waiting, the sixth has nowhere to go
+    List<CompletableFuture<?>> uploads = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      uploads.add(preProcessor.runAsync(imageThread()).sideEffects());
+    }
+    assertThat(uploads.getLast())
+        .failsWithin(Duration.ZERO)
+        .withThrowableOfType(ExecutionException.class)
+        .withCauseInstanceOf(RejectedExecutionException.class);
+    preProcessor.close();
+    assertThat(s3.objects).hasSize(5);
+  }
+
+  /** Just enough of the S3 REST api to put objects and perform multipart uploads */
+  private static class FakeS3 implements AutoCloseable {
+    private final Javalin app = Javalin.create();
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger concurrentParts = new AtomicInteger();
+    private final AtomicInteger maxConcurrentParts = new AtomicInteger();
+    private final AtomicInteger aborted = new AtomicInteger();
+    private volatile long putDelayMillis = 0;
+    private volatile long partDelayMillis = 0;
+    private volatile boolean failParts = false;
+
+    FakeS3() {
+      app.before(ctx -> requests.incrementAndGet());
+      app.put("/{bucket}/{key}", this::put);
+      app.post("/{bucket}/{key}", this::post);
+      app.delete(
+          "/{bucket}/{key}",
+          ctx -> {
+            uploads.remove(ctx.queryParam("uploadId"));
+            aborted.incrementAndGet();
+            ctx.status(204);
+          });
+      app.start(0);
+    }
+
+    int port() {
+      return app.port();
+    }
+
+    /** Payloads sent over plain http are signed chunk by chunk using the aws-chunked encoding */
+    private static byte[] decodeChunks(byte[] body) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int position = 0;
+      while (position < body.length) {
+        int headerEnd = position;
+        while (body[headerEnd] != '\r') {
+          headerEnd++;
+        }
+        String header = new String(body, position, headerEnd - position);
+        int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+        out.write(body, headerEnd + 2, size);
+        position = headerEnd + 2 + size + 2;
+      }
+      return out.toByteArray();
+    }
+
+    private void put(Context ctx) throws InterruptedException {
+      String contentSha = ctx.header("x-amz-content-sha256");
+      byte[] body =
+          contentSha != null && contentSha.startsWith("STREAMING-")
+              ? decodeChunks(ctx.bodyAsBytes())
+              : ctx.bodyAsBytes();
+      @SuppressWarnings("deprecation")
+      String eTag = '"' + Hashing.md5().hashBytes(body).toString() + '"';
+      String partNumber = ctx.queryParam("partNumber");
+      if (partNumber == null) {
+        Thread.sleep(putDelayMillis);
+        objects.put(ctx.pathParam("key"), body);
+        ctx.header("ETag", eTag);
+        return;
+      }
+
+      int concurrent = concurrentParts.incrementAndGet();
+      maxConcurrentParts.accumulateAndGet(concurrent, Math::max);
+      try {
+        Thread.sleep(partDelayMillis);
+      } finally {
+        concurrentParts.decrementAndGet();
+      }
+      if (failParts) {
+        ctx.status(500);
+        return;
+      }
+      uploads
+          .computeIfAbsent(ctx.queryParam("uploadId"), k -> new ConcurrentSkipListMap<>())
+          .put(Integer.parseInt(partNumber), body);
+      ctx.header("ETag", eTag);
+    }
+
+    private void post(Context ctx) {
+      String key = ctx.pathParam("key");
+      String uploadId = ctx.queryParam("uploadId");
+      if (uploadId == null) {
+        ctx.contentType("application/xml")
+            .result(
+                "<InitiateMultipartUploadResult><Bucket>"
+                    + ctx.pathParam("bucket")
+                    + "</Bucket><Key>"
+                    + key
+                    + "</Key><UploadId>"
+                    + key
+                    + "-upload</UploadId></InitiateMultipartUploadResult>");
+        return;
+      }
+      ByteArrayOutputStream object = new ByteArrayOutputStream();
+      uploads.remove(uploadId).values().forEach(object::writeBytes);
+      objects.put(key, object.toByteArray());
+      ctx.contentType("application/xml")
+          .result(
+              "<CompleteMultipartUploadResult><Key>"
+                  + key
+                  + "</Key><ETag>\"etag\"</ETag></CompleteMultipartUploadResult>");
+    }
+
+    @Override
+    public void close() {
+      app.stop();
+    }
+  }
 }
@@ -0,0 +1,148 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.meta.cp4m.message.Message;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.message.WAMessage;
+import com.meta.cp4m.message.WAMessengerConfig;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.plugin.DummyPlugin;
+import com.meta.cp4m.store.NullStore;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+class ServiceTest {
+
+  private static final Duration DELAY = Duration.ofMillis(300);
+
+  private static ThreadState<WAMessage> thread() {
+    return ThreadState.of(
+        new WAMessage(
+            Instant.now(),
+            Identifier.random(),
+            Identifier.random(),
+            Identifier.random(),
+            "hello",
+            Message.Role.USER));
+  }
+
+  private static Service<WAMessage> service(List<PreProcessor<WAMessage>> preProcessors) {
+    return new Service<>(
+        new NullStore<>(),
+        WAMessengerConfig.of("verify", "SomeSecret", "someToken").toMessageHandler(),
+        new DummyPlugin<>("dummy"),
+        preProcessors,
+        "/whatsapp");
+  }
+
+  @Test
+  void independentPreProcessorsRunConcurrently() {
+    Service<WAMessage> service =
+        service(
+            List.of(
+                new SlowAppender("first", true),
+                new SlowAppender("second", true),
+                // sees the results of both independent preprocessors
+                in -> {
+                  assertThat(in.messages()).hasSize(3);
+                  return in;
+                }));
+    long start = System.nanoTime();
+    ThreadState<WAMessage> out = service.preprocess(thread());
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+    assertThat(elapsed).isLessThan(DELAY.multipliedBy(2));
+    assertThat(out.messages())
+        .map(Message::message)
+        .containsExactlyInAnyOrder("hello", "first", "second");
+    assertThat(service.preProcessorLatencyMicros())
+        .hasSize(3)
+        .allSatisfy(h -> assertThat(h.getTotalCount()).isOne())
+        .first()
+        .extracting(Histogram::getMaxValue)
+        .satisfies(v -> assertThat(v).isGreaterThanOrEqualTo(DELAY.toNanos() / 1000));
+  }
+
+  @Test
+  void dependentPreProcessorsRunInOrder() {
+    Service<WAMessage> service =
+        service(List.of(new SlowAppender("first", false), new SlowAppender("second", true)));
+    long start = System.nanoTime();
+    ThreadState<WAMessage> out = service.preprocess(thread());
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+    assertThat(elapsed).isGreaterThanOrEqualTo(DELAY.multipliedBy(2));
+    assertThat(out.messages()).map(Message::message).containsExactly("hello", "first", "second");
+  }
+
+  @Test
+  void sideEffectsAreNotWaitedFor() {
+    CompletableFuture<Void> sideEffects = new CompletableFuture<>();
+    Service<WAMessage> service = service(List.of(new SideEffects(sideEffects)));
+    ThreadState<WAMessage> thread = thread();
+    // never completes, preprocessing would hang if the service waited
+    assertThat(service.preprocess(thread)).isSameAs(thread);
+    assertThat(sideEffects).isNotDone();
+  }
+
+  @Test
+  void droppedSideEffectsAreCounted() {
+    Service<WAMessage> service =
+        service(
+            List.of(
+                new SideEffects(CompletableFuture.failedFuture(new RejectedExecutionException())),
+                new SideEffects(CompletableFuture.failedFuture(new IllegalStateException()))));
+    MetricsRegistry registry = new MetricsRegistry();
+    service.registerMetrics(registry);
+    service.preprocess(thread());
+    String dropped = "cp4m_pre_processor_dropped_side_effects_total{service=\"/whatsapp\"";
+    // failures other than being dropped are only logged
+    assertThat(registry.scrape())
+        .contains(
+            dropped + ",component=\"SideEffects\"} 1",
+            dropped + ",component=\"SideEffects#2\"} 0");
+  }
+
+  /** Leaves the given side effects running, as a preprocessor uploading in the background does */
+  private record SideEffects(CompletableFuture<Void> sideEffects)
+      implements PreProcessor<WAMessage> {
+
+    @Override
+    public ThreadState<WAMessage> run(ThreadState<WAMessage> in) {
+      throw new UnsupportedOperationException("the service runs preprocessors with runAsync");
+    }
+
+    @Override
+    public Result<WAMessage> runAsync(ThreadState<WAMessage> in) {
+      return new Result<>(in, sideEffects);
+    }
+  }
+
+  private record SlowAppender(String text, boolean independent)
+      implements PreProcessor<WAMessage> {
+
+    @Override
+    public ThreadState<WAMessage> run(ThreadState<WAMessage> in) {
+      try {
+        Thread.sleep(DELAY);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return in.with(in.newMessageFromUser(Instant.now(), text, Identifier.random()));
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.meta.cp4m.configuration.ConfigurationUtils;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message.Role;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.plugin.DummyPlugin;
+import com.meta.cp4m.plugin.EchoPluginConfig;
+import com.meta.cp4m.plugin.Plugin;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.junit.jupiter.api.Test;
+
+class SummarizingPreProcessorTest {
+
+  private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+  // 40 characters is 10 tokens, plus 4 for the message
+  private static final String TEXT = "x".repeat(40);
+
+  private static ThreadState<FBMessage> thread(int messages) {
+    ThreadState<FBMessage> thread =
+        ThreadState.of(
+            new FBMessage(
+                START,
+                Identifier.random(),
+                Identifier.random(),
+                Identifier.random(),
+                TEXT,
+                Role.USER));
+    for (int i = 1; i < messages; i++) {
+      thread = thread.with(next(thread));
+    }
+    return thread;
+  }
+
+  private static FBMessage next(ThreadState<FBMessage> thread) {
+    Instant timestamp = thread.tail().timestamp().plusSeconds(1);
+    return thread.tail().role() == Role.USER
+        ? thread.newMessageFromBot(timestamp, TEXT)
+        : thread.newMessageFromUser(timestamp, TEXT, Identifier.random());
+  }
+
+  private static void await(LongSupplier count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (count.getAsLong() == 0 && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(5);
+    }
+    assertThat(count.getAsLong()).isPositive();
+  }
+
+  @Test
+  void shortThreadsAreUnchanged() {
+    DummyPlugin<FBMessage> summarizer = new DummyPlugin<>("summary");
+    SummarizingPreProcessor<FBMessage> preProcessor =
+        new SummarizingPreProcessor<>(summarizer, 40, 20);
+    ThreadState<FBMessage> thread = thread(2);
+    assertThat(preProcessor.run(thread)).isSameAs(thread);
+    assertThat(summarizer.poll()).isNull();
+  }
+
+  @Test
+  void closedPreProcessorsStopSummarizing() {
+    DummyPlugin<FBMessage> summarizer = new DummyPlugin<>("summary");
+    SummarizingPreProcessor<FBMessage> preProcessor =
+        new SummarizingPreProcessor<>(summarizer, 50, 20);
+    preProcessor.close();
+    ThreadState<FBMessage> thread = thread(5);
+    assertThat(preProcessor.run(thread)).isSameAs(thread);
+    assertThat(summarizer.poll()).isNull();
+    assertThat(preProcessor.summarized() + preProcessor.failures()).isZero();
+  }
+
+  @Test
+  void olderMessagesAreReplacedBySummary() throws InterruptedException {
+    DummyPlugin<FBMessage> summarizer = new DummyPlugin<>("the user said x");
+    SummarizingPreProcessor<FBMessage> preProcessor =
+        new SummarizingPreProcessor<>(summarizer, 50, 20);
+    MetricsRegistry registry = new MetricsRegistry();
+    preProcessor.registerMetrics(registry, "/service");
+
+    // the reply that goes over the threshold is not held up by the summary
+    ThreadState<FBMessage> thread = thread(5);
+    assertThat(preProcessor.run(thread)).isSameAs(thread);
+    String prompt = summarizer.take(1000).tail().message();
+    assertThat(prompt).startsWith(SummarizingPreProcessor.DEFAULT_INSTRUCTIONS);
+    assertThat(prompt).contains("user: " + TEXT, "assistant: " + TEXT);
+    await(preProcessor::summarized);
+
+    thread = thread.with(next(thread));
+    List<FBMessage> messages = preProcessor.run(thread).messages();
+    assertThat(messages).hasSize(3);
+    assertThat(messages.getFirst().message())
+        .isEqualTo(SummarizingPreProcessor.DEFAULT_SUMMARY_PREFIX + "the user said x");
+    assertThat(messages.getFirst().role()).isEqualTo(Role.ASSISTANT);
+    assertThat(messages.subList(1, 3)).isEqualTo(thread.messages().subList(4, 6));
+    assertThat(preProcessor.compressed()).isEqualTo(1);
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_summaries_total{service=\"/service\"} 1",
+            "cp4m_summarized_threads_total{service=\"/service\"} 1");
+  }
+
+  @Test
+  void summariesAreRolledForward() throws InterruptedException {
+    DummyPlugin<FBMessage> summarizer = new DummyPlugin<>("s");
+    SummarizingPreProcessor<FBMessage> preProcessor =
+        new SummarizingPreProcessor<>(summarizer, 40, 20);
+    ThreadState<FBMessage> thread = thread(4);
+    preProcessor.run(thread);
+    summarizer.take(1000);
+    await(preProcessor::summarized);
+
+    for (int i = 0; i < 3; i++) {
+      thread = thread.with(next(thread));
+    }
+    // the summary and the messages after it are over the threshold again
+    assertThat(preProcessor.run(thread).messages()).hasSize(5);
+    String prompt = summarizer.take(1000).tail().message();
+    assertThat(prompt).contains("assistant: " + SummarizingPreProcessor.DEFAULT_SUMMARY_PREFIX);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (preProcessor.summarized() < 2 && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(5);
+    }
+    assertThat(preProcessor.summarized()).isEqualTo(2);
+    assertThat(preProcessor.run(thread).messages())
+        .hasSize(2)
+        .last()
+        .isEqualTo(thread.tail());
+  }
+
+  @Test
+  void failedSummariesAreRetried() throws InterruptedException {
+    Plugin<FBMessage> failing =
+        threadState -> {
+          throw new IOException("summarizer is down");
+        };
+    SummarizingPreProcessor<FBMessage> preProcessor =
+        new SummarizingPreProcessor<>(failing, 40, 20);
+    ThreadState<FBMessage> thread = thread(5);
+    assertThat(preProcessor.run(thread)).isSameAs(thread);
+    await(preProcessor::failures);
+    assertThat(preProcessor.run(thread)).isSameAs(thread);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (preProcessor.failures() < 2 && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(5);
+    }
+    assertThat(preProcessor.failures()).isEqualTo(2);
+    assertThat(preProcessor.summarized()).isZero();
+  }
+
+  @Test
+  void config() throws JsonProcessingException {
+    PreProcessorConfig config =
+        ConfigurationUtils.jsonMapper()
+            .readValue(
+                """
+                {
+                  "type": "summarizer",
+                  "name": "summarizer",
+                  "plugin": {"type": "echo", "name": "summaries"},
+                  "threshold_tokens": 2000
+                }
+                """,
+                PreProcessorConfig.class);
+    assertThat(config).isInstanceOf(SummarizingPreProcessorConfig.class);
+    SummarizingPreProcessorConfig summarizer = (SummarizingPreProcessorConfig) config;
+    assertThat(summarizer.plugin()).isInstanceOf(EchoPluginConfig.class);
+    assertThat(summarizer.recentTokens()).isEqualTo(1000);
+    assertThat(summarizer.<FBMessage>toPreProcessor())
+        .isInstanceOf(SummarizingPreProcessor.class);
+
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "summarizer",
+                          "name": "summarizer",
+                          "plugin": {"type": "echo", "name": "summaries"},
+                          "threshold_tokens": 2000,
+                          "recent_tokens": 2000
+                        }
+                        """,
+                        PreProcessorConfig.class))
+        .hasMessageContaining("recent_tokens must be less than threshold_tokens");
+  }
+}
@@ -21,13 +21,20 @@ import com.meta.cp4m.message.WAMessengerConfig;
 import com.meta.cp4m.plugin.HuggingFaceConfig;
 import com.meta.cp4m.plugin.OpenAIConfig;
 import com.meta.cp4m.plugin.OpenAIModel;
+import com.meta.cp4m.recording.RecordedWebhook;
+import com.meta.cp4m.recording.WebhookRecorder;
+import com.meta.cp4m.recording.WebhookRecorderConfig;
 import com.meta.cp4m.store.MemoryStoreConfig;
+import com.meta.cp4m.tracing.Tracer;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
 import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.net.URIBuilder;
 import org.apache.logging.log4j.Level;
 import org.checkerframework.common.returnsreceiver.qual.This;
@@ -310,6 +317,73 @@ handler = "messenger_test"
     Request.get(url).execute().handleResponse(h -> assertThat(h.getCode()).isEqualTo(200));
   }
 
+  @Test
+  void tracing() throws JsonProcessingException {
+    TomlMapper mapper = ConfigurationUtils.tomlMapper();
+    ObjectNode node = (ObjectNode) mapper.readTree(TOML);
+    RootConfiguration config = mapper.convertValue(node, RootConfiguration.class);
+    assertThat(config.tracing()).isEmpty();
+    assertThat(config.toServicesRunner().tracer().isDisabled()).isTrue();
+
+    node.putObject("tracing").put("slow_threshold_ms", 500);
+    config = mapper.convertValue(node, RootConfiguration.class);
+    Tracer tracer = config.toServicesRunner().tracer();
+    assertThat(tracer.sampleRate()).isEqualTo(0.01);
+    assertThat(tracer.slowThreshold()).isEqualTo(Duration.ofMillis(500));
+
+    ((ObjectNode) node.get("tracing")).put("sample_rate", 2);
+    assertThatThrownBy(() -> mapper.convertValue(node, RootConfiguration.class))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void jfrAdmin() throws JsonProcessingException {
+    TomlMapper mapper = ConfigurationUtils.tomlMapper();
+    ObjectNode node = (ObjectNode) mapper.readTree(TOML);
+    node.putObject("jfr_admin").put("token", "secret");
+    RootConfiguration config = mapper.convertValue(node, RootConfiguration.class);
+    assertThat(config.jfrAdmin().orElseThrow().path()).isEqualTo("/admin/jfr");
+
+    ((ObjectNode) node.get("jfr_admin")).put("path", "/metrics");
+    assertThatThrownBy(() -> mapper.convertValue(node, RootConfiguration.class))
+        .isInstanceOf(IllegalArgumentException.class);
+    ((ObjectNode) node.get("jfr_admin")).put("path", "/messenger");
+    assertThatThrownBy(() -> mapper.convertValue(node, RootConfiguration.class))
+        .isInstanceOf(IllegalArgumentException.class);
+    ((ObjectNode) node.get("jfr_admin")).put("path", "/admin").remove("token");
+    assertThatThrownBy(() -> mapper.convertValue(node, RootConfiguration.class))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void webhookRecorder(@TempDir Path dir) throws IOException, URISyntaxException {
+    TomlMapper mapper = ConfigurationUtils.tomlMapper();
+    ObjectNode node = (ObjectNode) mapper.readTree(TOML);
+    node.putObject("webhook_recorder").put("directory", dir.toString()).put("max_files", 2);
+    RootConfiguration config = mapper.convertValue(node, RootConfiguration.class);
+    WebhookRecorderConfig recorderConfig = config.webhookRecorder().orElseThrow();
+    assertThat(recorderConfig.directory()).isEqualTo(dir);
+    assertThat(recorderConfig.maxFiles()).isEqualTo(2);
+    assertThat(recorderConfig.maxFileSizeMbs()).isEqualTo(64);
+
+    try (ServicesRunner runner = config.toServicesRunner().port(0).start()) {
+      URI url =
+          URIBuilder.loopbackAddress()
+              .setPort(runner.port())
+              .appendPath("/messenger")
+              .setScheme("http")
+              .build();
+      // recorded even though the signature is invalid, it is recorded as it arrived
+      Request.post(url).bodyString("{}", ContentType.APPLICATION_JSON).execute().discardContent();
+    }
+    try (Stream<RecordedWebhook> recorded = WebhookRecorder.read(dir)) {
+      assertThat(recorded)
+          .singleElement()
+          .satisfies(w -> assertThat(w.path()).isEqualTo("/messenger"))
+          .satisfies(w -> assertThat(w.body()).isEqualTo("{}"));
+    }
+  }
+
   @ParameterizedTest
   @ValueSource(strings = {"handlers", "plugins", "stores", "services"})
   void requiredNonEmpty(String param) throws JsonProcessingException {
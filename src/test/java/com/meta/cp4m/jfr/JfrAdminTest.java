@@ -0,0 +1,110 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.jfr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.meta.cp4m.ServicesRunner;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JfrAdminTest {
+
+  private static final JsonMapper MAPPER = new JsonMapper();
+  private static final String TOKEN = "admin token";
+  private ServicesRunner runner;
+
+  @BeforeEach
+  void setUp() {
+    runner = ServicesRunner.newInstance().jfrAdmin(new JfrAdmin("/admin/jfr", TOKEN)).port(0);
+    runner.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    runner.close();
+  }
+
+  private URI uri(String path) {
+    return URI.create("http://localhost:" + runner.port() + "/admin/jfr" + path);
+  }
+
+  private ClassicHttpResponse send(Request request) throws IOException {
+    return (ClassicHttpResponse)
+        request.setHeader("Authorization", "Bearer " + TOKEN).execute().returnResponse();
+  }
+
+  private JsonNode state(Request request) throws IOException {
+    return MAPPER.readTree(
+        request
+            .setHeader("Authorization", "Bearer " + TOKEN)
+            .execute()
+            .returnContent()
+            .asBytes());
+  }
+
+  @Test
+  void requiresToken() throws IOException {
+    assertThat(Request.get(uri("")).execute().returnResponse().getCode()).isEqualTo(401);
+    assertThat(
+            Request.post(uri("/start"))
+                .setHeader("Authorization", "Bearer wrong")
+                .execute()
+                .returnResponse()
+                .getCode())
+        .isEqualTo(401);
+    assertThat(state(Request.get(uri(""))).get("state").textValue()).isEqualTo("none");
+  }
+
+  @Test
+  void startDumpStop(@TempDir Path dir) throws IOException {
+    assertThat(send(Request.get(uri("/dump"))).getCode()).isEqualTo(404);
+    assertThat(send(Request.post(uri("/stop"))).getCode()).isEqualTo(409);
+    assertThat(send(Request.post(uri("/start?max_size_mbs=abc"))).getCode()).isEqualTo(400);
+
+    JsonNode started = state(Request.post(uri("/start?settings=default")));
+    assertThat(started.get("state").textValue()).isEqualTo("running");
+    assertThat(send(Request.post(uri("/start"))).getCode()).isEqualTo(409);
+
+    DuplicateMessageEvent event = new DuplicateMessageEvent();
+    event.handler = "JfrAdminTest";
+    event.messageId = "message-1";
+    event.commit();
+
+    Path dump = dir.resolve("dump.jfr");
+    Files.write(
+        dump,
+        Request.get(uri("/dump"))
+            .setHeader("Authorization", "Bearer " + TOKEN)
+            .execute()
+            .returnContent()
+            .asBytes());
+    List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+    assertThat(events)
+        .filteredOn(e -> e.getEventType().getName().equals("com.meta.cp4m.DuplicateMessage"))
+        .singleElement()
+        .satisfies(e -> assertThat(e.getString("messageId")).isEqualTo("message-1"));
+
+    assertThat(state(Request.post(uri("/stop"))).get("state").textValue()).isEqualTo("stopped");
+    assertThat(send(Request.get(uri("/dump"))).getCode()).isEqualTo(200);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for the parts of the Graph API that the WhatsApp handler calls: sending
+ * messages, marking messages as read and fetching media. Every request waits for the configured
+ * latency and fails with a 500 at the configured error rate.
+ */
+public class FakeGraphApi implements AutoCloseable {
+
+  private static final JsonMapper MAPPER = new JsonMapper();
+  private static final byte[] MEDIA = new byte[64 * 1024];
+
+  private final Javalin app;
+  private final Duration latency;
+  private final double errorRate;
+  private final ReplyListener listener;
+  private final LongAdder sends = new LongAdder();
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder mediaRequests = new LongAdder();
+  private final LongAdder injectedErrors = new LongAdder();
+
+  public FakeGraphApi(Duration latency, double errorRate, ReplyListener listener) {
+    Preconditions.checkArgument(!latency.isNegative(), "latency cannot be negative");
+    Preconditions.checkArgument(
+        errorRate >= 0 && errorRate <= 1, "errorRate must be between 0 and 1");
+    this.latency = latency;
+    this.errorRate = errorRate;
+    this.listener = Objects.requireNonNull(listener);
+    this.app = Javalin.create(config -> config.useVirtualThreads = true);
+    app.post("/{phone_number_id}/messages", this::messages);
+    app.get("/media/{media_id}", this::media);
+    app.get("/{media_id}", this::mediaDetails);
+    app.start(0);
+  }
+
+  public URI baseUrl() {
+    return URI.create("http://localhost:" + app.port());
+  }
+
+  public long sends() {
+    return sends.sum();
+  }
+
+  public long reads() {
+    return reads.sum();
+  }
+
+  public long mediaRequests() {
+    return mediaRequests.sum();
+  }
+
+  public long injectedErrors() {
+    return injectedErrors.sum();
+  }
+
+  private boolean delayAndFail(Context ctx) throws InterruptedException {
+    if (!latency.isZero()) {
+      Thread.sleep(latency);
+    }
+    if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+      injectedErrors.increment();
+      ctx.status(500)
+          .contentType("application/json")
+          .result("{\"error\":{\"message\":\"injected error\",\"code\":2}}");
+      return true;
+    }
+    return false;
+  }
+
+  private void messages(Context ctx) throws Exception {
+    if (delayAndFail(ctx)) {
+      return;
+    }
+    JsonNode body = MAPPER.readTree(ctx.body());
+    if (body.path("status").asText().equals("read")) {
+      reads.increment();
+      ctx.contentType("application/json").result("{\"success\":true}");
+      return;
+    }
+    sends.increment();
+    String to = body.path("to").asText();
+    listener.onReply(to, body.path("text").path("body").asText());
+
+    ObjectNode response = MAPPER.createObjectNode().put("messaging_product", "whatsapp");
+    response.putArray("contacts").addObject().put("input", to).put("wa_id", to);
+    response.putArray("messages").addObject().put("id", "wamid." + UUID.randomUUID());
+    ctx.contentType("application/json").result(MAPPER.writeValueAsString(response));
+  }
+
+  private void mediaDetails(Context ctx) throws Exception {
+    if (delayAndFail(ctx)) {
+      return;
+    }
+    String id = ctx.pathParam("media_id");
+    ObjectNode response =
+        MAPPER
+            .createObjectNode()
+            .put("messaging_product", "whatsapp")
+            .put("mime_type", "image/jpeg")
+            .put("url", baseUrl().resolve("/media/" + id).toString())
+            .put("sha256", "0")
+            .put("file_size", String.valueOf(MEDIA.length))
+            .put("id", id);
+    ctx.contentType("application/json").result(MAPPER.writeValueAsString(response));
+  }
+
+  private void media(Context ctx) throws Exception {
+    if (delayAndFail(ctx)) {
+      return;
+    }
+    mediaRequests.increment();
+    ctx.contentType("image/jpeg").result(MEDIA);
+  }
+
+  @Override
+  public void close() {
+    app.stop();
+  }
+
+  @FunctionalInterface
+  public interface ReplyListener {
+
+    /**
+     * Called for every message that the service sends
+     *
+     * @param recipient the id of the user the message is sent to
+     * @param text the text of the message
+     */
+    void onReply(String recipient, String text);
+  }
+}
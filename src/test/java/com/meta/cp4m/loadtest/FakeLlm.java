@@ -0,0 +1,112 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for an OpenAI compatible chat completions endpoint. Every response is {@code
+ * responseTokens} tokens long and the tokens are generated at {@code tokensPerSecond}. When the
+ * request asks for {@code "stream": true} each token is sent as a server sent event as soon as it
+ * is generated.
+ */
+public class FakeLlm implements AutoCloseable {
+
+  private static final JsonMapper MAPPER = new JsonMapper();
+  private static final String PATH = "/v1/chat/completions";
+
+  private final Javalin app;
+  private final int responseTokens;
+  private final long nanosPerToken;
+  private final LongAdder requests = new LongAdder();
+
+  public FakeLlm(int responseTokens, double tokensPerSecond) {
+    Preconditions.checkArgument(responseTokens > 0, "responseTokens must be greater than zero");
+    Preconditions.checkArgument(tokensPerSecond > 0, "tokensPerSecond must be greater than zero");
+    this.responseTokens = responseTokens;
+    this.nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+    this.app = Javalin.create(config -> config.useVirtualThreads = true);
+    app.post(PATH, this::completions);
+    app.start(0);
+  }
+
+  public URI endpoint() {
+    return URI.create("http://localhost:" + app.port() + PATH);
+  }
+
+  public long requests() {
+    return requests.sum();
+  }
+
+  private static String token(int index) {
+    return index == 0 ? "token" : " token";
+  }
+
+  private void completions(Context ctx) throws Exception {
+    requests.increment();
+    JsonNode request = MAPPER.readTree(ctx.body());
+    String id = "chatcmpl-" + UUID.randomUUID();
+    long created = Instant.now().getEpochSecond();
+    if (!request.path("stream").asBoolean(false)) {
+      TimeUnit.NANOSECONDS.sleep(nanosPerToken * responseTokens);
+      StringBuilder content = new StringBuilder();
+      for (int i = 0; i < responseTokens; i++) {
+        content.append(token(i));
+      }
+      ObjectNode response =
+          MAPPER
+              .createObjectNode()
+              .put("id", id)
+              .put("object", "chat.completion")
+              .put("created", created);
+      ObjectNode choice = response.putArray("choices").addObject().put("index", 0);
+      choice.putObject("message").put("role", "assistant").put("content", content.toString());
+      choice.put("finish_reason", "stop");
+      ctx.contentType("application/json").result(MAPPER.writeValueAsString(response));
+      return;
+    }
+
+    ctx.contentType("text/event-stream");
+    OutputStream out = ctx.res().getOutputStream();
+    for (int i = 0; i < responseTokens; i++) {
+      TimeUnit.NANOSECONDS.sleep(nanosPerToken);
+      ObjectNode chunk =
+          MAPPER
+              .createObjectNode()
+              .put("id", id)
+              .put("object", "chat.completion.chunk")
+              .put("created", created);
+      ObjectNode choice = chunk.putArray("choices").addObject().put("index", 0);
+      choice.putObject("delta").put("content", token(i));
+      choice.putNull("finish_reason");
+      out.write(
+          ("data: " + MAPPER.writeValueAsString(chunk) + "\n\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+    out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  @Override
+  public void close() {
+    app.stop();
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.meta.cp4m.Service;
+import com.meta.cp4m.ServicesRunner;
+import com.meta.cp4m.configuration.ConfigurationUtils;
+import com.meta.cp4m.configuration.RootConfiguration;
+import com.meta.cp4m.message.HandlerTestUtils;
+import com.meta.cp4m.plugin.OpenAIPlugin;
+import com.meta.cp4m.plugin.Plugin;
+import com.meta.cp4m.plugin.SingleFlightPlugin;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.hc.client5.http.fluent.Executor;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ContentType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Drives signed WhatsApp webhooks at a fixed rate through a full {@link ServicesRunner} built from
+ * a TOML configuration and reports throughput, webhook acknowledgement latency and end to end
+ * reply latency. The Graph API and the OpenAI endpoint are replaced with {@link FakeGraphApi} and
+ * {@link FakeLlm} so the numbers describe this service rather than the network.
+ *
+ * <p>Webhooks are sent open loop: each one is scheduled at a fixed offset from the start and its
+ * latency is measured from that scheduled time. A stall in the service therefore shows up in the
+ * percentiles instead of quietly lowering the request rate.
+ *
+ * <p>Run with {@code mvn -P load-test -DskipTests verify -Dloadtest.args="--rps 200 --duration
+ * 60"}, see {@link Options#parse(String[])} for every option.
+ */
+public class LoadTest {
+
+  private static final JsonMapper MAPPER = new JsonMapper();
+  private static final String PHONE_NUMBER_ID = "100000000000001";
+  private static final long FIRST_USER_ID = 15550000000L;
+  private static final int MAX_CONNECTIONS = 1000;
+
+  private final Options options;
+  private final ConcurrentHistogram ackLatencyMicros = new ConcurrentHistogram(3);
+  private final ConcurrentHistogram replyLatencyMicros = new ConcurrentHistogram(3);
+  // user id -> the nano time at which the webhook from that user was scheduled to be sent
+  private final Map<String, Long> awaitingReply = new ConcurrentHashMap<>();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder replies = new LongAdder();
+
+  public LoadTest(Options options) {
+    this.options = Objects.requireNonNull(options);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Report report = new LoadTest(Options.parse(args)).run();
+    System.out.println(report.summary());
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  private static String payload(String user, long sequence) {
+    ObjectNode body = MAPPER.createObjectNode().put("object", "whatsapp_business_account");
+    ObjectNode change =
+        body.putArray("entry")
+            .addObject()
+            .put("id", "0")
+            .putArray("changes")
+            .addObject()
+            .put("field", "messages");
+    ObjectNode value = change.putObject("value").put("messaging_product", "whatsapp");
+    value
+        .putObject("metadata")
+        .put("display_phone_number", "16505551111")
+        .put("phone_number_id", PHONE_NUMBER_ID);
+    value
+        .putArray("contacts")
+        .addObject()
+        .put("wa_id", user)
+        .putObject("profile")
+        .put("name", "load test user");
+    value
+        .putArray("messages")
+        .addObject()
+        .put("from", user)
+        .put("id", "wamid.load-test-" + sequence)
+        .put("timestamp", String.valueOf(Instant.now().getEpochSecond()))
+        .put("type", "text")
+        .putObject("text")
+        .put("body", "load test message " + sequence);
+    return body.toString();
+  }
+
+  public Report run() throws Exception {
+    Target target = Target.from(options.config());
+    RootConfiguration config = ConfigurationUtils.loadConfigurationFile(options.config());
+    try (FakeGraphApi graph =
+            new FakeGraphApi(options.graphLatency(), options.graphErrorRate(), this::onReply);
+        FakeLlm llm = new FakeLlm(options.llmResponseTokens(), options.llmTokensPerSecond());
+        ServicesRunner runner = config.toServicesRunner().port(0);
+        CloseableHttpClient client =
+            HttpClients.custom()
+                .setConnectionManager(
+                    PoolingHttpClientConnectionManagerBuilder.create()
+                        .setMaxConnTotal(MAX_CONNECTIONS)
+                        .setMaxConnPerRoute(MAX_CONNECTIONS)
+                        .build())
+                .build()) {
+      for (Service<?> service : runner.services()) {
+        HandlerTestUtils.redirect(service.messageHandler(), graph.baseUrl());
+        Plugin<?> plugin = service.plugin();
+        if (plugin instanceof SingleFlightPlugin<?> singleFlight) {
+          plugin = singleFlight.plugin();
+        }
+        if (plugin instanceof OpenAIPlugin<?> openAI) {
+          openAI.endpoint(llm.endpoint());
+        }
+      }
+      runner.start();
+
+      URI webhook = URI.create("http://localhost:" + runner.port() + target.webhookPath());
+      Executor http = Executor.newInstance(client);
+      long total = (long) (options.rps() * options.duration().toMillis() / 1000.0);
+      long interval = (long) (TimeUnit.SECONDS.toNanos(1) / options.rps());
+      long start = System.nanoTime();
+      // closing the executor waits for every webhook to be acknowledged
+      try (ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (long i = 0; i < total; i++) {
+          long scheduled = start + i * interval;
+          long wait = scheduled - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+          long sequence = i;
+          senders.execute(
+              () -> sendWebhook(http, webhook, target.appSecret(), sequence, scheduled));
+        }
+      }
+      long sent = System.nanoTime();
+
+      long drainDeadline = sent + options.drain().toNanos();
+      while (!awaitingReply.isEmpty() && System.nanoTime() < drainDeadline) {
+        Thread.sleep(10);
+      }
+      long end = System.nanoTime();
+
+      return new Report(
+          total,
+          rejected.sum(),
+          replies.sum(),
+          awaitingReply.size(),
+          Duration.ofNanos(sent - start),
+          Duration.ofNanos(end - start),
+          ackLatencyMicros.copy(),
+          replyLatencyMicros.copy(),
+          graph.sends(),
+          graph.reads(),
+          graph.injectedErrors(),
+          llm.requests());
+    }
+  }
+
+  private void sendWebhook(
+      Executor http, URI webhook, String appSecret, long sequence, long scheduled) {
+    String user = String.valueOf(FIRST_USER_ID + sequence);
+    String body = payload(user, sequence);
+    String signature = HandlerTestUtils.signature(body, appSecret);
+    awaitingReply.put(user, scheduled);
+    int status;
+    try {
+      status =
+          http.execute(
+                  Request.post(webhook)
+                      .bodyString(body, ContentType.APPLICATION_JSON)
+                      .setHeader("X-Hub-Signature-256", signature))
+              .returnResponse()
+              .getCode();
+    } catch (IOException e) {
+      status = -1;
+    }
+    ackLatencyMicros.recordValue(micros(System.nanoTime() - scheduled));
+    if (status != 200) {
+      rejected.increment();
+      awaitingReply.remove(user);
+    }
+  }
+
+  private void onReply(String recipient, String text) {
+    long now = System.nanoTime();
+    // long replies are chunked into several messages, only the first one counts
+    @Nullable Long scheduled = awaitingReply.remove(recipient);
+    if (scheduled != null) {
+      replyLatencyMicros.recordValue(micros(now - scheduled));
+      replies.increment();
+    }
+  }
+
+  /**
+   * @param config the TOML configuration used to build the services, the first service with a
+   *     WhatsApp handler receives the webhooks
+   * @param rps webhooks sent per second
+   * @param duration how long to send webhooks for
+   * @param drain how long to wait for outstanding replies after the last webhook is sent
+   * @param graphLatency time the fake Graph API takes to respond to every request
+   * @param graphErrorRate fraction of Graph API requests that fail with a 500
+   * @param llmResponseTokens number of tokens in every LLM response
+   * @param llmTokensPerSecond rate at which the fake LLM generates tokens
+   */
+  public record Options(
+      Path config,
+      double rps,
+      Duration duration,
+      Duration drain,
+      Duration graphLatency,
+      double graphErrorRate,
+      int llmResponseTokens,
+      double llmTokensPerSecond) {
+
+    public Options {
+      Objects.requireNonNull(config);
+      Preconditions.checkArgument(rps > 0, "rps must be greater than zero");
+      Preconditions.checkArgument(!duration.isNegative(), "duration cannot be negative");
+      Preconditions.checkArgument(!drain.isNegative(), "drain cannot be negative");
+    }
+
+    private static Duration seconds(String value) {
+      return Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+    }
+
+    /**
+     * Parse command line options, every option is given as {@code --name value}
+     *
+     * <ul>
+     *   <li>--config: path to a TOML configuration, defaults to the loadtest.toml test resource
+     *   <li>--rps: webhooks per second, defaults to 50
+     *   <li>--duration: seconds to send webhooks for, defaults to 30
+     *   <li>--drain: seconds to wait for outstanding replies, defaults to 30
+     *   <li>--graph-latency-ms: Graph API latency, defaults to 50
+     *   <li>--graph-error-rate: fraction of failed Graph API requests, defaults to 0
+     *   <li>--llm-tokens: tokens per LLM response, defaults to 50
+     *   <li>--llm-tokens-per-second: LLM generation speed, defaults to 100
+     * </ul>
+     */
+    public static Options parse(String[] args) throws URISyntaxException {
+      Path config =
+          Path.of(Objects.requireNonNull(LoadTest.class.getResource("/loadtest.toml")).toURI());
+      double rps = 50;
+      Duration duration = Duration.ofSeconds(30);
+      Duration drain = Duration.ofSeconds(30);
+      Duration graphLatency = Duration.ofMillis(50);
+      double graphErrorRate = 0;
+      int llmResponseTokens = 50;
+      double llmTokensPerSecond = 100;
+      Preconditions.checkArgument(args.length % 2 == 0, "every option must have a value");
+      for (int i = 0; i < args.length; i += 2) {
+        String value = args[i + 1];
+        switch (args[i]) {
+          case "--config" -> config = Path.of(value);
+          case "--rps" -> rps = Double.parseDouble(value);
+          case "--duration" -> duration = seconds(value);
+          case "--drain" -> drain = seconds(value);
+          case "--graph-latency-ms" -> graphLatency = Duration.ofMillis(Long.parseLong(value));
+          case "--graph-error-rate" -> graphErrorRate = Double.parseDouble(value);
+          case "--llm-tokens" -> llmResponseTokens = Integer.parseInt(value);
+          case "--llm-tokens-per-second" -> llmTokensPerSecond = Double.parseDouble(value);
+          default -> throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      return new Options(
+          config,
+          rps,
+          duration,
+          drain,
+          graphLatency,
+          graphErrorRate,
+          llmResponseTokens,
+          llmTokensPerSecond);
+    }
+  }
+
+  /**
+   * @param sent number of webhooks sent
+   * @param rejected number of webhooks that were not acknowledged with a 200
+   * @param replies number of webhooks that got a reply
+   * @param missing number of acknowledged webhooks that never got a reply
+   * @param sendTime time spent sending webhooks
+   * @param totalTime time spent sending webhooks and waiting for replies
+   */
+  public record Report(
+      long sent,
+      long rejected,
+      long replies,
+      long missing,
+      Duration sendTime,
+      Duration totalTime,
+      Histogram ackLatencyMicros,
+      Histogram replyLatencyMicros,
+      long graphSends,
+      long graphReads,
+      long graphInjectedErrors,
+      long llmRequests) {
+
+    private static double perSecond(long count, Duration time) {
+      return count / (time.toNanos() / 1e9);
+    }
+
+    private static String percentiles(Histogram micros) {
+      return String.format(
+          "p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+          micros.getValueAtPercentile(50) / 1000.0,
+          micros.getValueAtPercentile(90) / 1000.0,
+          micros.getValueAtPercentile(99) / 1000.0,
+          micros.getMaxValue() / 1000.0);
+    }
+
+    public String summary() {
+      return String.join(
+          "\n",
+          String.format(
+              "webhooks:          %d sent in %.1fs (%.1f/s), %d rejected",
+              sent, sendTime.toNanos() / 1e9, perSecond(sent, sendTime), rejected),
+          String.format(
+              "replies:           %d in %.1fs (%.1f/s), %d missing",
+              replies, totalTime.toNanos() / 1e9, perSecond(replies, totalTime), missing),
+          "webhook ack (ms):  " + percentiles(ackLatencyMicros),
+          "end to end (ms):   " + percentiles(replyLatencyMicros),
+          String.format(
+              "graph api:         %d sends, %d reads, %d injected errors",
+              graphSends, graphReads, graphInjectedErrors),
+          String.format("llm:               %d requests", llmRequests));
+    }
+  }
+
+  private record Target(String webhookPath, String appSecret) {
+
+    static Target from(Path config) throws IOException {
+      JsonNode root = ConfigurationUtils.tomlMapper().readTree(config.toFile());
+      for (JsonNode service : root.path("services")) {
+        String handlerName = service.path("handler").asText();
+        for (JsonNode handler : root.path("handlers")) {
+          if (handler.path("name").asText().equals(handlerName)
+              && handler.path("type").asText().equals("whatsapp")) {
+            return new Target(
+                service.path("webhook_path").asText(), handler.path("app_secret").asText());
+          }
+        }
+      }
+      throw new IllegalArgumentException(
+          "load test configuration must contain a service with a whatsapp handler");
+    }
+  }
+}
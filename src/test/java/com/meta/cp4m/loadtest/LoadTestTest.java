@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.loadtest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.Test;
+
+class LoadTestTest {
+
+  @Test
+  void everyWebhookGetsAReply() throws Exception {
+    LoadTest.Options options =
+        LoadTest.Options.parse(
+            new String[] {
+              "--rps", "20",
+              "--duration", "0.5",
+              "--drain", "10",
+              "--graph-latency-ms", "1",
+              "--llm-tokens", "5",
+              "--llm-tokens-per-second", "1000"
+            });
+    LoadTest.Report report = new LoadTest(options).run();
+    assertThat(report.sent()).isEqualTo(10);
+    assertThat(report.rejected()).isZero();
+    assertThat(report.missing()).isZero();
+    assertThat(report.replies()).isEqualTo(10);
+    assertThat(report.ackLatencyMicros().getTotalCount()).isEqualTo(10);
+    assertThat(report.replyLatencyMicros().getTotalCount()).isEqualTo(10);
+    assertThat(report.llmRequests()).isEqualTo(10);
+    assertThat(report.summary()).contains("10 sent", "end to end (ms)");
+  }
+
+  @Test
+  void graphErrorsShowUpAsMissingReplies() throws Exception {
+    LoadTest.Options options =
+        LoadTest.Options.parse(
+            new String[] {
+              "--rps", "20",
+              "--duration", "0.25",
+              "--drain", "0.25",
+              "--graph-latency-ms", "0",
+              "--graph-error-rate", "1",
+              "--llm-tokens", "5",
+              "--llm-tokens-per-second", "1000"
+            });
+    LoadTest.Report report = new LoadTest(options).run();
+    assertThat(report.sent()).isEqualTo(5);
+    assertThat(report.replies()).isZero();
+    assertThat(report.missing()).isEqualTo(5);
+    assertThat(report.graphInjectedErrors()).isGreaterThanOrEqualTo(5);
+  }
+
+  @Test
+  void fakeLlmStreamsTokens() throws Exception {
+    try (FakeLlm llm = new FakeLlm(5, 1000)) {
+      String body =
+          Request.post(llm.endpoint())
+              .bodyString("{\"stream\": true}", ContentType.APPLICATION_JSON)
+              .execute()
+              .returnContent()
+              .asString(StandardCharsets.UTF_8);
+      assertThat(Arrays.stream(body.split("\n\n")).filter(e -> e.startsWith("data: ")))
+          .hasSize(6)
+          .last()
+          .isEqualTo("data: [DONE]");
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.webhook.whatsapp.SendResponse;
+import com.meta.cp4m.message.webhook.whatsapp.Status;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DeliveryTrackerTest {
+
+  private static final Identifier PHONE_NUMBER_ID = Identifier.from("123456123");
+  private static final Identifier USER_ID = Identifier.from("16315551181");
+  private static final Instant RECEIVED = Instant.ofEpochSecond(1_700_000_000);
+  private static final String LABELS = "{phone_number_id=\"123456123\"}";
+
+  private final MetricsRegistry registry = new MetricsRegistry();
+  private DeliveryTracker tracker = new DeliveryTracker();
+
+  @BeforeEach
+  void setUp() {
+    tracker = new DeliveryTracker();
+    tracker.registerMetrics(registry);
+  }
+
+  private static SendResponse response(String messageId) {
+    return new SendResponse(
+        "whatsapp", List.of(), List.of(new SendResponse.SendResponseMessages(messageId, null)));
+  }
+
+  private static Status status(String messageId, Status.StatusType type, Instant timestamp) {
+    return new Status(messageId, null, USER_ID.toString(), type, timestamp.getEpochSecond());
+  }
+
+  @Test
+  void deliveredAndRead() {
+    DeliveryTracker.Reply reply = tracker.reply(PHONE_NUMBER_ID, RECEIVED);
+    tracker.sent(reply, response("wamid.1"), RECEIVED.plusSeconds(2));
+    assertThat(tracker.pending()).isEqualTo(1);
+
+    Instant delivered = RECEIVED.plusSeconds(3);
+    tracker.status(status("wamid.1", Status.StatusType.SENT, RECEIVED.plusSeconds(2)));
+    tracker.status(status("wamid.1", Status.StatusType.DELIVERED, delivered));
+    tracker.status(status("wamid.1", Status.StatusType.DELIVERED, delivered)); // redelivered
+    tracker.status(status("wamid.1", Status.StatusType.READ, RECEIVED.plusSeconds(10)));
+
+    assertThat(tracker.pending()).isZero();
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_wa_user_message_to_delivered_seconds_count" + LABELS + " 1",
+            "cp4m_wa_sent_to_read_seconds_count" + LABELS + " 1")
+        .doesNotContain("cp4m_wa_delivery_failures_total");
+  }
+
+  @Test
+  void chunkedReplyIsMeasuredOnceFromItsTrigger() {
+    DeliveryTracker.Reply first = tracker.reply(PHONE_NUMBER_ID, RECEIVED);
+    // the user wrote again before the first reply was sent
+    DeliveryTracker.Reply second = tracker.reply(PHONE_NUMBER_ID, RECEIVED.plusSeconds(60));
+    tracker.sent(first, response("wamid.1"), RECEIVED.plusSeconds(61));
+    tracker.sent(first, response("wamid.2"), RECEIVED.plusSeconds(62));
+    tracker.sent(second, response("wamid.3"), RECEIVED.plusSeconds(63));
+
+    Instant delivered = RECEIVED.plusSeconds(64);
+    for (String id : List.of("wamid.1", "wamid.2", "wamid.3")) {
+      tracker.status(status(id, Status.StatusType.DELIVERED, delivered));
+      tracker.status(status(id, Status.StatusType.READ, delivered));
+    }
+
+    String scraped = registry.scrape();
+    assertThat(scraped)
+        .contains(
+            "cp4m_wa_user_message_to_delivered_seconds_count" + LABELS + " 2",
+            "cp4m_wa_user_message_to_delivered_seconds_sum" + LABELS + " 68.0",
+            "cp4m_wa_sent_to_read_seconds_count" + LABELS + " 2",
+            "cp4m_wa_sent_to_read_seconds_sum" + LABELS + " 4.0");
+    assertThat(tracker.pending()).isZero();
+  }
+
+  @Test
+  void failedIsCounted() {
+    tracker.sent(tracker.reply(PHONE_NUMBER_ID, RECEIVED), response("wamid.1"), RECEIVED);
+    tracker.status(status("wamid.1", Status.StatusType.FAILED, RECEIVED.plusSeconds(1)));
+    tracker.status(status("wamid.1", Status.StatusType.FAILED, RECEIVED.plusSeconds(1)));
+
+    assertThat(tracker.pending()).isZero();
+    assertThat(registry.scrape()).contains("cp4m_wa_delivery_failures_total" + LABELS + " 1");
+  }
+
+  @Test
+  void unknownStatusesAreIgnored() {
+    tracker.status(status("wamid.unknown", Status.StatusType.READ, RECEIVED));
+    assertThat(registry.scrape()).isEmpty();
+  }
+
+  @Test
+  void unreadRepliesExpire() throws InterruptedException {
+    DeliveryTracker expiring = new DeliveryTracker(10, Duration.ofMillis(50));
+    expiring.sent(expiring.reply(PHONE_NUMBER_ID, RECEIVED), response("wamid.1"), RECEIVED);
+    Thread.sleep(100);
+    assertThat(expiring.pending()).isZero();
+  }
+}
@@ -15,6 +15,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.meta.cp4m.Identifier;
@@ -414,6 +415,55 @@ public class FBMessageHandlerTest {
     assertThat(requests).allSatisfy(m -> assertThat(m.body()).contains("0123456789"));
   }
 
+  @Test
+  void batchSendsKeepOrder() throws IOException, InterruptedException {
+    BlockingQueue<ArrayNode> batches = new LinkedBlockingQueue<>();
+    app.addHttpHandler(
+        HandlerType.POST,
+        "/batch",
+        ctx -> {
+          ArrayNode batch = (ArrayNode) MAPPER.readTree(ctx.formParam("batch"));
+          batches.add(batch);
+          ArrayNode responses = MAPPER.createArrayNode();
+          for (int i = 0; i < batch.size(); i++) {
+            // the second batch fails part way through
+            int code = batches.size() == 2 && i >= 10 ? 400 : 200;
+            responses.addObject().put("code", code).put("body", "{}");
+          }
+          ctx.json(responses);
+        });
+    app.start(0);
+    Identifier pageId = Identifier.from(106195825075770L);
+    ObjectNode config =
+        MAPPER
+            .createObjectNode()
+            .put("type", "messenger")
+            .put("name", "messenger")
+            .put("verify_token", "0")
+            .put("app_secret", "f74a638462f975e9eadfcbb84e4aa06b")
+            .put("page_access_token", "243af3c6-9994-4869-ae13-ad61a38323f5")
+            .put("batch_sends", true);
+    FBMessageHandler messageHandler =
+        new FBMessageHandler(MAPPER.convertValue(config, FBMessengerConfig.class))
+            .baseURLFactory(testURLFactoryFactory(pageId))
+            .batchURI(URI.create("http://localhost:" + app.port() + "/batch"));
+
+    String bigText =
+        Stream.generate(() -> "0123456789.").limit(300).collect(Collectors.joining(" "));
+    FBMessage bigMessage =
+        new FBMessage(
+            Instant.now(), Identifier.random(), pageId, Identifier.random(), bigText, Role.USER);
+    messageHandler.respond(bigMessage);
+
+    // chunk 60 is sent on its own and batching resumes from the chunk after it
+    assertThat(batches).extracting(ArrayNode::size).containsExactly(50, 50, 50, 50, 50, 50, 39);
+    ArrayNode first = batches.take();
+    assertThat(first.get(0).has("depends_on")).isFalse();
+    assertThat(first.get(1).get("depends_on").textValue()).isEqualTo("chunk0");
+    assertThat(first.get(1).get("relative_url").textValue()).isEqualTo(pageId + "/messages");
+    assertThat(requests).hasSize(1);
+  }
+
   @FunctionalInterface
   private interface ThrowableFunction<T, R> {
     R apply(T in) throws Exception;
@@ -49,7 +49,10 @@ class FBMessengerConfigTest {
               .required(true)
               .validValues("123")
               .invalidValues("", " ")
-              .getter(FBMessengerConfig::pageAccessToken));
+              .getter(FBMessengerConfig::pageAccessToken),
+          ConfigParamTestSpec.of(FBMessengerConfig.class, "batch_sends")
+              .validValues(true, false)
+              .getter(FBMessengerConfig::batchSends));
 
   static Stream<Named<ConfigParamTestSpec<FBMessengerConfig>>> required() {
     return PARAMS.stream().filter(ConfigParamTestSpec::required).map(p -> Named.of(p.name(), p));
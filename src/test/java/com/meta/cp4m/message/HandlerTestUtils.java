@@ -49,6 +49,24 @@ public final class HandlerTestUtils {
     }
   }
 
+  /** Send all of the handler's Graph API requests to the given base url instead */
+  public static void redirect(MessageHandler<?> handler, URI baseUrl) {
+    switch (handler) {
+      case WAMessageHandler w -> w.baseUrl(baseUrl);
+      case FBMessageHandler fb -> fb.baseURLFactory(ignored -> baseUrl);
+      default ->
+          throw new IllegalArgumentException(
+              "unable to redirect handler of type " + handler.getClass().getSimpleName());
+    }
+  }
+
+  /**
+   * @return the value of the X-Hub-Signature-256 header that Meta would send with this body
+   */
+  public static String signature(String body, String appSecret) {
+    return "sha256=" + MetaHandlerUtils.hmac(body, appSecret);
+  }
+
   public static Function<JsonNode, Request> MessageRequestFactory(
       Method method, String path, String appSecret, int port) throws URISyntaxException {
     Request request =
@@ -60,7 +78,7 @@ public final class HandlerTestUtils {
         String body = MAPPER.writeValueAsString(jn);
         return request
             .bodyString(body, ContentType.APPLICATION_JSON)
-            .setHeader("X-Hub-Signature-256", "sha256=" + MetaHandlerUtils.hmac(body, appSecret));
+            .setHeader("X-Hub-Signature-256", signature(body, appSecret));
       } catch (JsonProcessingException e) {
         throw new RuntimeException(e);
       }
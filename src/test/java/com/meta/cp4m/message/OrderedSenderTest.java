@@ -0,0 +1,115 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class OrderedSenderTest {
+
+  private static final List<String> CHUNKS = List.of("a", "b", "c");
+
+  @Test
+  void chunksAreSentInOrder() throws IOException {
+    MetricsRegistry registry = new MetricsRegistry();
+    OrderedSender sender = new OrderedSender("TestHandler", 3, Duration.ZERO);
+    sender.registerMetrics(registry);
+    List<String> sent = new ArrayList<>();
+
+    List<Integer> results =
+        sender.send(
+            CHUNKS,
+            text -> text + "!",
+            request -> {
+              sent.add(request);
+              return sent.size();
+            });
+
+    assertThat(sent).containsExactly("a!", "b!", "c!");
+    assertThat(results).containsExactly(1, 2, 3);
+    assertThat(registry.scrape())
+        .contains("cp4m_reply_send_seconds_count{handler=\"TestHandler\",succeeded=\"true\"} 1");
+  }
+
+  @Test
+  void unacceptedChunksAreRetriedBeforeTheNext() throws IOException {
+    MetricsRegistry registry = new MetricsRegistry();
+    OrderedSender sender = new OrderedSender("TestHandler", 3, Duration.ofMillis(1));
+    sender.registerMetrics(registry);
+    List<String> sent = new ArrayList<>();
+    int[] failures = {2};
+
+    sender.send(
+        CHUNKS,
+        text -> text,
+        request -> {
+          if (request.equals("b") && failures[0]-- > 0) {
+            throw failures[0] == 1
+                ? new GraphSendException(429, "throttled")
+                : new ConnectException("refused");
+          }
+          return sent.add(request);
+        });
+
+    assertThat(sent).containsExactly("a", "b", "c");
+    assertThat(registry.scrape())
+        .contains("cp4m_reply_send_retries_total{handler=\"TestHandler\"} 2");
+  }
+
+  @Test
+  void laterChunksAreNotSentAfterAFailure() {
+    MetricsRegistry registry = new MetricsRegistry();
+    OrderedSender sender = new OrderedSender("TestHandler", 3, Duration.ZERO);
+    sender.registerMetrics(registry);
+    List<String> sent = new ArrayList<>();
+
+    assertThatThrownBy(
+            () ->
+                sender.send(
+                    CHUNKS,
+                    text -> text,
+                    request -> {
+                      if (request.equals("b")) {
+                        // may have been delivered so it must not be retried
+                        throw new GraphSendException(500, "internal error");
+                      }
+                      return sent.add(request);
+                    }))
+        .isInstanceOf(GraphSendException.class);
+    assertThat(sent).containsExactly("a");
+    assertThat(registry.scrape())
+        .contains("cp4m_reply_send_seconds_count{handler=\"TestHandler\",succeeded=\"false\"} 1")
+        .doesNotContain("cp4m_reply_send_retries_total");
+  }
+
+  @Test
+  void retriesAreLimited() {
+    OrderedSender sender = new OrderedSender("TestHandler", 2, Duration.ZERO);
+    int[] attempts = {0};
+    assertThatThrownBy(
+            () ->
+                sender.send(
+                    CHUNKS,
+                    text -> text,
+                    request -> {
+                      attempts[0]++;
+                      throw new GraphSendException(503, "unavailable");
+                    }))
+        .isInstanceOf(GraphSendException.class);
+    assertThat(attempts[0]).isEqualTo(2);
+  }
+}
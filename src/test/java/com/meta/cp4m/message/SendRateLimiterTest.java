@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+import com.google.common.base.Stopwatch;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.SendRateLimiter.Priority;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class SendRateLimiterTest {
+
+  private static final Identifier PHONE_NUMBER_ID = Identifier.from("123456123");
+
+  @Test
+  void burstsAreSmoothed() throws IOException {
+    SendRateLimiter limiter = new SendRateLimiter(20, 100, Duration.ofSeconds(5));
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    // the first 20 are sent immediately, the next 10 at 20 per second
+    for (int i = 0; i < 30; i++) {
+      limiter.send(PHONE_NUMBER_ID, Priority.REPLY, i, r -> r);
+    }
+    assertThat(stopwatch.elapsed().toMillis()).isBetween(400L, 2000L);
+
+    // every phone number has its own limit
+    stopwatch.reset().start();
+    limiter.send(Identifier.from("999"), Priority.REPLY, 0, r -> r);
+    assertThat(stopwatch.elapsed().toMillis()).isLessThan(40);
+  }
+
+  @Test
+  void repliesGoBeforeReadReceipts() throws IOException, InterruptedException {
+    SendRateLimiter limiter = new SendRateLimiter(5, 100, Duration.ofSeconds(5));
+    for (int i = 0; i < 5; i++) {
+      limiter.send(PHONE_NUMBER_ID, Priority.READ_RECEIPT, i, r -> r); // empty the bucket
+    }
+    List<String> sent = new CopyOnWriteArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 2; i++) {
+        String name = "receipt" + i;
+        executor.submit(
+            () -> limiter.send(PHONE_NUMBER_ID, Priority.READ_RECEIPT, name, sent::add));
+        TimeUnit.MILLISECONDS.sleep(20);
+      }
+      executor.submit(() -> limiter.send(PHONE_NUMBER_ID, Priority.REPLY, "reply", sent::add));
+    }
+    assertThat(sent).containsExactly("reply", "receipt0", "receipt1");
+  }
+
+  @Test
+  void rejectedWhenQueueIsFullOrDeadlinePasses() throws IOException, InterruptedException {
+    MetricsRegistry registry = new MetricsRegistry();
+    SendRateLimiter limiter = new SendRateLimiter(1, 1, Duration.ofMillis(100));
+    limiter.registerMetrics(registry);
+    limiter.send(PHONE_NUMBER_ID, Priority.REPLY, 0, r -> r);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      executor.submit(() -> limiter.send(PHONE_NUMBER_ID, Priority.REPLY, 1, r -> r));
+      TimeUnit.MILLISECONDS.sleep(20);
+      assertThatThrownBy(() -> limiter.send(PHONE_NUMBER_ID, Priority.REPLY, 2, r -> r))
+          .isInstanceOf(IOException.class)
+          .hasMessageContaining("queue_full");
+    }
+    String labels = "{phone_number_id=\"123456123\",priority=\"reply\",reason=\"%s\"}";
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_wa_send_rejected_total" + labels.formatted("queue_full") + " 1",
+            "cp4m_wa_send_rejected_total" + labels.formatted("deadline") + " 1",
+            "cp4m_wa_send_queue_depth{phone_number_id=\"123456123\",priority=\"reply\"} 0");
+  }
+
+  @Test
+  void throttlingLowersTheRate() throws IOException {
+    MetricsRegistry registry = new MetricsRegistry();
+    SendRateLimiter limiter = new SendRateLimiter(80, 100, Duration.ofSeconds(5));
+    limiter.registerMetrics(registry);
+    assertThatThrownBy(
+            () ->
+                limiter.send(
+                    PHONE_NUMBER_ID,
+                    Priority.REPLY,
+                    0,
+                    r -> {
+                      throw new GraphSendException(400, 130429, "rate limit hit");
+                    }))
+        .isInstanceOf(GraphSendException.class);
+    assertThat(limiter.rate(PHONE_NUMBER_ID)).isEqualTo(40);
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_wa_send_throttled_total{phone_number_id=\"123456123\"} 1",
+            "cp4m_wa_send_rate{phone_number_id=\"123456123\"} 40");
+
+    // other errors do not change the rate, accepted requests increase it back to the limit
+    assertThatThrownBy(
+            () ->
+                limiter.send(
+                    PHONE_NUMBER_ID,
+                    Priority.REPLY,
+                    0,
+                    r -> {
+                      throw new GraphSendException(400, 100, "invalid parameter");
+                    }))
+        .isInstanceOf(GraphSendException.class);
+    assertThat(limiter.rate(PHONE_NUMBER_ID)).isEqualTo(40);
+    limiter.send(PHONE_NUMBER_ID, Priority.REPLY, 0, r -> r);
+    assertThat(limiter.rate(PHONE_NUMBER_ID)).isCloseTo(40.8, within(0.001));
+  }
+}
@@ -152,6 +152,10 @@ public class ServiceTestHarness<T extends Message> {
     return plugin.dummyResponse();
   }
 
+  public ServicesRunner runner() {
+    return runner;
+  }
+
   public int servicePort() {
     return runner.port();
   }
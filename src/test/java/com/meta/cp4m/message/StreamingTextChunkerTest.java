@@ -0,0 +1,63 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class StreamingTextChunkerTest {
+
+  private static List<String> feed(StreamingTextChunker chunker, String text) {
+    List<String> chunks = new ArrayList<>();
+    // one character at a time is the worst case for token streams
+    for (char c : text.toCharArray()) {
+      chunks.addAll(chunker.append(String.valueOf(c)));
+    }
+    chunker.finish().ifPresent(chunks::add);
+    return chunks;
+  }
+
+  @Test
+  void splitsOnParagraphs() {
+    StreamingTextChunker chunker = StreamingTextChunker.of(5, 100);
+    assertThat(feed(chunker, "first paragraph\n\nsecond paragraph\n\nthird"))
+        .containsExactly("first paragraph", "second paragraph", "third");
+  }
+
+  @Test
+  void shortParagraphsAreMerged() {
+    StreamingTextChunker chunker = StreamingTextChunker.of(10, 100);
+    assertThat(feed(chunker, "short\n\nalso short\n\nend"))
+        .containsExactly("short\n\nalso short", "end");
+  }
+
+  @Test
+  void fallsBackToSmallerSeparators() {
+    StreamingTextChunker chunker = StreamingTextChunker.of(0, 20);
+    assertThat(feed(chunker, "one sentence. another sentence without breaks"))
+        .containsExactly("one sentence.", "another sentence", "without breaks");
+  }
+
+  @Test
+  void hardCutWithoutSeparators() {
+    StreamingTextChunker chunker = StreamingTextChunker.of(0, 10);
+    assertThat(feed(chunker, "abcdefghijklmnopqrstuvwxy"))
+        .containsExactly("abcdefghij", "klmnopqrst", "uvwxy");
+  }
+
+  @Test
+  void emptyStream() {
+    StreamingTextChunker chunker = StreamingTextChunker.of(0, 10);
+    assertThat(chunker.append("  ")).isEmpty();
+    assertThat(chunker.finish()).isEmpty();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.Message.Role;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class ThreadStateCodecTest {
+
+  static Stream<MessageFactory<?>> factories() {
+    return MessageFactory.FACTORY_MAP.values().stream();
+  }
+
+  private static <T extends Message> ThreadState<T> thread(MessageFactory<T> factory) {
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.from(1234567890L);
+    Instant start = Instant.parse("2024-01-01T00:00:00.123456789Z");
+    ThreadState<T> thread =
+        ThreadState.of(
+            factory.newMessage(
+                start, new Payload.Text("héllo 👋"), user, bot, Identifier.random(), Role.USER));
+    thread =
+        thread.with(
+            factory.newMessage(
+                start.plusMillis(1),
+                new Payload.Text(""),
+                bot,
+                user,
+                Identifier.random(),
+                Role.ASSISTANT));
+    thread =
+        thread.with(
+            factory.newMessage(
+                start.plusMillis(2),
+                new Payload.Image(new byte[] {0, 1, 2, (byte) 255}, "image/jpeg"),
+                user,
+                bot,
+                Identifier.random(),
+                Role.USER));
+    return thread.with(
+        factory.newMessage(
+            start.plusMillis(3),
+            new Payload.Document(new byte[] {42}, "application/pdf"),
+            user,
+            bot,
+            Identifier.random(),
+            Role.USER));
+  }
+
+  @ParameterizedTest
+  @MethodSource("factories")
+  <T extends Message> void roundTrip(MessageFactory<T> factory) {
+    ThreadState<T> thread = thread(factory);
+    ThreadState<T> decoded = ThreadStateCodec.decode(ThreadStateCodec.encode(thread));
+    assertThat(decoded).isEqualTo(thread);
+    assertThat(decoded.tail().getClass()).isEqualTo(thread.tail().getClass());
+    assertThat(decoded.messages().getFirst().timestamp())
+        .isEqualTo(thread.messages().getFirst().timestamp());
+
+    ThreadState<T> named =
+        thread.withUserData(thread.userData().withName("Ada").withPhoneNumber("+15555550100"));
+    ThreadState<T> decodedNamed = ThreadStateCodec.decode(ThreadStateCodec.encode(named));
+    assertThat(decodedNamed.userData().name()).hasValue("Ada");
+    assertThat(decodedNamed.userData().phoneNumber()).hasValue("+15555550100");
+    assertThat(decodedNamed).isEqualTo(named);
+  }
+
+  /** A thread written by the first version of the codec must still be readable */
+  @Test
+  void decodesVersion1() {
+    byte[] encoded =
+        Base64.getDecoder()
+            .decode(
+                "AQEBAAAAA0FkYQAAAAIAAAAAZZIAgAAAAAAAAAACbTEAAAAEdXNlcgAAAAI0MgEAAAAABWhlbGxvAAAAAG"
+                    + "WSAIEAAAAAAAAAAm0yAAAAAjQyAAAABHVzZXIAAQAAAAlpbWFnZS9wbmcAAAABBw==");
+    assertThat(encoded[0]).isEqualTo(ThreadStateCodec.V1);
+    Identifier user = Identifier.from("user");
+    Identifier bot = Identifier.from(42L);
+    Instant start = Instant.parse("2024-01-01T00:00:00Z");
+    ThreadState<WAMessage> thread =
+        ThreadState.of(
+                new WAMessage(start, Identifier.from("m1"), user, bot, "hello", Role.USER))
+            .with(
+                new WAMessage(
+                    start.plusSeconds(1),
+                    Identifier.from("m2"),
+                    bot,
+                    user,
+                    new Payload.Image(new byte[] {7}, "image/png"),
+                    Role.ASSISTANT));
+    thread = thread.withUserData(thread.userData().withName("Ada"));
+
+    ThreadState<WAMessage> decoded = ThreadStateCodec.decode(encoded);
+    assertThat(decoded).isEqualTo(thread);
+    assertThat(decoded.userData().name()).hasValue("Ada");
+    // and it is written back in the latest version
+    byte[] reencoded = ThreadStateCodec.encode(decoded);
+    assertThat(reencoded[0]).isEqualTo(ThreadStateCodec.VERSION);
+    assertThat(reencoded.length).isLessThan(encoded.length);
+    assertThat(ThreadStateCodec.<WAMessage>decode(reencoded)).isEqualTo(thread);
+  }
+
+  @Test
+  void idsAreWrittenExactly() {
+    Instant start = Instant.parse("2024-01-01T00:00:00Z");
+    // ids that look like numbers or UUIDs but are not written the same way when parsed
+    for (String id :
+        new String[] {
+          "0",
+          "-1",
+          "007",
+          "-0",
+          "-",
+          "9223372036854775807",
+          "9223372036854775808",
+          "123e4567-e89b-12d3-a456-426614174000",
+          "123E4567-E89B-12D3-A456-426614174000",
+          "1-2-3-4-5",
+          ""
+        }) {
+      Identifier user = Identifier.from(id);
+      Identifier bot = Identifier.from("bot " + id);
+      ThreadState<FBMessage> thread =
+          ThreadState.of(new FBMessage(start, user, user, bot, "hello", Role.USER));
+      ThreadState<FBMessage> decoded = ThreadStateCodec.decode(ThreadStateCodec.encode(thread));
+      assertThat(decoded.tail().senderId().toString()).isEqualTo(id);
+      assertThat(decoded.tail().instanceId().toString()).isEqualTo(id);
+      assertThat(decoded).isEqualTo(thread);
+    }
+  }
+
+  @Test
+  void longTextsAreCompressed() {
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+    String text = "Tell me about the weather in Paris tomorrow. ".repeat(40) + "ünïcödé 👋";
+    ThreadState<FBMessage> thread =
+        ThreadState.of(
+            new FBMessage(Instant.now(), Identifier.random(), user, bot, text, Role.USER));
+
+    byte[] compressed = ThreadStateCodec.encode(thread);
+    byte[] uncompressed = ThreadStateCodec.encode(thread, false);
+    assertThat(compressed.length).isLessThan(text.length() / 4);
+    assertThat(uncompressed.length)
+        .isGreaterThan(text.getBytes(StandardCharsets.UTF_8).length);
+    assertThat(ThreadStateCodec.<FBMessage>decode(compressed)).isEqualTo(thread);
+    assertThat(ThreadStateCodec.<FBMessage>decode(uncompressed)).isEqualTo(thread);
+  }
+
+  @Test
+  void malformed() {
+    byte[] encoded = ThreadStateCodec.encode(thread(MessageFactory.instance(FBMessage.class)));
+    assertThatThrownBy(
+            () -> ThreadStateCodec.decode(Arrays.copyOf(encoded, encoded.length - 1)))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("malformed thread");
+
+    encoded[0] = 99;
+    assertThatThrownBy(() -> ThreadStateCodec.decode(encoded))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("unknown thread format version 99");
+
+    assertThatThrownBy(() -> ThreadStateCodec.decode(new byte[0]))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("malformed thread");
+  }
+}
@@ -16,15 +16,25 @@ import com.google.common.base.Stopwatch;
 import com.meta.cp4m.DummyWebServer.ReceivedRequest;
 import com.meta.cp4m.Identifier;
 import com.meta.cp4m.message.webhook.whatsapp.*;
+import com.meta.cp4m.tracing.MessageTrace;
+import com.meta.cp4m.tracing.Tracer;
 import io.javalin.http.HandlerType;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.apache.hc.client5.http.fluent.Request;
 import org.apache.hc.client5.http.fluent.Response;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.jupiter.api.BeforeEach;
@@ -246,6 +256,149 @@ class WAMessageHandlerTest {
     }
   }
 
+  @Test
+  void metricsAreScraped() throws IOException, InterruptedException {
+    harness.start();
+    harness.post(VALID).execute();
+    // mark read and the reply
+    assertThat(harness.pollWebserver(500)).isNotNull();
+    assertThat(harness.pollWebserver(500)).isNotNull();
+
+    URI metrics = URI.create("http://localhost:" + harness.servicePort() + "/metrics");
+    String labels = "service=\"/testservice\",stage=\"%s\",component=\"%s\"";
+    String respond =
+        "cp4m_stage_requests_total{" + labels.formatted("respond", "WAMessageHandler") + "} 1";
+    String scraped = "";
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    // the reply is counted once the handler returns, which can be just after it is received
+    while (!scraped.contains(respond) && stopwatch.elapsed().toMillis() < 1000) {
+      scraped = Request.get(metrics).execute().returnContent().asString();
+    }
+    assertThat(scraped)
+        .contains(
+            respond,
+            "cp4m_stage_requests_total{" + labels.formatted("plugin", "DummyPlugin") + "} 1",
+            "cp4m_stage_errors_total{" + labels.formatted("plugin", "DummyPlugin") + "} 0",
+            "cp4m_http_requests_total{method=\"POST\",path=\"/testservice\",status=\"2xx\"} 1",
+            "# TYPE cp4m_stage_latency_seconds histogram");
+  }
+
+  @Test
+  void deliveryLatencyIsScraped() throws IOException, InterruptedException {
+    String sendResponse =
+        """
+        {
+          "messaging_product": "whatsapp",
+          "contacts": [],
+          "messages": [{"id": "wamid.reply"}]
+        }""";
+    harness.dummyWebServer().response(ctx -> ctx.body().contains("\"type\""), sendResponse);
+    harness.start();
+    harness.post(VALID).execute();
+    // mark read and the reply
+    assertThat(harness.pollWebserver(500)).isNotNull();
+    assertThat(harness.pollWebserver(500)).isNotNull();
+
+    DeliveryTracker tracker = ((WAMessageHandler) harness.handler()).deliveryTracker();
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    // the reply is tracked once the handler returns, which can be just after it is received
+    while (tracker.pending() == 0 && stopwatch.elapsed().toMillis() < 1000) {
+      Thread.sleep(10);
+    }
+    long now = Instant.now().getEpochSecond();
+    ObjectNode webhook = (ObjectNode) MAPPER.readTree(VALID_WITH_ERROR);
+    ObjectNode value = (ObjectNode) webhook.get("entry").get(0).get("changes").get(0).get("value");
+    ((ObjectNode) value.get("metadata")).put("phone_number_id", "123456123");
+    ObjectNode status = (ObjectNode) value.get("statuses").get(0);
+    status.remove("errors");
+    status.put("id", "wamid.reply").put("recipient_id", "16315551181");
+    status.put("status", "delivered").put("timestamp", String.valueOf(now));
+    harness.post(MAPPER.writeValueAsString(webhook)).execute();
+    status.put("status", "read").put("timestamp", String.valueOf(now + 1));
+    harness.post(MAPPER.writeValueAsString(webhook)).execute();
+
+    String labels = "{phone_number_id=\"123456123\"}";
+    assertThat(harness.runner().metrics().scrape())
+        .contains(
+            "cp4m_wa_user_message_to_delivered_seconds_count" + labels + " 1",
+            "cp4m_wa_sent_to_read_seconds_count" + labels + " 1");
+  }
+
+  @Test
+  void messageIsTraced() throws IOException, InterruptedException {
+    BlockingQueue<MessageTrace> traces = new LinkedBlockingQueue<>();
+    harness.runner().tracer(new Tracer(1, null, traces::add));
+    harness.start();
+    harness.post(VALID).execute();
+
+    @Nullable MessageTrace trace = traces.poll(1, TimeUnit.SECONDS);
+    assertThat(trace).isNotNull();
+    assertThat(trace.service()).isEqualTo(harness.servicePath());
+    assertThat(trace.totalNanos()).isPositive();
+    assertThat(trace.spans())
+        .extracting(MessageTrace.Span::stage)
+        .containsExactly("webhook", "store", "queue", "plugin", "store", "respond", "plugin");
+    // the plugin span is ended while the reply is delivered and picks up again afterwards
+    MessageTrace.Span plugin = trace.spans().get(3);
+    assertThat(plugin.component()).isEqualTo("DummyPlugin");
+    assertThat(plugin.offsetNanos() + plugin.durationNanos())
+        .isLessThanOrEqualTo(trace.spans().get(4).offsetNanos());
+    assertThat(traces.poll(100, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  void unparseableWebhookIsTraced() throws IOException, InterruptedException {
+    BlockingQueue<MessageTrace> traces = new LinkedBlockingQueue<>();
+    harness.runner().tracer(new Tracer(1, null, traces::add));
+    harness.start();
+    harness.post("{\"object\": \"whatsapp_business_account\", \"entry\": 1}").execute();
+
+    @Nullable MessageTrace trace = traces.poll(1, TimeUnit.SECONDS);
+    assertThat(trace).isNotNull();
+    // rejected while parsing, before any message was forked from it
+    assertThat(trace.totalNanos()).isPositive();
+    assertThat(trace.service()).isEqualTo(harness.servicePath());
+  }
+
+  @Test
+  void stagesAreRecordedAsJfrEvents() throws IOException, InterruptedException {
+    // the default tracer, stage events do not depend on the tracing config
+    harness.start();
+    List<RecordedEvent> events = new CopyOnWriteArrayList<>();
+    try (RecordingStream stream = new RecordingStream()) {
+      for (String name : List.of("Webhook", "DuplicateMessage", "Stage", "GraphSend")) {
+        stream.enable("com.meta.cp4m." + name);
+        stream.onEvent("com.meta.cp4m." + name, events::add);
+      }
+      stream.startAsync();
+      harness.post(VALID).execute();
+      harness.post(VALID).execute(); // the second is a duplicate
+      assertThat(harness.pollWebserver(500)).isNotNull();
+      assertThat(harness.pollWebserver(500)).isNotNull();
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      while (events.stream().noneMatch(e -> e.getEventType().getName().endsWith("GraphSend"))
+          && stopwatch.elapsed().toMillis() < 5000) {
+        Thread.sleep(50);
+      }
+    }
+    assertThat(events)
+        .extracting(e -> e.getEventType().getName())
+        .contains(
+            "com.meta.cp4m.Webhook",
+            "com.meta.cp4m.DuplicateMessage",
+            "com.meta.cp4m.Stage",
+            "com.meta.cp4m.GraphSend");
+    assertThat(events)
+        .filteredOn(e -> e.getEventType().getName().equals("com.meta.cp4m.Stage"))
+        .extracting(e -> e.getString("stage"))
+        .contains("webhook", "store", "plugin", "respond");
+    assertThat(events)
+        .filteredOn(e -> e.getEventType().getName().equals("com.meta.cp4m.GraphSend"))
+        .first()
+        .satisfies(e -> assertThat(e.getString("handler")).isEqualTo("WAMessageHandler"))
+        .satisfies(e -> assertThat(e.getInt("chunks")).isEqualTo(1));
+  }
+
   static Stream<String> validWAPayloads() {
     return Stream.of(VALID, VALID2);
   }
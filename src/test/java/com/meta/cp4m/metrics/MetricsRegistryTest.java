@@ -0,0 +1,126 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class MetricsRegistryTest {
+
+  @Test
+  void prometheusFormat() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("requests_total", "all requests", "path", "/a").add(3);
+    registry.gauge("in_flight", "in flight requests").increment();
+    AtomicLong dropped = new AtomicLong(7);
+    registry.counter("dropped_total", "dropped", dropped::get);
+    Latency latency = registry.latency("latency_seconds", "latency", "path", "/a");
+    latency.recordNanos(Duration.ofMillis(1).toNanos());
+    latency.recordNanos(Duration.ofMillis(2).toNanos());
+
+    assertThat(registry.scrape())
+        .isEqualTo(
+            """
+            # HELP dropped_total dropped
+            # TYPE dropped_total counter
+            dropped_total 7
+            # HELP in_flight in flight requests
+            # TYPE in_flight gauge
+            in_flight 1
+            # HELP latency_seconds latency
+            # TYPE latency_seconds histogram
+            latency_seconds_bucket{path="/a",le="0.001"} 1
+            latency_seconds_bucket{path="/a",le="0.0025"} 2
+            latency_seconds_bucket{path="/a",le="0.005"} 2
+            latency_seconds_bucket{path="/a",le="0.01"} 2
+            latency_seconds_bucket{path="/a",le="0.025"} 2
+            latency_seconds_bucket{path="/a",le="0.05"} 2
+            latency_seconds_bucket{path="/a",le="0.1"} 2
+            latency_seconds_bucket{path="/a",le="0.25"} 2
+            latency_seconds_bucket{path="/a",le="0.5"} 2
+            latency_seconds_bucket{path="/a",le="1.0"} 2
+            latency_seconds_bucket{path="/a",le="2.5"} 2
+            latency_seconds_bucket{path="/a",le="5.0"} 2
+            latency_seconds_bucket{path="/a",le="10.0"} 2
+            latency_seconds_bucket{path="/a",le="30.0"} 2
+            latency_seconds_bucket{path="/a",le="60.0"} 2
+            latency_seconds_bucket{path="/a",le="+Inf"} 2
+            latency_seconds_sum{path="/a"} 0.003
+            latency_seconds_count{path="/a"} 2
+            # HELP requests_total all requests
+            # TYPE requests_total counter
+            requests_total{path="/a"} 3
+            """);
+  }
+
+  @Test
+  void slowCallsOnlyCountInTheLastBucket() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.latency("latency_seconds", "latency").recordNanos(Duration.ofMinutes(2).toNanos());
+    assertThat(registry.scrape())
+        .contains(
+            "latency_seconds_bucket{le=\"60.0\"} 0",
+            "latency_seconds_bucket{le=\"+Inf\"} 1",
+            "latency_seconds_sum 120.0",
+            "latency_seconds_count 1");
+  }
+
+  @Test
+  void sameNameAndLabelsIsSameMetric() {
+    MetricsRegistry registry = new MetricsRegistry();
+    Counter counter = registry.counter("requests_total", "help", "path", "/a");
+    assertThat(registry.counter("requests_total", "help", "path", "/a")).isSameAs(counter);
+    assertThat(registry.counter("requests_total", "help", "path", "/b")).isNotSameAs(counter);
+    assertThatThrownBy(() -> registry.gauge("requests_total", "help", "path", "/a"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> registry.counter("requests_total", "help", () -> 1, "path", "/a"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void invalidNamesAndLabels() {
+    MetricsRegistry registry = new MetricsRegistry();
+    assertThatThrownBy(() -> registry.counter("bad-name", "help"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> registry.counter("name", "help", "bad-label", "value"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> registry.counter("name", "help", "missing_value"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void labelValuesAreEscaped() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("c_total", "help", "value", "a\"b\\c\nd").increment();
+    assertThat(registry.scrape()).contains("c_total{value=\"a\\\"b\\\\c\\nd\"} 1");
+  }
+
+  @Test
+  void stageCountsErrors() {
+    MetricsRegistry registry = new MetricsRegistry();
+    StageMetrics stage = new StageMetrics(registry, "/service", "plugin", "TestPlugin");
+    assertThat(stage.call(() -> "ok")).isEqualTo("ok");
+    assertThatThrownBy(
+            () ->
+                stage.run(
+                    () -> {
+                      throw new IOException("failed");
+                    }))
+        .isInstanceOf(IOException.class);
+    assertThat(stage.requests().value()).isEqualTo(2);
+    assertThat(stage.errors().value()).isEqualTo(1);
+    assertThat(stage.inFlight().value()).isZero();
+    assertThat(stage.latency().snapshotMicros().getTotalCount()).isEqualTo(2);
+  }
+}
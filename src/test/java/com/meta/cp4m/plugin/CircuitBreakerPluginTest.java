@@ -0,0 +1,340 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.meta.cp4m.DummyWebServer;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.configuration.ConfigurationUtils;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message.Role;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import com.meta.cp4m.utils.HttpRequests;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerPluginTest {
+
+  private static final CircuitBreakerPlugin.Policy POLICY =
+      new CircuitBreakerPlugin.Policy(
+          0.5, Duration.ofMillis(50), 0.5, 4, 10, Duration.ofMillis(100), 2, null);
+
+  private static ThreadState<FBMessage> thread() {
+    return ThreadState.of(
+        new FBMessage(
+            Instant.now(),
+            Identifier.random(),
+            Identifier.random(),
+            Identifier.random(),
+            "hello",
+            Role.USER));
+  }
+
+  @Test
+  void failuresOpenTheCircuit() throws IOException, InterruptedException {
+    UpstreamPlugin upstream = new UpstreamPlugin();
+    CircuitBreakerPlugin<FBMessage> plugin =
+        new CircuitBreakerPlugin<>(upstream, null, "try again later", POLICY);
+    MetricsRegistry registry = new MetricsRegistry();
+    plugin.registerMetrics(registry, "/service");
+
+    assertThat(plugin.handle(thread()).message()).isEqualTo("upstream");
+    upstream.failing = true;
+    for (int i = 0; i < 3; i++) {
+      assertThat(plugin.handle(thread()).message()).isEqualTo("try again later");
+    }
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.OPEN);
+    assertThat(upstream.calls.get()).isEqualTo(4);
+
+    // short-circuited without calling the plugin
+    assertThat(plugin.handle(thread()).message()).isEqualTo("try again later");
+    assertThat(upstream.calls.get()).isEqualTo(4);
+    assertThat(plugin.shortCircuited()).isEqualTo(1);
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_circuit_breaker_state{service=\"/service\"} 1",
+            "cp4m_circuit_breaker_transitions_total{service=\"/service\",state=\"open\"} 1",
+            "cp4m_circuit_breaker_short_circuited_total{service=\"/service\"} 1",
+            "cp4m_circuit_breaker_fallbacks_total{service=\"/service\"} 4");
+  }
+
+  @Test
+  void probesCloseTheCircuit() throws IOException, InterruptedException {
+    UpstreamPlugin upstream = new UpstreamPlugin();
+    CircuitBreakerPlugin<FBMessage> plugin =
+        new CircuitBreakerPlugin<>(upstream, null, null, POLICY);
+    upstream.failing = true;
+    for (int i = 0; i < 4; i++) {
+      assertThatThrownBy(() -> plugin.handle(thread())).isInstanceOf(IOException.class);
+    }
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.OPEN);
+    assertThatThrownBy(() -> plugin.handle(thread()))
+        .isInstanceOf(IOException.class)
+        .hasMessage("circuit breaker is open");
+
+    // a failed probe opens the circuit again
+    TimeUnit.MILLISECONDS.sleep(120);
+    assertThatThrownBy(() -> plugin.handle(thread())).hasMessage("upstream failed");
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.OPEN);
+
+    TimeUnit.MILLISECONDS.sleep(120);
+    upstream.failing = false;
+    plugin.handle(thread());
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.HALF_OPEN);
+    plugin.handle(thread());
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.CLOSED);
+    assertThat(plugin.transitions(CircuitBreakerPlugin.State.HALF_OPEN)).isEqualTo(2);
+    assertThat(plugin.transitions(CircuitBreakerPlugin.State.OPEN)).isEqualTo(2);
+  }
+
+  @Test
+  void slowCallsOpenTheCircuit() throws IOException {
+    UpstreamPlugin upstream = new UpstreamPlugin();
+    upstream.delay.set(60);
+    CircuitBreakerPlugin<FBMessage> plugin =
+        new CircuitBreakerPlugin<>(upstream, new EchoPlugin<>(), null, POLICY);
+    for (int i = 0; i < 4; i++) {
+      assertThat(plugin.handle(thread()).message()).isEqualTo("upstream");
+    }
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.OPEN);
+    assertThat(plugin.handle(thread()).message()).isEqualTo("hello");
+  }
+
+  private static final CircuitBreakerPlugin.Policy TIMEOUT_POLICY =
+      new CircuitBreakerPlugin.Policy(
+          0.5,
+          Duration.ofSeconds(10),
+          0.5,
+          4,
+          10,
+          Duration.ofSeconds(1),
+          2,
+          Duration.ofMillis(100));
+
+  @Test
+  void requestsThatTimeOutFallBack() throws IOException {
+    try (DummyWebServer server = DummyWebServer.create()) {
+      server.response(
+          ctx -> true,
+          ctx -> {
+            try {
+              TimeUnit.SECONDS.sleep(5);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return "upstream";
+          });
+      URI uri = URI.create("http://localhost:" + server.port() + "/slow");
+      Plugin<FBMessage> upstream =
+          threadState -> {
+            String body =
+                HttpRequests.execute(
+                    uri, Request.get(uri), r -> EntityUtils.toString(r.getEntity()));
+            return threadState.newMessageFromBot(Instant.now(), body);
+          };
+      CircuitBreakerPlugin<FBMessage> plugin =
+          new CircuitBreakerPlugin<>(upstream, new EchoPlugin<>(), null, TIMEOUT_POLICY);
+      long start = System.nanoTime();
+      assertThat(plugin.handle(thread()).message()).isEqualTo("hello");
+      assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(1));
+      assertThat(plugin.fallbacks()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void slowPluginsAreInterruptedAtTheTimeout() {
+    UpstreamPlugin upstream = new UpstreamPlugin();
+    upstream.delay.set(5000);
+    CircuitBreakerPlugin<FBMessage> plugin =
+        new CircuitBreakerPlugin<>(upstream, null, null, TIMEOUT_POLICY);
+    long start = System.nanoTime();
+    for (int i = 0; i < 4; i++) {
+      assertThatThrownBy(() -> plugin.handle(thread())).isInstanceOf(SocketTimeoutException.class);
+    }
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(2));
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.OPEN);
+    plugin.close();
+  }
+
+  @Test
+  void hedgedPluginsAreBoundedByTheTimeout() throws IOException {
+    try (DummyWebServer server = DummyWebServer.create()) {
+      server.response(
+          ctx -> true,
+          ctx -> {
+            try {
+              TimeUnit.SECONDS.sleep(5);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return "upstream";
+          });
+      URI uri = URI.create("http://localhost:" + server.port() + "/slow");
+      Plugin<FBMessage> upstream =
+          threadState -> {
+            String body =
+                HttpRequests.execute(
+                    uri, Request.get(uri), r -> EntityUtils.toString(r.getEntity()));
+            return threadState.newMessageFromBot(Instant.now(), body);
+          };
+      // the requests are made on the threads of the hedged plugin, not the thread of the call
+      HedgedPlugin<FBMessage> hedged =
+          new HedgedPlugin<>(
+              List.of(upstream, upstream),
+              new HedgedPlugin.Policy(0.9, Duration.ofMillis(10), Duration.ZERO, 1, 1));
+      CircuitBreakerPlugin<FBMessage> plugin =
+          new CircuitBreakerPlugin<>(hedged, new EchoPlugin<>(), null, TIMEOUT_POLICY);
+      long start = System.nanoTime();
+      assertThat(plugin.handle(thread()).message()).isEqualTo("hello");
+      assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(1));
+      assertThat(plugin.fallbacks()).isEqualTo(1);
+      plugin.close();
+    }
+  }
+
+  @Test
+  void timeInTheSinkIsNotPartOfTheCall() throws IOException {
+    Plugin<FBMessage> upstream =
+        new Plugin<>() {
+          @Override
+          public FBMessage handle(ThreadState<FBMessage> threadState) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void stream(ThreadState<FBMessage> threadState, Consumer<FBMessage> sink) {
+            sink.accept(threadState.newMessageFromBot(Instant.now(), "one"));
+            sink.accept(threadState.newMessageFromBot(Instant.now(), "two"));
+          }
+        };
+    // slow after 50ms and out of time after 100ms
+    CircuitBreakerPlugin<FBMessage> plugin =
+        new CircuitBreakerPlugin<>(
+            upstream,
+            null,
+            "try again later",
+            new CircuitBreakerPlugin.Policy(
+                0.5,
+                Duration.ofMillis(50),
+                0.5,
+                4,
+                10,
+                Duration.ofSeconds(1),
+                2,
+                Duration.ofMillis(100)));
+    List<String> chunks = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      plugin.stream(
+          thread(),
+          message -> {
+            try {
+              TimeUnit.MILLISECONDS.sleep(80); // a slow send to the user
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            chunks.add(message.message());
+          });
+    }
+    assertThat(chunks).hasSize(8).containsOnly("one", "two");
+    assertThat(plugin.fallbacks()).isZero();
+    assertThat(plugin.state()).isEqualTo(CircuitBreakerPlugin.State.CLOSED);
+    plugin.close();
+  }
+
+  @Test
+  void aTimeoutKeepsStreaming() throws IOException {
+    Plugin<FBMessage> upstream =
+        new Plugin<>() {
+          @Override
+          public FBMessage handle(ThreadState<FBMessage> threadState) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void stream(ThreadState<FBMessage> threadState, Consumer<FBMessage> sink) {
+            sink.accept(threadState.newMessageFromBot(Instant.now(), "one"));
+            sink.accept(threadState.newMessageFromBot(Instant.now(), "two"));
+          }
+        };
+    CircuitBreakerPlugin<FBMessage> plugin =
+        new CircuitBreakerPlugin<>(upstream, null, null, TIMEOUT_POLICY);
+    List<String> chunks = new ArrayList<>();
+    plugin.stream(thread(), message -> chunks.add(message.message()));
+    assertThat(chunks).containsExactly("one", "two");
+  }
+
+  @Test
+  void config() throws JsonProcessingException {
+    PluginConfig config =
+        ConfigurationUtils.jsonMapper()
+            .readValue(
+                """
+                {
+                  "type": "circuit_breaker",
+                  "name": "guarded",
+                  "plugin": {"type": "echo", "name": "primary"},
+                  "fallback_message": "try again later",
+                  "minimum_calls": 5,
+                  "call_timeout_ms": 2000
+                }
+                """,
+                PluginConfig.class);
+    assertThat(config).isInstanceOf(CircuitBreakerPluginConfig.class);
+    CircuitBreakerPluginConfig breaker = (CircuitBreakerPluginConfig) config;
+    assertThat(breaker.plugin()).isInstanceOf(EchoPluginConfig.class);
+    assertThat(breaker.fallback()).isEmpty();
+    assertThat(breaker.policy().minimumCalls()).isEqualTo(5);
+    assertThat(breaker.policy().callTimeout()).isEqualTo(Duration.ofSeconds(2));
+    assertThat(breaker.<FBMessage>toPlugin()).isInstanceOf(CircuitBreakerPlugin.class);
+
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        "{\"type\": \"circuit_breaker\", \"name\": \"guarded\"}",
+                        PluginConfig.class))
+        .hasMessageContaining("plugin is a required parameter");
+  }
+
+  private static class UpstreamPlugin implements Plugin<FBMessage> {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicLong delay = new AtomicLong();
+    private volatile boolean failing = false;
+
+    @Override
+    public FBMessage handle(ThreadState<FBMessage> threadState) throws IOException {
+      calls.incrementAndGet();
+      try {
+        TimeUnit.MILLISECONDS.sleep(delay.get());
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (failing) {
+        throw new IOException("upstream failed");
+      }
+      return threadState.newMessageFromBot(Instant.now(), "upstream");
+    }
+  }
+}
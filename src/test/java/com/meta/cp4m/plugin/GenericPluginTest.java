@@ -14,6 +14,7 @@ import static org.assertj.core.api.Assertions.*;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.toml.TomlMapper;
 import com.meta.cp4m.DummyWebServer;
@@ -22,10 +23,18 @@ import com.meta.cp4m.Identifier;
 import com.meta.cp4m.configuration.ConfigurationUtils;
 import com.meta.cp4m.configuration.RootConfiguration;
 import com.meta.cp4m.message.*;
+import com.meta.cp4m.metrics.MetricsRegistry;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.net.URIBuilder;
@@ -232,4 +241,466 @@ handler = "messenger_test"
     @Nullable ReceivedRequest received = webServer.poll(10);
     assertThat(received).isNotNull();
   }
+
+  @Test
+  void deltaProtocolSendsOnlyNewMessages()
+      throws URISyntaxException, IOException, InterruptedException {
+    webServer.response(ignored -> true, "{\"type\": \"text\", \"value\": \"reply\"}");
+    final URI url =
+        URIBuilder.loopbackAddress()
+            .appendPath("/delta")
+            .setScheme("http")
+            .setPort(webServer.port())
+            .build();
+    GenericPlugin<FBMessage> plugin = new GenericPlugin<>(url, new AuthRequest.NoAuthRequest(), 2);
+    ThreadState<FBMessage> ts =
+        ThreadState.of(
+            new FBMessage(
+                Instant.now(),
+                Identifier.random(),
+                Identifier.random(),
+                Identifier.random(),
+                "first",
+                Message.Role.USER));
+    String firstId = ts.tail().instanceId().toString();
+    FBMessage reply = plugin.handle(ts);
+    ObjectNode body = (ObjectNode) MAPPER.readTree(webServer.take(500).body());
+    assertThat(body.get("protocol_version").intValue()).isEqualTo(2);
+    assertThat(body.get("conversation_id").textValue()).isEqualTo(ts.threadId().toString());
+    assertThat(body.get("sequence").longValue()).isEqualTo(1);
+    assertThat(body.get("sync").textValue()).isEqualTo("full");
+    assertThat(body.get("base_sequence")).isNull();
+    assertThat(body.get("messages"))
+        .singleElement()
+        .satisfies(m -> assertThat(m.get("id").textValue()).isEqualTo(firstId))
+        .satisfies(m -> assertThat(m.get("role").textValue()).isEqualTo("user"));
+
+    ts = ts.with(reply).with(ts.newMessageFromUser(Instant.now(), "second", Identifier.random()));
+    plugin.handle(ts);
+    body = (ObjectNode) MAPPER.readTree(webServer.take(500).body());
+    assertThat(body.get("sync").textValue()).isEqualTo("delta");
+    assertThat(body.get("sequence").longValue()).isEqualTo(2);
+    assertThat(body.get("base_sequence").longValue()).isEqualTo(1);
+    assertThat(body.get("messages"))
+        .singleElement()
+        .satisfies(m -> assertThat(m.get("value").textValue()).isEqualTo("second"));
+    assertThat(plugin.deltaSyncs()).isEqualTo(1);
+    assertThat(plugin.fullSyncs()).isEqualTo(1);
+
+    // a thread that no longer contains the acknowledged reply falls back to a full sync
+    plugin.handle(ts.truncateMessageHistory(1));
+    body = (ObjectNode) MAPPER.readTree(webServer.take(500).body());
+    assertThat(body.get("sync").textValue()).isEqualTo("full");
+    assertThat(body.get("sequence").longValue()).isEqualTo(3);
+  }
+
+  @Test
+  void deltaProtocolFallsBackToFullSyncOnCacheMiss()
+      throws URISyntaxException, IOException, InterruptedException {
+    webServer.response(
+        ctx -> ctx.body().contains("\"sync\":\"delta\""),
+        "{\"type\": \"cache_miss\"}");
+    webServer.response(ignored -> true, "{\"type\": \"text\", \"value\": \"reply\"}");
+    final URI url =
+        URIBuilder.loopbackAddress()
+            .appendPath("/delta")
+            .setScheme("http")
+            .setPort(webServer.port())
+            .build();
+    GenericPlugin<FBMessage> plugin = new GenericPlugin<>(url, new AuthRequest.NoAuthRequest(), 2);
+    MetricsRegistry registry = new MetricsRegistry();
+    plugin.registerMetrics(registry, "/service");
+    ThreadState<FBMessage> ts =
+        ThreadState.of(
+            new FBMessage(
+                Instant.now(),
+                Identifier.random(),
+                Identifier.random(),
+                Identifier.random(),
+                "first",
+                Message.Role.USER));
+    ts = ts.with(plugin.handle(ts));
+    webServer.take(500);
+    ts = ts.with(ts.newMessageFromUser(Instant.now(), "second", Identifier.random()));
+    assertThat(plugin.handle(ts).message()).isEqualTo("reply");
+
+    assertThat(MAPPER.readTree(webServer.take(500).body()).get("sync").textValue())
+        .isEqualTo("delta");
+    JsonNode resync = MAPPER.readTree(webServer.take(500).body());
+    assertThat(resync.get("sync").textValue()).isEqualTo("full");
+    assertThat(resync.get("messages")).hasSize(3);
+    assertThat(plugin.cacheMisses()).isEqualTo(1);
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_generic_plugin_syncs_total{service=\"/service\",sync=\"full\"} 2",
+            "cp4m_generic_plugin_syncs_total{service=\"/service\",sync=\"delta\"} 1",
+            "cp4m_generic_plugin_cache_misses_total{service=\"/service\"} 1");
+  }
+
+  @Test
+  void deltaProtocolStateIsSharedByPluginsPostingToOneUrl()
+      throws URISyntaxException, IOException, InterruptedException {
+    webServer.response(ignored -> true, "{\"type\": \"text\", \"value\": \"reply\"}");
+    final URI url =
+        URIBuilder.loopbackAddress()
+            .appendPath("/delta")
+            .setScheme("http")
+            .setPort(webServer.port())
+            .build();
+    GenericPlugin<FBMessage> first = new GenericPlugin<>(url, new AuthRequest.NoAuthRequest(), 2);
+    GenericPlugin<FBMessage> second = new GenericPlugin<>(url, new AuthRequest.NoAuthRequest(), 2);
+    ThreadState<FBMessage> ts =
+        ThreadState.of(
+            new FBMessage(
+                Instant.now(),
+                Identifier.random(),
+                Identifier.random(),
+                Identifier.random(),
+                "first",
+                Message.Role.USER));
+    ts = ts.with(first.handle(ts));
+    webServer.take(500);
+    ts = ts.with(ts.newMessageFromUser(Instant.now(), "second", Identifier.random()));
+    second.handle(ts);
+    JsonNode body = MAPPER.readTree(webServer.take(500).body());
+    assertThat(body.get("sync").textValue()).isEqualTo("delta");
+    assertThat(body.get("sequence").longValue()).isEqualTo(2);
+  }
+
+  @Test
+  void deltaProtocolSendsOneRequestPerConversationAtATime() throws Exception {
+    webServer.response(
+        ignored -> true,
+        ignored -> {
+          try {
+            TimeUnit.MILLISECONDS.sleep(20);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return "{\"type\": \"text\", \"value\": \"reply\"}";
+        });
+    final URI url =
+        URIBuilder.loopbackAddress()
+            .appendPath("/delta")
+            .setScheme("http")
+            .setPort(webServer.port())
+            .build();
+    GenericPlugin<FBMessage> plugin = new GenericPlugin<>(url, new AuthRequest.NoAuthRequest(), 2);
+    ThreadState<FBMessage> ts =
+        ThreadState.of(
+            new FBMessage(
+                Instant.now(),
+                Identifier.random(),
+                Identifier.random(),
+                Identifier.random(),
+                "first",
+                Message.Role.USER));
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<FBMessage>> replies = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        replies.add(executor.submit(() -> plugin.handle(ts)));
+      }
+      for (Future<FBMessage> reply : replies) {
+        reply.get();
+      }
+    }
+    List<Long> sequences = new ArrayList<>();
+    for (ReceivedRequest request : webServer.takeAll(500)) {
+      sequences.add(MAPPER.readTree(request.body()).get("sequence").longValue());
+    }
+    assertThat(sequences).containsExactly(1L, 2L, 3L, 4L, 5L);
+  }
+
+  @Test
+  void protocolVersionConfig() throws JsonProcessingException {
+    PluginConfig config =
+        ConfigurationUtils.jsonMapper()
+            .readValue(
+                """
+                {"type": "generic", "name": "g", "url": "http://example.com", "protocol_version": 2}
+                """,
+                PluginConfig.class);
+    assertThat(((GenericPluginConfig) config).protocolVersion()).isEqualTo(2);
+    assertThat(((GenericPlugin<FBMessage>) config.<FBMessage>toPlugin()).protocolVersion())
+        .isEqualTo(2);
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "generic",
+                          "name": "g",
+                          "url": "http://example.com",
+                          "protocol_version": 3
+                        }
+                        """,
+                        PluginConfig.class))
+        .hasMessageContaining("protocol_version must be 1 or 2");
+  }
+
+  @Test
+  void batchesConcurrentRequests() throws Exception {
+    webServer.response(
+        ctx -> ctx.path().equals("/batch"),
+        ctx -> {
+          ArrayNode responses = MAPPER.createArrayNode();
+          JsonNode requests;
+          try {
+            requests = MAPPER.readTree(ctx.body());
+          } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+          }
+          for (JsonNode request : requests) {
+            String text = request.get("messages").get(0).get("value").textValue();
+            if (text.equals("fail")) {
+              responses.addObject().put("type", "error").put("message", "could not answer");
+            } else {
+              responses.addObject().put("type", "text").put("value", "re: " + text);
+            }
+          }
+          return responses.toString();
+        });
+    URI url =
+        URIBuilder.loopbackAddress()
+            .appendPath("/single")
+            .setScheme("http")
+            .setPort(webServer.port())
+            .build();
+    URI batchUrl = new URIBuilder(url).setPath("/batch").build();
+    GenericPlugin<FBMessage> plugin =
+        new GenericPlugin<>(
+            url,
+            new AuthRequest.NoAuthRequest(),
+            1,
+            new GenericPlugin.Batching(batchUrl, 3, Duration.ofMinutes(1)));
+
+    List<Future<FBMessage>> replies = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (String text : List.of("one", "fail", "two")) {
+        ThreadState<FBMessage> ts =
+            ThreadState.of(
+                new FBMessage(
+                    Instant.now(),
+                    Identifier.random(),
+                    Identifier.random(),
+                    Identifier.random(),
+                    text,
+                    Message.Role.USER));
+        replies.add(executor.submit(() -> plugin.handle(ts)));
+      }
+    }
+    assertThat(replies.get(0).get().message()).isEqualTo("re: one");
+    assertThat(replies.get(2).get().message()).isEqualTo("re: two");
+    assertThatThrownBy(() -> replies.get(1).get())
+        .hasCauseInstanceOf(IOException.class)
+        .hasMessageContaining("could not answer");
+
+    ReceivedRequest received = webServer.take(500);
+    assertThat(received.path()).isEqualTo("/batch");
+    assertThat(MAPPER.readTree(received.body())).hasSize(3);
+    assertThat(webServer.poll()).isNull();
+    assertThat(plugin.batcher())
+        .hasValueSatisfying(b -> assertThat(b.batchSizes().getMaxValue()).isEqualTo(3));
+  }
+
+  @Test
+  void batchingConfig() throws JsonProcessingException {
+    GenericPluginConfig config =
+        (GenericPluginConfig)
+            ConfigurationUtils.jsonMapper()
+                .readValue(
+                    """
+                    {
+                      "type": "generic",
+                      "name": "g",
+                      "url": "http://example.com",
+                      "batch_url": "http://example.com/batch",
+                      "batch_max_size": 16
+                    }
+                    """,
+                    PluginConfig.class);
+    assertThat(config.batching())
+        .hasValue(
+            new GenericPlugin.Batching(
+                URI.create("http://example.com/batch"), 16, Duration.ofMillis(10)));
+    assertThat(((GenericPlugin<FBMessage>) config.<FBMessage>toPlugin()).batcher()).isPresent();
+
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "generic",
+                          "name": "g",
+                          "url": "http://example.com",
+                          "batch_max_wait_ms": 5
+                        }
+                        """,
+                        PluginConfig.class))
+        .hasMessageContaining("batch_max_size is required to batch requests");
+  }
+
+  private static String parts(String... texts) {
+    StringBuilder lines = new StringBuilder();
+    for (String text : texts) {
+      lines.append(MAPPER.createObjectNode().put("type", "text").put("value", text)).append('\n');
+    }
+    return lines.toString();
+  }
+
+  private GenericPlugin<FBMessage> streamingPlugin(int protocolVersion) throws URISyntaxException {
+    URI url =
+        URIBuilder.loopbackAddress()
+            .appendPath("/stream")
+            .setScheme("http")
+            .setPort(webServer.port())
+            .build();
+    return new GenericPlugin<>(url, new AuthRequest.NoAuthRequest(), protocolVersion, null, true);
+  }
+
+  private static ThreadState<FBMessage> fbThread(String text) {
+    return ThreadState.of(
+        new FBMessage(
+            Instant.now(),
+            Identifier.random(),
+            Identifier.random(),
+            Identifier.random(),
+            text,
+            Message.Role.USER));
+  }
+
+  @Test
+  void streamsNdjson() throws Exception {
+    String paragraph = "a".repeat(299) + ".";
+    webServer.response(
+        ctx -> ctx.body().contains("\"stream\":true"),
+        ctx -> {
+          ctx.contentType("application/x-ndjson");
+          return parts(paragraph, "\n\n", paragraph, "\n\n", "end");
+        });
+    GenericPlugin<FBMessage> plugin = streamingPlugin(1);
+    List<FBMessage> chunks = new ArrayList<>();
+    plugin.stream(fbThread("hello"), chunks::add);
+    assertThat(chunks).map(FBMessage::message).containsExactly(paragraph, paragraph, "end");
+    assertThat(MAPPER.readTree(webServer.take(500).body()).get("stream").booleanValue()).isTrue();
+
+    // handle asks for a single response
+    webServer.response(ignored -> true, "{\"type\": \"text\", \"value\": \"whole\"}");
+    assertThat(plugin.handle(fbThread("hello")).message()).isEqualTo("whole");
+  }
+
+  @Test
+  void streamsServerSentEvents() throws Exception {
+    webServer.response(
+        ignored -> true,
+        ctx -> {
+          ctx.contentType("text/event-stream");
+          StringBuilder events = new StringBuilder(": comment\n\n");
+          for (String line : parts("hello ", "world").split("\n")) {
+            events.append("data: ").append(line).append("\n\n");
+          }
+          return events.append("data: [DONE]\n\n").toString();
+        });
+    List<FBMessage> chunks = new ArrayList<>();
+    streamingPlugin(1).stream(fbThread("hello"), chunks::add);
+    assertThat(chunks).map(FBMessage::message).containsExactly("hello world");
+  }
+
+  @Test
+  void streamingRemoteMayAnswerAtOnce() throws Exception {
+    webServer.response(
+        ignored -> true,
+        ctx -> {
+          ctx.contentType("application/json");
+          return "{\n  \"type\": \"text\",\n  \"value\": \"not streamed\"\n}";
+        });
+    List<FBMessage> chunks = new ArrayList<>();
+    streamingPlugin(1).stream(fbThread("hello"), chunks::add);
+    assertThat(chunks).map(FBMessage::message).containsExactly("not streamed");
+  }
+
+  @Test
+  void streamErrorThrows() throws Exception {
+    webServer.response(
+        ignored -> true,
+        ctx -> {
+          ctx.contentType("application/x-ndjson");
+          return parts("partial")
+              + MAPPER.createObjectNode().put("type", "error").put("message", "overloaded");
+        });
+    assertThatThrownBy(() -> streamingPlugin(1).stream(fbThread("hello"), m -> {}))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("overloaded");
+  }
+
+  @Test
+  void streamingWithDeltaProtocol() throws Exception {
+    webServer.response(
+        ctx -> ctx.body().contains("\"sync\":\"delta\"") && ctx.body().contains("second"),
+        ctx -> {
+          ctx.contentType("application/x-ndjson");
+          return "{\"type\": \"cache_miss\"}\n";
+        });
+    webServer.response(
+        ignored -> true,
+        ctx -> {
+          ctx.contentType("application/x-ndjson");
+          return parts("streamed ", "reply");
+        });
+    GenericPlugin<FBMessage> plugin = streamingPlugin(2);
+    ThreadState<FBMessage> ts = fbThread("first");
+    List<FBMessage> chunks = new ArrayList<>();
+    plugin.stream(ts, chunks::add);
+    ts = ts.with(chunks.getLast());
+    webServer.take(500);
+
+    ts = ts.with(ts.newMessageFromUser(Instant.now(), "second", Identifier.random()));
+    chunks.clear();
+    plugin.stream(ts, chunks::add);
+    assertThat(chunks).map(FBMessage::message).containsExactly("streamed reply");
+    assertThat(MAPPER.readTree(webServer.take(500).body()).get("sync").textValue())
+        .isEqualTo("delta");
+    assertThat(MAPPER.readTree(webServer.take(500).body()).get("sync").textValue())
+        .isEqualTo("full");
+
+    // the last streamed chunk is what the remote acknowledged
+    ts = ts.with(chunks.getLast());
+    ts = ts.with(ts.newMessageFromUser(Instant.now(), "third", Identifier.random()));
+    plugin.stream(ts, m -> {});
+    JsonNode body = MAPPER.readTree(webServer.take(500).body());
+    assertThat(body.get("sync").textValue()).isEqualTo("delta");
+    assertThat(body.get("messages")).hasSize(1);
+    assertThat(plugin.cacheMisses()).isEqualTo(1);
+  }
+
+  @Test
+  void streamConfig() throws JsonProcessingException {
+    GenericPluginConfig config =
+        (GenericPluginConfig)
+            ConfigurationUtils.jsonMapper()
+                .readValue(
+                    """
+                    {"type": "generic", "name": "g", "url": "http://example.com", "stream": true}
+                    """,
+                    PluginConfig.class);
+    assertThat(config.stream()).isTrue();
+    assertThat(((GenericPlugin<FBMessage>) config.<FBMessage>toPlugin()).streams()).isTrue();
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "generic",
+                          "name": "g",
+                          "url": "http://example.com",
+                          "stream": true,
+                          "batch_max_size": 4
+                        }
+                        """,
+                        PluginConfig.class))
+        .hasMessageContaining("stream cannot be used with batch_max_size");
+  }
 }
@@ -0,0 +1,247 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.configuration.ConfigurationUtils;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message.Role;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+class HedgedPluginTest {
+
+  // long enough that a fast request is never hedged, even on a loaded machine
+  private static final HedgedPlugin.Policy POLICY =
+      new HedgedPlugin.Policy(0.95, Duration.ofMillis(500), Duration.ZERO, 1, 1);
+
+  private static ThreadState<FBMessage> thread() {
+    return ThreadState.of(
+        new FBMessage(
+            Instant.now(),
+            Identifier.random(),
+            Identifier.random(),
+            Identifier.random(),
+            "hello",
+            Role.USER));
+  }
+
+  @Test
+  void slowRequestsAreHedged() throws IOException {
+    BackendPlugin slow = new BackendPlugin("slow");
+    slow.delay.set(5_000);
+    BackendPlugin fast = new BackendPlugin("fast");
+    HedgedPlugin<FBMessage> plugin = new HedgedPlugin<>(List.of(slow, fast), POLICY);
+    MetricsRegistry registry = new MetricsRegistry();
+    plugin.registerMetrics(registry, "/service");
+
+    long start = System.nanoTime();
+    assertThat(plugin.handle(thread()).message()).isEqualTo("fast");
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(2));
+    assertThat(slow.calls.get()).isEqualTo(1);
+    assertThat(fast.calls.get()).isEqualTo(1);
+    assertThat(plugin.hedges()).isEqualTo(1);
+    assertThat(plugin.hedgeWins()).isEqualTo(1);
+
+    // the next request starts on the fast plugin and is not hedged
+    assertThat(plugin.handle(thread()).message()).isEqualTo("fast");
+    assertThat(slow.calls.get()).isEqualTo(1);
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_hedged_requests_total{service=\"/service\"} 2",
+            "cp4m_hedged_hedges_total{service=\"/service\"} 1",
+            "cp4m_hedged_hedge_wins_total{service=\"/service\"} 1");
+  }
+
+  @Test
+  void streamsAreHedgedUntilTheFirstPart() throws IOException {
+    BackendPlugin slow = new BackendPlugin("slow");
+    slow.delay.set(5_000);
+    BackendPlugin fast = new BackendPlugin("fast");
+    HedgedPlugin<FBMessage> plugin = new HedgedPlugin<>(List.of(slow, fast), POLICY);
+
+    List<String> parts = new ArrayList<>();
+    plugin.stream(thread(), message -> parts.add(message.message()));
+    assertThat(parts).containsExactly("fast", "fast again");
+    assertThat(plugin.hedgeWins()).isEqualTo(1);
+  }
+
+  @Test
+  void requestsThatLoseRaiseTheHedgeDelay() throws IOException {
+    BackendPlugin slow = new BackendPlugin("slow");
+    slow.delay.set(5_000);
+    BackendPlugin fast = new BackendPlugin("fast");
+    HedgedPlugin<FBMessage> plugin =
+        new HedgedPlugin<>(
+            List.of(slow, fast),
+            new HedgedPlugin.Policy(0.9, Duration.ofMillis(50), Duration.ZERO, 1, 1));
+    for (int i = 0; i < 40; i++) {
+      assertThat(plugin.handle(thread()).message()).isEqualTo("fast");
+    }
+    // half the requests are cancelled after the hedge delay, so it cannot drop to the fast latency
+    assertThat(Duration.ofNanos(plugin.hedgeDelayNanos()))
+        .isGreaterThanOrEqualTo(Duration.ofMillis(40));
+  }
+
+  @Test
+  void closeClosesThePlugins() {
+    BackendPlugin first = new BackendPlugin("first");
+    BackendPlugin second = new BackendPlugin("second");
+    new HedgedPlugin<>(List.of(first, second), POLICY).close();
+    assertThat(first.closed).isTrue();
+    assertThat(second.closed).isTrue();
+  }
+
+  @Test
+  void budgetLimitsHedges() throws IOException {
+    BackendPlugin first = new BackendPlugin("first");
+    BackendPlugin second = new BackendPlugin("second");
+    first.delay.set(100);
+    second.delay.set(100);
+    HedgedPlugin<FBMessage> plugin =
+        new HedgedPlugin<>(
+            List.of(first, second),
+            new HedgedPlugin.Policy(0.95, Duration.ofMillis(20), Duration.ZERO, 0.25, 1));
+    for (int i = 0; i < 8; i++) {
+      plugin.handle(thread());
+    }
+    // one hedge is saved up front and every request earns a quarter of one
+    assertThat(plugin.hedges()).isEqualTo(3);
+    assertThat(plugin.hedgesDenied()).isEqualTo(5);
+  }
+
+  @Test
+  void failuresFailOver() throws IOException {
+    BackendPlugin failing = new BackendPlugin("failing");
+    failing.failing = true;
+    BackendPlugin working = new BackendPlugin("working");
+    HedgedPlugin<FBMessage> plugin =
+        new HedgedPlugin<>(
+            List.of(failing, working),
+            new HedgedPlugin.Policy(0.95, Duration.ofSeconds(10), Duration.ZERO, 1, 1));
+    long start = System.nanoTime();
+    assertThat(plugin.handle(thread()).message()).isEqualTo("working");
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(2));
+
+    working.failing = true;
+    assertThatThrownBy(() -> plugin.handle(thread()))
+        .isInstanceOf(IOException.class)
+        .hasMessageEndingWith("failed");
+  }
+
+  @Test
+  void hedgeDelayFollowsLatency() throws IOException {
+    BackendPlugin first = new BackendPlugin("first");
+    BackendPlugin second = new BackendPlugin("second");
+    HedgedPlugin<FBMessage> plugin =
+        new HedgedPlugin<>(
+            List.of(first, second),
+            new HedgedPlugin.Policy(0.95, Duration.ofSeconds(10), Duration.ofMillis(5), 0.1, 1));
+    assertThat(plugin.hedgeDelayNanos()).isEqualTo(Duration.ofSeconds(10).toNanos());
+    for (int i = 0; i < 32; i++) {
+      plugin.handle(thread());
+    }
+    assertThat(Duration.ofNanos(plugin.hedgeDelayNanos()))
+        .isGreaterThanOrEqualTo(Duration.ofMillis(5))
+        .isLessThan(Duration.ofSeconds(1));
+  }
+
+  @Test
+  void config() throws JsonProcessingException {
+    PluginConfig config =
+        ConfigurationUtils.jsonMapper()
+            .readValue(
+                """
+                {
+                  "type": "hedged",
+                  "name": "hedged",
+                  "plugins": [
+                    {"type": "echo", "name": "first"},
+                    {"type": "echo", "name": "second"}
+                  ],
+                  "hedge_budget": 0.05,
+                  "max_hedges": 2
+                }
+                """,
+                PluginConfig.class);
+    assertThat(config).isInstanceOf(HedgedPluginConfig.class);
+    HedgedPluginConfig hedged = (HedgedPluginConfig) config;
+    assertThat(hedged.plugins()).hasSize(2).allMatch(p -> p instanceof EchoPluginConfig);
+    assertThat(hedged.policy().budget()).isEqualTo(0.05);
+    assertThat(hedged.policy().maxHedges()).isEqualTo(2);
+    assertThat(hedged.policy().percentile()).isEqualTo(0.95);
+    assertThat(hedged.<FBMessage>toPlugin()).isInstanceOf(HedgedPlugin.class);
+
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "hedged",
+                          "name": "hedged",
+                          "plugins": [{"type": "echo", "name": "first"}]
+                        }
+                        """,
+                        PluginConfig.class))
+        .hasMessageContaining("plugins must have at least two plugins");
+  }
+
+  private static class BackendPlugin implements Plugin<FBMessage> {
+    private final String name;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicLong delay = new AtomicLong();
+    private volatile boolean failing = false;
+    private volatile boolean closed = false;
+
+    BackendPlugin(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public FBMessage handle(ThreadState<FBMessage> threadState) throws IOException {
+      calls.incrementAndGet();
+      try {
+        TimeUnit.MILLISECONDS.sleep(delay.get());
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (failing) {
+        throw new IOException(name + " failed");
+      }
+      return threadState.newMessageFromBot(Instant.now(), name);
+    }
+
+    @Override
+    public void stream(ThreadState<FBMessage> threadState, Consumer<FBMessage> sink)
+        throws IOException {
+      sink.accept(handle(threadState));
+      sink.accept(threadState.newMessageFromBot(Instant.now(), name + " again"));
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -89,7 +89,23 @@ class HuggingFaceConfigTest {
               "max_input_tokens",
               false,
               LongNode.valueOf(2000),
-              List.of(LongNode.valueOf(-1), LongNode.valueOf(100_000))));
+              List.of(LongNode.valueOf(-1), LongNode.valueOf(100_000))),
+          new ConfigItem(
+              "batch_max_size",
+              false,
+              LongNode.valueOf(2),
+              List.of(LongNode.valueOf(0), LongNode.valueOf(1))),
+          new ConfigItem(
+              "batch_max_wait_ms",
+              false,
+              LongNode.valueOf(5),
+              List.of(LongNode.valueOf(0), LongNode.valueOf(-1))),
+          // true conflicts with batch_max_size in the maximal config, see streamWithBatching
+          new ConfigItem(
+              "stream",
+              false,
+              BooleanNode.FALSE,
+              List.of(TextNode.valueOf("not a boolean"))));
   private ObjectNode minimalConfig;
 
   static Stream<ConfigItem> configItems() {
@@ -178,6 +194,16 @@ class HuggingFaceConfigTest {
         .isInstanceOf(Exception.class);
   }
 
+  @Test
+  void streamWithBatching() throws JsonProcessingException {
+    minimalConfig.put("stream", true);
+    assertThat(MAPPER.convertValue(minimalConfig, HuggingFaceConfig.class).stream()).isTrue();
+    minimalConfig.put("batch_max_size", 2);
+    String bodyString = MAPPER.writeValueAsString(minimalConfig);
+    assertThatThrownBy(() -> MAPPER.readValue(bodyString, HuggingFaceConfig.class))
+        .isInstanceOf(Exception.class);
+  }
+
   record ConfigItem(
       String key, boolean required, JsonNode validValue, List<JsonNode> invalidValues) {}
 }
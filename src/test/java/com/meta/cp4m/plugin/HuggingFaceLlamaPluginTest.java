@@ -10,6 +10,7 @@ package com.meta.cp4m.plugin;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.SoftAssertions.assertSoftly;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -31,6 +32,9 @@ import java.net.URISyntaxException;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -314,6 +318,59 @@ public class HuggingFaceLlamaPluginTest {
     }
   }
 
+  @Test
+  void batchesConcurrentPrompts() throws Exception {
+    String batchPath = "/batch";
+    app.post(
+        batchPath,
+        ctx -> {
+          ArrayNode response = MAPPER.createArrayNode();
+          for (JsonNode input : MAPPER.readTree(ctx.body()).get("inputs")) {
+            // echo the prompt back the same way the inference api does
+            response.addArray().addObject().put("generated_text", input.textValue() + " reply");
+          }
+          ctx.result(MAPPER.writeValueAsString(response));
+        });
+    HuggingFaceConfig config =
+        HuggingFaceConfig.builder("api key")
+            .endpoint(
+                URIBuilder.loopbackAddress()
+                    .setScheme("http")
+                    .appendPath(batchPath)
+                    .setPort(app.port())
+                    .build()
+                    .toString())
+            .tokenLimit(1000)
+            .batchMaxSize(3)
+            .batchMaxWaitMs(60_000)
+            .build();
+    HuggingFaceLlamaPlugin<FBMessage> plugin = new HuggingFaceLlamaPlugin<>(config);
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    List<Future<FBMessage>> responses = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      ThreadState<FBMessage> thread =
+          ThreadState.of(
+              MessageFactory.instance(FBMessage.class)
+                  .newMessage(
+                      Instant.now(),
+                      new Payload.Text("message " + i),
+                      Identifier.random(),
+                      Identifier.random(),
+                      Identifier.random(),
+                      Role.USER));
+      responses.add(executor.submit(() -> plugin.handle(thread)));
+    }
+    for (int i = 0; i < 3; i++) {
+      assertThat(responses.get(i).get(1, TimeUnit.SECONDS).message())
+          .isEqualToIgnoringWhitespace("reply");
+    }
+    List<OutboundRequest> requests = new ArrayList<>();
+    HuggingFaceLlamaRequests.drainTo(requests);
+    assertThat(requests).isEmpty(); // nothing was sent to the non-batch path
+    assertThat(plugin.batcher())
+        .hasValueSatisfying(b -> assertThat(b.batchSizes().getMaxValue()).isEqualTo(3));
+  }
+
   @Test
   void inPipeline() throws IOException, URISyntaxException, InterruptedException {
     ChatStore<FBMessage> store = MemoryStoreConfig.of(1, 1).toStore();
@@ -365,6 +422,71 @@ public class HuggingFaceLlamaPluginTest {
     assertThat(or).isNotNull().satisfies(r -> assertThat(r.body()).contains(TEST_MESSAGE));
   }
 
+  @Test
+  void streamsChunks() throws Exception {
+    String streamPath = "/stream";
+    String paragraph = "a".repeat(299) + ".";
+    app.post(
+        streamPath,
+        ctx -> {
+          StringBuilder events = new StringBuilder();
+          List<String> tokens = List.of(paragraph, "\n\n", paragraph, "\n\n", "end");
+          for (String token : tokens) {
+            ObjectNode event = MAPPER.createObjectNode();
+            event.putObject("token").put("text", token).put("special", false);
+            events.append("data:").append(MAPPER.writeValueAsString(event)).append("\n\n");
+          }
+          ObjectNode eos = MAPPER.createObjectNode();
+          eos.putObject("token").put("text", "</s>").put("special", true);
+          events.append("data:").append(MAPPER.writeValueAsString(eos)).append("\n\n");
+          ctx.contentType("text/event-stream").result(events.toString());
+        });
+    HuggingFaceConfig config =
+        HuggingFaceConfig.builder("api key")
+            .endpoint(
+                URIBuilder.loopbackAddress()
+                    .setScheme("http")
+                    .appendPath(streamPath)
+                    .setPort(app.port())
+                    .build()
+                    .toString())
+            .tokenLimit(1000)
+            .stream(true)
+            .build();
+    HuggingFaceLlamaPlugin<FBMessage> plugin = new HuggingFaceLlamaPlugin<>(config);
+    List<FBMessage> chunks = new ArrayList<>();
+    plugin.stream(STACK, chunks::add);
+    assertThat(chunks).map(FBMessage::message).containsExactly(paragraph, paragraph, "end");
+    assertThat(chunks).allSatisfy(m -> assertThat(m.role()).isSameAs(Role.ASSISTANT));
+
+    assertThat(plugin.handle(STACK).message())
+        .isEqualTo(paragraph + "\n\n" + paragraph + "\n\nend");
+  }
+
+  @Test
+  void streamErrorThrows() throws URISyntaxException {
+    String streamPath = "/stream";
+    app.post(
+        streamPath,
+        ctx -> ctx.contentType("text/event-stream").result("data:{\"error\":\"overloaded\"}\n\n"));
+    HuggingFaceConfig config =
+        HuggingFaceConfig.builder("api key")
+            .endpoint(
+                URIBuilder.loopbackAddress()
+                    .setScheme("http")
+                    .appendPath(streamPath)
+                    .setPort(app.port())
+                    .build()
+                    .toString())
+            .tokenLimit(1000)
+            .stream(true)
+            .build();
+    HuggingFaceLlamaPlugin<FBMessage> plugin = new HuggingFaceLlamaPlugin<>(config);
+    assertThatThrownBy(() -> plugin.stream(STACK, m -> {}))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("overloaded");
+  }
+
   private record OutboundRequest(
       String body, Map<String, String> headerMap, Map<String, List<String>> queryParamMap) {}
 }
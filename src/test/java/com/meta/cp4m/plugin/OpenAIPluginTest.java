@@ -135,6 +135,26 @@ public class OpenAIPluginTest {
         .hasSize(2); // system message + existing text message
   }
 
+  @Test
+  void requestKeyIgnoresUser() {
+    OpenAIConfig config = OpenAIConfig.builder(OpenAIModel.GPT4, "api key").build();
+    OpenAIPlugin<FBMessage> plugin = new OpenAIPlugin<FBMessage>(config).endpoint(endpoint);
+    ThreadState<FBMessage> otherUser =
+        ThreadState.of(
+            MessageFactory.instance(FBMessage.class)
+                .newMessage(
+                    Instant.now(),
+                    new Payload.Text("test message"),
+                    Identifier.random(),
+                    THREAD.tail().recipientId(),
+                    Identifier.random(),
+                    Role.USER));
+    ThreadState<FBMessage> otherText =
+        otherUser.with(otherUser.newMessageFromUser(Instant.now(), "more", Identifier.random()));
+    assertThat(plugin.requestKey(THREAD)).isPresent().isEqualTo(plugin.requestKey(otherUser));
+    assertThat(plugin.requestKey(otherText)).isPresent().isNotEqualTo(plugin.requestKey(THREAD));
+  }
+
   @ParameterizedTest
   @EnumSource(OpenAIModel.class)
   void sampleValid(OpenAIModel model) throws IOException, InterruptedException {
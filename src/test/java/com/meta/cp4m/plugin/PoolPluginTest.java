@@ -0,0 +1,274 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.configuration.ConfigurationUtils;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message.Role;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class PoolPluginTest {
+
+  private static final PoolPlugin.Policy POLICY = new PoolPlugin.Policy(2, Duration.ofMillis(100));
+
+  private static ThreadState<FBMessage> thread() {
+    return ThreadState.of(
+        new FBMessage(
+            Instant.now(),
+            Identifier.random(),
+            Identifier.random(),
+            Identifier.random(),
+            "hello",
+            Role.USER));
+  }
+
+  private static Map<String, Plugin<FBMessage>> endpoints(EndpointPlugin... plugins) {
+    Map<String, Plugin<FBMessage>> endpoints = new LinkedHashMap<>();
+    for (EndpointPlugin plugin : plugins) {
+      endpoints.put(plugin.name, plugin);
+    }
+    return endpoints;
+  }
+
+  @Test
+  void leastOutstandingSpreadsLoad() {
+    PoolPlugin<FBMessage> plugin =
+        new PoolPlugin<>(
+            endpoints(new EndpointPlugin("a"), new EndpointPlugin("b"), new EndpointPlugin("c")),
+            PoolPlugin.Selection.LEAST_OUTSTANDING,
+            POLICY);
+    // each selection stays outstanding because the request is never finished
+    for (int i = 0; i < 6; i++) {
+      plugin.select();
+    }
+    assertThat(plugin.endpoints()).allMatch(e -> e.outstanding() == 2);
+  }
+
+  @Test
+  void powerOfTwoChoicesPrefersFastEndpoints() throws IOException {
+    EndpointPlugin fast = new EndpointPlugin("fast");
+    EndpointPlugin slow = new EndpointPlugin("slow");
+    slow.delay.set(30);
+    PoolPlugin<FBMessage> plugin =
+        new PoolPlugin<>(endpoints(fast, slow), PoolPlugin.Selection.POWER_OF_TWO_CHOICES, POLICY);
+    for (int i = 0; i < 40; i++) {
+      plugin.handle(thread());
+    }
+    // each endpoint is tried once before there is any latency to compare
+    assertThat(slow.calls.get()).isEqualTo(1);
+    assertThat(fast.calls.get()).isEqualTo(39);
+    assertThat(plugin.endpoints().get(1).ewmaNanos())
+        .isGreaterThan(plugin.endpoints().get(0).ewmaNanos());
+  }
+
+  @Test
+  void endpointsThatFailFastAreNotPreferred() throws IOException {
+    EndpointPlugin failing = new EndpointPlugin("failing");
+    failing.failing = true;
+    EndpointPlugin working = new EndpointPlugin("working");
+    working.delay.set(5);
+    PoolPlugin<FBMessage> plugin =
+        new PoolPlugin<>(
+            endpoints(failing, working),
+            PoolPlugin.Selection.POWER_OF_TWO_CHOICES,
+            new PoolPlugin.Policy(100, Duration.ofMinutes(1)));
+    int failures = 0;
+    for (int i = 0; i < 20; i++) {
+      try {
+        plugin.handle(thread());
+      } catch (IOException e) {
+        failures++;
+      }
+    }
+    // the failure makes the endpoint look slow even though it was never ejected
+    assertThat(failures).isEqualTo(1);
+    assertThat(plugin.endpoints().getFirst().ejected()).isFalse();
+    assertThat(Duration.ofNanos((long) plugin.endpoints().getFirst().ewmaNanos()))
+        .isGreaterThanOrEqualTo(Duration.ofSeconds(1));
+  }
+
+  @Test
+  void streamLatencyLeavesOutTheSink() throws IOException {
+    PoolPlugin<FBMessage> plugin =
+        new PoolPlugin<>(
+            endpoints(new EndpointPlugin("a")), PoolPlugin.Selection.LEAST_OUTSTANDING, POLICY);
+    plugin.stream(
+        thread(),
+        message -> {
+          try {
+            TimeUnit.MILLISECONDS.sleep(200);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        });
+    assertThat(Duration.ofNanos((long) plugin.endpoints().getFirst().ewmaNanos()))
+        .isLessThan(Duration.ofMillis(100));
+  }
+
+  @Test
+  void failingEndpointsAreEjectedAndProbed() throws IOException, InterruptedException {
+    EndpointPlugin flaky = new EndpointPlugin("flaky");
+    EndpointPlugin stable = new EndpointPlugin("stable");
+    flaky.failing = true;
+    PoolPlugin<FBMessage> plugin =
+        new PoolPlugin<>(
+            endpoints(flaky, stable),
+            PoolPlugin.Selection.LEAST_OUTSTANDING,
+            new PoolPlugin.Policy(1, Duration.ofMillis(100)));
+    MetricsRegistry registry = new MetricsRegistry();
+    plugin.registerMetrics(registry, "/service");
+
+    // the flaky endpoint has no latency yet so it is tried first
+    int failures = 0;
+    for (int i = 0; i < 10; i++) {
+      try {
+        plugin.handle(thread());
+      } catch (IOException e) {
+        failures++;
+      }
+    }
+    assertThat(failures).isEqualTo(1);
+    assertThat(flaky.calls.get()).isEqualTo(1);
+    PoolPlugin<FBMessage>.Endpoint ejected = plugin.endpoints().getFirst();
+    assertThat(ejected.ejected()).isTrue();
+
+    // a failed probe ejects it again
+    TimeUnit.MILLISECONDS.sleep(120);
+    assertThatThrownBy(() -> plugin.handle(thread())).hasMessage("flaky failed");
+    assertThat(ejected.ejections()).isEqualTo(2);
+    plugin.handle(thread());
+    assertThat(flaky.calls.get()).isEqualTo(2);
+
+    TimeUnit.MILLISECONDS.sleep(120);
+    flaky.failing = false;
+    assertThat(plugin.handle(thread()).message()).isEqualTo("flaky");
+    assertThat(ejected.ejected()).isFalse();
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_pool_ejections_total{service=\"/service\",endpoint=\"flaky\"} 2",
+            "cp4m_pool_failures_total{service=\"/service\",endpoint=\"flaky\"} 2",
+            "cp4m_pool_requests_total{service=\"/service\",endpoint=\"flaky\"} 3",
+            "cp4m_pool_ejected{service=\"/service\",endpoint=\"flaky\"} 0",
+            "cp4m_pool_outstanding_requests{service=\"/service\",endpoint=\"stable\"} 0");
+  }
+
+  @Test
+  void everyEndpointEjected() throws IOException {
+    EndpointPlugin a = new EndpointPlugin("a");
+    a.failing = true;
+    PoolPlugin<FBMessage> plugin =
+        new PoolPlugin<>(
+            endpoints(a),
+            PoolPlugin.Selection.POWER_OF_TWO_CHOICES,
+            new PoolPlugin.Policy(1, Duration.ofMinutes(1)));
+    assertThatThrownBy(() -> plugin.handle(thread())).isInstanceOf(IOException.class);
+    a.failing = false;
+    // requests still go somewhere rather than failing outright
+    assertThat(plugin.handle(thread()).message()).isEqualTo("a");
+  }
+
+  @Test
+  void config() throws JsonProcessingException {
+    PluginConfig config =
+        ConfigurationUtils.jsonMapper()
+            .readValue(
+                """
+                {
+                  "type": "pool",
+                  "name": "replicas",
+                  "endpoints": [
+                    {"type": "echo", "name": "first"},
+                    {"type": "echo", "name": "second"}
+                  ],
+                  "selection": "power_of_two_choices",
+                  "ejection_ms": 5000
+                }
+                """,
+                PluginConfig.class);
+    assertThat(config).isInstanceOf(PoolPluginConfig.class);
+    PoolPluginConfig pool = (PoolPluginConfig) config;
+    assertThat(pool.endpoints()).hasSize(2);
+    assertThat(pool.selection()).isEqualTo(PoolPlugin.Selection.POWER_OF_TWO_CHOICES);
+    assertThat(pool.policy().consecutiveFailures()).isEqualTo(5);
+    assertThat(pool.policy().ejectionDuration()).isEqualTo(Duration.ofSeconds(5));
+    PoolPlugin<FBMessage> plugin = (PoolPlugin<FBMessage>) pool.<FBMessage>toPlugin();
+    assertThat(plugin.endpoints()).map(e -> e.name()).containsExactly("first", "second");
+
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "pool",
+                          "name": "replicas",
+                          "endpoints": [
+                            {"type": "echo", "name": "first"},
+                            {"type": "echo", "name": "first"}
+                          ]
+                        }
+                        """,
+                        PluginConfig.class))
+        .hasMessageContaining("endpoints must have unique names");
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "pool",
+                          "name": "replicas",
+                          "endpoints": [{"type": "echo", "name": "first"}],
+                          "selection": "random"
+                        }
+                        """,
+                        PluginConfig.class))
+        .hasMessageContaining("unknown selection random");
+  }
+
+  private static class EndpointPlugin implements Plugin<FBMessage> {
+    private final String name;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicLong delay = new AtomicLong();
+    private volatile boolean failing = false;
+
+    EndpointPlugin(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public FBMessage handle(ThreadState<FBMessage> threadState) throws IOException {
+      calls.incrementAndGet();
+      try {
+        TimeUnit.MILLISECONDS.sleep(delay.get());
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (failing) {
+        throw new IOException(name + " failed");
+      }
+      return threadState.newMessageFromBot(Instant.now(), name);
+    }
+  }
+}
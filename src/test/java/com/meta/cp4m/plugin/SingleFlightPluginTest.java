@@ -0,0 +1,173 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.plugin;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message.Role;
+import com.meta.cp4m.message.ThreadState;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+class SingleFlightPluginTest {
+
+  private static ThreadState<FBMessage> thread(String text) {
+    return ThreadState.of(
+        new FBMessage(
+            Instant.now(),
+            Identifier.random(),
+            Identifier.random(),
+            Identifier.random(),
+            text,
+            Role.USER));
+  }
+
+  @Test
+  void identicalRequestsCollapse() throws Exception {
+    BlockingPlugin blocking = new BlockingPlugin(true);
+    SingleFlightPlugin<FBMessage> plugin = new SingleFlightPlugin<>(blocking);
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    List<ThreadState<FBMessage>> threads = new ArrayList<>();
+    List<Future<FBMessage>> responses = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      ThreadState<FBMessage> thread = thread("yes please");
+      threads.add(thread);
+      responses.add(executor.submit(() -> plugin.handle(thread)));
+      if (i == 0) {
+        assertThat(blocking.started.await(1, TimeUnit.SECONDS)).isTrue();
+      }
+    }
+    while (plugin.collapsedRequests() < 9) {
+      Thread.sleep(5);
+    }
+    blocking.release.countDown();
+
+    for (int i = 0; i < threads.size(); i++) {
+      FBMessage response = responses.get(i).get(1, TimeUnit.SECONDS);
+      ThreadState<FBMessage> thread = threads.get(i);
+      assertThat(response.message()).isEqualTo("response to yes please");
+      assertThat(response.role()).isSameAs(Role.ASSISTANT);
+      assertThat(response.recipientId()).isEqualTo(thread.userId());
+      assertThat(response.senderId()).isEqualTo(thread.botId());
+    }
+    assertThat(blocking.calls.get()).isEqualTo(1);
+    assertThat(plugin.leaderRequests()).isEqualTo(1);
+    assertThat(plugin.collapsedRequests()).isEqualTo(9);
+  }
+
+  @Test
+  void sequentialRequestsAreNotCollapsed() throws IOException {
+    BlockingPlugin blocking = new BlockingPlugin(true);
+    blocking.release.countDown();
+    SingleFlightPlugin<FBMessage> plugin = new SingleFlightPlugin<>(blocking);
+    plugin.handle(thread("yes please"));
+    plugin.handle(thread("yes please"));
+    assertThat(blocking.calls.get()).isEqualTo(2);
+    assertThat(plugin.collapsedRequests()).isZero();
+  }
+
+  @Test
+  void unkeyedRequestsPassThrough() throws IOException {
+    BlockingPlugin blocking = new BlockingPlugin(false);
+    blocking.release.countDown();
+    SingleFlightPlugin<FBMessage> plugin = new SingleFlightPlugin<>(blocking);
+    plugin.handle(thread("yes please"));
+    assertThat(blocking.calls.get()).isEqualTo(1);
+    assertThat(plugin.leaderRequests()).isZero();
+  }
+
+  @Test
+  void streamingGoesToTheWrappedPlugin() throws IOException {
+    BlockingPlugin blocking = new BlockingPlugin(true);
+    blocking.release.countDown();
+    SingleFlightPlugin<FBMessage> plugin = new SingleFlightPlugin<>(blocking);
+    List<FBMessage> parts = new ArrayList<>();
+    plugin.stream(thread("yes please"), parts::add);
+    assertThat(parts)
+        .map(FBMessage::message)
+        .containsExactly("response to yes please", "and more");
+    assertThat(plugin.leaderRequests()).isZero();
+  }
+
+  @Test
+  void leaderFailurePropagates() throws Exception {
+    BlockingPlugin blocking = new BlockingPlugin(true);
+    blocking.fail = true;
+    SingleFlightPlugin<FBMessage> plugin = new SingleFlightPlugin<>(blocking);
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    Future<FBMessage> leader = executor.submit(() -> plugin.handle(thread("yes please")));
+    assertThat(blocking.started.await(1, TimeUnit.SECONDS)).isTrue();
+    Future<FBMessage> follower = executor.submit(() -> plugin.handle(thread("yes please")));
+    while (plugin.collapsedRequests() < 1) {
+      Thread.sleep(5);
+    }
+    blocking.release.countDown();
+    assertThat(leader).failsWithin(1, TimeUnit.SECONDS);
+    assertThat(follower)
+        .failsWithin(1, TimeUnit.SECONDS)
+        .withThrowableOfType(ExecutionException.class)
+        .withCauseInstanceOf(IOException.class);
+  }
+
+  private static class BlockingPlugin implements Plugin<FBMessage> {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+    private final boolean keyed;
+    private volatile boolean fail = false;
+
+    BlockingPlugin(boolean keyed) {
+      this.keyed = keyed;
+    }
+
+    @Override
+    public FBMessage handle(ThreadState<FBMessage> threadState) throws IOException {
+      calls.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (fail) {
+        throw new IOException("upstream failure");
+      }
+      return threadState.newMessageFromBot(
+          Instant.now(), "response to " + threadState.tail().message());
+    }
+
+    @Override
+    public void stream(ThreadState<FBMessage> threadState, Consumer<FBMessage> sink)
+        throws IOException {
+      sink.accept(handle(threadState));
+      sink.accept(threadState.newMessageFromBot(Instant.now(), "and more"));
+    }
+
+    @Override
+    public Optional<HashCode> requestKey(ThreadState<FBMessage> threadState) {
+      if (!keyed) {
+        return Optional.empty();
+      }
+      return Optional.of(
+          Hashing.sha256().hashString(threadState.tail().message(), StandardCharsets.UTF_8));
+    }
+  }
+}
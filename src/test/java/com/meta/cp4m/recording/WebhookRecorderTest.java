@@ -0,0 +1,74 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.recording;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WebhookRecorderTest {
+
+  private static RecordedWebhook webhook(int i) {
+    return RecordedWebhook.of(
+        Instant.ofEpochSecond(1_700_000_000, i * 1000L),
+        "/whatsapp",
+        Map.of("Content-Type", "application/json"),
+        "{\"n\":" + i + "}");
+  }
+
+  private static List<RecordedWebhook> readAll(Path path) throws IOException {
+    try (Stream<RecordedWebhook> webhooks = WebhookRecorder.read(path)) {
+      return webhooks.toList();
+    }
+  }
+
+  @Test
+  void recordsAndReadsBack(@TempDir Path dir) throws IOException {
+    List<RecordedWebhook> expected =
+        IntStream.range(0, 100).mapToObj(WebhookRecorderTest::webhook).toList();
+    try (WebhookRecorder recorder = new WebhookRecorder(dir, 1024 * 1024, 4, 1000)) {
+      expected.forEach(recorder::record);
+    }
+    assertThat(readAll(dir)).containsExactlyElementsOf(expected);
+    assertThat(readAll(dir).get(1).arrival())
+        .isEqualTo(Instant.ofEpochSecond(1_700_000_000, 1000));
+  }
+
+  @Test
+  void rotatesAndKeepsNewestFiles(@TempDir Path dir) throws Exception {
+    // every file is already bigger than 1 byte once its header is written so each webhook rotates
+    try (WebhookRecorder recorder = new WebhookRecorder(dir, 1, 2, 1000)) {
+      for (int i = 0; i < 5; i++) {
+        recorder.record(webhook(i));
+      }
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      assertThat(files).hasSize(2);
+    }
+    assertThat(readAll(dir)).containsExactly(webhook(3), webhook(4));
+  }
+
+  @Test
+  void dropsWhenClosed(@TempDir Path dir) throws IOException {
+    WebhookRecorder recorder = new WebhookRecorder(dir, 1024, 1, 10);
+    recorder.close();
+    recorder.record(webhook(0));
+    assertThat(recorder.dropped()).isEqualTo(1);
+    assertThat(readAll(dir)).isEmpty();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.recording;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.hash.Hashing;
+import io.javalin.Javalin;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WebhookReplayerTest {
+
+  private static final String APP_SECRET = "replay_secret";
+  private static final Instant START = Instant.ofEpochSecond(1_700_000_000);
+  private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+  private Javalin app;
+
+  private static String waBody(String from, String text) {
+    return """
+        {"object":"whatsapp_business_account","entry":[{"id":"0","changes":[{"field":"messages",
+        "value":{"messages":[{"from":"%s","id":"1","type":"text","text":{"body":"%s"}}]}}]}]}"""
+        .formatted(from, text);
+  }
+
+  private static RecordedWebhook webhook(Duration offset, String from, String text) {
+    return RecordedWebhook.of(
+        START.plus(offset),
+        "/whatsapp",
+        Map.of("X-Hub-Signature-256", "sha256=stale", "User-Agent", "facebookexternalua"),
+        waBody(from, text));
+  }
+
+  @BeforeEach
+  void setUp() {
+    app = Javalin.create(config -> config.useVirtualThreads = true);
+    app.post(
+        "/whatsapp",
+        ctx -> {
+          String expected =
+              "sha256="
+                  + Hashing.hmacSha256(APP_SECRET.getBytes(StandardCharsets.UTF_8))
+                      .hashString(ctx.body(), StandardCharsets.UTF_8);
+          if (!expected.equals(ctx.header("X-Hub-Signature-256"))
+              || !"facebookexternalua".equals(ctx.header("User-Agent"))) {
+            ctx.status(400);
+            return;
+          }
+          String text = extractText(ctx.body());
+          if (text.equals("slow")) {
+            // a slow acknowledgement must not let later webhooks from the same user overtake it
+            Thread.sleep(200);
+          }
+          received.add(WebhookReplayer.threadKey(ctx.body()) + ":" + text);
+        });
+    app.start(0);
+  }
+
+  private static String extractText(String body) {
+    int start = body.indexOf("\"body\":\"") + 8;
+    return body.substring(start, body.indexOf('"', start));
+  }
+
+  @AfterEach
+  void tearDown() {
+    app.stop();
+  }
+
+  private WebhookReplayer replayer(double speed) {
+    return new WebhookReplayer(
+        URI.create("http://localhost:" + app.port()), ignored -> APP_SECRET, speed);
+  }
+
+  @Test
+  void threadKey() {
+    assertThat(WebhookReplayer.threadKey(waBody("16315551181", "hi"))).isEqualTo("16315551181");
+    assertThat(
+            WebhookReplayer.threadKey(
+                "{\"object\":\"page\",\"entry\":[{\"messaging\":[{\"sender\":{\"id\":\"42\"}}]}]}"))
+        .isEqualTo("42");
+    assertThat(WebhookReplayer.threadKey("not json")).isEmpty();
+  }
+
+  @Test
+  void resignsAndKeepsPerUserOrder() {
+    List<RecordedWebhook> webhooks =
+        List.of(
+            webhook(Duration.ZERO, "a", "slow"),
+            webhook(Duration.ofMillis(1), "a", "second"),
+            webhook(Duration.ofMillis(2), "b", "other"),
+            webhook(Duration.ofMillis(3), "a", "third"));
+    WebhookReplayer.Result result = replayer(Double.POSITIVE_INFINITY).replay(webhooks.stream());
+    assertThat(result.sent()).isEqualTo(4);
+    assertThat(result.failed()).isZero();
+    assertThat(result.ackLatencyMicros().getTotalCount()).isEqualTo(4);
+    List<String> order = List.copyOf(received);
+    // b is not held up by a's slow webhook, a's webhooks stay in order
+    assertThat(order.getFirst()).isEqualTo("b:other");
+    assertThat(order.stream().filter(s -> s.startsWith("a:")))
+        .containsExactly("a:slow", "a:second", "a:third");
+  }
+
+  @Test
+  void recordedPaceIsScaledBySpeed() {
+    Stream<RecordedWebhook> webhooks =
+        Stream.of(
+            webhook(Duration.ZERO, "a", "first"), webhook(Duration.ofSeconds(2), "b", "second"));
+    WebhookReplayer.Result result = replayer(10).replay(webhooks);
+    assertThat(result.sent()).isEqualTo(2);
+    assertThat(result.elapsed()).isBetween(Duration.ofMillis(200), Duration.ofMillis(1500));
+  }
+}
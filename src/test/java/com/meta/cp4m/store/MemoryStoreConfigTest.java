@@ -46,7 +46,15 @@ class MemoryStoreConfigTest {
               .validValues(1, 100)
               .invalidValues(0, -1)
               .required(true)
-              .getter(MemoryStoreConfig::storageCapacityMb));
+              .getter(MemoryStoreConfig::storageCapacityMb),
+          ConfigParamTestSpec.of(MemoryStoreConfig.class, "message_history_tokens")
+              .validValues(1, 4000)
+              .invalidValues(0, -1)
+              .getter(c -> c.messageHistoryTokens().orElseThrow()),
+          ConfigParamTestSpec.of(MemoryStoreConfig.class, "message_history_bytes")
+              .validValues(1, 1_000_000)
+              .invalidValues(0, -1)
+              .getter(c -> c.messageHistoryBytes().orElseThrow()));
 
   static Stream<Named<ConfigParamTestSpec<MemoryStoreConfig>>> required() {
     return PARAMS.stream().filter(ConfigParamTestSpec::required).map(p -> Named.of(p.name(), p));
@@ -10,7 +10,10 @@ package com.meta.cp4m.store;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.meta.cp4m.Identifier;
+import com.meta.cp4m.configuration.ConfigurationUtils;
 import com.meta.cp4m.message.*;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -95,4 +98,98 @@ class MemoryStoreTest {
               messages.subList(messages.size() - Math.min(0, numMessages), messages.size()));
     }
   }
+
+  private static MemoryStore<FBMessage> store(String budgets) throws JsonProcessingException {
+    ObjectNode config =
+        (ObjectNode)
+            ConfigurationUtils.jsonMapper()
+                .readTree(
+                    """
+                    {
+                      "type": "memory",
+                      "name": "store",
+                      "storage_duration_hours": 1,
+                      "storage_capacity_mbs": 1
+                    }
+                    """);
+    config.setAll((ObjectNode) ConfigurationUtils.jsonMapper().readTree(budgets));
+    return ConfigurationUtils.jsonMapper().convertValue(config, MemoryStoreConfig.class).toStore();
+  }
+
+  private static FBMessage message(Identifier senderId, Identifier recipientId, int n, int chars) {
+    return message(senderId, recipientId, n, "a".repeat(chars));
+  }
+
+  private static FBMessage message(
+      Identifier senderId, Identifier recipientId, int n, String text) {
+    return MessageFactory.instance(FBMessage.class)
+        .newMessage(
+            Instant.now().plusSeconds(n),
+            new Payload.Text(text),
+            senderId,
+            recipientId,
+            Identifier.random(),
+            Message.Role.USER);
+  }
+
+  @Test
+  void tokenBudget() throws JsonProcessingException {
+    Identifier senderId = Identifier.random();
+    Identifier recipientId = Identifier.random();
+    // each message is 4 tokens of overhead and 10 tokens of text
+    MemoryStore<FBMessage> memoryStore = store("{\"message_history_tokens\": 30}");
+    ThreadState<FBMessage> thread = null;
+    for (int n = 0; n < 5; n++) {
+      thread = memoryStore.add(message(senderId, recipientId, n, 40));
+    }
+    assertThat(thread.messages()).hasSize(2);
+
+    // a message over the budget on its own is still kept
+    thread = memoryStore.add(message(senderId, recipientId, 5, 1000));
+    assertThat(thread.messages())
+        .singleElement()
+        .satisfies(m -> assertThat(m.message()).hasSize(1000));
+    thread = memoryStore.add(message(senderId, recipientId, 6, 4));
+    assertThat(thread.messages()).hasSize(1);
+  }
+
+  @Test
+  void byteBudget() throws JsonProcessingException {
+    Identifier senderId = Identifier.random();
+    Identifier recipientId = Identifier.random();
+    MemoryStore<FBMessage> memoryStore =
+        store("{\"message_history_bytes\": 100, \"message_history_length\": 3}");
+    ThreadState<FBMessage> thread = null;
+    for (int n = 0; n < 4; n++) {
+      thread = memoryStore.add(message(senderId, recipientId, n, 45));
+    }
+    assertThat(thread.messages()).hasSize(2);
+    for (int n = 4; n < 10; n++) {
+      thread = memoryStore.add(message(senderId, recipientId, n, 10));
+    }
+    // the message count limit applies as well
+    assertThat(thread.messages()).hasSize(3);
+
+    ThreadState<FBMessage> updated =
+        memoryStore.update(thread.with(message(senderId, recipientId, 10, 90)));
+    assertThat(updated.messages()).hasSize(2);
+    assertThat(memoryStore.list()).singleElement().isEqualTo(updated);
+  }
+
+  @Test
+  void byteBudgetCountsUtf8() throws JsonProcessingException {
+    Identifier senderId = Identifier.random();
+    Identifier recipientId = Identifier.random();
+    MemoryStore<FBMessage> memoryStore = store("{\"message_history_bytes\": 100}");
+    ThreadState<FBMessage> thread = null;
+    for (int n = 0; n < 3; n++) {
+      // 30 characters but 60 bytes
+      thread = memoryStore.add(message(senderId, recipientId, n, "é".repeat(30)));
+    }
+    assertThat(thread.messages()).hasSize(1);
+
+    Identifier id = Identifier.random();
+    assertThat(HistoryLimits.bytes(message(id, id, 0, "a\u00e9\u20ac\ud83d\ude00"))).isEqualTo(10);
+    assertThat(HistoryLimits.bytes(message(id, id, 0, "\ud83d"))).isEqualTo(1);
+  }
 }
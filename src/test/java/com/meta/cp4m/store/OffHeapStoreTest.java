@@ -0,0 +1,276 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.configuration.ConfigurationUtils;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message.Role;
+import com.meta.cp4m.message.Payload;
+import com.meta.cp4m.message.ThreadState;
+import com.meta.cp4m.metrics.MetricsRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class OffHeapStoreTest {
+
+  private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+  private static final HistoryLimits UNLIMITED =
+      new HistoryLimits(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+  private final AtomicReference<Instant> now = new AtomicReference<>(START);
+  private final InstantSource clock = now::get;
+
+  private OffHeapStore<FBMessage> store(long capacityBytes, int slabBytes) {
+    return new OffHeapStore<>(capacityBytes, slabBytes, Duration.ofHours(1), UNLIMITED, clock);
+  }
+
+  /** Even messages are from the user and odd messages from the bot */
+  private static FBMessage message(Identifier user, Identifier bot, int n, String text) {
+    Instant timestamp = START.plusSeconds(n);
+    return n % 2 == 0
+        ? new FBMessage(timestamp, Identifier.random(), user, bot, text, Role.USER)
+        : new FBMessage(timestamp, Identifier.random(), bot, user, text, Role.ASSISTANT);
+  }
+
+  @Test
+  void roundTrip() {
+    OffHeapStore<FBMessage> store = store(1 << 20, 4096);
+    assertThat(store.list()).isEmpty();
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+
+    ThreadState<FBMessage> thread = store.add(message(user, bot, 0, "hello"));
+    thread = store.add(message(user, bot, 1, "hi, how can I help?"));
+    assertThat(thread.messages()).hasSize(2);
+    ThreadState<FBMessage> other = store.add(message(Identifier.random(), bot, 0, "hey"));
+    assertThat(store.list()).containsExactlyInAnyOrder(thread, other);
+
+    FBMessage image =
+        new FBMessage(
+            START.plusSeconds(2),
+            Identifier.random(),
+            user,
+            bot,
+            new Payload.Image(new byte[] {1, 2, 3}, "image/png"),
+            Role.USER);
+    ThreadState<FBMessage> updated =
+        store.update(thread.with(image).withUserData(thread.userData().withName("Ada")));
+    assertThat(updated.messages()).hasSize(3).last().isEqualTo(image);
+    assertThat(store.list()).contains(updated);
+    assertThat(store.add(message(user, bot, 3, "nice picture")).userData().name()).hasValue("Ada");
+    assertThat(store.threads()).isEqualTo(2);
+  }
+
+  @Test
+  void historyIsLimited() {
+    OffHeapStore<FBMessage> store =
+        new OffHeapStore<>(
+            1 << 20, 4096, Duration.ofHours(1), new HistoryLimits(3, 1000, 1000), clock);
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+    ThreadState<FBMessage> thread = null;
+    for (int n = 0; n < 10; n++) {
+      thread = store.add(message(user, bot, n, "message " + n));
+    }
+    assertThat(thread.messages()).hasSize(3);
+    assertThat(thread.tail().message()).isEqualTo("message 9");
+    assertThat(store.list()).singleElement().isEqualTo(thread);
+  }
+
+  @Test
+  void garbageIsCompacted() {
+    OffHeapStore<FBMessage> store =
+        new OffHeapStore<>(
+            64 * 1024, 1024, Duration.ofHours(1), new HistoryLimits(2, 1000, 1000), clock);
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+    Identifier quietUser = Identifier.random();
+    ThreadState<FBMessage> quiet = store.add(message(quietUser, bot, 0, "still here"));
+    ThreadState<FBMessage> thread = null;
+    for (int n = 0; n < 200; n++) {
+      thread = store.add(message(user, bot, n, "x".repeat(100)));
+    }
+    assertThat(store.compactions()).isPositive();
+    assertThat(store.evictions()).isZero();
+    // every superseded copy has been reclaimed and the slabs reused
+    assertThat(store.reservedBytes()).isLessThanOrEqualTo(64 * 1024);
+    assertThat(store.list()).containsExactlyInAnyOrder(quiet, thread);
+  }
+
+  @Test
+  void oldestThreadsAreEvicted() {
+    OffHeapStore<FBMessage> store = store(4 * 1024, 1024);
+    Identifier bot = Identifier.random();
+    ThreadState<FBMessage> last = null;
+    for (int n = 0; n < 100; n++) {
+      last = store.add(message(Identifier.random(), bot, 0, "y".repeat(200)));
+    }
+    assertThat(store.evictions()).isPositive();
+    assertThat(store.threads()).isLessThan(100);
+    assertThat(store.reservedBytes()).isLessThanOrEqualTo(4 * 1024);
+    assertThat(store.list()).contains(last);
+  }
+
+  @Test
+  void largeThreadsGetTheirOwnSlab() {
+    OffHeapStore<FBMessage> store = store(16 * 1024, 1024);
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+    store.add(message(user, bot, 0, "small"));
+    byte[] noise = new byte[5000]; // won't compress
+    new Random(7).nextBytes(noise);
+    ThreadState<FBMessage> thread =
+        store.add(
+            new FBMessage(
+                START.plusSeconds(1),
+                Identifier.random(),
+                user,
+                bot,
+                new Payload.Image(noise, "image/png"),
+                Role.USER));
+    assertThat(store.list()).singleElement().isEqualTo(thread);
+    assertThat(store.liveBytes()).isGreaterThan(5000);
+  }
+
+  @Test
+  void threadsExpire() {
+    OffHeapStore<FBMessage> store = store(1 << 20, 4096);
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+    store.add(message(user, bot, 0, "hello"));
+    now.set(START.plus(Duration.ofMinutes(59)));
+    assertThat(store.add(message(user, bot, 1, "hi")).messages()).hasSize(2);
+
+    now.set(START.plus(Duration.ofHours(2)));
+    assertThat(store.list()).isEmpty();
+    assertThat(store.add(message(user, bot, 2, "hello again")).messages()).hasSize(1);
+  }
+
+  @Test
+  void expiredThreadsAreSwept() {
+    OffHeapStore<FBMessage> store = store(1 << 20, 4096);
+    Identifier bot = Identifier.random();
+    for (int n = 0; n < 10; n++) {
+      store.add(message(Identifier.random(), bot, 0, "hello"));
+    }
+    now.set(START.plus(Duration.ofHours(2)));
+    ThreadState<FBMessage> thread = store.add(message(Identifier.random(), bot, 0, "hello"));
+    assertThat(store.threads()).isEqualTo(1);
+    assertThat(store.list()).singleElement().isEqualTo(thread);
+    assertThat(store.evictions()).isZero();
+  }
+
+  @Test
+  void expiredThreadsAreDroppedWhenCompacted() {
+    OffHeapStore<FBMessage> store =
+        new OffHeapStore<>(
+            64 * 1024, 1024, Duration.ofSeconds(30), new HistoryLimits(2, 1000, 1000), clock);
+    Identifier user = Identifier.random();
+    Identifier bot = Identifier.random();
+    now.set(START.plusSeconds(29));
+    store.add(message(Identifier.random(), bot, 0, "gone quiet"));
+    now.set(START.plusSeconds(30)); // sweeps while the quiet thread is still fresh
+    store.add(message(user, bot, 0, "hello"));
+    // expired, but the next sweep is not due until a minute after the start
+    now.set(START.plusSeconds(59));
+    ThreadState<FBMessage> thread = null;
+    for (int n = 1; n < 200; n++) {
+      thread = store.add(message(user, bot, n, "x".repeat(100)));
+    }
+    assertThat(store.compactions()).isPositive();
+    assertThat(store.threads()).isEqualTo(1);
+    assertThat(store.list()).singleElement().isEqualTo(thread);
+  }
+
+  @Test
+  void compactionStaysWithinTheCapacity() {
+    OffHeapStore<FBMessage> store =
+        new OffHeapStore<>(
+            4 * 1024, 1024, Duration.ofHours(1), new HistoryLimits(2, 1000, 1000), clock);
+    Identifier bot = Identifier.random();
+    List<Identifier> users = new ArrayList<>();
+    for (int n = 0; n < 4; n++) {
+      users.add(Identifier.random());
+    }
+    Map<Identifier, ThreadState<FBMessage>> threads = new HashMap<>();
+    for (int n = 0; n < 400; n++) {
+      Identifier user = users.get(n % users.size());
+      threads.put(user, store.add(message(user, bot, n, "z".repeat(50 + n % 7))));
+      assertThat(store.reservedBytes()).isLessThanOrEqualTo(4 * 1024);
+    }
+    assertThat(store.compactions()).isPositive();
+    assertThat(store.evictions()).isZero();
+    assertThat(store.list()).containsExactlyInAnyOrderElementsOf(threads.values());
+  }
+
+  @Test
+  void metrics() {
+    OffHeapStore<FBMessage> store = store(1 << 20, 4096);
+    MetricsRegistry registry = new MetricsRegistry();
+    store.registerMetrics(registry, "/service");
+    store.add(message(Identifier.random(), Identifier.random(), 0, "hello"));
+    assertThat(registry.scrape())
+        .contains(
+            "cp4m_off_heap_store_reserved_bytes{service=\"/service\"} 4096",
+            "cp4m_off_heap_store_threads{service=\"/service\"} 1",
+            "cp4m_off_heap_store_evictions_total{service=\"/service\"} 0");
+  }
+
+  @Test
+  void config() throws JsonProcessingException {
+    StoreConfig config =
+        ConfigurationUtils.jsonMapper()
+            .readValue(
+                """
+                {
+                  "type": "off_heap",
+                  "name": "off heap",
+                  "storage_duration_hours": 24,
+                  "storage_capacity_mbs": 512,
+                  "slab_size_kbs": 4096,
+                  "message_history_length": 50
+                }
+                """,
+                StoreConfig.class);
+    assertThat(config).isInstanceOf(OffHeapStoreConfig.class);
+    OffHeapStoreConfig offHeap = (OffHeapStoreConfig) config;
+    assertThat(offHeap.slabSizeKb()).isEqualTo(4096);
+    assertThat(offHeap.messageHistoryLength()).isEqualTo(50);
+    assertThat(offHeap.<FBMessage>toStore()).isInstanceOf(OffHeapStore.class);
+
+    assertThatThrownBy(
+            () ->
+                ConfigurationUtils.jsonMapper()
+                    .readValue(
+                        """
+                        {
+                          "type": "off_heap",
+                          "name": "off heap",
+                          "storage_duration_hours": 24,
+                          "storage_capacity_mbs": 1,
+                          "slab_size_kbs": 2048
+                        }
+                        """,
+                        StoreConfig.class))
+        .hasMessageContaining("slab_size_kbs must not be larger than storage_capacity_mbs");
+  }
+}
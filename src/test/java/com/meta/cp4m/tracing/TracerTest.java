@@ -0,0 +1,100 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.tracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Recording;
+import org.junit.jupiter.api.Test;
+
+class TracerTest {
+
+  @Test
+  void unsampledIsNoop() {
+    assertThat(Tracer.disabled().start("/path")).isSameAs(MessageTrace.NOOP);
+    assertThat(new Tracer(0, null).start("/path")).isSameAs(MessageTrace.NOOP);
+    assertThat(MessageTrace.NOOP.fork("/service")).isSameAs(MessageTrace.NOOP);
+  }
+
+  @Test
+  void stagesAreTracedWhileARecordingWantsThem() {
+    try (Recording recording = new Recording()) {
+      recording.enable("com.meta.cp4m.Stage");
+      recording.start();
+      MessageTrace trace = Tracer.disabled().start("/path");
+      assertThat(trace).isNotSameAs(MessageTrace.NOOP);
+      // only emitted as events, nothing is kept for the log
+      assertThat(trace.recording()).isFalse();
+    }
+    assertThat(Tracer.disabled().start("/path")).isSameAs(MessageTrace.NOOP);
+  }
+
+  @Test
+  void forkKeepsStages() throws IOException {
+    List<MessageTrace> exported = new ArrayList<>();
+    Tracer tracer = new Tracer(1, null, exported::add);
+    MessageTrace request = tracer.start("/path");
+    assertThat(request.span("webhook", "Handler", () -> "parsed")).isEqualTo("parsed");
+
+    MessageTrace first = request.fork("/service");
+    MessageTrace second = request.fork("/service");
+    assertThat(first.traceId()).startsWith(request.traceId()).isNotEqualTo(second.traceId());
+    assertThatThrownBy(
+            () ->
+                first.span(
+                    "plugin",
+                    "Plugin",
+                    () -> {
+                      throw new IOException("failed");
+                    }))
+        .isInstanceOf(IOException.class);
+    first.finish();
+    // a forked trace is exported by its forks
+    request.finish();
+
+    assertThat(exported).containsExactly(first);
+    assertThat(first.spans())
+        .extracting(MessageTrace.Span::stage, MessageTrace.Span::failed)
+        .containsExactly(tuple("webhook", false), tuple("plugin", true));
+    assertThat(second.spans()).extracting(MessageTrace.Span::stage).containsExactly("webhook");
+  }
+
+  @Test
+  void slowMessagesAreExportedWithoutSampling() {
+    List<MessageTrace> exported = new ArrayList<>();
+    AtomicLong nanos = new AtomicLong();
+    Tracer tracer = new Tracer(0, Duration.ofMillis(20), exported::add, nanos::get);
+
+    MessageTrace fast = tracer.start("/path");
+    assertThat(fast.recording()).isTrue();
+    assertThat(fast.sampled()).isFalse();
+    nanos.addAndGet(Duration.ofMillis(19).toNanos());
+    fast.finish();
+    assertThat(exported).isEmpty();
+
+    MessageTrace slow = tracer.start("/path");
+    long start = nanos.get();
+    nanos.addAndGet(Duration.ofMillis(25).toNanos());
+    slow.record("queue", "Service", start, nanos.get());
+    slow.finish();
+    assertThat(exported).containsExactly(slow);
+    assertThat(slow.totalNanos()).isEqualTo(Duration.ofMillis(25).toNanos());
+    assertThat(slow.spans())
+        .singleElement()
+        .extracting(MessageTrace.Span::durationNanos)
+        .isEqualTo(Duration.ofMillis(25).toNanos());
+  }
+}
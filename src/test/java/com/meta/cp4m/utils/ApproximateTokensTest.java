@@ -0,0 +1,36 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.meta.cp4m.Identifier;
+import com.meta.cp4m.message.FBMessage;
+import com.meta.cp4m.message.Message;
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+
+class ApproximateTokensTest {
+
+  private static FBMessage message(String text) {
+    return new FBMessage(
+        Instant.now(),
+        Identifier.random(),
+        Identifier.random(),
+        Identifier.random(),
+        text,
+        Message.Role.USER);
+  }
+
+  @Test
+  void textIsFourCharactersPerTokenPlusOverhead() {
+    assertThat(ApproximateTokens.of(message(""))).isEqualTo(4);
+    assertThat(ApproximateTokens.of(message("a".repeat(9)))).isEqualTo(7);
+  }
+}
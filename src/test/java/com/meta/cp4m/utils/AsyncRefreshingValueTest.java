@@ -0,0 +1,173 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+class AsyncRefreshingValueTest {
+
+  private static final Duration GRACE = Duration.ofSeconds(10);
+
+  @Test
+  void concurrentCallersShareOneRefreshWithoutPinning() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    AsyncRefreshingValue<String> value =
+        new AsyncRefreshingValue<>(
+            () -> {
+              loads.incrementAndGet();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              return new AsyncRefreshingValue.Loaded<>("token", Instant.MAX);
+            },
+            GRACE,
+            Duration.ofSeconds(1));
+
+    Path recordingPath = Files.createTempFile("pinned", ".jfr");
+    List<Future<String>> results = new ArrayList<>();
+    try (Recording recording = new Recording()) {
+      recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+      recording.start();
+      try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (int i = 0; i < 10_000; i++) {
+          results.add(executor.submit(value::get));
+        }
+        release.countDown();
+        for (Future<String> result : results) {
+          assertThat(result.get(10, TimeUnit.SECONDS)).isEqualTo("token");
+        }
+      }
+      recording.stop();
+      recording.dump(recordingPath);
+    }
+    // custom events are enabled by default so only the pinning events are kept
+    List<RecordedEvent> pinned =
+        RecordingFile.readAllEvents(recordingPath).stream()
+            .filter(e -> e.getEventType().getName().equals("jdk.VirtualThreadPinned"))
+            .toList();
+    Files.delete(recordingPath);
+    assertThat(pinned).isEmpty();
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test
+  void waitsForARefreshAreRecorded() throws Exception {
+    AsyncRefreshingValue<String> value =
+        new AsyncRefreshingValue<>(
+            () -> {
+              try {
+                TimeUnit.MILLISECONDS.sleep(50);
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              return new AsyncRefreshingValue.Loaded<>("token", Instant.MAX);
+            },
+            GRACE,
+            Duration.ofSeconds(1));
+
+    Path recordingPath = Files.createTempFile("token-wait", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("com.meta.cp4m.TokenWait");
+      recording.start();
+      assertThat(value.get()).isEqualTo("token");
+      // the value is fresh so the second reader does not wait
+      assertThat(value.get()).isEqualTo("token");
+      recording.stop();
+      recording.dump(recordingPath);
+    }
+    List<RecordedEvent> waits =
+        RecordingFile.readAllEvents(recordingPath).stream()
+            .filter(e -> e.getEventType().getName().equals("com.meta.cp4m.TokenWait"))
+            .toList();
+    Files.delete(recordingPath);
+    assertThat(waits)
+        .singleElement()
+        .satisfies(e -> assertThat(e.getBoolean("succeeded")).isTrue())
+        .satisfies(e -> assertThat(e.getDuration()).isPositive());
+  }
+
+  @Test
+  void staleValueIsServedDuringGrace() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    Instant now = Instant.now();
+    AsyncRefreshingValue<Integer> value =
+        new AsyncRefreshingValue<>(
+                () -> {
+                  int load = loads.incrementAndGet();
+                  if (load > 1) {
+                    try {
+                      release.await();
+                    } catch (InterruptedException e) {
+                      throw new RuntimeException(e);
+                    }
+                  }
+                  return new AsyncRefreshingValue.Loaded<>(load, now.plusSeconds(60 * 60));
+                },
+                GRACE,
+                Duration.ofSeconds(1))
+            .clock(Clock.fixed(now, ZoneId.systemDefault()));
+    assertThat(value.get()).isEqualTo(1);
+
+    // expired but within the grace period, the old value is returned while refreshing
+    value.clock(Clock.fixed(now.plusSeconds(60 * 60 + 1), ZoneId.systemDefault()));
+    assertThat(value.get()).isEqualTo(1);
+    assertThat(value.get()).isEqualTo(1);
+
+    // past the grace period callers wait for the in flight refresh
+    value.clock(Clock.fixed(now.plusSeconds(60 * 60).plus(GRACE), ZoneId.systemDefault()));
+    CompletableFuture<Integer> waiting = value.getAsync();
+    assertThat(waiting).isNotDone();
+    release.countDown();
+    assertThat(waiting).succeedsWithin(1, TimeUnit.SECONDS).isEqualTo(2);
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  void failedRefreshIsRetried() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    AsyncRefreshingValue<String> value =
+        new AsyncRefreshingValue<>(
+            () -> {
+              if (loads.incrementAndGet() == 1) {
+                throw new IOException("unavailable");
+              }
+              return new AsyncRefreshingValue.Loaded<>("token", Instant.MAX);
+            },
+            GRACE,
+            Duration.ofMillis(10));
+    assertThatThrownBy(value::get).isInstanceOf(IOException.class);
+    // the retry happens in the background without needing a caller
+    while (loads.get() < 2) {
+      Thread.sleep(5);
+    }
+    assertThat(value.get()).isEqualTo("token");
+    assertThat(loads.get()).isEqualTo(2);
+  }
+}
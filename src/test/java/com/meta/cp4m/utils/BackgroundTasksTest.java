@@ -0,0 +1,68 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class BackgroundTasksTest {
+
+  @Test
+  void tasksBeyondTheQueueAreDropped() {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger ran = new AtomicInteger();
+    List<CompletableFuture<Void>> tasks = new ArrayList<>();
+    try (BackgroundTasks background = new BackgroundTasks("test-", 1, 2)) {
+      // one running and two waiting, the fourth is dropped without running on this thread
+      for (int i = 0; i < 4; i++) {
+        tasks.add(
+            background.submit(
+                () -> {
+                  try {
+                    release.await();
+                  } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                  }
+                  ran.incrementAndGet();
+                }));
+      }
+      assertThat(tasks.getLast())
+          .failsWithin(Duration.ZERO)
+          .withThrowableOfType(ExecutionException.class)
+          .withCauseInstanceOf(RejectedExecutionException.class);
+      release.countDown();
+    }
+    // closing waits for the queued tasks
+    assertThat(ran).hasValue(3);
+    assertThat(tasks.subList(0, 3)).allSatisfy(task -> assertThat(task).isCompleted());
+  }
+
+  @Test
+  void failuresCompleteTheTask() {
+    try (BackgroundTasks background = new BackgroundTasks("test-", 1, 1)) {
+      assertThat(
+              background.submit(
+                  () -> {
+                    throw new IllegalStateException("failed");
+                  }))
+          .failsWithin(Duration.ofSeconds(5))
+          .withThrowableOfType(ExecutionException.class)
+          .withCauseInstanceOf(IllegalStateException.class);
+    }
+  }
+}
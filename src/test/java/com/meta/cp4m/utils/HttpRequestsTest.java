@@ -0,0 +1,125 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import com.meta.cp4m.DummyWebServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+class HttpRequestsTest {
+
+  private static int readLines(BufferedReader reader, Consumer<String> emit) throws IOException {
+    int lines = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      emit.accept(line);
+      lines++;
+    }
+    return lines;
+  }
+
+  /** Every part of a stream is sent on by a request of its own, as a streamed reply is */
+  @Test
+  void sinksCanSendRequests() throws Exception {
+    // one connection for everything, a sink run while the stream holds it could never send
+    HttpRequests.Permits permits = new HttpRequests.Permits(1, 1);
+    try (DummyWebServer llm = DummyWebServer.create();
+        DummyWebServer graph = DummyWebServer.create()) {
+      llm.response(ctx -> true, "one\ntwo\nthree\n");
+      graph.response(ctx -> true, "sent");
+      URI llmUri = URI.create("http://localhost:" + llm.port() + "/stream");
+      URI graphUri = URI.create("http://localhost:" + graph.port() + "/send");
+      List<String> sent = new CopyOnWriteArrayList<>();
+      assertTimeoutPreemptively(
+          Duration.ofSeconds(10),
+          () -> {
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+              List<Future<Integer>> streams = new ArrayList<>();
+              for (int i = 0; i < 4; i++) {
+                streams.add(
+                    executor.submit(
+                        () ->
+                            HttpRequests.<String, Integer>stream(
+                                permits,
+                                llmUri,
+                                Request.get(llmUri),
+                                (response, emit) ->
+                                    readLines(
+                                        new BufferedReader(
+                                            new InputStreamReader(
+                                                response.getEntity().getContent(),
+                                                StandardCharsets.UTF_8)),
+                                        emit),
+                                line -> {
+                                  try {
+                                    sent.add(
+                                        HttpRequests.execute(
+                                            permits,
+                                            graphUri,
+                                            Request.post(graphUri)
+                                                .bodyString(line, ContentType.TEXT_PLAIN),
+                                            res -> EntityUtils.toString(res.getEntity()))
+                                            + " "
+                                            + line);
+                                  } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                  }
+                                })));
+              }
+              for (Future<Integer> stream : streams) {
+                assertThat(stream.get()).isEqualTo(3);
+              }
+            }
+          });
+      assertThat(sent).hasSize(12).containsOnly("sent one", "sent two", "sent three");
+    }
+  }
+
+  @Test
+  void streamFailuresAreThrown() throws Exception {
+    try (DummyWebServer server = DummyWebServer.create()) {
+      URI uri = URI.create("http://localhost:" + server.port() + "/stream");
+      List<String> received = new ArrayList<>();
+      assertThatThrownBy(
+              () ->
+                  HttpRequests.<String, Void>stream(
+                      uri,
+                      Request.get(uri),
+                      (response, emit) -> {
+                        emit.accept("before");
+                        throw new HttpResponseException(500, "failed");
+                      },
+                      received::add))
+          .isInstanceOf(HttpResponseException.class);
+      // what was emitted before the failure has been passed on
+      assertThat(received).containsExactly("before");
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ *
+ * Copyright (c) Meta Platforms, Inc. and affiliates.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.meta.cp4m.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class MicroBatcherTest {
+
+  @Test
+  void fullBatchDispatchesImmediately() {
+    List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+    MicroBatcher<Integer, Integer> batcher =
+        new MicroBatcher<>(
+            3,
+            Duration.ofMinutes(1),
+            batch -> {
+              batches.add(batch);
+              return batch.stream().map(i -> i * 2).toList();
+            });
+    List<CompletableFuture<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      futures.add(batcher.submit(i));
+    }
+    for (int i = 0; i < 3; i++) {
+      assertThat(futures.get(i)).succeedsWithin(1, TimeUnit.SECONDS).isEqualTo(i * 2);
+    }
+    assertThat(batches).containsExactly(List.of(0, 1, 2));
+    assertThat(batcher.batchSizes().getTotalCount()).isEqualTo(1);
+    assertThat(batcher.batchSizes().getMaxValue()).isEqualTo(3);
+    assertThat(batcher.addedLatencyMicros().getTotalCount()).isEqualTo(3);
+  }
+
+  @Test
+  void partialBatchDispatchesAfterMaxWait() {
+    List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+    MicroBatcher<Integer, Integer> batcher =
+        new MicroBatcher<>(
+            10,
+            Duration.ofMillis(20),
+            batch -> {
+              batches.add(batch);
+              return batch;
+            });
+    CompletableFuture<Integer> first = batcher.submit(1);
+    CompletableFuture<Integer> second = batcher.submit(2);
+    assertThat(first).succeedsWithin(1, TimeUnit.SECONDS).isEqualTo(1);
+    assertThat(second).succeedsWithin(1, TimeUnit.SECONDS).isEqualTo(2);
+    assertThat(batches).containsExactly(List.of(1, 2));
+    assertThat(batcher.addedLatencyMicros().getMinValue())
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toMicros(15));
+
+    // a new batch starts a new timer
+    assertThat(batcher.submit(3)).succeedsWithin(1, TimeUnit.SECONDS).isEqualTo(3);
+    assertThat(batches).hasSize(2);
+  }
+
+  @Test
+  void failuresAreDeliveredToEveryItem() {
+    MicroBatcher<Integer, Integer> batcher =
+        new MicroBatcher<>(
+            2,
+            Duration.ofMinutes(1),
+            batch -> {
+              throw new IOException("failed");
+            });
+    CompletableFuture<Integer> first = batcher.submit(1);
+    CompletableFuture<Integer> second = batcher.submit(2);
+    assertThat(first)
+        .failsWithin(1, TimeUnit.SECONDS)
+        .withThrowableOfType(ExecutionException.class)
+        .withCauseInstanceOf(IOException.class);
+    assertThat(second).failsWithin(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void mismatchedResultCountFails() {
+    MicroBatcher<Integer, Integer> batcher =
+        new MicroBatcher<>(2, Duration.ofMinutes(1), batch -> Collections.singletonList(1));
+    CompletableFuture<Integer> first = batcher.submit(1);
+    batcher.submit(2);
+    assertThat(first)
+        .failsWithin(1, TimeUnit.SECONDS)
+        .withThrowableOfType(ExecutionException.class)
+        .withCauseInstanceOf(IOException.class);
+  }
+}